@@ -0,0 +1,109 @@
+package org.appspot.apprtc;
+
+import android.content.Context;
+import android.net.wifi.WifiInfo;
+import android.net.wifi.WifiManager;
+import android.os.Build;
+import android.util.Log;
+import androidx.annotation.Nullable;
+import java.util.Arrays;
+import org.appspot.apprtc.AppRTCAudioManager.AudioDevice;
+import org.appspot.apprtc.util.AcousticFingerprintCache;
+import org.appspot.apprtc.util.AudioConfigStore;
+
+/**
+ * Connects the {@link AcousticFingerprintCache} with one call. On every audio route it looks up
+ * the fingerprint of the setup (device model, route and Wi-Fi network), hands its frequencies to
+ * the howl detector and raises the suppression level above the highest level they howled at. Every
+ * howl onset of the call is recorded for the next one.
+ *
+ * <p>A raised level stays in place on later routes, the safe side, until the owner of the call
+ * restores the tuning from before it. Route changes and {@link #release} must be called on one
+ * thread; howl events arrive on the spectrum tap thread.
+ */
+public class AcousticFingerprintSession implements HowlDetector.Listener {
+  private static final String TAG = "AcousticFingerprintSession";
+  // BSSID reported instead of the real one without location permission.
+  private static final String HIDDEN_BSSID = "02:00:00:00:00:00";
+
+  private final AcousticFingerprintCache cache;
+  private final HowlDetector howlDetector;
+  @Nullable private final AudioConfigStore store;
+  private final int maxSuppressLevel;
+  private final String deviceModel;
+  @Nullable private final String network;
+  // Setup of the current route, read by the howl detector's thread.
+  @Nullable private volatile String key;
+
+  public AcousticFingerprintSession(Context context, AcousticFingerprintCache cache,
+      HowlDetector howlDetector, @Nullable AudioConfigStore store, int maxSuppressLevel) {
+    this.cache = cache;
+    this.howlDetector = howlDetector;
+    this.store = store;
+    this.maxSuppressLevel = maxSuppressLevel;
+    this.deviceModel = Build.MANUFACTURER + " " + Build.MODEL;
+    this.network = getWifiNetwork(context);
+    howlDetector.addListener(this);
+  }
+
+  /** Prepares for the fingerprint of the setup with `device`. */
+  public void onAudioDeviceChanged(AudioDevice device) {
+    final String key = AcousticFingerprintCache.key(deviceModel, device.name(), network);
+    this.key = key;
+    final AcousticFingerprintCache.Fingerprint fingerprint = cache.lookup(key);
+    howlDetector.setKnownFrequencies(
+        fingerprint != null ? fingerprint.frequenciesHz : new float[0]);
+    if (fingerprint == null) {
+      Log.d(TAG, "No fingerprint of " + key);
+      return;
+    }
+    Log.i(TAG, "Fingerprint of " + key + ": " + Arrays.toString(fingerprint.frequenciesHz)
+            + " Hz, howled up to level " + fingerprint.maxHowlLevel);
+    if (store == null || fingerprint.maxHowlLevel < 0) {
+      return;
+    }
+    final int level = (int) store.getConfig().suppressLevel;
+    final int seed = Math.min(maxSuppressLevel, fingerprint.maxHowlLevel + 1);
+    if (seed > level) {
+      Log.i(TAG, "Raising suppression level from " + level + " to " + seed);
+      store.edit().setSuppressLevel(seed).apply();
+      store.flush();
+    }
+  }
+
+  @Override
+  public void onHowlEvent(HowlDetector.HowlEvent event) {
+    final String key = this.key;
+    if (event.type != HowlDetector.HowlEvent.Type.ONSET || key == null) {
+      return;
+    }
+    final int level = store != null ? (int) store.getConfig().suppressLevel : -1;
+    cache.recordHowl(key, event.frequencyHz, level);
+  }
+
+  /** Stops recording and saves the cache. */
+  public void release() {
+    howlDetector.removeListener(this);
+    howlDetector.setKnownFrequencies(new float[0]);
+    key = null;
+    cache.save();
+  }
+
+  @SuppressWarnings("deprecation") // WifiManager.getConnectionInfo() is deprecated in API 31.
+  @Nullable
+  private static String getWifiNetwork(Context context) {
+    final WifiManager wifiManager =
+        (WifiManager) context.getApplicationContext().getSystemService(Context.WIFI_SERVICE);
+    if (wifiManager == null) {
+      return null;
+    }
+    try {
+      final WifiInfo info = wifiManager.getConnectionInfo();
+      final String bssid = info != null ? info.getBSSID() : null;
+      return bssid == null || HIDDEN_BSSID.equals(bssid) ? null : bssid;
+    } catch (SecurityException e) {
+      Log.w(TAG, "No access to the Wi-Fi network: " + e.getMessage());
+      return null;
+    }
+  }
+}
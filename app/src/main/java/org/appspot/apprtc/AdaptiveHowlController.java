@@ -0,0 +1,278 @@
+package org.appspot.apprtc;
+
+import android.os.Environment;
+import android.util.Log;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ShortBuffer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import org.appspot.apprtc.CaptureTapMultiplexer.CaptureFrame;
+import org.appspot.apprtc.CaptureTapMultiplexer.FrameConsumer;
+
+/**
+ * Adjusts the howl suppression level during a call: up when acoustic feedback builds, down again
+ * once the loop has been stable for a while, so the call runs with the least suppression that
+ * keeps it stable instead of a worst-case setting.
+ *
+ * <p>Indicators, evaluated for every captured frame:
+ * <ul>
+ * <li>Howling reported by the {@link HowlDetector}: raise by {@link #HOWL_STEP} right away.
+ * <li>Building feedback: the smoothed PAPR of the strongest spectral peak stays within
+ *     {@link #WARNING_MARGIN_DB} of the detector's threshold for {@link #BUILD_MS}, or half that
+ *     while the far-end audio level rises, which is the loop closing through the peer. Raise by
+ *     one level.
+ * <li>Stable: no howling, the smoothed PAPR at least {@link #RELAX_MARGIN_DB} below the threshold
+ *     and no rising far-end level for {@link #HOLD_MS}. Lower by one level.
+ * </ul>
+ * The gap between the warning and relax margins, the hold time and the settle time after every
+ * raise keep the level from oscillating. Every change is recorded in a timeline that can be
+ * written as CSV.
+ *
+ * <p>Other components change the level too (route profiles, the peer's config, the coupling
+ * probe), so every step starts from the level the {@link LevelStore} holds at that moment rather
+ * than from the controller's last one.
+ *
+ * <p>Frames arrive on the capture tap thread, far-end levels on the stats thread; the
+ * {@link LevelStore} is called on the capture tap thread.
+ */
+public class AdaptiveHowlController implements FrameConsumer {
+  private static final String TAG = "AdaptiveHowlController";
+  public static final int HOWL_STEP = 2;
+  public static final float WARNING_MARGIN_DB = 3f;
+  public static final float RELAX_MARGIN_DB = 8f;
+  public static final long BUILD_MS = 600;
+  public static final long HOLD_MS = 8000;
+  // Time the native suppression gets to act on a raise before the next one.
+  public static final long SETTLE_MS = 1000;
+  // A far-end level this much above its minimum of the last REMOTE_RISE_WINDOW_MS counts as
+  // rising.
+  private static final float REMOTE_RISE_DB = 6f;
+  private static final long REMOTE_RISE_WINDOW_MS = 3000;
+  // Frames below this level carry no usable PAPR.
+  private static final float LEVEL_GATE_DB = -60f;
+  // Smoothing of the PAPR, about 300 ms for 10 ms frames.
+  private static final float PAPR_SMOOTHING = 0.03f;
+  private static final double FULL_SCALE_POWER = 32768.0 * 32768.0;
+  private static final double MIN_POWER = 1e-10;
+
+  /** Holds the level in force, which others may change between the controller's steps. */
+  public interface LevelStore {
+    int getSuppressLevel();
+
+    /** Called with the new level on every change. */
+    void setSuppressLevel(int level);
+  }
+
+  /** One entry of the timeline. */
+  public static final class LevelChange {
+    // Time since the controller was created.
+    public final long timestampMs;
+    public final int fromLevel;
+    public final int toLevel;
+    public final String reason;
+    public final float paprDb;
+    public final float remoteLevelDb;
+
+    LevelChange(long timestampMs, int fromLevel, int toLevel, String reason, float paprDb,
+        float remoteLevelDb) {
+      this.timestampMs = timestampMs;
+      this.fromLevel = fromLevel;
+      this.toLevel = toLevel;
+      this.reason = reason;
+      this.paprDb = paprDb;
+      this.remoteLevelDb = remoteLevelDb;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(Locale.US, "%d ms: %d -> %d (%s, PAPR %.1f dB, far end %.1f dBFS)",
+          timestampMs, fromLevel, toLevel, reason, paprDb, remoteLevelDb);
+    }
+  }
+
+  private static final class RemoteLevel {
+    final long timeMs;
+    final float levelDb;
+
+    RemoteLevel(long timeMs, float levelDb) {
+      this.timeMs = timeMs;
+      this.levelDb = levelDb;
+    }
+  }
+
+  private final HowlDetector howlDetector;
+  private final LevelStore levelStore;
+  private final int minLevel;
+  private final int maxLevel;
+  private final long startTimeNs = System.nanoTime();
+  private final List<LevelChange> timeline = new ArrayList<>();
+
+  // Written by the stats thread.
+  private volatile float remoteLevelDb = -100f;
+  private volatile boolean remoteRising;
+  // Stats thread state: far-end levels of the last REMOTE_RISE_WINDOW_MS, oldest first.
+  private final List<RemoteLevel> remoteHistory = new ArrayList<>();
+
+  // Capture tap thread state.
+  private int level;
+  private float paprDb;
+  private long lastChangeMs;
+  private long warningSinceMs = -1;
+  private long stableSinceMs = -1;
+
+  /**
+   * @param minLevel Lowest level the controller relaxes to.
+   * @param maxLevel Highest level.
+   */
+  public AdaptiveHowlController(
+      HowlDetector howlDetector, int minLevel, int maxLevel, LevelStore levelStore) {
+    this.howlDetector = howlDetector;
+    this.minLevel = minLevel;
+    this.maxLevel = maxLevel;
+    this.levelStore = levelStore;
+    level = clamp(levelStore.getSuppressLevel());
+    paprDb = HowlDetector.PAPR_THRESHOLD_DB - RELAX_MARGIN_DB;
+  }
+
+  /**
+   * Far-end audio level from the stats, in [0, 1] as reported by WebRTC's `audioLevel`. May be
+   * called from any single thread.
+   */
+  public void onRemoteAudioLevel(double audioLevel) {
+    final long nowMs = elapsedMs(System.nanoTime());
+    final float levelDb = (float) (20 * Math.log10(Math.max(audioLevel, 1e-5)));
+    while (!remoteHistory.isEmpty()
+        && nowMs - remoteHistory.get(0).timeMs > REMOTE_RISE_WINDOW_MS) {
+      remoteHistory.remove(0);
+    }
+    remoteHistory.add(new RemoteLevel(nowMs, levelDb));
+    float minDb = levelDb;
+    for (RemoteLevel entry : remoteHistory) {
+      minDb = Math.min(minDb, entry.levelDb);
+    }
+    remoteLevelDb = levelDb;
+    remoteRising = levelDb - minDb >= REMOTE_RISE_DB;
+  }
+
+  @Override
+  public void onCaptureFrame(CaptureFrame frame) {
+    final ShortBuffer samples = frame.getSamples();
+    final int count = samples.remaining();
+    if (count == 0) {
+      return;
+    }
+    double energy = 0;
+    while (samples.hasRemaining()) {
+      final int sample = samples.get();
+      energy += (double) sample * sample;
+    }
+    final float levelDb = (float) (10 * Math.log10(energy / count / FULL_SCALE_POWER + MIN_POWER));
+    // The detector runs on the spectrum tap; its state is at most a few frames behind.
+    update(elapsedMs(frame.getCaptureTimeNs()), howlDetector.isHowling(),
+        howlDetector.getLastPaprDb(), levelDb);
+  }
+
+  // Capture tap thread.
+  private void update(long nowMs, boolean howling, float framePaprDb, float levelDb) {
+    if (levelDb > LEVEL_GATE_DB) {
+      paprDb += PAPR_SMOOTHING * (framePaprDb - paprDb);
+    }
+    final boolean rising = remoteRising;
+    final boolean settled = nowMs - lastChangeMs >= SETTLE_MS;
+
+    if (paprDb >= HowlDetector.PAPR_THRESHOLD_DB - WARNING_MARGIN_DB) {
+      if (warningSinceMs < 0) {
+        warningSinceMs = nowMs;
+      }
+    } else {
+      warningSinceMs = -1;
+    }
+    final boolean stable =
+        !howling && !rising && paprDb < HowlDetector.PAPR_THRESHOLD_DB - RELAX_MARGIN_DB;
+    if (stable) {
+      if (stableSinceMs < 0) {
+        stableSinceMs = nowMs;
+      }
+    } else {
+      stableSinceMs = -1;
+    }
+
+    if (howling && settled) {
+      changeLevel(nowMs, HOWL_STEP, "howling");
+    } else if (warningSinceMs >= 0 && settled
+        && nowMs - warningSinceMs >= (rising ? BUILD_MS / 2 : BUILD_MS)) {
+      changeLevel(nowMs, 1, rising ? "building, far end rising" : "building");
+      warningSinceMs = nowMs;
+    } else if (stableSinceMs >= 0 && nowMs - stableSinceMs >= HOLD_MS
+        && nowMs - lastChangeMs >= HOLD_MS) {
+      changeLevel(nowMs, -1, "stable");
+      stableSinceMs = nowMs;
+    }
+  }
+
+  private void changeLevel(long nowMs, int step, String reason) {
+    final int currentLevel = clamp(levelStore.getSuppressLevel());
+    if (currentLevel != level) {
+      Log.d(TAG, "Suppression level changed elsewhere: " + level + " -> " + currentLevel);
+      level = currentLevel;
+    }
+    final int newLevel = clamp(level + step);
+    if (newLevel == level) {
+      return;
+    }
+    final LevelChange change =
+        new LevelChange(nowMs, level, newLevel, reason, paprDb, remoteLevelDb);
+    Log.i(TAG, "Suppression level " + change);
+    synchronized (timeline) {
+      timeline.add(change);
+    }
+    level = newLevel;
+    lastChangeMs = nowMs;
+    levelStore.setSuppressLevel(newLevel);
+  }
+
+  private int clamp(int level) {
+    return Math.max(minLevel, Math.min(maxLevel, level));
+  }
+
+  /** Last level the controller read or set; only meaningful on the capture tap thread. */
+  public int getLevel() {
+    return level;
+  }
+
+  /** Returns a copy of all level changes so far. May be called from any thread. */
+  public List<LevelChange> getTimeline() {
+    synchronized (timeline) {
+      return new ArrayList<>(timeline);
+    }
+  }
+
+  /** Writes the timeline as `howl_control_<timestamp>.csv` to external storage. */
+  public void writeTimeline() {
+    final List<LevelChange> changes = getTimeline();
+    final String timestamp = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date());
+    final File file =
+        new File(Environment.getExternalStorageDirectory(), "howl_control_" + timestamp + ".csv");
+    try (Writer writer = new FileWriter(file)) {
+      writer.write("time_ms,from_level,to_level,reason,papr_db,far_end_dbfs\n");
+      for (LevelChange change : changes) {
+        writer.write(String.format(Locale.US, "%d,%d,%d,%s,%.1f,%.1f\n", change.timestampMs,
+            change.fromLevel, change.toLevel, change.reason.replace(',', ';'), change.paprDb,
+            change.remoteLevelDb));
+      }
+      Log.d(TAG, "Wrote " + changes.size() + " level changes to " + file);
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to write " + file + ": " + e.getMessage());
+    }
+  }
+
+  private long elapsedMs(long timeNs) {
+    return (timeNs - startTimeNs) / 1_000_000L;
+  }
+}
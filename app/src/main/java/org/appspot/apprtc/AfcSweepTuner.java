@@ -0,0 +1,186 @@
+package org.appspot.apprtc;
+
+import androidx.annotation.Nullable;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Searches the feedback suppression level and the AGC target level and compression gain for the
+ * best scoring configuration, one loopback trial at a time.
+ *
+ * <p>The search is a coordinate search starting from the current settings: each pass steps one
+ * parameter at a time through its candidate values while the others stay at the best values found
+ * so far. Passes repeat until a pass brings no improvement, {@link #MAX_PASSES} is reached or the
+ * time budget would be exceeded by another trial. Every configuration is measured at most once, so
+ * a sweep needs around fifteen trials instead of the 175 of the full grid.
+ *
+ * <p>This class has no Android dependencies and is not thread safe.
+ */
+public class AfcSweepTuner {
+  public static final float[] TARGET_LEVELS_DBFS = {3f, 6f, 9f, 12f, 15f};
+  public static final float[] COMPRESSION_GAINS_DB = {6f, 12f, 18f, 24f, 30f};
+  public static final int MAX_PASSES = 3;
+  private static final int PARAMETER_COUNT = 3;
+
+  /** One configuration of the sweep. */
+  public static final class Candidate {
+    // 0 disables howl suppression.
+    public final int suppressLevel;
+    public final float targetLevelDbfs;
+    public final float compressionGainDb;
+
+    public Candidate(int suppressLevel, float targetLevelDbfs, float compressionGainDb) {
+      this.suppressLevel = suppressLevel;
+      this.targetLevelDbfs = targetLevelDbfs;
+      this.compressionGainDb = compressionGainDb;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Candidate)) {
+        return false;
+      }
+      final Candidate candidate = (Candidate) other;
+      return suppressLevel == candidate.suppressLevel
+          && targetLevelDbfs == candidate.targetLevelDbfs
+          && compressionGainDb == candidate.compressionGainDb;
+    }
+
+    @Override
+    public int hashCode() {
+      return (suppressLevel * 31 + Float.floatToIntBits(targetLevelDbfs)) * 31
+          + Float.floatToIntBits(compressionGainDb);
+    }
+
+    @Override
+    public String toString() {
+      return String.format(Locale.US, "level %d, target %.0f dBFS, gain %.0f dB", suppressLevel,
+          targetLevelDbfs, compressionGainDb);
+    }
+  }
+
+  private final Candidate start;
+  private final int maxSuppressLevel;
+  private final long trialMs;
+  private final long budgetMs;
+  private final Map<Candidate, Float> scores = new HashMap<>();
+  private long startTimeMs = -1;
+  @Nullable private Candidate best;
+  private float bestScore = Float.NEGATIVE_INFINITY;
+  // Position of the search: parameter being varied and index of its next value.
+  private int parameter;
+  private int valueIndex;
+  private int pass;
+  private boolean improvedInPass;
+  private boolean finished;
+
+  /**
+   * @param start Current settings, measured first.
+   * @param maxSuppressLevel Highest howl suppression level; levels 0 to this are tried.
+   * @param trialMs Duration of one trial.
+   * @param budgetMs Duration of the whole sweep, including call setup and teardown.
+   */
+  public AfcSweepTuner(Candidate start, int maxSuppressLevel, long trialMs, long budgetMs) {
+    this.start = start;
+    this.maxSuppressLevel = maxSuppressLevel;
+    this.trialMs = trialMs;
+    this.budgetMs = budgetMs;
+  }
+
+  /**
+   * Returns the configuration to measure next, or null if the sweep is finished. Every returned
+   * candidate must be reported with {@link #onTrialResult} or {@link #onTrialFailed} before the
+   * next call.
+   */
+  @Nullable
+  public Candidate nextTrial(long nowMs) {
+    if (finished) {
+      return null;
+    }
+    if (startTimeMs < 0) {
+      startTimeMs = nowMs;
+      return start;
+    }
+    // Trials take longer than `trialMs` because of the call setup, so budget with the average.
+    final long elapsedMs = nowMs - startTimeMs;
+    final long expectedTrialMs = Math.max(trialMs, elapsedMs / Math.max(1, scores.size()));
+    if (elapsedMs + expectedTrialMs > budgetMs) {
+      finished = true;
+      return null;
+    }
+    final Candidate base = best != null ? best : start;
+    while (true) {
+      if (valueIndex >= valueCount(parameter)) {
+        valueIndex = 0;
+        if (++parameter == PARAMETER_COUNT) {
+          parameter = 0;
+          ++pass;
+          if (!improvedInPass || pass == MAX_PASSES) {
+            finished = true;
+            return null;
+          }
+          improvedInPass = false;
+        }
+      }
+      final Candidate candidate = withValue(base, parameter, valueIndex++);
+      if (!scores.containsKey(candidate)) {
+        return candidate;
+      }
+    }
+  }
+
+  /** Records the score of a measured candidate; higher is better. */
+  public void onTrialResult(Candidate candidate, float score) {
+    scores.put(candidate, score);
+    if (score > bestScore) {
+      // The start configuration sets the baseline and is no improvement by itself.
+      if (best != null) {
+        improvedInPass = true;
+      }
+      best = candidate;
+      bestScore = score;
+    }
+  }
+
+  /** Records a trial that produced no score, e.g. because the call failed. It is not retried. */
+  public void onTrialFailed(Candidate candidate) {
+    scores.put(candidate, Float.NEGATIVE_INFINITY);
+  }
+
+  /** Best measured configuration so far, or null if no trial has succeeded. */
+  @Nullable
+  public Candidate getBest() {
+    return best;
+  }
+
+  public float getBestScore() {
+    return bestScore;
+  }
+
+  public int getTrialCount() {
+    return scores.size();
+  }
+
+  private int valueCount(int parameter) {
+    switch (parameter) {
+      case 0:
+        return maxSuppressLevel + 1;
+      case 1:
+        return TARGET_LEVELS_DBFS.length;
+      default:
+        return COMPRESSION_GAINS_DB.length;
+    }
+  }
+
+  private static Candidate withValue(Candidate base, int parameter, int index) {
+    switch (parameter) {
+      case 0:
+        return new Candidate(index, base.targetLevelDbfs, base.compressionGainDb);
+      case 1:
+        return new Candidate(base.suppressLevel, TARGET_LEVELS_DBFS[index], base.compressionGainDb);
+      default:
+        return new Candidate(base.suppressLevel, base.targetLevelDbfs, COMPRESSION_GAINS_DB[index]);
+    }
+  }
+}
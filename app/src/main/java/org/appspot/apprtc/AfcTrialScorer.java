@@ -0,0 +1,165 @@
+package org.appspot.apprtc;
+
+import java.nio.ShortBuffer;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.appspot.apprtc.CaptureTapMultiplexer.CaptureFrame;
+import org.appspot.apprtc.CaptureTapMultiplexer.FrameConsumer;
+
+/**
+ * Scores the captured audio of one loopback trial of the AFC tuning sweep ({@link AfcSweepTuner}).
+ *
+ * <p>The score rewards a speech level close to {@link #TARGET_SPEECH_DB} and a wide gain margin,
+ * estimated as the distance of the strongest spectral peak from the howl detector's PAPR
+ * threshold, and penalizes howling (time, energy share and onsets) and clipping. The first
+ * {@link #WARM_UP_MS} of the trial are not scored.
+ *
+ * <p>Register it as a capture tap consumer and as a listener of the {@link HowlDetector} fed by
+ * the same capture. {@link #getScore} may be called from any thread.
+ */
+public class AfcTrialScorer implements FrameConsumer, HowlDetector.Listener {
+  // The call and the feedback loop need some time to settle.
+  public static final int WARM_UP_MS = 1500;
+  // Level the AGC should bring speech to in the capture path.
+  public static final float TARGET_SPEECH_DB = -20f;
+  // Less scored audio than this gives no valid score.
+  private static final int MIN_SCORED_MS = 2000;
+  // Frames below this level do not count as speech.
+  private static final float SPEECH_GATE_DB = -50f;
+  private static final int CLIP_LEVEL = 32000;
+  private static final float MAX_MARGIN_DB = 10f;
+  private static final double FULL_SCALE_POWER = 32768.0 * 32768.0;
+  private static final double MIN_POWER = 1e-10;
+
+  private static final float HOWL_TIME_WEIGHT = 60f;
+  private static final float HOWL_ENERGY_WEIGHT = 20f;
+  private static final float HOWL_ONSET_WEIGHT = 3f;
+  private static final float CLIPPING_WEIGHT = 500f;
+  private static final float MARGIN_WEIGHT = 0.5f;
+
+  /** Measurements of a trial and the resulting score. */
+  public static final class TrialScore {
+    public final long scoredMs;
+    public final float speechLevelDb;
+    // Share of the scored time with howling.
+    public final float howlTimeFraction;
+    // Share of the captured energy in frames with howling.
+    public final float howlEnergyFraction;
+    public final int howlOnsets;
+    public final float clippedFraction;
+    // Mean distance of the strongest peak from the PAPR threshold during speech.
+    public final float gainMarginDb;
+    public final float score;
+
+    TrialScore(long scoredMs, float speechLevelDb, float howlTimeFraction,
+        float howlEnergyFraction, int howlOnsets, float clippedFraction, float gainMarginDb) {
+      this.scoredMs = scoredMs;
+      this.speechLevelDb = speechLevelDb;
+      this.howlTimeFraction = howlTimeFraction;
+      this.howlEnergyFraction = howlEnergyFraction;
+      this.howlOnsets = howlOnsets;
+      this.clippedFraction = clippedFraction;
+      this.gainMarginDb = gainMarginDb;
+      score = -Math.abs(speechLevelDb - TARGET_SPEECH_DB) - HOWL_TIME_WEIGHT * howlTimeFraction
+          - HOWL_ENERGY_WEIGHT * howlEnergyFraction - HOWL_ONSET_WEIGHT * howlOnsets
+          - CLIPPING_WEIGHT * clippedFraction
+          + MARGIN_WEIGHT * Math.max(-MAX_MARGIN_DB, Math.min(MAX_MARGIN_DB, gainMarginDb));
+    }
+
+    public boolean isValid() {
+      return scoredMs >= MIN_SCORED_MS;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(Locale.US,
+          "score %.1f: speech %.1f dBFS, howl %.0f%% of time %.0f%% of energy %d onsets, "
+              + "clipped %.3f%%, margin %.1f dB over %d ms",
+          score, speechLevelDb, howlTimeFraction * 100, howlEnergyFraction * 100, howlOnsets,
+          clippedFraction * 100, gainMarginDb, scoredMs);
+    }
+  }
+
+  private final HowlDetector howlDetector;
+  // Counted on whichever thread the howl detector notifies listeners on.
+  private final AtomicInteger howlOnsets = new AtomicInteger();
+  // Capture time of the first frame; written once by the capture tap thread.
+  private volatile long firstFrameTimeNs = -1;
+  // Guarded by `this`; written by the capture tap thread.
+  private long scoredFrameDurationNs;
+  private long howlingFrameDurationNs;
+  private double totalEnergy;
+  private double howlingEnergy;
+  private double speechPower;
+  private long speechFrames;
+  private double marginSumDb;
+  private long samples;
+  private long clippedSamples;
+
+  public AfcTrialScorer(HowlDetector howlDetector) {
+    this.howlDetector = howlDetector;
+  }
+
+  @Override
+  public void onHowlEvent(HowlDetector.HowlEvent event) {
+    if (event.type == HowlDetector.HowlEvent.Type.ONSET && isScoring(System.nanoTime())) {
+      howlOnsets.incrementAndGet();
+    }
+  }
+
+  @Override
+  public synchronized void onCaptureFrame(CaptureFrame frame) {
+    if (firstFrameTimeNs < 0) {
+      firstFrameTimeNs = frame.getCaptureTimeNs();
+    }
+    if (!isScoring(frame.getCaptureTimeNs())) {
+      return;
+    }
+    final ShortBuffer buffer = frame.getSamples();
+    final int count = buffer.remaining();
+    if (count == 0) {
+      return;
+    }
+    double energy = 0;
+    while (buffer.hasRemaining()) {
+      final int sample = buffer.get();
+      energy += (double) sample * sample;
+      if (sample >= CLIP_LEVEL || sample <= -CLIP_LEVEL) {
+        clippedSamples++;
+      }
+    }
+    samples += count;
+    final double power = energy / count / FULL_SCALE_POWER;
+    final long durationNs = frame.getFrameCount() * 1_000_000_000L / frame.getSampleRate();
+    scoredFrameDurationNs += durationNs;
+    totalEnergy += power * durationNs;
+    // The detector runs on the spectrum tap; its state is at most a few frames behind.
+    if (howlDetector.isHowling()) {
+      howlingFrameDurationNs += durationNs;
+      howlingEnergy += power * durationNs;
+    }
+    if (10 * Math.log10(power + MIN_POWER) > SPEECH_GATE_DB) {
+      speechPower += power;
+      speechFrames++;
+      marginSumDb += HowlDetector.PAPR_THRESHOLD_DB - howlDetector.getLastPaprDb();
+    }
+  }
+
+  /** Returns the score of the audio captured so far. */
+  public synchronized TrialScore getScore() {
+    final long scoredMs = scoredFrameDurationNs / 1_000_000L;
+    final float speechLevelDb = speechFrames == 0
+        ? (float) (10 * Math.log10(MIN_POWER))
+        : (float) (10 * Math.log10(speechPower / speechFrames + MIN_POWER));
+    return new TrialScore(scoredMs, speechLevelDb,
+        scoredFrameDurationNs == 0 ? 0 : (float) howlingFrameDurationNs / scoredFrameDurationNs,
+        totalEnergy == 0 ? 0 : (float) (howlingEnergy / totalEnergy), howlOnsets.get(),
+        samples == 0 ? 0 : (float) clippedSamples / samples,
+        speechFrames == 0 ? 0 : (float) (marginSumDb / speechFrames));
+  }
+
+  private boolean isScoring(long nowNs) {
+    final long firstNs = firstFrameTimeNs;
+    return firstNs >= 0 && nowNs - firstNs >= WARM_UP_MS * 1_000_000L;
+  }
+}
@@ -0,0 +1,193 @@
+package org.appspot.apprtc;
+
+import android.util.Log;
+import java.util.Map;
+import org.webrtc.RTCStats;
+import org.webrtc.RTCStatsReport;
+
+/**
+ * Adapts the maximum bitrate of the sent audio to the network during the call, so that on a
+ * congested link the audio degrades step by step instead of stalling in queues and arriving in
+ * bursts.
+ *
+ * <p>The inputs are the loss and the round trip time the peer reports for our audio in its RTCP
+ * receiver reports (the remote-inbound-rtp stats). Each report is classified as:
+ * <ul>
+ * <li>Congested: loss above {@link #HIGH_LOSS}, or the round trip time more than the policy's
+ *     rise above the lowest one of the last {@link #MIN_RTT_WINDOW_MS}, which is the queue of a
+ *     congested Wi-Fi growing before it drops packets. The window lets the base follow a route
+ *     change to a longer path. The bitrate goes down by the policy's factor, by half the loss if
+ *     that is more, at most once per {@link #MIN_DECREASE_INTERVAL_MS} so that a decrease can take
+ *     effect before the next.
+ * <li>Clear: loss below {@link #LOW_LOSS} and the round trip time near its minimum. Once all
+ *     reports have been clear for the policy's hold time, the bitrate goes up by the policy's
+ *     factor with every further clear report.
+ * <li>Otherwise the bitrate holds. Like a congested report, this restarts the hold time.
+ * </ul>
+ * The bitrate stays within the limits given to the constructor. The {@link Listener} applies it,
+ * e.g. as the `maxBitrateBps` of the audio sender's encoding, which needs no renegotiation.
+ *
+ * <p>Stats reports arrive on the stats thread; the listener is called on it.
+ */
+public class AudioBitrateController {
+  private static final String TAG = "AudioBitrateController";
+  public static final float HIGH_LOSS = 0.10f;
+  public static final float LOW_LOSS = 0.02f;
+  public static final long MIN_DECREASE_INTERVAL_MS = 1000;
+  public static final long MIN_RTT_WINDOW_MS = 20000;
+  // Receiver reports kept for the window; they arrive about once a second.
+  private static final int MAX_RTT_SAMPLES = 64;
+  // Smallest increase, so that low bitrates recover in a reasonable time.
+  private static final int MIN_STEP_BPS = 1000;
+
+  /** How fast the bitrate follows the network. */
+  public enum StepPolicy {
+    // Small steps and a long hold; for calls that should sound the same throughout.
+    SMOOTH(0.85f, 1.05f, 8000, 150),
+    // Reacts to shorter congestion and recovers sooner, at the price of audible steps.
+    FAST(0.7f, 1.15f, 3000, 80);
+
+    public final float decreaseFactor;
+    public final float increaseFactor;
+    public final long holdMs;
+    public final float rttRiseMs;
+
+    StepPolicy(float decreaseFactor, float increaseFactor, long holdMs, float rttRiseMs) {
+      this.decreaseFactor = decreaseFactor;
+      this.increaseFactor = increaseFactor;
+      this.holdMs = holdMs;
+      this.rttRiseMs = rttRiseMs;
+    }
+
+    /** Returns the policy of the settings value `name`, SMOOTH if it is unknown. */
+    public static StepPolicy fromName(String name) {
+      for (StepPolicy policy : values()) {
+        if (policy.name().equalsIgnoreCase(name)) {
+          return policy;
+        }
+      }
+      return SMOOTH;
+    }
+  }
+
+  /** Receives the new bitrate on every change. */
+  public interface Listener {
+    void onBitrateChanged(int bitrateBps);
+  }
+
+  private final int minBitrateBps;
+  private final int maxBitrateBps;
+  private final StepPolicy policy;
+  private final Listener listener;
+  private final long startTimeNs = System.nanoTime();
+
+  // Written by the stats thread only.
+  private volatile int bitrateBps;
+  // Stats thread state. The round trip times of the last reports, oldest overwritten first.
+  private final long[] rttTimesMs = new long[MAX_RTT_SAMPLES];
+  private final float[] rttsMs = new float[MAX_RTT_SAMPLES];
+  private int rttSampleCount;
+  private int nextRttSample;
+  private long lastDecreaseMs = Long.MIN_VALUE / 2;
+  // Time of the first of the clear reports in a row, or -1 if the last report was not clear.
+  private long clearSinceMs = -1;
+  // Timestamp of the last receiver report, to skip stats polls without a new one.
+  private double lastReportTimestamp = -1;
+
+  /**
+   * @param startBitrateBps Bitrate at the start of the call, clamped to the limits.
+   */
+  public AudioBitrateController(int minBitrateBps, int maxBitrateBps, int startBitrateBps,
+      StepPolicy policy, Listener listener) {
+    this.minBitrateBps = Math.min(minBitrateBps, maxBitrateBps);
+    this.maxBitrateBps = maxBitrateBps;
+    this.policy = policy;
+    this.listener = listener;
+    bitrateBps = Math.max(this.minBitrateBps, Math.min(this.maxBitrateBps, startBitrateBps));
+    Log.d(TAG, "Audio bitrate " + this.minBitrateBps + "-" + this.maxBitrateBps + " bps, start "
+            + bitrateBps + ", policy " + policy);
+  }
+
+  public int getBitrateBps() {
+    return bitrateBps;
+  }
+
+  /**
+   * Reads the loss and round trip time of the sent audio from `report`, which must be a full
+   * report; the receiver's stats alone do not have them.
+   */
+  public void onStatsReport(RTCStatsReport report) {
+    for (RTCStats stats : report.getStatsMap().values()) {
+      if (!"remote-inbound-rtp".equals(stats.getType())) {
+        continue;
+      }
+      final Map<String, Object> members = stats.getMembers();
+      if (!"audio".equals(members.get("kind"))) {
+        continue;
+      }
+      final Object fractionLost = members.get("fractionLost");
+      final Object roundTripTime = members.get("roundTripTime");
+      if (!(fractionLost instanceof Number) || !(roundTripTime instanceof Number)) {
+        return;
+      }
+      // The stats keep the values of the last receiver report until the next one arrives.
+      if (stats.getTimestampUs() == lastReportTimestamp) {
+        return;
+      }
+      lastReportTimestamp = stats.getTimestampUs();
+      onNetworkStats((System.nanoTime() - startTimeNs) / 1000000,
+          ((Number) fractionLost).floatValue(), ((Number) roundTripTime).floatValue() * 1000);
+      return;
+    }
+  }
+
+  // Updates the bitrate for a receiver report with `loss` in [0, 1]. Stats thread.
+  void onNetworkStats(long nowMs, float loss, float rttMs) {
+    final float minRttMs = updateMinRtt(nowMs, rttMs);
+    final boolean rttRising = rttMs > minRttMs + policy.rttRiseMs;
+    final boolean congested = loss > HIGH_LOSS || rttRising;
+    if (congested || loss >= LOW_LOSS || rttMs > minRttMs + policy.rttRiseMs / 2) {
+      clearSinceMs = -1;
+    } else if (clearSinceMs < 0) {
+      clearSinceMs = nowMs;
+    }
+    int target;
+    final String reason;
+    if (congested) {
+      if (nowMs - lastDecreaseMs < MIN_DECREASE_INTERVAL_MS) {
+        return;
+      }
+      lastDecreaseMs = nowMs;
+      target = (int) (bitrateBps * Math.min(policy.decreaseFactor, 1 - loss / 2));
+      reason = loss > HIGH_LOSS ? "loss" : "rtt";
+    } else if (clearSinceMs >= 0 && nowMs - clearSinceMs >= policy.holdMs) {
+      target = Math.max((int) (bitrateBps * policy.increaseFactor), bitrateBps + MIN_STEP_BPS);
+      reason = "clear";
+    } else {
+      return;
+    }
+    target = Math.max(minBitrateBps, Math.min(maxBitrateBps, target));
+    if (target == bitrateBps) {
+      return;
+    }
+    Log.d(TAG, "Audio bitrate " + bitrateBps + " -> " + target + " bps (" + reason + ", loss "
+            + loss + ", RTT " + rttMs + " ms, min " + minRttMs + " ms)");
+    bitrateBps = target;
+    listener.onBitrateChanged(target);
+  }
+
+  // Adds a report and returns the lowest round trip time of the window, the new one included.
+  private float updateMinRtt(long nowMs, float rttMs) {
+    rttTimesMs[nextRttSample] = nowMs;
+    rttsMs[nextRttSample] = rttMs;
+    nextRttSample = (nextRttSample + 1) % MAX_RTT_SAMPLES;
+    rttSampleCount = Math.min(rttSampleCount + 1, MAX_RTT_SAMPLES);
+    float minRttMs = rttMs;
+    for (int i = 0; i < rttSampleCount; ++i) {
+      if (nowMs - rttTimesMs[i] < MIN_RTT_WINDOW_MS) {
+        minRttMs = Math.min(minRttMs, rttsMs[i]);
+      }
+    }
+    return minRttMs;
+  }
+}
@@ -0,0 +1,100 @@
+package org.appspot.apprtc;
+
+import java.nio.ShortBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free single-producer/single-consumer byte ring buffer.
+ *
+ * <p>All storage is allocated in the constructor. {@link #write} must only be called from one
+ * thread (e.g. the WebRTC audio record thread) and {@link #read} must only be called from one
+ * other thread (e.g. a file writer thread). Neither call blocks nor allocates.
+ */
+class AudioRingBuffer {
+  private final byte[] buffer;
+  private final int mask;
+  // Total number of bytes ever written/read. Only the producer updates `writePosition` and only
+  // the consumer updates `readPosition`; lazySet() gives the required release semantics.
+  private final AtomicLong writePosition = new AtomicLong();
+  private final AtomicLong readPosition = new AtomicLong();
+
+  /** Creates a ring buffer. `capacityBytes` must be a power of two. */
+  public AudioRingBuffer(int capacityBytes) {
+    if (capacityBytes <= 0 || Integer.bitCount(capacityBytes) != 1) {
+      throw new IllegalArgumentException("Capacity must be a power of two: " + capacityBytes);
+    }
+    buffer = new byte[capacityBytes];
+    mask = capacityBytes - 1;
+  }
+
+  public int capacity() {
+    return buffer.length;
+  }
+
+  /** Number of bytes that can currently be read. Safe to call from any thread. */
+  public int available() {
+    return (int) (writePosition.get() - readPosition.get());
+  }
+
+  /**
+   * Copies `length` bytes into the buffer. The write is all-or-nothing: returns false without
+   * touching the buffer if there is not enough free space. Producer thread only.
+   */
+  public boolean write(byte[] source, int offset, int length) {
+    final long write = writePosition.get();
+    if (buffer.length - (int) (write - readPosition.get()) < length) {
+      return false;
+    }
+    final int start = (int) (write & mask);
+    final int firstPart = Math.min(length, buffer.length - start);
+    System.arraycopy(source, offset, buffer, start, firstPart);
+    if (firstPart < length) {
+      System.arraycopy(source, offset + firstPart, buffer, 0, length - firstPart);
+    }
+    writePosition.lazySet(write + length);
+    return true;
+  }
+
+  /**
+   * Copies the remaining samples of `source` into the buffer as 16-bit little-endian PCM without
+   * changing its position. All-or-nothing like {@link #write(byte[], int, int)}. Producer thread
+   * only.
+   */
+  public boolean write(ShortBuffer source) {
+    final int samples = source.remaining();
+    final long write = writePosition.get();
+    if (buffer.length - (int) (write - readPosition.get()) < 2 * samples) {
+      return false;
+    }
+    final int base = source.position();
+    int position = (int) (write & mask);
+    for (int i = 0; i < samples; ++i) {
+      final short sample = source.get(base + i);
+      buffer[position] = (byte) sample;
+      buffer[(position + 1) & mask] = (byte) (sample >> 8);
+      position = (position + 2) & mask;
+    }
+    writePosition.lazySet(write + 2 * samples);
+    return true;
+  }
+
+  /**
+   * Copies up to `length` bytes out of the buffer and returns the number of bytes copied.
+   * Consumer thread only.
+   */
+  public int read(byte[] destination, int offset, int length) {
+    final long read = readPosition.get();
+    final int count = Math.min(length, (int) (writePosition.get() - read));
+    if (count <= 0) {
+      return 0;
+    }
+    final int start = (int) (read & mask);
+    final int firstPart = Math.min(count, buffer.length - start);
+    System.arraycopy(buffer, start, destination, offset, firstPart);
+    if (firstPart < count) {
+      System.arraycopy(buffer, 0, destination, offset + firstPart, count - firstPart);
+    }
+    readPosition.lazySet(read + count);
+    return count;
+  }
+}
@@ -0,0 +1,107 @@
+package org.appspot.apprtc;
+
+import android.util.Log;
+import androidx.annotation.Nullable;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.Map;
+import org.appspot.apprtc.AppRTCAudioManager.AudioDevice;
+import org.appspot.apprtc.util.AudioConfigDelta;
+import org.appspot.apprtc.util.AudioConfigStore;
+import org.appspot.apprtc.util.AudioTuningConfig;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Applies a howl suppression and AGC profile per audio route: the acoustic coupling between
+ * speaker and microphone on speakerphone has nothing in common with that of a headset.
+ *
+ * <p>Profiles are {@link AudioConfigDelta}s on top of the current configuration, so changes made
+ * during the call by other features or by the peer stay in place. A switch undoes the settings of
+ * the previous profile that nothing else changed since and applies the new profile, both as one
+ * snapshot of the {@link AudioConfigStore}, which reaches the native side in a single atomic file
+ * replacement. A route without a profile keeps the configuration it finds. The time from the route
+ * change until the file holds the new profile is logged. Restoring the configuration from before
+ * the call is up to the owner of the call.
+ *
+ * <p>Only route changes cost anything; the captured audio is not touched. Must be used on one
+ * thread, normally the one the {@link AppRTCAudioManager} reports on.
+ */
+public class AudioRouteProfiles {
+  private static final String TAG = "AudioRouteProfiles";
+
+  private final Map<AudioDevice, AudioConfigDelta> profiles;
+  private final AudioConfigStore store;
+  private AudioDevice route = AudioDevice.NONE;
+  // Profile in effect and the values its settings had before, which the next switch restores.
+  @Nullable private AudioConfigDelta activeProfile;
+  @Nullable private AudioConfigDelta replacedValues;
+  private volatile long lastSwitchLatencyMs = -1;
+
+  public AudioRouteProfiles(Map<AudioDevice, AudioConfigDelta> profiles, AudioConfigStore store) {
+    this.profiles = new EnumMap<>(AudioDevice.class);
+    this.profiles.putAll(profiles);
+    this.store = store;
+  }
+
+  /**
+   * Parses profiles given as a JSON object keyed by {@link AudioDevice} name, each value a
+   * {@link AudioConfigDelta}, e.g. {"SPEAKER_PHONE":{"sl":6},"WIRED_HEADSET":{"sl":0}}.
+   */
+  public static Map<AudioDevice, AudioConfigDelta> parse(String json) throws JSONException {
+    final JSONObject object = new JSONObject(json);
+    final Map<AudioDevice, AudioConfigDelta> profiles = new EnumMap<>(AudioDevice.class);
+    for (Iterator<String> keys = object.keys(); keys.hasNext();) {
+      final String key = keys.next();
+      final AudioDevice device;
+      try {
+        device = AudioDevice.valueOf(key);
+      } catch (IllegalArgumentException e) {
+        throw new JSONException("Unknown audio device " + key);
+      }
+      profiles.put(device, AudioConfigDelta.fromJson(object.getJSONObject(key)));
+    }
+    return profiles;
+  }
+
+  /** Switches to the profile of `device` if the route changed. */
+  public void onAudioDeviceChanged(AudioDevice device) {
+    if (device == route) {
+      return;
+    }
+    final long startNs = System.nanoTime();
+    final AudioDevice previous = route;
+    route = device;
+    final AudioConfigDelta profile = profiles.get(device);
+    final AudioTuningConfig config = apply(profile);
+    store.flush(() -> {
+      lastSwitchLatencyMs = (System.nanoTime() - startNs) / 1_000_000L;
+      // A later switch may have replaced the snapshot before it was written.
+      final boolean written = store.getCommittedVersion() >= config.version;
+      Log.i(TAG, "Route " + previous + " -> " + device + ": "
+              + (profile != null ? profile : "no profile") + ", "
+              + (written ? "applied in " + lastSwitchLatencyMs + " ms" : "not written"));
+    });
+  }
+
+  /** Time from the last route change until its profile was written, or -1 before the first. */
+  public long getLastSwitchLatencyMs() {
+    return lastSwitchLatencyMs;
+  }
+
+  private AudioTuningConfig apply(@Nullable AudioConfigDelta profile) {
+    final AudioTuningConfig current = store.getConfig();
+    final AudioConfigStore.Editor editor = store.edit();
+    AudioConfigDelta undo = null;
+    if (activeProfile != null) {
+      undo = activeProfile.undoIn(current, replacedValues);
+      undo.applyTo(editor);
+    }
+    if (profile != null) {
+      replacedValues = profile.valuesIn(current, undo);
+      profile.applyTo(editor);
+    }
+    activeProfile = profile;
+    return editor.apply();
+  }
+}
@@ -0,0 +1,229 @@
+package org.appspot.apprtc;
+
+import java.util.Locale;
+import java.util.Map;
+import org.webrtc.RTCStats;
+import org.webrtc.RTCStatsReport;
+
+/**
+ * Time series of the received audio's statistics, one entry per stats poll, kept in primitive
+ * ring buffers of {@link #CAPACITY} entries.
+ *
+ * <p>Each report is read for a few fields only: jitter, packetsLost, packetsReceived,
+ * concealedSamples, totalSamplesReceived, totalAudioEnergy, totalSamplesDuration,
+ * jitterBufferDelay and jitterBufferEmittedCount of the audio inbound-rtp stats, and the
+ * currentRoundTripTime of the selected candidate pair. The cumulative counters are turned into
+ * per-interval values: packet loss, the share of concealed samples, the mean audio level and the
+ * mean jitter buffer delay over the interval. A counter that goes back starts a new stream; that
+ * report is only the new baseline.
+ *
+ * <p>Entries are indexed from 0, the oldest, to {@link #size()} - 1, the latest. Values that a
+ * report did not have are NaN. All methods may be called from any thread.
+ */
+public class AudioStatsEngine {
+  public static final int CAPACITY = 300;
+  // Audio level floor for silence.
+  private static final float MIN_LEVEL_DBFS = -100f;
+
+  // Ring buffers, guarded by `this`.
+  private final long[] timesMs = new long[CAPACITY];
+  private final float[] intervalsS = new float[CAPACITY];
+  private final float[] jittersMs = new float[CAPACITY];
+  private final int[] packetsLost = new int[CAPACITY];
+  private final int[] packetsReceived = new int[CAPACITY];
+  private final float[] concealedShares = new float[CAPACITY];
+  private final float[] levelsDbfs = new float[CAPACITY];
+  private final float[] jitterBufferDelaysMs = new float[CAPACITY];
+  private final float[] roundTripTimesMs = new float[CAPACITY];
+  // Index of the oldest entry.
+  private int first;
+  private int size;
+
+  // Counters of the previous report; lastTimestampUs is -1 before the first.
+  private long lastTimestampUs = -1;
+  private long lastPacketsLost;
+  private long lastPacketsReceived;
+  private long lastConcealedSamples;
+  private long lastTotalSamples;
+  private double lastAudioEnergy;
+  private double lastSamplesDuration;
+  private double lastJitterBufferDelay;
+  private long lastJitterBufferEmitted;
+
+  /**
+   * Reads `report` and adds the interval since the previous one. Returns false if the report has
+   * no audio inbound-rtp stats or only sets the baseline.
+   */
+  public synchronized boolean onStatsReport(RTCStatsReport report) {
+    final Map<String, RTCStats> statsMap = report.getStatsMap();
+    RTCStats inbound = null;
+    for (RTCStats stats : statsMap.values()) {
+      if ("inbound-rtp".equals(stats.getType())
+          && "audio".equals(stats.getMembers().get("kind"))) {
+        inbound = stats;
+        break;
+      }
+    }
+    if (inbound == null) {
+      return false;
+    }
+    final Map<String, Object> members = inbound.getMembers();
+    final long timestampUs = (long) report.getTimestampUs();
+    final long lost = getLong(members, "packetsLost");
+    final long received = getLong(members, "packetsReceived");
+    final long concealed = getLong(members, "concealedSamples");
+    final long totalSamples = getLong(members, "totalSamplesReceived");
+    final double energy = getDouble(members, "totalAudioEnergy");
+    final double duration = getDouble(members, "totalSamplesDuration");
+    final double jitterBufferDelay = getDouble(members, "jitterBufferDelay");
+    final long jitterBufferEmitted = getLong(members, "jitterBufferEmittedCount");
+
+    final boolean baseline = lastTimestampUs < 0 || timestampUs <= lastTimestampUs
+        || received < lastPacketsReceived || totalSamples < lastTotalSamples
+        || jitterBufferEmitted < lastJitterBufferEmitted;
+    if (!baseline) {
+      final int index = (first + size) % CAPACITY;
+      if (size == CAPACITY) {
+        first = (first + 1) % CAPACITY;
+      } else {
+        size++;
+      }
+      timesMs[index] = timestampUs / 1000;
+      intervalsS[index] = (timestampUs - lastTimestampUs) / 1e6f;
+      jittersMs[index] = (float) (getDouble(members, "jitter") * 1000);
+      // packetsLost goes down when late packets arrive after all.
+      packetsLost[index] = (int) (lost - lastPacketsLost);
+      packetsReceived[index] = (int) (received - lastPacketsReceived);
+      final long samples = totalSamples - lastTotalSamples;
+      concealedShares[index] =
+          samples > 0 ? (float) (concealed - lastConcealedSamples) / samples : Float.NaN;
+      // totalAudioEnergy sums the squared level times the duration of each sample.
+      final double energyDuration = duration - lastSamplesDuration;
+      levelsDbfs[index] = energyDuration > 0
+          ? (float) Math.max(MIN_LEVEL_DBFS,
+              10 * Math.log10((energy - lastAudioEnergy) / energyDuration))
+          : Float.NaN;
+      final long emitted = jitterBufferEmitted - lastJitterBufferEmitted;
+      jitterBufferDelaysMs[index] = emitted > 0
+          ? (float) ((jitterBufferDelay - lastJitterBufferDelay) * 1000 / emitted)
+          : Float.NaN;
+      roundTripTimesMs[index] = (float) (getRoundTripTimeS(statsMap, members) * 1000);
+    }
+    lastTimestampUs = timestampUs;
+    lastPacketsLost = lost;
+    lastPacketsReceived = received;
+    lastConcealedSamples = concealed;
+    lastTotalSamples = totalSamples;
+    lastAudioEnergy = energy;
+    lastSamplesDuration = duration;
+    lastJitterBufferDelay = jitterBufferDelay;
+    lastJitterBufferEmitted = jitterBufferEmitted;
+    return !baseline;
+  }
+
+  // The current round trip time of the transport's selected candidate pair, in seconds.
+  private static double getRoundTripTimeS(
+      Map<String, RTCStats> statsMap, Map<String, Object> inbound) {
+    final RTCStats transport = statsMap.get(String.valueOf(inbound.get("transportId")));
+    if (transport == null) {
+      return Double.NaN;
+    }
+    final RTCStats pair =
+        statsMap.get(String.valueOf(transport.getMembers().get("selectedCandidatePairId")));
+    return pair != null ? getDouble(pair.getMembers(), "currentRoundTripTime") : Double.NaN;
+  }
+
+  private static long getLong(Map<String, Object> members, String name) {
+    final Object value = members.get(name);
+    return value instanceof Number ? ((Number) value).longValue() : 0;
+  }
+
+  private static double getDouble(Map<String, Object> members, String name) {
+    final Object value = members.get(name);
+    return value instanceof Number ? ((Number) value).doubleValue() : Double.NaN;
+  }
+
+  /** Drops all entries and the baseline, e.g. for a new call. */
+  public synchronized void reset() {
+    first = 0;
+    size = 0;
+    lastTimestampUs = -1;
+  }
+
+  public synchronized int size() {
+    return size;
+  }
+
+  // Called with `this` held.
+  private int slot(int index) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+    }
+    return (first + index) % CAPACITY;
+  }
+
+  /** Returns the time of the report that ended the interval, on the stats clock. */
+  public synchronized long getTimeMs(int index) {
+    return timesMs[slot(index)];
+  }
+
+  public synchronized float getIntervalSeconds(int index) {
+    return intervalsS[slot(index)];
+  }
+
+  /** Returns the interarrival jitter at the end of the interval. */
+  public synchronized float getJitterMs(int index) {
+    return jittersMs[slot(index)];
+  }
+
+  public synchronized int getPacketsLost(int index) {
+    return packetsLost[slot(index)];
+  }
+
+  public synchronized int getPacketsReceived(int index) {
+    return packetsReceived[slot(index)];
+  }
+
+  /** Returns the share of the expected packets that were lost, NaN without packets. */
+  public synchronized float getLossRate(int index) {
+    final int i = slot(index);
+    final int expected = packetsLost[i] + packetsReceived[i];
+    return expected > 0 ? Math.max(0, (float) packetsLost[i] / expected) : Float.NaN;
+  }
+
+  public synchronized float getPacketsLostPerSecond(int index) {
+    final int i = slot(index);
+    return packetsLost[i] / intervalsS[i];
+  }
+
+  /** Returns the share of the played out samples that were concealed. */
+  public synchronized float getConcealedShare(int index) {
+    return concealedShares[slot(index)];
+  }
+
+  /** Returns the mean level of the received audio over the interval. */
+  public synchronized float getLevelDbfs(int index) {
+    return levelsDbfs[slot(index)];
+  }
+
+  /** Returns the mean time the emitted samples spent in the jitter buffer. */
+  public synchronized float getJitterBufferDelayMs(int index) {
+    return jitterBufferDelaysMs[slot(index)];
+  }
+
+  public synchronized float getRoundTripTimeMs(int index) {
+    return roundTripTimesMs[slot(index)];
+  }
+
+  /** Returns the latest interval as one line, or an empty string if there is none. */
+  public synchronized String formatLatest() {
+    if (size == 0) {
+      return "";
+    }
+    final int i = size - 1;
+    return String.format(Locale.US,
+        "RTT %.0f ms, jitter %.1f ms, JB %.0f ms, loss %.1f%%, concealed %.1f%%, level %.0f dBFS",
+        getRoundTripTimeMs(i), getJitterMs(i), getJitterBufferDelayMs(i), getLossRate(i) * 100,
+        getConcealedShare(i) * 100, getLevelDbfs(i));
+  }
+}
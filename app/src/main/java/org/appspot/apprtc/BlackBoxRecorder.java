@@ -0,0 +1,195 @@
+package org.appspot.apprtc;
+
+import android.os.Environment;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.appspot.apprtc.CaptureTapMultiplexer.CaptureFrame;
+import org.appspot.apprtc.CaptureTapMultiplexer.FrameConsumer;
+
+/**
+ * Keeps the last seconds of captured audio in memory and dumps them to a WAV file on demand.
+ *
+ * <p>Meant to be left on for whole calls: when something goes wrong (howling, an audio device
+ * error, a tester pressing a key) {@link #trigger} writes the audio that led up to it to
+ * `blackbox_<timestamp>_<reason>.wav` in external storage.
+ *
+ * <p>All memory is allocated up front: a ring buffer sized for the configured duration of 48 kHz
+ * mono audio and an equally large snapshot buffer, so memory use does not grow with the length of
+ * the call. Other capture formats keep as much audio as fits. The capture tap thread only copies
+ * each frame into the ring buffer. Dumps run on a background thread which copies the ring buffer
+ * without locking and afterwards drops the oldest bytes the tap thread may have overwritten in the
+ * meantime.
+ */
+public class BlackBoxRecorder implements FrameConsumer {
+  private static final String TAG = "BlackBoxRecorder";
+  private static final int BYTES_PER_SAMPLE = 2;
+  // The buffer is sized for this rate of mono audio.
+  private static final int MAX_SAMPLE_RATE = 48000;
+  // Triggers this soon after the previous dump are ignored; they would mostly repeat its audio.
+  private static final long TRIGGER_HOLDOFF_MS = 1000;
+  // Longest buffered audio; both buffers together then take about 11 MB.
+  public static final int MAX_DURATION_SECONDS = 60;
+
+  private final int durationSeconds;
+  private final byte[] ring;
+  private final byte[] snapshot;
+  private final ExecutorService dumpExecutor = Executors.newSingleThreadExecutor();
+  private final AtomicBoolean dumpPending = new AtomicBoolean();
+  // Published by the tap thread; `writtenBytes` is written last.
+  private volatile int sampleRate;
+  private volatile int channelCount;
+  private volatile int capacity;
+  private volatile int maxFrameBytes;
+  // Value of `writtenBytes` when the current format started; ring offsets are relative to it.
+  private volatile long formatStartBytes;
+  private volatile long writtenBytes;
+  // Only used on the dump thread.
+  private long lastDumpMs = -TRIGGER_HOLDOFF_MS;
+
+  /** Keeps the last `durationSeconds`, at most {@link #MAX_DURATION_SECONDS}, of captured audio. */
+  public BlackBoxRecorder(int durationSeconds) {
+    this.durationSeconds = Math.max(1, Math.min(MAX_DURATION_SECONDS, durationSeconds));
+    final int bytes = this.durationSeconds * MAX_SAMPLE_RATE * BYTES_PER_SAMPLE;
+    ring = new byte[bytes];
+    snapshot = new byte[bytes];
+    Log.d(TAG, "Black box of " + this.durationSeconds + " s, " + 2 * bytes + " bytes");
+  }
+
+  /**
+   * Dumps the buffered audio to a file in the background. `reason` becomes part of the file name.
+   * Does not block and may be called from any thread, including the audio and tap threads.
+   */
+  public void trigger(String reason) {
+    if (!dumpPending.compareAndSet(false, true)) {
+      Log.d(TAG, "Dump already pending, ignoring trigger: " + reason);
+      return;
+    }
+    try {
+      dumpExecutor.execute(() -> {
+        try {
+          dump(reason);
+        } finally {
+          dumpPending.set(false);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      Log.w(TAG, "Released, ignoring trigger: " + reason);
+    }
+  }
+
+  /** Stops accepting triggers. A dump in progress is completed. */
+  public void release() {
+    Log.d(TAG, "release");
+    dumpExecutor.shutdown();
+  }
+
+  // Called when new audio samples are ready. Runs on the capture tap thread and must not block.
+  @Override
+  public void onCaptureFrame(CaptureFrame frame) {
+    if (frame.getSampleRate() != sampleRate || frame.getChannelCount() != channelCount) {
+      final int blockAlign = frame.getChannelCount() * BYTES_PER_SAMPLE;
+      final long bytesPerSecond = (long) frame.getSampleRate() * blockAlign;
+      final int newCapacity = (int) Math.min(ring.length, durationSeconds * bytesPerSecond);
+      capacity = newCapacity - newCapacity % blockAlign;
+      sampleRate = frame.getSampleRate();
+      channelCount = frame.getChannelCount();
+      maxFrameBytes = 0;
+      formatStartBytes = writtenBytes;
+      Log.d(TAG, "Format: " + sampleRate + " Hz, " + channelCount + " channels, keeping "
+          + capacity * 1000L / bytesPerSecond + " ms");
+    }
+    final ShortBuffer samples = frame.getSamples();
+    final int length = BYTES_PER_SAMPLE * samples.remaining();
+    final int ringCapacity = capacity;
+    if (length > ringCapacity) {
+      return;
+    }
+    if (length > maxFrameBytes) {
+      maxFrameBytes = length;
+    }
+    final long written = writtenBytes;
+    // Samples never straddle the end of the ring since the capacity is a multiple of two bytes.
+    int position = (int) ((written - formatStartBytes) % ringCapacity);
+    for (int i = 0; i < samples.remaining(); ++i) {
+      final short sample = samples.get(i);
+      ring[position] = (byte) sample;
+      ring[position + 1] = (byte) (sample >> 8);
+      position += BYTES_PER_SAMPLE;
+      if (position == ringCapacity) {
+        position = 0;
+      }
+    }
+    writtenBytes = written + length;
+  }
+
+  // Runs on the dump thread.
+  private void dump(String reason) {
+    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+    final long nowMs = SystemClock.elapsedRealtime();
+    if (nowMs - lastDumpMs < TRIGGER_HOLDOFF_MS) {
+      Log.d(TAG, "Ignoring trigger right after the previous dump: " + reason);
+      return;
+    }
+    // `writtenBytes` is read first, so the other values belong to the same or a later frame.
+    final long end = writtenBytes;
+    final long formatStart = formatStartBytes;
+    final int ringCapacity = capacity;
+    final int rate = sampleRate;
+    final int channels = channelCount;
+    final long start = Math.max(formatStart, end - ringCapacity);
+    if (rate == 0 || end <= start) {
+      Log.w(TAG, "Nothing recorded, ignoring trigger: " + reason);
+      return;
+    }
+
+    final int length = (int) (end - start);
+    final int position = (int) ((start - formatStart) % ringCapacity);
+    final int firstPart = Math.min(length, ringCapacity - position);
+    System.arraycopy(ring, position, snapshot, 0, firstPart);
+    System.arraycopy(ring, 0, snapshot, firstPart, length - firstPart);
+
+    // Frames written during the copy, plus one that may be in flight, have overwritten the oldest
+    // part of the snapshot.
+    if (formatStartBytes != formatStart) {
+      Log.w(TAG, "Capture format changed during dump, ignoring trigger: " + reason);
+      return;
+    }
+    final long validStart = Math.max(start, writtenBytes + maxFrameBytes - ringCapacity);
+    if (validStart >= end) {
+      Log.w(TAG, "Audio overwritten during dump, ignoring trigger: " + reason);
+      return;
+    }
+    final File file = new File(Environment.getExternalStorageDirectory(),
+        "blackbox_" + new SimpleDateFormat("yyyyMMdd_HHmmss_SSS", Locale.US).format(new Date())
+            + "_" + reason.replaceAll("[^A-Za-z0-9]+", "_") + ".wav");
+    final int offset = (int) (validStart - start);
+    final int dataBytes = length - offset;
+    try (OutputStream output = new FileOutputStream(file)) {
+      final ByteBuffer header =
+          ByteBuffer.allocate(WavSegmentWriter.WAV_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+      WavSegmentWriter.putHeader(header, rate, channels, dataBytes);
+      output.write(header.array());
+      output.write(snapshot, offset, dataBytes);
+      Log.d(TAG, "Dumped " + dataBytes * 1000L / (rate * channels * BYTES_PER_SAMPLE)
+          + " ms of audio to " + file);
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to write black box dump: " + e.getMessage());
+    }
+    lastDumpMs = nowMs;
+  }
+}
@@ -20,18 +20,27 @@ import android.content.pm.PackageManager;
 import android.media.projection.MediaProjection;
 import android.media.projection.MediaProjectionManager;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Process;
+import android.text.InputType;
 import android.util.DisplayMetrics;
 import android.util.Log;
+import android.view.KeyEvent;
 import android.view.View;
 import android.view.Window;
 import android.view.WindowManager;
 import android.view.WindowManager.LayoutParams;
+import android.widget.CheckBox;
+import android.widget.EditText;
+import android.widget.LinearLayout;
 import android.widget.Toast;
 import androidx.annotation.Nullable;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Set;
 
 import org.appspot.apprtc.AppRTCAudioManager.AudioDevice;
@@ -40,6 +49,10 @@ import org.appspot.apprtc.AppRTCClient.RoomConnectionParameters;
 import org.appspot.apprtc.AppRTCClient.SignalingParameters;
 import org.appspot.apprtc.PeerConnectionClient.DataChannelParameters;
 import org.appspot.apprtc.PeerConnectionClient.PeerConnectionParameters;
+import org.appspot.apprtc.util.AcousticFingerprintCache;
+import org.appspot.apprtc.util.AudioConfigDelta;
+import org.appspot.apprtc.util.AudioConfigStore;
+import org.appspot.apprtc.util.AudioTuningConfig;
 import org.appspot.apprtc.util.SocketManager;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -52,7 +65,6 @@ import org.webrtc.IceCandidate;
 import org.webrtc.Logging;
 import org.webrtc.MediaStream;
 import org.webrtc.PeerConnectionFactory;
-import org.webrtc.RTCStatsReport;
 import org.webrtc.RendererCommon.ScalingType;
 import org.webrtc.ScreenCapturerAndroid;
 import org.webrtc.SdpObserver;
@@ -69,7 +81,9 @@ import org.webrtc.VideoSink;
  */
 public class CallActivity extends Activity implements AppRTCClient.SignalingEvents,
                                                       PeerConnectionClient.PeerConnectionEvents,
-                                                      CallFragment.OnCallEvents {
+                                                      CallFragment.OnCallEvents,
+                                                      DirectRTCClient.AfcConfigEvents,
+                                                      CouplingProbe.Listener {
   private static final String TAG = "CallRTCClient";
 
   public static final String EXTRA_ROOMID = "org.appspot.apprtc.ROOMID";
@@ -90,11 +104,42 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
   public static final String EXTRA_FLEXFEC_ENABLED = "org.appspot.apprtc.FLEXFEC";
   public static final String EXTRA_AUDIO_BITRATE = "org.appspot.apprtc.AUDIO_BITRATE";
   public static final String EXTRA_AUDIOCODEC = "org.appspot.apprtc.AUDIOCODEC";
+  public static final String EXTRA_AUDIO_BITRATE_ADAPTATION_ENABLED =
+      "org.appspot.apprtc.AUDIO_BITRATE_ADAPTATION";
+  public static final String EXTRA_AUDIO_MIN_BITRATE = "org.appspot.apprtc.AUDIO_MIN_BITRATE";
+  public static final String EXTRA_AUDIO_MAX_BITRATE = "org.appspot.apprtc.AUDIO_MAX_BITRATE";
+  public static final String EXTRA_AUDIO_BITRATE_POLICY =
+      "org.appspot.apprtc.AUDIO_BITRATE_POLICY";
   public static final String EXTRA_NOAUDIOPROCESSING_ENABLED =
       "org.appspot.apprtc.NOAUDIOPROCESSING";
   public static final String EXTRA_AECDUMP_ENABLED = "org.appspot.apprtc.AECDUMP";
   public static final String EXTRA_SAVE_INPUT_AUDIO_TO_FILE_ENABLED =
       "org.appspot.apprtc.SAVE_INPUT_AUDIO_TO_FILE";
+  public static final String EXTRA_SAVE_INPUT_AUDIO_FORMAT =
+      "org.appspot.apprtc.SAVE_INPUT_AUDIO_FORMAT";
+  public static final String EXTRA_SAVE_INPUT_AUDIO_VAD_ENABLED =
+      "org.appspot.apprtc.SAVE_INPUT_AUDIO_VAD";
+  public static final String EXTRA_VAD_HANGOVER_MS = "org.appspot.apprtc.VAD_HANGOVER_MS";
+  public static final String EXTRA_VAD_PRE_ROLL_MS = "org.appspot.apprtc.VAD_PRE_ROLL_MS";
+  public static final String EXTRA_SAVE_DUAL_TRACK_AUDIO_ENABLED =
+      "org.appspot.apprtc.SAVE_DUAL_TRACK_AUDIO";
+  public static final String EXTRA_BLACK_BOX_ENABLED = "org.appspot.apprtc.BLACK_BOX";
+  public static final String EXTRA_BLACK_BOX_SECONDS = "org.appspot.apprtc.BLACK_BOX_SECONDS";
+  public static final String EXTRA_ADAPTIVE_HOWL_ENABLED = "org.appspot.apprtc.ADAPTIVE_HOWL";
+  public static final String EXTRA_AB_EXPERIMENT_ARMS = "org.appspot.apprtc.AB_EXPERIMENT_ARMS";
+  public static final String EXTRA_AB_WINDOW_SECONDS = "org.appspot.apprtc.AB_WINDOW_SECONDS";
+  public static final String EXTRA_ROUTE_PROFILES_ENABLED = "org.appspot.apprtc.ROUTE_PROFILES";
+  // JSON object of the audio config delta per AppRTCAudioManager.AudioDevice name.
+  public static final String EXTRA_ROUTE_PROFILES = "org.appspot.apprtc.ROUTE_PROFILES_JSON";
+  public static final String EXTRA_HOWL_FINGERPRINTS_ENABLED =
+      "org.appspot.apprtc.HOWL_FINGERPRINTS";
+  public static final String EXTRA_COUPLING_PROBE_ENABLED = "org.appspot.apprtc.COUPLING_PROBE";
+  public static final String EXTRA_LATENCY_MEASUREMENT_ENABLED =
+      "org.appspot.apprtc.LATENCY_MEASUREMENT";
+  public static final String EXTRA_AUDIO_FILE_AS_MIC = "org.appspot.apprtc.AUDIO_FILE_AS_MIC";
+  public static final String EXTRA_AUDIO_FILE_LOOP = "org.appspot.apprtc.AUDIO_FILE_LOOP";
+  public static final String EXTRA_SETUP_TRACE_ENABLED = "org.appspot.apprtc.SETUP_TRACE";
+  public static final String EXTRA_STATS_RECORDING_ENABLED = "org.appspot.apprtc.STATS_RECORDING";
   public static final String EXTRA_OPENSLES_ENABLED = "org.appspot.apprtc.OPENSLES";
   public static final String EXTRA_DISABLE_BUILT_IN_AEC = "org.appspot.apprtc.DISABLE_BUILT_IN_AEC";
   public static final String EXTRA_DISABLE_BUILT_IN_AGC = "org.appspot.apprtc.DISABLE_BUILT_IN_AGC";
@@ -124,6 +169,11 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
   public static final String EXTRA_ENABLE_RTCEVENTLOG = "org.appspot.apprtc.ENABLE_RTCEVENTLOG";
   public static final String EXTRA_IS_SERVER = "org.appspot.apprtc.IS_INCOMING";
   public static final String EXTRA_TCP_MSG = "org.appspot.apprtc.INCOMING_OFFER";
+  // The call is a trial of the AFC tuning sweep: it ends after EXTRA_RUNTIME ms and returns the
+  // score of the captured audio in the result extras.
+  public static final String EXTRA_AFC_TRIAL = "org.appspot.apprtc.AFC_TRIAL";
+  public static final String EXTRA_AFC_TRIAL_SCORE = "org.appspot.apprtc.AFC_TRIAL_SCORE";
+  public static final String EXTRA_AFC_TRIAL_SUMMARY = "org.appspot.apprtc.AFC_TRIAL_SUMMARY";
 
   public static TCPChannelClient serverTCP=null;
   public static boolean callCreated=false;
@@ -139,6 +189,13 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
   // Peer connection statistics callback period in ms.
   private static final int STAT_CALLBACK_PERIOD = 1000;
 
+  // Capture frames the AFC trial scorer may fall behind by.
+  private static final int AFC_TRIAL_TAP_QUEUE_FRAMES = 20;
+  // Howl suppression level for devices that hear each other strongly.
+  private static final int COUPLING_SUPPRESS_LEVEL = PeerConnectionClient.MAX_SUPPRESS_LEVEL - 1;
+  // Capture frames the latency meter may fall behind by; it drops probes that lose frames.
+  private static final int LATENCY_TAP_QUEUE_FRAMES = 50;
+
   private String roomId;
 
   private static class ProxyVideoSink implements VideoSink {
@@ -176,6 +233,15 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
   private final List<VideoSink> remoteSinks = new ArrayList<>();
   private Toast logToast;
   private boolean commandLineRun;
+  @Nullable private AfcTrialScorer afcTrialScorer;
+  @Nullable private AudioRouteProfiles audioRouteProfiles;
+  @Nullable private AcousticFingerprintSession fingerprintSession;
+  @Nullable private LatencyMeter latencyMeter;
+  // Level raised to after a strong coupling probe, -1 if not raised.
+  private int couplingLevel = -1;
+  // Tuning at the start of the call and the peer's changes since, restored at hangup.
+  @Nullable private AudioTuningConfig tuningBeforeCall;
+  private final List<AudioConfigDelta> peerAfcConfigs = new ArrayList<>();
   private boolean activityRunning;
   private RoomConnectionParameters roomConnectionParameters;
   @Nullable
@@ -193,7 +259,7 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
 
   // Controls
   private CallFragment callFragment;
-  //private HudFragment hudFragment;
+  private HudFragment hudFragment;
   //private CpuMonitor cpuMonitor;
 
   @Override
@@ -216,12 +282,18 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
     connected = false;
     signalingParameters = null;
     callCreated=true;
+    if (getIntent().getBooleanExtra(EXTRA_IS_SERVER, false)) {
+      // The callee's trace started when the caller connected.
+      CallSetupTracer.instant("call_activity_created");
+    } else {
+      CallSetupTracer.start("call_activity_created");
+    }
 
     // Create UI controls.
     //pipRenderer = findViewById(R.id.pip_video_view);
     //fullscreenRenderer = findViewById(R.id.fullscreen_video_view);
     callFragment = new CallFragment();
-    //hudFragment = new HudFragment();
+    hudFragment = new HudFragment();
 
     // Show/hide call control fragment on view click.
     View.OnClickListener listener = new View.OnClickListener() {
@@ -324,6 +396,7 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
           intent.getIntExtra(EXTRA_MAX_RETRANSMITS, -1), intent.getStringExtra(EXTRA_PROTOCOL),
           intent.getBooleanExtra(EXTRA_NEGOTIATED, false), intent.getIntExtra(EXTRA_ID, -1));
     }
+    final boolean afcTrial = isAfcTrial();
     peerConnectionParameters =
         new PeerConnectionParameters(intent.getBooleanExtra(EXTRA_VIDEO_CALL, true), loopback,
             tracing, videoWidth, videoHeight, intent.getIntExtra(EXTRA_VIDEO_FPS, 0),
@@ -334,6 +407,23 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
             intent.getBooleanExtra(EXTRA_NOAUDIOPROCESSING_ENABLED, false),
             intent.getBooleanExtra(EXTRA_AECDUMP_ENABLED, false),
             intent.getBooleanExtra(EXTRA_SAVE_INPUT_AUDIO_TO_FILE_ENABLED, false),
+            intent.getStringExtra(EXTRA_SAVE_INPUT_AUDIO_FORMAT),
+            intent.getBooleanExtra(EXTRA_SAVE_INPUT_AUDIO_VAD_ENABLED, false),
+            intent.getIntExtra(EXTRA_VAD_HANGOVER_MS, 800),
+            intent.getIntExtra(EXTRA_VAD_PRE_ROLL_MS, 300),
+            intent.getBooleanExtra(EXTRA_SAVE_DUAL_TRACK_AUDIO_ENABLED, false),
+            intent.getBooleanExtra(EXTRA_BLACK_BOX_ENABLED, false),
+            intent.getIntExtra(EXTRA_BLACK_BOX_SECONDS, 10),
+            !afcTrial && intent.getBooleanExtra(EXTRA_ADAPTIVE_HOWL_ENABLED, false),
+            afcTrial ? null : intent.getStringExtra(EXTRA_AB_EXPERIMENT_ARMS),
+            intent.getIntExtra(EXTRA_AB_WINDOW_SECONDS, 20),
+            intent.getStringExtra(EXTRA_AUDIO_FILE_AS_MIC),
+            intent.getBooleanExtra(EXTRA_AUDIO_FILE_LOOP, true),
+            intent.getBooleanExtra(EXTRA_STATS_RECORDING_ENABLED, false),
+            intent.getBooleanExtra(EXTRA_AUDIO_BITRATE_ADAPTATION_ENABLED, false),
+            intent.getIntExtra(EXTRA_AUDIO_MIN_BITRATE, 16),
+            intent.getIntExtra(EXTRA_AUDIO_MAX_BITRATE, 64),
+            intent.getStringExtra(EXTRA_AUDIO_BITRATE_POLICY),
             //intent.getBooleanExtra(EXTRA_OPENSLES_ENABLED, false),
                 true,
             //intent.getBooleanExtra(EXTRA_DISABLE_BUILT_IN_AEC, false),
@@ -364,11 +454,11 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
 
     // Send intent arguments to fragments.
     callFragment.setArguments(intent.getExtras());
-    //hudFragment.setArguments(intent.getExtras());
+    hudFragment.setArguments(intent.getExtras());
     // Activate call and HUD fragments and start the call.
     FragmentTransaction ft = getFragmentManager().beginTransaction();
     ft.add(R.id.call_fragment_container, callFragment);
-    //ft.add(R.id.hud_fragment_container, hudFragment);
+    ft.add(R.id.hud_fragment_container, hudFragment);
     ft.commit();
 
     /*// For command line execution run connection for <runTimeMs> and exit.
@@ -381,6 +471,10 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
       }, runTimeMs);
     }*/
 
+    final AudioConfigStore audioConfigStore = AudioConfigStore.getDefault();
+    if (audioConfigStore != null) {
+      tuningBeforeCall = audioConfigStore.getConfig();
+    }
     // Create peer connection client.
     peerConnectionClient = new PeerConnectionClient(
         getApplicationContext(), eglBase, peerConnectionParameters, CallActivity.this);
@@ -389,8 +483,18 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
       options.networkIgnoreMask = 0;
     }
     peerConnectionClient.createPeerConnectionFactory(options);
-
-    appRtcClient = new DirectRTCClient(this);
+    if (afcTrial && runTimeMs > 0) {
+      startAfcTrial(runTimeMs);
+    }
+    hudFragment.setSpectrumAnalyzer(peerConnectionClient.getSpectrumAnalyzer());
+
+    DirectRTCClient directRtcClient = new DirectRTCClient(this);
+    directRtcClient.setAfcConfigEvents(this);
+    directRtcClient.setCouplingProbeEnabled(
+        intent.getBooleanExtra(EXTRA_COUPLING_PROBE_ENABLED, false));
+    // The callee's probe result may already be waiting.
+    CouplingProbe.setListener(this);
+    appRtcClient = directRtcClient;
     /*roomConnectionParameters = new RoomConnectionParameters(roomId, false);
     appRtcClient.connectToRoom(roomConnectionParameters);*/
     appRtcClient.handleTcpConnected(SocketManager.getInstance().getSocket(), isServer);
@@ -430,6 +534,119 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
     appRtcClient.handleIncomingMessage(intent.getStringExtra(EXTRA_TCP_MSG));
   }
 
+  // B on a keyboard (or `adb shell input keyevent KEYCODE_B`) saves the black box audio, R opens
+  // the howl suppression and AGC settings of the remote peer.
+  @Override
+  public boolean onKeyDown(int keyCode, KeyEvent event) {
+    if (keyCode == KeyEvent.KEYCODE_B && peerConnectionClient != null) {
+      if (peerConnectionClient.dumpBlackBox()) {
+        logAndToast("Saving black box audio");
+      }
+      return true;
+    }
+    if (keyCode == KeyEvent.KEYCODE_R && appRtcClient instanceof DirectRTCClient) {
+      showRemoteAudioSettingsDialog();
+      return true;
+    }
+    return super.onKeyDown(keyCode, event);
+  }
+
+  // Sends the entered settings to the peer. Empty fields leave the peer's values unchanged; the
+  // AGC switch is always sent.
+  private void showRemoteAudioSettingsDialog() {
+    final EditText levelEditText = createNumberEditText("Howl suppression level (0-6)");
+    final EditText targetEditText = createNumberEditText("AGC target dBFS");
+    final EditText gainEditText = createNumberEditText("AGC gain dB");
+    final CheckBox agcCheckBox = new CheckBox(this);
+    agcCheckBox.setText("AGC");
+    agcCheckBox.setChecked(true);
+    LinearLayout layout = new LinearLayout(this);
+    layout.setOrientation(LinearLayout.VERTICAL);
+    layout.addView(levelEditText);
+    layout.addView(targetEditText);
+    layout.addView(gainEditText);
+    layout.addView(agcCheckBox);
+    new AlertDialog.Builder(this)
+        .setTitle("Remote audio settings")
+        .setView(layout)
+        .setPositiveButton("Send", (dialog, which) -> {
+          AudioConfigDelta delta = new AudioConfigDelta(parseFloatOrNull(levelEditText),
+              parseFloatOrNull(targetEditText), parseFloatOrNull(gainEditText), null,
+              agcCheckBox.isChecked());
+          if (appRtcClient instanceof DirectRTCClient) {
+            ((DirectRTCClient) appRtcClient).sendAfcConfig(delta);
+          }
+        })
+        .setNegativeButton(android.R.string.cancel, null)
+        .show();
+  }
+
+  private EditText createNumberEditText(String hint) {
+    EditText editText = new EditText(this);
+    editText.setHint(hint);
+    editText.setInputType(InputType.TYPE_CLASS_NUMBER | InputType.TYPE_NUMBER_FLAG_SIGNED);
+    return editText;
+  }
+
+  @Nullable
+  private static Float parseFloatOrNull(EditText editText) {
+    try {
+      return Float.parseFloat(editText.getText().toString());
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  // -----Implementation of DirectRTCClient.AfcConfigEvents.---------
+  @Override
+  public void onRemoteAfcConfigApplied(
+      AudioConfigDelta delta, long version, long applyMs, long roundTripMs) {
+    logAndToast("Peer applied " + delta + " in " + applyMs + " ms (round trip " + roundTripMs
+        + " ms, version " + version + ")");
+  }
+
+  @Override
+  public void onRemoteAfcConfigFailed(AudioConfigDelta delta, String reason) {
+    logAndToast("Peer did not apply " + delta + ": " + reason);
+  }
+
+  @Override
+  public void onAfcConfigFromPeer(AudioConfigDelta delta) {
+    peerAfcConfigs.add(delta);
+    logAndToast("Peer changed " + delta);
+  }
+
+  // -----Implementation of CouplingProbe.Listener.---------
+  @Override
+  public void onCouplingProbeResult(CouplingProbe.Result result) {
+    if (!result.isStrong()) {
+      Log.d(TAG, "Coupling probe: " + result);
+      return;
+    }
+    logAndToast("The other device is close by (" + result + "), expect howling");
+    // In a trial the warning is all; the raised level would hide the settings under test.
+    if (peerConnectionClient == null || isAfcTrial()) {
+      return;
+    }
+    couplingLevel = COUPLING_SUPPRESS_LEVEL;
+    applyCouplingLevel();
+  }
+
+  // Raises the suppression level to couplingLevel. Again after every route profile.
+  private void applyCouplingLevel() {
+    final AudioConfigStore store = AudioConfigStore.getDefault();
+    if (store == null || couplingLevel < 0) {
+      return;
+    }
+    final int level = (int) store.getConfig().suppressLevel;
+    if (level < couplingLevel) {
+      Log.i(TAG, "Raising suppression level from " + level + " to " + couplingLevel
+              + " for the coupling");
+      store.edit().setSuppressLevel(couplingLevel).apply();
+      store.flush();
+    }
+  }
+
   private DisplayMetrics getDisplayMetrics() {
     DisplayMetrics displayMetrics = new DisplayMetrics();
     WindowManager windowManager =
@@ -612,6 +829,14 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
     // Create and audio manager that will take care of audio routing,
     // audio modes, audio device enumeration etc.
     audioManager = AppRTCAudioManager.create(getApplicationContext());
+    audioRouteProfiles = createAudioRouteProfiles();
+    final Intent intent = getIntent();
+    if (intent.getBooleanExtra(EXTRA_HOWL_FINGERPRINTS_ENABLED, false) && !isAfcTrial()) {
+      fingerprintSession = new AcousticFingerprintSession(this,
+          AcousticFingerprintCache.getInstance(getApplicationContext()),
+          peerConnectionClient.getHowlDetector(), AudioConfigStore.getDefault(),
+          PeerConnectionClient.MAX_SUPPRESS_LEVEL);
+    }
     // Store existing audio settings and change audio mode to
     // MODE_IN_COMMUNICATION for best possible VoIP performance.
     Log.d(TAG, "Starting the audio manager...");
@@ -644,8 +869,12 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
       Log.w(TAG, "Call is connected in closed or error state");
       return;
     }
-    // Enable statistics callback.
+    // Enable statistics callback. Polled at a low rate unless recorded or adapted to.
     peerConnectionClient.enableStatsEvents(true, STAT_CALLBACK_PERIOD);
+    if (getIntent().getBooleanExtra(EXTRA_LATENCY_MEASUREMENT_ENABLED, false)
+        && latencyMeter == null) {
+      startLatencyMeasurement();
+    }
     setSwappedFeeds(false /* isSwappedFeeds */);
   }
 
@@ -655,7 +884,71 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
       final AudioDevice device, final Set<AudioDevice> availableDevices) {
     Log.d(TAG, "onAudioManagerDevicesChanged: " + availableDevices + ", "
             + "selected: " + device);
-    // TODO(henrika): add callback handler.
+    if (audioRouteProfiles != null) {
+      audioRouteProfiles.onAudioDeviceChanged(device);
+    }
+    // After the route profile, so a known howl can raise the level the profile set.
+    if (fingerprintSession != null) {
+      fingerprintSession.onAudioDeviceChanged(device);
+    }
+    applyCouplingLevel();
+  }
+
+  // A trial of the AFC tuning sweep scores exactly the settings it was started with, so none of
+  // the features that change the tuning during a call may run in it.
+  private boolean isAfcTrial() {
+    return getIntent().getBooleanExtra(EXTRA_AFC_TRIAL, false);
+  }
+
+  @Nullable
+  private AudioRouteProfiles createAudioRouteProfiles() {
+    final Intent intent = getIntent();
+    if (!intent.getBooleanExtra(EXTRA_ROUTE_PROFILES_ENABLED, false) || isAfcTrial()) {
+      return null;
+    }
+    final AudioConfigStore store = AudioConfigStore.getDefault();
+    if (store == null) {
+      Log.e(TAG, "Audio route profiles need the audio config store");
+      return null;
+    }
+    final String json = intent.getStringExtra(EXTRA_ROUTE_PROFILES);
+    try {
+      return new AudioRouteProfiles(AudioRouteProfiles.parse(json != null ? json : "{}"), store);
+    } catch (JSONException e) {
+      Log.e(TAG, "Invalid audio route profiles: " + e.getMessage());
+      return null;
+    }
+  }
+
+  // Scores the captured audio for the AFC tuning sweep and hangs up after `runTimeMs`.
+  private void startAfcTrial(int runTimeMs) {
+    afcTrialScorer = new AfcTrialScorer(peerConnectionClient.getHowlDetector());
+    peerConnectionClient.getHowlDetector().addListener(afcTrialScorer);
+    peerConnectionClient.getCaptureTap().addConsumer("afc-trial", afcTrialScorer,
+        AFC_TRIAL_TAP_QUEUE_FRAMES, CaptureTapMultiplexer.OverrunPolicy.DROP_NEWEST,
+        Process.THREAD_PRIORITY_DEFAULT);
+    new Handler().postDelayed(() -> {
+      if (peerConnectionClient != null) {
+        Log.d(TAG, "AFC trial finished: " + afcTrialScorer.getScore());
+        disconnect();
+      }
+    }, runTimeMs);
+  }
+
+  // Times markers through the call on the capture tap until hangup.
+  private void startLatencyMeasurement() {
+    final PeerConnectionParameters parameters = peerConnectionParameters;
+    final String setup = String.format(Locale.US,
+        "loopback=%b opensles=%b builtin_aec_off=%b builtin_agc_off=%b builtin_ns_off=%b "
+            + "webrtc_agc_hpf_off=%b codec=%s bitrate=%d",
+        parameters.loopback, parameters.useOpenSLES, parameters.disableBuiltInAEC,
+        parameters.disableBuiltInAGC, parameters.disableBuiltInNS,
+        parameters.disableWebRtcAGCAndHPF, parameters.audioCodec, parameters.audioStartBitrate);
+    latencyMeter = new LatencyMeter(setup);
+    peerConnectionClient.getCaptureTap().addConsumer("latency", latencyMeter,
+        LATENCY_TAP_QUEUE_FRAMES, CaptureTapMultiplexer.OverrunPolicy.DROP_OLDEST,
+        Process.THREAD_PRIORITY_AUDIO);
+    logAndToast("Measuring audio latency: " + setup);
   }
 
   // Disconnect from remote resources, dispose of local resources, and exit.
@@ -674,6 +967,19 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
       videoFileRenderer.release();
       videoFileRenderer = null;
     }
+    if (latencyMeter != null) {
+      if (peerConnectionClient != null) {
+        peerConnectionClient.getCaptureTap().removeConsumer(latencyMeter);
+      }
+      logAndToast("Audio latency: " + latencyMeter.writeSummary());
+      latencyMeter = null;
+    }
+    if (getIntent().getBooleanExtra(EXTRA_SETUP_TRACE_ENABLED, false)) {
+      final File setupTrace = CallSetupTracer.export();
+      if (setupTrace != null) {
+        logAndToast("Call setup trace: " + setupTrace.getName());
+      }
+    }
     if (peerConnectionClient != null) {
       peerConnectionClient.close();
       peerConnectionClient = null;
@@ -682,7 +988,21 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
       audioManager.stop();
       audioManager = null;
     }
-    if (connected && !isError) {
+    audioRouteProfiles = null;
+    if (fingerprintSession != null) {
+      fingerprintSession.release();
+      fingerprintSession = null;
+    }
+    CouplingProbe.setListener(null);
+    couplingLevel = -1;
+    restoreAudioTuning();
+    if (afcTrialScorer != null && afcTrialScorer.getScore().isValid()) {
+      final AfcTrialScorer.TrialScore score = afcTrialScorer.getScore();
+      Intent result = new Intent();
+      result.putExtra(EXTRA_AFC_TRIAL_SCORE, score.score);
+      result.putExtra(EXTRA_AFC_TRIAL_SUMMARY, score.toString());
+      setResult(RESULT_OK, result);
+    } else if (connected && !isError) {
       setResult(RESULT_OK);
     } else {
       setResult(RESULT_CANCELED);
@@ -690,6 +1010,26 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
     finish();
   }
 
+  // Route profiles, fingerprints, the coupling probe, the adaptive howl level and the A/B
+  // experiment all change the tuning for this call only, on top of each other. Rather than each
+  // undoing its own changes, in an order that would decide the result, the tuning from before the
+  // call is restored here once, after all of them stopped. Only the changes the peer made stay, as
+  // if made on this device.
+  private void restoreAudioTuning() {
+    final AudioConfigStore store = AudioConfigStore.getDefault();
+    if (store == null || tuningBeforeCall == null) {
+      return;
+    }
+    final AudioConfigStore.Editor editor = store.edit().setTuning(tuningBeforeCall);
+    for (AudioConfigDelta delta : peerAfcConfigs) {
+      delta.applyTo(editor);
+    }
+    Log.i(TAG, "Audio tuning after the call: " + editor.apply());
+    store.flush();
+    tuningBeforeCall = null;
+    peerAfcConfigs.clear();
+  }
+
   private void disconnectWithErrorMessage(final String errorMessage) {
     if (commandLineRun || !activityRunning) {
       Log.e(TAG, "Critical error: " + errorMessage);
@@ -987,12 +1327,12 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
   public void onPeerConnectionClosed() {}
 
   @Override
-  public void onPeerConnectionStatsReady(final RTCStatsReport report) {
+  public void onPeerConnectionStatsReady(final AudioStatsEngine stats) {
     runOnUiThread(new Runnable() {
       @Override
       public void run() {
         if (!isError && connected) {
-          //hudFragment.updateEncoderStatistics(report);
+          hudFragment.updateAudioStatistics(stats);
         }
       }
     });
@@ -1094,7 +1434,9 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
              Log.d(TAG, "用户选择接听来电");
 
              // 创建DirectRTCClient并处理来电Offer
-             appRtcClient = new DirectRTCClient(this);
+             DirectRTCClient directRtcClient = new DirectRTCClient(this);
+             directRtcClient.setAfcConfigEvents(this);
+             appRtcClient = directRtcClient;
              Log.d(TAG, "#showIncomingCallDialog roomId: " + roomId + " client: " + appRtcClient);
              roomConnectionParameters = new RoomConnectionParameters(roomId, false);
 
@@ -0,0 +1,129 @@
+package org.appspot.apprtc;
+
+import android.os.Environment;
+import android.os.Process;
+import android.util.Log;
+import androidx.annotation.Nullable;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Records where the setup of a call spends its time, from the TCP connection to the first remote
+ * audio, and writes it as a Chrome trace (JSON trace event format) that chrome://tracing and
+ * ui.perfetto.dev open.
+ *
+ * <p>The steps of the setup start and end on different threads and in callbacks, so spans are
+ * async events identified by their name: {@link #begin} and {@link #end} with the same name form
+ * one span. Milestones are {@link #instant} events. Names must be string constants; recording then
+ * only writes into preallocated arrays. Events beyond {@link #CAPACITY} are counted and dropped.
+ *
+ * <p>The trace is process-wide, since the setup runs through the connection, the signaling and
+ * the peer connection client. {@link #start} begins the trace of a new call; all methods may be
+ * called from any thread.
+ */
+public class CallSetupTracer {
+  private static final String TAG = "CallSetupTracer";
+  public static final int CAPACITY = 256;
+  private static final char PHASE_BEGIN = 'b';
+  private static final char PHASE_END = 'e';
+  private static final char PHASE_INSTANT = 'i';
+
+  // Guarded by the class.
+  private static final String[] names = new String[CAPACITY];
+  private static final char[] phases = new char[CAPACITY];
+  private static final long[] timesNs = new long[CAPACITY];
+  private static final int[] threadIds = new int[CAPACITY];
+  private static int count;
+  private static int dropped;
+
+  private CallSetupTracer() {}
+
+  /** Discards the events so far and records `name` as the first event of a new trace. */
+  public static synchronized void start(String name) {
+    count = 0;
+    dropped = 0;
+    record(PHASE_INSTANT, name);
+  }
+
+  /** Starts the span `name`. */
+  public static void begin(String name) {
+    record(PHASE_BEGIN, name);
+  }
+
+  /** Ends the span `name`. */
+  public static void end(String name) {
+    record(PHASE_END, name);
+  }
+
+  /** Records the milestone `name`. */
+  public static void instant(String name) {
+    record(PHASE_INSTANT, name);
+  }
+
+  private static synchronized void record(char phase, String name) {
+    if (count == CAPACITY) {
+      dropped++;
+      return;
+    }
+    names[count] = name;
+    phases[count] = phase;
+    timesNs[count] = System.nanoTime();
+    threadIds[count] = Process.myTid();
+    count++;
+  }
+
+  /** Returns the trace as JSON, with times relative to its first event. */
+  public static synchronized String toJson() {
+    final StringBuilder json = new StringBuilder(count * 96 + 128);
+    final int pid = Process.myPid();
+    json.append("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+    json.append("{\"name\":\"process_name\",\"ph\":\"M\",\"pid\":").append(pid)
+        .append(",\"args\":{\"name\":\"call setup\"}}");
+    final long originNs = count > 0 ? timesNs[0] : 0;
+    for (int i = 0; i < count; i++) {
+      json.append(",{\"name\":\"").append(names[i]).append("\",\"cat\":\"setup\",\"ph\":\"")
+          .append(phases[i]).append("\",\"ts\":")
+          .append(String.format(Locale.US, "%.3f", (timesNs[i] - originNs) / 1000.0))
+          .append(",\"pid\":").append(pid).append(",\"tid\":").append(threadIds[i]);
+      if (phases[i] == PHASE_INSTANT) {
+        json.append(",\"s\":\"g\"");
+      } else {
+        json.append(",\"id\":\"").append(names[i]).append('"');
+      }
+      json.append('}');
+    }
+    json.append("],\"metadata\":{\"dropped_events\":").append(dropped).append("}}");
+    return json.toString();
+  }
+
+  /**
+   * Writes the trace to setup_trace_*.json in the external storage and returns the file, or null
+   * if there is nothing to write or writing failed.
+   */
+  @Nullable
+  public static File export() {
+    final String json;
+    synchronized (CallSetupTracer.class) {
+      if (count == 0) {
+        return null;
+      }
+      json = toJson();
+    }
+    final String timestamp = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date());
+    final File file =
+        new File(Environment.getExternalStorageDirectory(), "setup_trace_" + timestamp + ".json");
+    try (Writer writer = new FileWriter(file)) {
+      writer.write(json);
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to write " + file + ": " + e.getMessage());
+      return null;
+    }
+    Log.d(TAG, "Wrote the call setup trace to " + file);
+    return file;
+  }
+}
@@ -0,0 +1,358 @@
+package org.appspot.apprtc;
+
+import android.media.AudioFormat;
+import android.os.Process;
+import android.util.Log;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import org.webrtc.audio.JavaAudioDeviceModule;
+import org.webrtc.audio.JavaAudioDeviceModule.SamplesReadyCallback;
+
+/**
+ * Fans the single capture callback of the audio device module out to any number of consumers.
+ *
+ * <p>Every captured frame is wrapped once in a read-only {@link ShortBuffer} view which all
+ * consumers share; the samples are never copied. The audio device module hands over a new array
+ * for every buffer, so the view stays valid after the callback returns. Each consumer runs on its
+ * own thread, at its own priority, behind its own bounded queue with an {@link OverrunPolicy}, so
+ * a slow consumer only loses its own frames and can neither stall the audio thread nor delay the
+ * other consumers. Per-consumer queue and timing statistics are available through
+ * {@link #getStats}.
+ *
+ * <p>On the audio thread a frame costs a few small view objects, independent of the number of
+ * consumers, and one non-blocking enqueue per consumer. Consumers can be added and removed at any
+ * time.
+ */
+public class CaptureTapMultiplexer implements SamplesReadyCallback {
+  private static final String TAG = "CaptureTapMultiplexer";
+  private static final long IDLE_TIMEOUT_NS = 50_000_000L;
+  private static final long JOIN_TIMEOUT_MS = 2000;
+
+  /** One captured frame of interleaved 16-bit PCM. Immutable and shared by all consumers. */
+  public static final class CaptureFrame {
+    private final ShortBuffer samples;
+    private final int sampleRate;
+    private final int channelCount;
+    private final long captureTimeNs;
+    private final long sequenceNumber;
+
+    CaptureFrame(ShortBuffer samples, int sampleRate, int channelCount, long captureTimeNs,
+        long sequenceNumber) {
+      this.samples = samples;
+      this.sampleRate = sampleRate;
+      this.channelCount = channelCount;
+      this.captureTimeNs = captureTimeNs;
+      this.sequenceNumber = sequenceNumber;
+    }
+
+    /**
+     * Returns a new read-only view of the interleaved samples, positioned at the first sample.
+     * Views are cheap and independent of each other.
+     */
+    public ShortBuffer getSamples() {
+      return samples.duplicate();
+    }
+
+    /** Samples per channel. */
+    public int getFrameCount() {
+      return samples.remaining() / channelCount;
+    }
+
+    public int getSampleRate() {
+      return sampleRate;
+    }
+
+    public int getChannelCount() {
+      return channelCount;
+    }
+
+    /** {@link System#nanoTime} on the audio thread when the frame was delivered. */
+    public long getCaptureTimeNs() {
+      return captureTimeNs;
+    }
+
+    /** Counts all captured frames, so gaps show frames a consumer has lost. */
+    public long getSequenceNumber() {
+      return sequenceNumber;
+    }
+  }
+
+  /** Receives captured frames on its own thread. */
+  public interface FrameConsumer {
+    void onCaptureFrame(CaptureFrame frame);
+  }
+
+  /** What happens to a frame that arrives while a consumer's queue is full. */
+  public enum OverrunPolicy {
+    /** Older queued frames are discarded; suits consumers that want the latest audio. */
+    DROP_OLDEST,
+    /** The new frame is discarded; suits consumers that prefer few, long gaps. */
+    DROP_NEWEST
+  }
+
+  /** Statistics of one consumer. */
+  public static final class ConsumerStats {
+    public final String name;
+    public final long deliveredFrames;
+    public final long droppedFrames;
+    public final int maxQueueDepth;
+    public final float averageProcessingUs;
+    public final float maxProcessingUs;
+    // From capture to the start of processing.
+    public final float maxLatencyMs;
+
+    ConsumerStats(String name, long deliveredFrames, long droppedFrames, int maxQueueDepth,
+        float averageProcessingUs, float maxProcessingUs, float maxLatencyMs) {
+      this.name = name;
+      this.deliveredFrames = deliveredFrames;
+      this.droppedFrames = droppedFrames;
+      this.maxQueueDepth = maxQueueDepth;
+      this.averageProcessingUs = averageProcessingUs;
+      this.maxProcessingUs = maxProcessingUs;
+      this.maxLatencyMs = maxLatencyMs;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(Locale.US,
+          "%s: delivered %d, dropped %d, max queue %d, processing avg %.1f us max %.1f us, "
+              + "max latency %.1f ms",
+          name, deliveredFrames, droppedFrames, maxQueueDepth, averageProcessingUs,
+          maxProcessingUs, maxLatencyMs);
+    }
+  }
+
+  private final Object lock = new Object();
+  // Replaced as a whole under `lock`; the audio thread only reads it.
+  private volatile Tap[] taps = new Tap[0];
+  // Audio thread state.
+  private long sequenceNumber;
+
+  /**
+   * Registers `consumer` with a queue of `queueFrames` frames and starts its thread with
+   * `threadPriority`, an {@link Process} thread priority. A consumer can only be registered once.
+   */
+  public void addConsumer(String name, FrameConsumer consumer, int queueFrames,
+      OverrunPolicy policy, int threadPriority) {
+    synchronized (lock) {
+      for (Tap tap : taps) {
+        if (tap.consumer == consumer) {
+          throw new IllegalArgumentException("Consumer already registered: " + name);
+        }
+      }
+      final Tap tap = new Tap(name, consumer, queueFrames, policy, threadPriority);
+      final Tap[] updated = Arrays.copyOf(taps, taps.length + 1);
+      updated[taps.length] = tap;
+      taps = updated;
+      tap.start();
+    }
+    Log.d(TAG, "Added consumer " + name + ", queue " + queueFrames + " frames, " + policy
+            + ", priority " + threadPriority);
+  }
+
+  /**
+   * Unregisters `consumer` and waits for its thread to finish. Frames still queued for it are
+   * discarded. Returns false if it was not registered.
+   */
+  public boolean removeConsumer(FrameConsumer consumer) {
+    Tap removed = null;
+    synchronized (lock) {
+      final List<Tap> remaining = new ArrayList<>();
+      for (Tap tap : taps) {
+        if (tap.consumer == consumer) {
+          removed = tap;
+        } else {
+          remaining.add(tap);
+        }
+      }
+      if (removed == null) {
+        return false;
+      }
+      taps = remaining.toArray(new Tap[0]);
+    }
+    removed.stop();
+    Log.d(TAG, "Removed consumer " + removed.getStats());
+    return true;
+  }
+
+  /** Stops all consumer threads and logs their statistics. */
+  public void release() {
+    final Tap[] stopped;
+    synchronized (lock) {
+      stopped = taps;
+      taps = new Tap[0];
+    }
+    for (Tap tap : stopped) {
+      tap.stop();
+      Log.d(TAG, tap.getStats().toString());
+    }
+  }
+
+  /** Returns the statistics of all registered consumers. Safe to call from any thread. */
+  public List<ConsumerStats> getStats() {
+    final List<ConsumerStats> stats = new ArrayList<>();
+    for (Tap tap : taps) {
+      stats.add(tap.getStats());
+    }
+    return stats;
+  }
+
+  // Called on the WebRTC audio record thread; never blocks.
+  @Override
+  public void onWebRtcAudioRecordSamplesReady(JavaAudioDeviceModule.AudioSamples samples) {
+    if (samples.getAudioFormat() != AudioFormat.ENCODING_PCM_16BIT) {
+      return;
+    }
+    final long nowNs = System.nanoTime();
+    final Tap[] current = taps;
+    if (current.length == 0) {
+      sequenceNumber++;
+      return;
+    }
+    final ShortBuffer view = ByteBuffer.wrap(samples.getData())
+                                 .order(ByteOrder.LITTLE_ENDIAN)
+                                 .asShortBuffer()
+                                 .asReadOnlyBuffer();
+    final CaptureFrame frame = new CaptureFrame(
+        view, samples.getSampleRate(), samples.getChannelCount(), nowNs, sequenceNumber++);
+    for (Tap tap : current) {
+      tap.offer(frame);
+    }
+  }
+
+  /**
+   * Bounded single-producer/single-consumer queue of frame references plus the thread draining
+   * it. The consumer reads the oldest slot and then claims it by advancing `readIndex`. With
+   * DROP_OLDEST the producer drops the oldest frame by advancing `readIndex` itself; a consumer
+   * whose claim then fails reads the slot again, since the producer may have replaced the frame.
+   * Neither side ever waits for the other.
+   */
+  private static final class Tap {
+    private final String name;
+    private final FrameConsumer consumer;
+    private final OverrunPolicy policy;
+    private final int threadPriority;
+    private final CaptureFrame[] slots;
+    private final Thread thread;
+    private volatile boolean running;
+    // Frames ever enqueued and dequeued; a slot is published by the write to `writeIndex`.
+    private volatile long writeIndex;
+    private final AtomicLong readIndex = new AtomicLong();
+
+    // Producer statistics.
+    private volatile long rejectedFrames;
+    private volatile long overwrittenFrames;
+    private volatile int maxQueueDepth;
+    // Consumer statistics.
+    private volatile long deliveredFrames;
+    private volatile long processingTimeNs;
+    private volatile long maxProcessingTimeNs;
+    private volatile long maxLatencyNs;
+
+    Tap(String name, FrameConsumer consumer, int queueFrames, OverrunPolicy policy,
+        int threadPriority) {
+      if (queueFrames < 2) {
+        throw new IllegalArgumentException("Queue must hold at least two frames: " + queueFrames);
+      }
+      this.name = name;
+      this.consumer = consumer;
+      this.policy = policy;
+      this.threadPriority = threadPriority;
+      slots = new CaptureFrame[queueFrames];
+      thread = new Thread(this::run, "CaptureTap-" + name);
+    }
+
+    void start() {
+      running = true;
+      thread.start();
+    }
+
+    void stop() {
+      running = false;
+      LockSupport.unpark(thread);
+      try {
+        thread.join(JOIN_TIMEOUT_MS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      if (thread.isAlive()) {
+        Log.w(TAG, "Consumer " + name + " did not stop in time");
+      }
+    }
+
+    // Producer.
+    void offer(CaptureFrame frame) {
+      final long write = writeIndex;
+      final long read = readIndex.get();
+      if (write - read >= slots.length) {
+        if (policy == OverrunPolicy.DROP_NEWEST) {
+          rejectedFrames++;
+          return;
+        }
+        // Fails only if the consumer has just claimed the oldest frame, which frees its slot too.
+        if (readIndex.compareAndSet(read, read + 1)) {
+          overwrittenFrames++;
+        }
+      }
+      slots[(int) (write % slots.length)] = frame;
+      writeIndex = write + 1;
+      final int depth = (int) Math.min(write + 1 - readIndex.get(), slots.length);
+      if (depth > maxQueueDepth) {
+        maxQueueDepth = depth;
+      }
+      LockSupport.unpark(thread);
+    }
+
+    // Consumer thread.
+    private void run() {
+      Process.setThreadPriority(threadPriority);
+      while (running) {
+        final long read = readIndex.get();
+        if (writeIndex == read) {
+          LockSupport.parkNanos(IDLE_TIMEOUT_NS);
+          continue;
+        }
+        final CaptureFrame frame = slots[(int) (read % slots.length)];
+        // Fails if the producer dropped the frame meanwhile; `frame` may then be a newer one.
+        if (readIndex.compareAndSet(read, read + 1)) {
+          deliver(frame);
+        }
+      }
+    }
+
+    private void deliver(CaptureFrame frame) {
+      final long startNs = System.nanoTime();
+      final long latencyNs = startNs - frame.getCaptureTimeNs();
+      if (latencyNs > maxLatencyNs) {
+        maxLatencyNs = latencyNs;
+      }
+      try {
+        consumer.onCaptureFrame(frame);
+      } catch (RuntimeException e) {
+        // Keep the other frames flowing; a consumer bug must not end the tap.
+        Log.e(TAG, "Consumer " + name + " failed", e);
+      }
+      final long elapsedNs = System.nanoTime() - startNs;
+      processingTimeNs += elapsedNs;
+      if (elapsedNs > maxProcessingTimeNs) {
+        maxProcessingTimeNs = elapsedNs;
+      }
+      deliveredFrames++;
+    }
+
+    ConsumerStats getStats() {
+      final long delivered = deliveredFrames;
+      return new ConsumerStats(name, delivered, rejectedFrames + overwrittenFrames,
+          maxQueueDepth, delivered == 0 ? 0 : processingTimeNs / 1000f / delivered,
+          maxProcessingTimeNs / 1000f, maxLatencyNs / (float) TimeUnit.MILLISECONDS.toNanos(1));
+    }
+  }
+}
@@ -0,0 +1,398 @@
+package org.appspot.apprtc;
+
+import android.os.Environment;
+import android.util.Log;
+import androidx.annotation.Nullable;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ShortBuffer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import org.appspot.apprtc.CaptureTapMultiplexer.CaptureFrame;
+import org.appspot.apprtc.CaptureTapMultiplexer.FrameConsumer;
+import org.appspot.apprtc.util.AudioConfigDelta;
+import org.appspot.apprtc.util.AudioConfigStore;
+import org.appspot.apprtc.util.AudioTuningConfig;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.webrtc.RTCStats;
+import org.webrtc.RTCStatsReport;
+
+/**
+ * Compares two or more audio tuning configurations ("arms") within one call, so that network and
+ * room conditions are the same for all of them.
+ *
+ * <p>The call is split into windows of equal length. Every window runs one arm, an
+ * {@link AudioConfigDelta} on top of the current configuration: the settings of the previous arm
+ * that nothing else changed meanwhile are undone, so changes by the peer or by route profiles stay
+ * in place. Restoring the configuration from before the call is up to the owner of the call. The
+ * arms take turns in forward and reverse order (A B B A ...), so slow drifts in the conditions
+ * hit all arms alike. The first {@link #SETTLE_MS} of every window are not measured, the native
+ * audio processing needs that time to pick up the new configuration. Each window yields one value
+ * per {@link #METRICS} entry, from the capture tap and the howl detector as well as from the
+ * inbound audio stats. At the end the windows of each arm give a mean and a 95% confidence
+ * interval per metric.
+ *
+ * <p>Frames arrive on the capture tap thread, howl events on the spectrum tap thread and stats
+ * on the stats thread; all methods may be called from any thread.
+ */
+public class ConfigExperiment implements FrameConsumer, HowlDetector.Listener {
+  private static final String TAG = "ConfigExperiment";
+  public static final long SETTLE_MS = 2000;
+  /** Names of the measured values of every window, in the order of the summary. */
+  public static final String[] METRICS = {"capture_level_dbfs", "howl_time_pct",
+      "howl_onsets_per_min", "papr_margin_db", "far_end_level_dbfs", "jitter_ms",
+      "packet_loss_pct", "concealed_pct"};
+  private static final double FULL_SCALE_POWER = 32768.0 * 32768.0;
+  private static final double MIN_POWER = 1e-10;
+  // Two-sided 95% quantiles of Student's t distribution for 1 to 30 degrees of freedom.
+  private static final double[] T_95 = {12.706, 4.303, 3.182, 2.776, 2.571, 2.447, 2.365, 2.306,
+      2.262, 2.228, 2.201, 2.179, 2.160, 2.145, 2.131, 2.120, 2.110, 2.101, 2.093, 2.086, 2.080,
+      2.074, 2.069, 2.064, 2.060, 2.056, 2.052, 2.048, 2.045, 2.042};
+  private static final double Z_95 = 1.960;
+
+  /** Mean and confidence interval of one metric of one arm. */
+  public static final class MetricSummary {
+    public final String metric;
+    // Windows with a value for the metric.
+    public final int windows;
+    public final double mean;
+    // Half width of the 95% confidence interval; NaN with less than two windows.
+    public final double ci95;
+
+    MetricSummary(String metric, int windows, double mean, double ci95) {
+      this.metric = metric;
+      this.windows = windows;
+      this.mean = mean;
+      this.ci95 = ci95;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(Locale.US, "%s %.2f +- %.2f (n=%d)", metric, mean, ci95, windows);
+    }
+  }
+
+  // Measurements of the current window. A NaN metric had no data.
+  private static final class Window {
+    final int arm;
+    final long startNs;
+    long measuredNs;
+    double powerSum;
+    long frames;
+    long howlingNs;
+    int howlOnsets;
+    double marginSumDb;
+    long marginFrames;
+    double remoteLevelSum;
+    int remoteLevelCount;
+    double jitterSumS;
+    int jitterCount;
+    long packetsReceived;
+    long packetsLost;
+    double concealedSamples;
+    double receivedSamples;
+
+    Window(int arm, long startNs) {
+      this.arm = arm;
+      this.startNs = startNs;
+    }
+
+    double[] toMetrics() {
+      final double minutes = measuredNs / 60e9;
+      final long packets = packetsReceived + packetsLost;
+      return new double[] {
+          frames == 0 ? Double.NaN : 10 * Math.log10(powerSum / frames + MIN_POWER),
+          measuredNs == 0 ? Double.NaN : 100.0 * howlingNs / measuredNs,
+          minutes == 0 ? Double.NaN : howlOnsets / minutes,
+          marginFrames == 0 ? Double.NaN : marginSumDb / marginFrames,
+          remoteLevelCount == 0
+              ? Double.NaN
+              : 20 * Math.log10(Math.max(remoteLevelSum / remoteLevelCount, 1e-5)),
+          jitterCount == 0 ? Double.NaN : 1000 * jitterSumS / jitterCount,
+          packets <= 0 ? Double.NaN : 100.0 * packetsLost / packets,
+          receivedSamples <= 0 ? Double.NaN : 100 * concealedSamples / receivedSamples};
+    }
+  }
+
+  private final List<AudioConfigDelta> arms;
+  private final long windowNs;
+  private final HowlDetector howlDetector;
+  private final AudioConfigStore store;
+  // Guarded by `this`.
+  private final List<List<double[]>> results = new ArrayList<>();
+  // Starts with the first captured frame.
+  @Nullable private Window window;
+  private int windowIndex;
+  private boolean finished;
+  // Arm in effect and the values its settings had before, which the next window restores.
+  @Nullable private AudioConfigDelta activeArm;
+  @Nullable private AudioConfigDelta replacedValues;
+  // Cumulative counters of the previous stats report, negative before the first.
+  private long lastPacketsReceived = -1;
+  private long lastPacketsLost = -1;
+  private double lastConcealedSamples = -1;
+  private double lastReceivedSamples = -1;
+
+  /**
+   * Prepares the experiment; the first window starts with the first captured frame.
+   *
+   * @param arms Changes of every arm; an empty change runs the configuration as it is.
+   * @param windowMs Length of one window, including {@link #SETTLE_MS}.
+   */
+  public ConfigExperiment(List<AudioConfigDelta> arms, long windowMs, HowlDetector howlDetector,
+      AudioConfigStore store) {
+    if (arms.size() < 2) {
+      throw new IllegalArgumentException("An experiment needs at least two arms");
+    }
+    if (windowMs <= SETTLE_MS) {
+      throw new IllegalArgumentException("Window of " + windowMs + " ms is too short");
+    }
+    this.arms = new ArrayList<>(arms);
+    this.windowNs = windowMs * 1_000_000L;
+    this.howlDetector = howlDetector;
+    this.store = store;
+    for (int i = 0; i < arms.size(); i++) {
+      results.add(new ArrayList<>());
+    }
+  }
+
+  /** Parses arms given as a JSON array of {@link AudioConfigDelta} objects, e.g. [{"sl":2},{}]. */
+  public static List<AudioConfigDelta> parseArms(String json) throws JSONException {
+    final JSONArray array = new JSONArray(json);
+    final List<AudioConfigDelta> arms = new ArrayList<>();
+    for (int i = 0; i < array.length(); i++) {
+      arms.add(AudioConfigDelta.fromJson(array.getJSONObject(i)));
+    }
+    return arms;
+  }
+
+  @Override
+  public synchronized void onCaptureFrame(CaptureFrame frame) {
+    if (finished) {
+      return;
+    }
+    final long nowNs = frame.getCaptureTimeNs();
+    if (window == null) {
+      startWindow(nowNs);
+    } else if (nowNs - window.startNs >= windowNs) {
+      endWindow();
+      startWindow(nowNs);
+    }
+    if (!isMeasuring(nowNs)) {
+      return;
+    }
+    final ShortBuffer samples = frame.getSamples();
+    final int count = samples.remaining();
+    if (count == 0) {
+      return;
+    }
+    double energy = 0;
+    while (samples.hasRemaining()) {
+      final int sample = samples.get();
+      energy += (double) sample * sample;
+    }
+    final long durationNs = frame.getFrameCount() * 1_000_000_000L / frame.getSampleRate();
+    window.measuredNs += durationNs;
+    window.powerSum += energy / count / FULL_SCALE_POWER;
+    window.frames++;
+    // The detector runs on the spectrum tap; its state is at most a few frames behind.
+    if (howlDetector.isHowling()) {
+      window.howlingNs += durationNs;
+    }
+    window.marginSumDb += HowlDetector.PAPR_THRESHOLD_DB - howlDetector.getLastPaprDb();
+    window.marginFrames++;
+  }
+
+  @Override
+  public synchronized void onHowlEvent(HowlDetector.HowlEvent event) {
+    if (!finished && event.type == HowlDetector.HowlEvent.Type.ONSET
+        && isMeasuring(System.nanoTime())) {
+      window.howlOnsets++;
+    }
+  }
+
+  /** Adds the inbound audio stats of `report` to the current window. */
+  public synchronized void onStatsReport(RTCStatsReport report) {
+    if (finished) {
+      return;
+    }
+    for (RTCStats stats : report.getStatsMap().values()) {
+      final Map<String, Object> members = stats.getMembers();
+      if ("inbound-rtp".equals(stats.getType()) && "audio".equals(members.get("kind"))) {
+        addInboundAudioStats(members, isMeasuring(System.nanoTime()));
+        return;
+      }
+    }
+  }
+
+  // Called with `this` held. Counters are cumulative, so they are tracked even while not
+  // measuring and only their increase during a measured interval counts.
+  private void addInboundAudioStats(Map<String, Object> members, boolean measuring) {
+    final Object audioLevel = members.get("audioLevel");
+    final Object jitter = members.get("jitter");
+    if (measuring && audioLevel instanceof Number) {
+      window.remoteLevelSum += ((Number) audioLevel).doubleValue();
+      window.remoteLevelCount++;
+    }
+    if (measuring && jitter instanceof Number) {
+      window.jitterSumS += ((Number) jitter).doubleValue();
+      window.jitterCount++;
+    }
+    final Object packetsReceived = members.get("packetsReceived");
+    final Object packetsLost = members.get("packetsLost");
+    if (packetsReceived instanceof Number && packetsLost instanceof Number) {
+      final long received = ((Number) packetsReceived).longValue();
+      final long lost = ((Number) packetsLost).longValue();
+      // A counter going back means a new stream; its first report is the new baseline.
+      if (measuring && lastPacketsReceived >= 0 && received >= lastPacketsReceived
+          && lost >= lastPacketsLost) {
+        window.packetsReceived += received - lastPacketsReceived;
+        window.packetsLost += lost - lastPacketsLost;
+      }
+      lastPacketsReceived = received;
+      lastPacketsLost = lost;
+    }
+    final Object concealedSamples = members.get("concealedSamples");
+    final Object receivedSamples = members.get("totalSamplesReceived");
+    if (concealedSamples instanceof Number && receivedSamples instanceof Number) {
+      final double concealed = ((Number) concealedSamples).doubleValue();
+      final double total = ((Number) receivedSamples).doubleValue();
+      if (measuring && lastReceivedSamples >= 0 && total >= lastReceivedSamples
+          && concealed >= lastConcealedSamples) {
+        window.concealedSamples += concealed - lastConcealedSamples;
+        window.receivedSamples += total - lastReceivedSamples;
+      }
+      lastConcealedSamples = concealed;
+      lastReceivedSamples = total;
+    }
+  }
+
+  /**
+   * Ends the experiment: keeps the current window if it was measured at all and returns the
+   * summary, one list of {@link #METRICS} per arm. The last arm stays in effect.
+   */
+  public synchronized List<List<MetricSummary>> finish() {
+    if (!finished) {
+      finished = true;
+      if (window != null) {
+        endWindow();
+      }
+    }
+    final List<List<MetricSummary>> summary = new ArrayList<>();
+    for (int arm = 0; arm < arms.size(); arm++) {
+      summary.add(summarize(results.get(arm)));
+      Log.i(TAG, "Arm " + arm + " (" + arms.get(arm) + "): " + summary.get(arm));
+    }
+    return summary;
+  }
+
+  /**
+   * Finishes the experiment if needed and writes the summary as `ab_experiment_<timestamp>.csv`
+   * to external storage.
+   */
+  public void writeSummary() {
+    final List<List<MetricSummary>> summary = finish();
+    final String timestamp = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date());
+    final File file =
+        new File(Environment.getExternalStorageDirectory(), "ab_experiment_" + timestamp + ".csv");
+    try (Writer writer = new FileWriter(file)) {
+      writer.write("arm,config,metric,windows,mean,ci95_low,ci95_high\n");
+      for (int arm = 0; arm < summary.size(); arm++) {
+        final String config = arms.get(arm).toString().replace(',', ';');
+        for (MetricSummary metric : summary.get(arm)) {
+          writer.write(String.format(Locale.US, "%d,%s,%s,%d,%.3f,%.3f,%.3f\n", arm, config,
+              metric.metric, metric.windows, metric.mean, metric.mean - metric.ci95,
+              metric.mean + metric.ci95));
+        }
+      }
+      Log.d(TAG, "Wrote experiment summary to " + file);
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to write " + file + ": " + e.getMessage());
+    }
+  }
+
+  // Called with `this` held.
+  private boolean isMeasuring(long nowNs) {
+    return window != null && nowNs - window.startNs >= SETTLE_MS * 1_000_000L;
+  }
+
+  // Called with `this` held.
+  private void startWindow(long nowNs) {
+    // Forward order in even rounds, reverse order in odd ones.
+    final int round = windowIndex / arms.size();
+    final int position = windowIndex % arms.size();
+    final int arm = round % 2 == 0 ? position : arms.size() - 1 - position;
+    windowIndex++;
+    window = new Window(arm, nowNs);
+    applyArm(arms.get(arm));
+    Log.d(TAG, "Window " + windowIndex + ": arm " + arm + " (" + arms.get(arm) + ")");
+  }
+
+  // Called with `this` held.
+  private void endWindow() {
+    if (window.measuredNs > 0) {
+      results.get(window.arm).add(window.toMetrics());
+    }
+  }
+
+  // Called with `this` held. Undoes the previous arm and applies `arm` as one snapshot.
+  private void applyArm(AudioConfigDelta arm) {
+    final AudioTuningConfig current = store.getConfig();
+    final AudioConfigStore.Editor editor = store.edit();
+    AudioConfigDelta undo = null;
+    if (activeArm != null) {
+      undo = activeArm.undoIn(current, replacedValues);
+      undo.applyTo(editor);
+    }
+    replacedValues = arm.valuesIn(current, undo);
+    arm.applyTo(editor);
+    activeArm = arm;
+    editor.apply();
+    // The native side picks the configuration up from the file; skip the debounce.
+    store.flush();
+  }
+
+  private static List<MetricSummary> summarize(List<double[]> windows) {
+    final List<MetricSummary> summary = new ArrayList<>();
+    for (int metric = 0; metric < METRICS.length; metric++) {
+      final List<Double> values = new ArrayList<>();
+      for (double[] window : windows) {
+        if (!Double.isNaN(window[metric])) {
+          values.add(window[metric]);
+        }
+      }
+      summary.add(summarize(METRICS[metric], values));
+    }
+    return Collections.unmodifiableList(summary);
+  }
+
+  private static MetricSummary summarize(String metric, List<Double> values) {
+    final int n = values.size();
+    if (n == 0) {
+      return new MetricSummary(metric, 0, Double.NaN, Double.NaN);
+    }
+    double sum = 0;
+    for (double value : values) {
+      sum += value;
+    }
+    final double mean = sum / n;
+    if (n < 2) {
+      return new MetricSummary(metric, n, mean, Double.NaN);
+    }
+    double squares = 0;
+    for (double value : values) {
+      squares += (value - mean) * (value - mean);
+    }
+    final double standardError = Math.sqrt(squares / (n - 1) / n);
+    final double t = n - 1 <= T_95.length ? T_95[n - 2] : Z_95;
+    return new MetricSummary(metric, n, mean, t * standardError);
+  }
+}
@@ -23,6 +23,9 @@ import android.graphics.Color;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.util.Log;
 import android.view.ContextMenu;
@@ -46,7 +49,7 @@ import android.widget.Toast;
 import androidx.annotation.Nullable;
 
 import java.io.DataInputStream;
-import java.io.IOException;
+import java.io.File;
 import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
@@ -60,7 +63,9 @@ import java.util.Random;
 import android.text.TextWatcher;
 import android.text.Editable;
 
-import org.appspot.apprtc.util.IniFileHandler;
+import org.appspot.apprtc.util.AcousticFingerprintCache;
+import org.appspot.apprtc.util.AudioConfigStore;
+import org.appspot.apprtc.util.AudioTuningConfig;
 import org.appspot.apprtc.util.SocketManager;
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -75,6 +80,12 @@ public class ConnectActivity extends Activity {
   private static final int CONNECTION_REQUEST = 1;
   private static final int PERMISSION_REQUEST = 2;
   private static final int REMOVE_FAVORITE_INDEX = 0;
+  // Loopback AFC tuning sweep: length of one trial call, of the whole sweep and of the pause
+  // between calls, and the number of failed calls in a row that ends the sweep.
+  private static final int AFC_TRIAL_MS = 8000;
+  private static final long AFC_SWEEP_BUDGET_MS = 4 * 60 * 1000;
+  private static final long AFC_TRIAL_GAP_MS = 1000;
+  private static final int AFC_MAX_FAILED_TRIALS = 2;
   private static boolean commandLineRun;
   private Toast logToast;
   private Button callerButton;
@@ -105,6 +116,7 @@ public class ConnectActivity extends Activity {
   private String keyprefRoomServerUrl;
   private String keyprefRoom;
   private String keyprefRoomList;
+  private String keyprefAfcProfile;
   private ArrayList<String> roomList;
   private ArrayAdapter<String> adapter;
   private static Socket incomingSocket;
@@ -124,7 +136,13 @@ public class ConnectActivity extends Activity {
 
   private Thread restartThread;
 
-  private IniFileHandler IniHandler=null;
+  // Writes the native tuning ini file off the main thread.
+  @Nullable private AudioConfigStore audioConfigStore;
+  // Loopback AFC tuning sweep in progress and the configuration of its current trial.
+  @Nullable private AfcSweepTuner afcSweepTuner;
+  @Nullable private AfcSweepTuner.Candidate afcTrialCandidate;
+  private int afcFailedTrials;
+  private final Handler afcHandler = new Handler(Looper.getMainLooper());
 
   @Override
   public void onCreate(Bundle savedInstanceState) {
@@ -133,6 +151,8 @@ public class ConnectActivity extends Activity {
     // Get setting keys.
     PreferenceManager.setDefaultValues(this, R.xml.preferences, false);
     sharedPref = PreferenceManager.getDefaultSharedPreferences(this);
+    // Loads WebRTC and builds the factory for the next call while the user is still here.
+    PeerConnectionClient.prewarmFactory(getApplicationContext());
     keyprefResolution = getString(R.string.pref_resolution_key);
     keyprefFps = getString(R.string.pref_fps_key);
     keyprefVideoBitrateType = getString(R.string.pref_maxvideobitrate_key);
@@ -142,6 +162,17 @@ public class ConnectActivity extends Activity {
     keyprefRoomServerUrl = getString(R.string.pref_room_server_url_key);
     keyprefRoom = getString(R.string.pref_room_key);
     keyprefRoomList = getString(R.string.pref_room_list_key);
+    keyprefAfcProfile = getString(R.string.pref_afc_profile_key);
+    final AfcSweepTuner.Candidate afcProfile = loadAfcProfile();
+    if (afcProfile != null) {
+      target_level_dbfs = afcProfile.targetLevelDbfs;
+      compression_gain_db = afcProfile.compressionGainDb;
+    }
+    if (sharedPref.getBoolean(getString(R.string.pref_howl_fingerprints_key),
+            Boolean.parseBoolean(getString(R.string.pref_howl_fingerprints_default)))) {
+      // Reads the index in the background, so it is ready before a call starts.
+      AcousticFingerprintCache.getInstance(getApplicationContext());
+    }
 
     setContentView(R.layout.activity_connect);
 
@@ -161,6 +192,9 @@ public class ConnectActivity extends Activity {
     //roomEditText.requestFocus();
 
     howlTargeEditText = findViewById(R.id.agc_target_edittext);
+    if (afcProfile != null) {
+      howlTargeEditText.setText(Integer.toString((int) target_level_dbfs));
+    }
     howlTargeEditText.addTextChangedListener(new TextWatcher() {
       @Override
       public void beforeTextChanged(CharSequence s, int start, int count, int after) {
@@ -180,6 +214,9 @@ public class ConnectActivity extends Activity {
     });
 
     howlGainEditText = findViewById(R.id.agc_gain_edittext);
+    if (afcProfile != null) {
+      howlGainEditText.setText(Integer.toString((int) compression_gain_db));
+    }
     howlGainEditText.addTextChangedListener(new TextWatcher() {
       @Override
       public void beforeTextChanged(CharSequence s, int start, int count, int after) {
@@ -261,7 +298,7 @@ public class ConnectActivity extends Activity {
     });
 
     howlSpinner.setEnabled(false);
-    howlSpinner.setSelection(2);
+    howlSpinner.setSelection(afcProfile != null ? afcProfile.suppressLevel : 2);
     IsHowlOpened=false;
     howlSpinner.setEnabled(false);
     howlButton.setText("开启啸叫抑制");
@@ -292,23 +329,163 @@ public class ConnectActivity extends Activity {
 
   private void saveConfig()
   {
-      if(IniHandler==null)
-        IniHandler = new IniFileHandler(log_folder_path+"iniconfig.ini");
+    if (audioConfigStore == null) {
+      audioConfigStore = new AudioConfigStore(new File(log_folder_path + "iniconfig.ini"));
+      audioConfigStore.addListener(config -> runOnUiThread(() -> showAudioConfig(config)));
+      // Lets the peer change the settings during a call, see DirectRTCClient.
+      AudioConfigStore.setDefault(audioConfigStore);
+    }
+    // Cheap; the file is written in the background once the changes settle.
+    audioConfigStore.edit()
+        .setLogFolderPath(log_folder_path)
+        .setSuppressLevel(suppress_level)
+        .setTargetLevelDbfs(target_level_dbfs)
+        .setCompressionGainDb(compression_gain_db)
+        .setLimiterEnabled(enable_limiter != 0)
+        .setAgcEnabled(enable_agc != 0)
+        .apply();
+  }
+  // Starts a sweep of loopback calls that measures the howl suppression level, AGC target and
+  // AGC gain, see AfcSweepTuner. The best configuration is applied and saved at the end.
+  private void startAfcTuning() {
+    if (afcSweepTuner != null) {
+      logAndToast(getString(R.string.afc_tuning_running));
+      return;
+    }
+    final AfcSweepTuner.Candidate start = new AfcSweepTuner.Candidate(
+        IsHowlOpened ? (int) suppress_level : 0, target_level_dbfs, compression_gain_db);
+    afcSweepTuner = new AfcSweepTuner(
+        start, howlSpinner.getCount() - 1, AFC_TRIAL_MS, AFC_SWEEP_BUDGET_MS);
+    afcFailedTrials = 0;
+    logAndToast(getString(R.string.afc_tuning_started));
+    runNextAfcTrial();
+  }
+
+  private void runNextAfcTrial() {
+    afcTrialCandidate = afcSweepTuner.nextTrial(SystemClock.elapsedRealtime());
+    if (afcTrialCandidate == null) {
+      finishAfcTuning();
+      return;
+    }
+    Log.d(TAG, "AFC trial " + (afcSweepTuner.getTrialCount() + 1) + ": " + afcTrialCandidate);
+    audioConfigStore.edit()
+        .setSuppressLevel(afcTrialCandidate.suppressLevel)
+        .setTargetLevelDbfs(afcTrialCandidate.targetLevelDbfs)
+        .setCompressionGainDb(afcTrialCandidate.compressionGainDb)
+        .setAgcEnabled(true)
+        .apply();
+    // The call must only start once the native side can read the trial configuration; the pause
+    // also lets the previous call release the audio device.
+    audioConfigStore.flush(() -> afcHandler.postDelayed(() -> {
+      if (afcTrialCandidate != null && !isFinishing()) {
+        connectToRoom(null, false, true, false, AFC_TRIAL_MS);
+      }
+    }, AFC_TRIAL_GAP_MS));
+  }
+
+  private void onAfcTrialFinished(@Nullable Intent data) {
+    final AfcSweepTuner.Candidate candidate = afcTrialCandidate;
+    if (data != null && data.hasExtra(CallActivity.EXTRA_AFC_TRIAL_SCORE)) {
+      Log.i(TAG, "AFC trial " + candidate + ": "
+              + data.getStringExtra(CallActivity.EXTRA_AFC_TRIAL_SUMMARY));
+      afcSweepTuner.onTrialResult(
+          candidate, data.getFloatExtra(CallActivity.EXTRA_AFC_TRIAL_SCORE, 0f));
+      afcFailedTrials = 0;
+    } else {
+      Log.w(TAG, "AFC trial " + candidate + " failed");
+      afcSweepTuner.onTrialFailed(candidate);
+      if (++afcFailedTrials >= AFC_MAX_FAILED_TRIALS) {
+        afcSweepTuner = null;
+        afcTrialCandidate = null;
+        logAndToast(getString(R.string.afc_tuning_failed));
+        // Back to the settings shown on screen.
+        saveConfig();
+        return;
+      }
+    }
+    runNextAfcTrial();
+  }
+
+  private void finishAfcTuning() {
+    final AfcSweepTuner.Candidate best = afcSweepTuner.getBest();
+    Log.i(TAG, "AFC tuning finished after " + afcSweepTuner.getTrialCount() + " trials, best: "
+            + best + ", score " + afcSweepTuner.getBestScore());
+    afcSweepTuner = null;
+    if (best == null) {
+      logAndToast(getString(R.string.afc_tuning_failed));
+      saveConfig();
+      return;
+    }
+    saveAfcProfile(best);
+    applyAudioSettingsToControls(
+        best.suppressLevel, best.targetLevelDbfs, best.compressionGainDb, true);
+    logAndToast(getString(R.string.afc_tuning_finished, best.toString()));
+  }
 
-    IniHandler.setValue("log_folder_path",log_folder_path);
-    IniHandler.setValue("suppress_level",String.valueOf(suppress_level));
-    IniHandler.setValue("target_level_dbfs",String.valueOf(target_level_dbfs));
-    IniHandler.setValue("compression_gain_db",String.valueOf(compression_gain_db));
-    IniHandler.setValue("enable_limiter",String.valueOf(enable_limiter));
-    IniHandler.setValue("enable_agc",String.valueOf(enable_agc));
+  // Follows changes of the native settings made elsewhere, e.g. by the peer during a call.
+  private void showAudioConfig(AudioTuningConfig config) {
+    // Tuning trials change the settings on purpose, and a commit older than the latest snapshot
+    // would undo local edits still being written.
+    if (afcSweepTuner != null || audioConfigStore == null
+        || config.version != audioConfigStore.getConfig().version) {
+      return;
+    }
+    if (config.suppressLevel == suppress_level && config.targetLevelDbfs == target_level_dbfs
+        && config.compressionGainDb == compression_gain_db
+        && config.agcEnabled == (enable_agc != 0)) {
+      return;
+    }
+    Log.d(TAG, "Audio config changed elsewhere: " + config);
+    applyAudioSettingsToControls((int) config.suppressLevel, config.targetLevelDbfs,
+        config.compressionGainDb, config.agcEnabled);
+  }
+
+  // Goes through the regular controls so that they show the new settings.
+  private void applyAudioSettingsToControls(
+      int suppressLevel, float targetLevelDbfs, float compressionGainDb, boolean agcEnabled) {
+    suppressLevel = Math.max(0, Math.min(suppressLevel, howlSpinner.getCount() - 1));
+    howlSpinner.setSelection(suppressLevel);
+    if ((suppressLevel > 0) != IsHowlOpened) {
+      howlButton.performClick();
+    }
+    if (agcEnabled != IsAgcOpened) {
+      agcButton.performClick();
+    }
+    howlTargeEditText.setText(Integer.toString((int) targetLevelDbfs));
+    howlGainEditText.setText(Integer.toString((int) compressionGainDb));
+    suppress_level = suppressLevel;
+    saveConfig();
+  }
 
+  private void saveAfcProfile(AfcSweepTuner.Candidate profile) {
     try {
-      IniHandler.save();
-    } catch (IOException e) {
-        throw new RuntimeException(e);
+      JSONObject json = new JSONObject();
+      json.put("suppress_level", profile.suppressLevel);
+      json.put("target_level_dbfs", (double) profile.targetLevelDbfs);
+      json.put("compression_gain_db", (double) profile.compressionGainDb);
+      sharedPref.edit().putString(keyprefAfcProfile, json.toString()).apply();
+    } catch (JSONException e) {
+      Log.e(TAG, "Failed to save AFC profile: " + e.toString());
     }
+  }
 
+  @Nullable
+  private AfcSweepTuner.Candidate loadAfcProfile() {
+    String profileJson = sharedPref.getString(keyprefAfcProfile, null);
+    if (profileJson == null) {
+      return null;
+    }
+    try {
+      JSONObject json = new JSONObject(profileJson);
+      return new AfcSweepTuner.Candidate(json.getInt("suppress_level"),
+          (float) json.getDouble("target_level_dbfs"),
+          (float) json.getDouble("compression_gain_db"));
+    } catch (JSONException e) {
+      Log.e(TAG, "Failed to load AFC profile: " + e.toString());
+      return null;
+    }
   }
+
   private void logAndToast(String msg) {
     if (logToast != null) {
       logToast.cancel();
@@ -384,6 +561,9 @@ public class ConnectActivity extends Activity {
     } else if (item.getItemId() == R.id.action_loopback) {
       connectToRoom(null, false, true, false, 0);
       return true;
+    } else if (item.getItemId() == R.id.action_afc_tuning) {
+      startAfcTuning();
+      return true;
     } else {
       return super.onOptionsItemSelected(item);
     }
@@ -427,6 +607,10 @@ public class ConnectActivity extends Activity {
 
   @Override
   protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+    if (requestCode == CONNECTION_REQUEST && afcSweepTuner != null) {
+      onAfcTrialFinished(data);
+      return;
+    }
     if (requestCode == CONNECTION_REQUEST && commandLineRun) {
       Log.d(TAG, "Return: " + resultCode);
       setResult(resultCode);
@@ -642,6 +826,78 @@ public class ConnectActivity extends Activity {
             CallActivity.EXTRA_SAVE_INPUT_AUDIO_TO_FILE_ENABLED,
             R.string.pref_enable_save_input_audio_to_file_default, useValuesFromIntent);
 
+    String saveInputAudioFormat = sharedPrefGetString(R.string.pref_save_input_audio_format_key,
+        CallActivity.EXTRA_SAVE_INPUT_AUDIO_FORMAT, R.string.pref_save_input_audio_format_default,
+        useValuesFromIntent);
+
+    boolean saveInputAudioVad = sharedPrefGetBoolean(R.string.pref_save_input_audio_vad_key,
+        CallActivity.EXTRA_SAVE_INPUT_AUDIO_VAD_ENABLED,
+        R.string.pref_save_input_audio_vad_default, useValuesFromIntent);
+    int vadHangoverMs = sharedPrefGetInteger(R.string.pref_vad_hangover_ms_key,
+        CallActivity.EXTRA_VAD_HANGOVER_MS, R.string.pref_vad_hangover_ms_default,
+        useValuesFromIntent);
+    int vadPreRollMs = sharedPrefGetInteger(R.string.pref_vad_pre_roll_ms_key,
+        CallActivity.EXTRA_VAD_PRE_ROLL_MS, R.string.pref_vad_pre_roll_ms_default,
+        useValuesFromIntent);
+
+    boolean saveDualTrackAudio =
+        sharedPrefGetBoolean(R.string.pref_enable_save_dual_track_audio_key,
+            CallActivity.EXTRA_SAVE_DUAL_TRACK_AUDIO_ENABLED,
+            R.string.pref_enable_save_dual_track_audio_default, useValuesFromIntent);
+
+    boolean enableBlackBox = sharedPrefGetBoolean(R.string.pref_enable_black_box_key,
+        CallActivity.EXTRA_BLACK_BOX_ENABLED, R.string.pref_enable_black_box_default,
+        useValuesFromIntent);
+    int blackBoxSeconds = sharedPrefGetInteger(R.string.pref_black_box_seconds_key,
+        CallActivity.EXTRA_BLACK_BOX_SECONDS, R.string.pref_black_box_seconds_default,
+        useValuesFromIntent);
+
+    boolean adaptiveHowl = sharedPrefGetBoolean(R.string.pref_adaptive_howl_key,
+        CallActivity.EXTRA_ADAPTIVE_HOWL_ENABLED, R.string.pref_adaptive_howl_default,
+        useValuesFromIntent);
+
+    String abExperimentArms = sharedPrefGetString(R.string.pref_ab_experiment_arms_key,
+        CallActivity.EXTRA_AB_EXPERIMENT_ARMS, R.string.pref_ab_experiment_arms_default,
+        useValuesFromIntent);
+    int abWindowSeconds = sharedPrefGetInteger(R.string.pref_ab_window_seconds_key,
+        CallActivity.EXTRA_AB_WINDOW_SECONDS, R.string.pref_ab_window_seconds_default,
+        useValuesFromIntent);
+
+    boolean routeProfilesEnabled = sharedPrefGetBoolean(R.string.pref_route_profiles_enabled_key,
+        CallActivity.EXTRA_ROUTE_PROFILES_ENABLED, R.string.pref_route_profiles_enabled_default,
+        useValuesFromIntent);
+    String routeProfiles = sharedPrefGetString(R.string.pref_route_profiles_key,
+        CallActivity.EXTRA_ROUTE_PROFILES, R.string.pref_route_profiles_default,
+        useValuesFromIntent);
+
+    boolean howlFingerprints = sharedPrefGetBoolean(R.string.pref_howl_fingerprints_key,
+        CallActivity.EXTRA_HOWL_FINGERPRINTS_ENABLED, R.string.pref_howl_fingerprints_default,
+        useValuesFromIntent);
+
+    boolean couplingProbe = sharedPrefGetBoolean(R.string.pref_coupling_probe_key,
+        CallActivity.EXTRA_COUPLING_PROBE_ENABLED, R.string.pref_coupling_probe_default,
+        useValuesFromIntent);
+
+    boolean latencyMeasurement = sharedPrefGetBoolean(R.string.pref_latency_measurement_key,
+        CallActivity.EXTRA_LATENCY_MEASUREMENT_ENABLED, R.string.pref_latency_measurement_default,
+        useValuesFromIntent);
+
+    // Audio file sent instead of the microphone, empty for the microphone.
+    String audioFile = sharedPrefGetString(R.string.pref_audio_file_key,
+        CallActivity.EXTRA_AUDIO_FILE_AS_MIC, R.string.pref_audio_file_default,
+        useValuesFromIntent);
+    boolean audioFileLoop = sharedPrefGetBoolean(R.string.pref_audio_file_loop_key,
+        CallActivity.EXTRA_AUDIO_FILE_LOOP, R.string.pref_audio_file_loop_default,
+        useValuesFromIntent);
+
+    boolean setupTrace = sharedPrefGetBoolean(R.string.pref_setup_trace_key,
+        CallActivity.EXTRA_SETUP_TRACE_ENABLED, R.string.pref_setup_trace_default,
+        useValuesFromIntent);
+
+    boolean statsRecording = sharedPrefGetBoolean(R.string.pref_stats_recording_key,
+        CallActivity.EXTRA_STATS_RECORDING_ENABLED, R.string.pref_stats_recording_default,
+        useValuesFromIntent);
+
     // Check OpenSL ES enabled flag.
     boolean useOpenSLES = sharedPrefGetBoolean(R.string.pref_opensles_key,
         CallActivity.EXTRA_OPENSLES_ENABLED, R.string.pref_opensles_default, useValuesFromIntent);
@@ -741,6 +997,21 @@ public class ConnectActivity extends Activity {
       }
     }
 
+    // Adaptation of the audio bitrate during the call, between the minimum and maximum.
+    boolean audioBitrateAdaptation = sharedPrefGetBoolean(
+        R.string.pref_audio_bitrate_adaptation_key,
+        CallActivity.EXTRA_AUDIO_BITRATE_ADAPTATION_ENABLED,
+        R.string.pref_audio_bitrate_adaptation_default, useValuesFromIntent);
+    int audioMinBitrate = sharedPrefGetInteger(R.string.pref_audio_min_bitrate_key,
+        CallActivity.EXTRA_AUDIO_MIN_BITRATE, R.string.pref_audio_min_bitrate_default,
+        useValuesFromIntent);
+    int audioMaxBitrate = sharedPrefGetInteger(R.string.pref_audio_max_bitrate_key,
+        CallActivity.EXTRA_AUDIO_MAX_BITRATE, R.string.pref_audio_max_bitrate_default,
+        useValuesFromIntent);
+    String audioBitratePolicy = sharedPrefGetString(R.string.pref_audio_bitrate_policy_key,
+        CallActivity.EXTRA_AUDIO_BITRATE_POLICY, R.string.pref_audio_bitrate_policy_default,
+        useValuesFromIntent);
+
     // Check statistics display option.
     boolean displayHud = sharedPrefGetBoolean(R.string.pref_displayhud_key,
         CallActivity.EXTRA_DISPLAY_HUD, R.string.pref_displayhud_default, useValuesFromIntent);
@@ -795,6 +1066,25 @@ public class ConnectActivity extends Activity {
       intent.putExtra(CallActivity.EXTRA_NOAUDIOPROCESSING_ENABLED, noAudioProcessing);
       intent.putExtra(CallActivity.EXTRA_AECDUMP_ENABLED, aecDump);
       intent.putExtra(CallActivity.EXTRA_SAVE_INPUT_AUDIO_TO_FILE_ENABLED, saveInputAudioToFile);
+      intent.putExtra(CallActivity.EXTRA_SAVE_INPUT_AUDIO_FORMAT, saveInputAudioFormat);
+      intent.putExtra(CallActivity.EXTRA_SAVE_INPUT_AUDIO_VAD_ENABLED, saveInputAudioVad);
+      intent.putExtra(CallActivity.EXTRA_VAD_HANGOVER_MS, vadHangoverMs);
+      intent.putExtra(CallActivity.EXTRA_VAD_PRE_ROLL_MS, vadPreRollMs);
+      intent.putExtra(CallActivity.EXTRA_SAVE_DUAL_TRACK_AUDIO_ENABLED, saveDualTrackAudio);
+      intent.putExtra(CallActivity.EXTRA_BLACK_BOX_ENABLED, enableBlackBox);
+      intent.putExtra(CallActivity.EXTRA_BLACK_BOX_SECONDS, blackBoxSeconds);
+      intent.putExtra(CallActivity.EXTRA_ADAPTIVE_HOWL_ENABLED, adaptiveHowl);
+      intent.putExtra(CallActivity.EXTRA_AB_EXPERIMENT_ARMS, abExperimentArms);
+      intent.putExtra(CallActivity.EXTRA_AB_WINDOW_SECONDS, abWindowSeconds);
+      intent.putExtra(CallActivity.EXTRA_ROUTE_PROFILES_ENABLED, routeProfilesEnabled);
+      intent.putExtra(CallActivity.EXTRA_ROUTE_PROFILES, routeProfiles);
+      intent.putExtra(CallActivity.EXTRA_HOWL_FINGERPRINTS_ENABLED, howlFingerprints);
+      intent.putExtra(CallActivity.EXTRA_COUPLING_PROBE_ENABLED, couplingProbe);
+      intent.putExtra(CallActivity.EXTRA_LATENCY_MEASUREMENT_ENABLED, latencyMeasurement);
+      intent.putExtra(CallActivity.EXTRA_AUDIO_FILE_AS_MIC, audioFile);
+      intent.putExtra(CallActivity.EXTRA_AUDIO_FILE_LOOP, audioFileLoop);
+      intent.putExtra(CallActivity.EXTRA_SETUP_TRACE_ENABLED, setupTrace);
+      intent.putExtra(CallActivity.EXTRA_STATS_RECORDING_ENABLED, statsRecording);
       intent.putExtra(CallActivity.EXTRA_OPENSLES_ENABLED, useOpenSLES);
       intent.putExtra(CallActivity.EXTRA_DISABLE_BUILT_IN_AEC, disableBuiltInAEC);
       intent.putExtra(CallActivity.EXTRA_DISABLE_BUILT_IN_AGC, disableBuiltInAGC);
@@ -802,11 +1092,17 @@ public class ConnectActivity extends Activity {
       intent.putExtra(CallActivity.EXTRA_DISABLE_WEBRTC_AGC_AND_HPF, disableWebRtcAGCAndHPF);
       intent.putExtra(CallActivity.EXTRA_AUDIO_BITRATE, audioStartBitrate);
       intent.putExtra(CallActivity.EXTRA_AUDIOCODEC, audioCodec);
+      intent.putExtra(
+          CallActivity.EXTRA_AUDIO_BITRATE_ADAPTATION_ENABLED, audioBitrateAdaptation);
+      intent.putExtra(CallActivity.EXTRA_AUDIO_MIN_BITRATE, audioMinBitrate);
+      intent.putExtra(CallActivity.EXTRA_AUDIO_MAX_BITRATE, audioMaxBitrate);
+      intent.putExtra(CallActivity.EXTRA_AUDIO_BITRATE_POLICY, audioBitratePolicy);
       intent.putExtra(CallActivity.EXTRA_DISPLAY_HUD, displayHud);
       intent.putExtra(CallActivity.EXTRA_TRACING, tracing);
       intent.putExtra(CallActivity.EXTRA_ENABLE_RTCEVENTLOG, rtcEventLogEnabled);
       intent.putExtra(CallActivity.EXTRA_CMDLINE, commandLineRun);
       intent.putExtra(CallActivity.EXTRA_RUNTIME, runTimeMs);
+      intent.putExtra(CallActivity.EXTRA_AFC_TRIAL, afcTrialCandidate != null);
       intent.putExtra(CallActivity.EXTRA_DATA_CHANNEL_ENABLED, dataChannelEnabled);
 
       if (dataChannelEnabled) {
@@ -844,8 +1140,22 @@ public class ConnectActivity extends Activity {
         }
       }
 
+      startCallActivity(intent);
+    }
+  }
+
+  // The native audio processing reads the tuning file when the call starts, so the call only
+  // starts once pending tuning changes are on disk.
+  private void startCallActivity(Intent intent) {
+    if (audioConfigStore == null) {
       startActivityForResult(intent, CONNECTION_REQUEST);
+      return;
     }
+    audioConfigStore.flush(() -> runOnUiThread(() -> {
+      if (!isFinishing()) {
+        startActivityForResult(intent, CONNECTION_REQUEST);
+      }
+    }));
   }
 
   private boolean validateUrl(String url) {
@@ -1007,10 +1317,19 @@ public class ConnectActivity extends Activity {
               String remoteIp = mSocket.getInetAddress().getHostAddress(); // 获取真实连接方IP
               Log.d(TAG, "[socket]remoteIp: " + remoteIp);
 
+              if (!CallActivity.callCreated && DirectRTCClient.isAfcConfigMessage(rawMessage)) {
+                Log.w(TAG, "[socket]Ignoring AFC config message outside a call");
+                return;
+              }
+              if (!CallActivity.callCreated && DirectRTCClient.isCouplingProbeMessage(rawMessage)) {
+                DirectRTCClient.answerCouplingProbe();
+                return;
+              }
               if(CallActivity.callCreated)
               {
                 CallActivity.sendIncomingMessage(rawMessage);
               }else {
+                CallSetupTracer.instant("offer_received");
                 // 在主线程中启动CallActivity
                 runOnUiThread(() -> {
                   Intent intent = new Intent(ConnectActivity.this, CallActivity.class);
@@ -1018,6 +1337,30 @@ public class ConnectActivity extends Activity {
                   intent.putExtra(CallActivity.EXTRA_LOOPBACK, false);
                   intent.putExtra(CallActivity.EXTRA_IS_SERVER, sIsServer);
                   intent.putExtra(CallActivity.EXTRA_TCP_MSG, rawMessage);
+                  // The callee traces its setup and records its stats, too.
+                  intent.putExtra(CallActivity.EXTRA_SETUP_TRACE_ENABLED,
+                      sharedPref.getBoolean(getString(R.string.pref_setup_trace_key),
+                          Boolean.parseBoolean(getString(R.string.pref_setup_trace_default))));
+                  intent.putExtra(CallActivity.EXTRA_STATS_RECORDING_ENABLED,
+                      sharedPref.getBoolean(getString(R.string.pref_stats_recording_key),
+                          Boolean.parseBoolean(getString(R.string.pref_stats_recording_default))));
+                  // Each side adapts the bitrate of the audio it sends.
+                  intent.putExtra(CallActivity.EXTRA_AUDIO_BITRATE_ADAPTATION_ENABLED,
+                      sharedPrefGetBoolean(R.string.pref_audio_bitrate_adaptation_key,
+                          CallActivity.EXTRA_AUDIO_BITRATE_ADAPTATION_ENABLED,
+                          R.string.pref_audio_bitrate_adaptation_default, false));
+                  intent.putExtra(CallActivity.EXTRA_AUDIO_MIN_BITRATE,
+                      sharedPrefGetInteger(R.string.pref_audio_min_bitrate_key,
+                          CallActivity.EXTRA_AUDIO_MIN_BITRATE,
+                          R.string.pref_audio_min_bitrate_default, false));
+                  intent.putExtra(CallActivity.EXTRA_AUDIO_MAX_BITRATE,
+                      sharedPrefGetInteger(R.string.pref_audio_max_bitrate_key,
+                          CallActivity.EXTRA_AUDIO_MAX_BITRATE,
+                          R.string.pref_audio_max_bitrate_default, false));
+                  intent.putExtra(CallActivity.EXTRA_AUDIO_BITRATE_POLICY,
+                      sharedPrefGetString(R.string.pref_audio_bitrate_policy_key,
+                          CallActivity.EXTRA_AUDIO_BITRATE_POLICY,
+                          R.string.pref_audio_bitrate_policy_default, false));
                   intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
                   //CallActivity.callCreated=true;
                   startActivity(intent);
@@ -1087,6 +1430,14 @@ public class ConnectActivity extends Activity {
       logToast.cancel();
     }
     restartThread.interrupt();
+    afcHandler.removeCallbacksAndMessages(null);
+    afcSweepTuner = null;
+    afcTrialCandidate = null;
+    if (audioConfigStore != null) {
+      AudioConfigStore.setDefault(null);
+      audioConfigStore.close();
+      audioConfigStore = null;
+    }
     // 不要在这里关闭全局监听器，让它保持运行
     // if (globalListener != null) {
     //   globalListener.disconnect();
@@ -0,0 +1,331 @@
+package org.appspot.apprtc;
+
+import android.media.AudioAttributes;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioRecord;
+import android.media.AudioTrack;
+import android.media.MediaRecorder;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import androidx.annotation.Nullable;
+import java.util.Locale;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Measures the acoustic coupling between two devices before a call: one plays a quiet maximum
+ * length sequence (MLS), the other records and cross-correlates it. The height of the correlation
+ * peak gives the gain from the player's output to the recorder's microphone, its lag the delay.
+ * Two endpoints in one room couple strongly and howl; a strong result lets the call start with a
+ * stronger howl suppression preset.
+ *
+ * <p>The MLS is {@link #SEQUENCE_LENGTH} samples (256 ms) at -30 dBFS, below normal speech. Its
+ * autocorrelation is a single peak, so the correlation gains 36 dB over the room noise and finds
+ * couplings far below what is audible. The recorder starts on the probe message and the player
+ * {@link #LEAD_MS} after sending it, so the measured delay includes the network latency and the
+ * audio latencies of both devices and is only a rough figure.
+ *
+ * <p>The recorder holds the microphone while the call on the same device is being set up; the call
+ * waits for it with {@link #awaitRecording} before it opens its own recorder.
+ *
+ * <p>Results are handed to the {@link Listener} on the main thread. The recorder finishes when its
+ * call may not have been created yet, so a result without a listener waits for one for
+ * {@link #RESULT_MAX_AGE_MS}.
+ */
+public class CouplingProbe {
+  private static final String TAG = "CouplingProbe";
+  public static final int SAMPLE_RATE = 16000;
+  // 2^12 - 1 samples from the primitive polynomial x^12 + x^6 + x^4 + x + 1, i.e. the bits
+  // s[n + 12] = s[n] ^ s[n + 1] ^ s[n + 4] ^ s[n + 6].
+  private static final int MLS_ORDER = 12;
+  private static final int MLS_TAPS = (1 << 6) | (1 << 4) | (1 << 1) | 1;
+  public static final int SEQUENCE_LENGTH = (1 << MLS_ORDER) - 1;
+  // -30 dBFS.
+  private static final short AMPLITUDE = 1036;
+  /** Time from sending the probe message until playing, for the peer to start recording. */
+  public static final int LEAD_MS = 100;
+  // Wait after the sequence for the output latency before stopping the player.
+  private static final int PLAYOUT_MARGIN_MS = 100;
+  /** Recording time, enough for the lead, the sequence and the start-up of both audio paths. */
+  public static final int RECORD_MS = 600;
+  // Correlation peak over the RMS of the other lags from which the sequence counts as heard.
+  private static final float DETECTION_RATIO = 6f;
+  // Lags next to the peak that belong to it (room reflections), left out of the RMS.
+  private static final int PEAK_WIDTH_MS = 20;
+  /** Coupling gain from which the devices are likely to howl. */
+  public static final float STRONG_COUPLING_DB = -40f;
+  public static final long RESULT_MAX_AGE_MS = 10000;
+
+  /** Outcome of one probe. */
+  public static final class Result {
+    public final boolean detected;
+    // Gain from the player's samples to the recorder's samples and the delay, if detected.
+    public final float gainDb;
+    public final int delayMs;
+
+    public Result(boolean detected, float gainDb, int delayMs) {
+      this.detected = detected;
+      this.gainDb = gainDb;
+      this.delayMs = delayMs;
+    }
+
+    /** True if the devices couple strongly enough to howl. */
+    public boolean isStrong() {
+      return detected && gainDb >= STRONG_COUPLING_DB;
+    }
+
+    public JSONObject toJson() throws JSONException {
+      return new JSONObject().put("ok", detected).put("g", gainDb).put("d", delayMs);
+    }
+
+    public static Result fromJson(JSONObject json) throws JSONException {
+      return new Result(
+          json.getBoolean("ok"), (float) json.getDouble("g"), json.getInt("d"));
+    }
+
+    @Override
+    public String toString() {
+      return detected
+          ? String.format(Locale.US, "coupling %.1f dB, delay ~%d ms", gainDb, delayMs)
+                      : "no coupling";
+    }
+  }
+
+  /** Receives probe results on the main thread. */
+  public interface Listener {
+    void onCouplingProbeResult(Result result);
+  }
+
+  private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+  // Guards `recording`, true while record() holds the microphone.
+  private static final Object recordLock = new Object();
+  private static boolean recording;
+  // Only used on the main thread.
+  @Nullable private static Listener listener;
+  @Nullable private static Result pendingResult;
+  private static long pendingResultTimeMs;
+
+  private CouplingProbe() {}
+
+  /**
+   * Sets the listener for results, null to remove it. A result that arrived without a listener
+   * in the last {@link #RESULT_MAX_AGE_MS} is reported to the new one. Main thread only.
+   */
+  public static void setListener(@Nullable Listener newListener) {
+    listener = newListener;
+    final Result result = pendingResult;
+    pendingResult = null;
+    if (newListener != null && result != null
+        && SystemClock.elapsedRealtime() - pendingResultTimeMs <= RESULT_MAX_AGE_MS) {
+      mainHandler.post(() -> {
+        if (listener == newListener) {
+          newListener.onCouplingProbeResult(result);
+        }
+      });
+    }
+  }
+
+  /** Reports `result` to the listener, or keeps it for the next one. Any thread. */
+  public static void deliver(final Result result) {
+    Log.i(TAG, "Probe result: " + result);
+    mainHandler.post(() -> {
+      if (listener != null) {
+        listener.onCouplingProbeResult(result);
+      } else {
+        pendingResult = result;
+        pendingResultTimeMs = SystemClock.elapsedRealtime();
+      }
+    });
+  }
+
+  /** Returns the MLS as samples of +-{@link #AMPLITUDE}. */
+  public static short[] createSequence() {
+    final short[] sequence = new short[SEQUENCE_LENGTH];
+    int state = 1;
+    for (int i = 0; i < SEQUENCE_LENGTH; i++) {
+      sequence[i] = (state & 1) != 0 ? AMPLITUDE : (short) -AMPLITUDE;
+      final int feedback = Integer.bitCount(state & MLS_TAPS) & 1;
+      state = (state >>> 1) | (feedback << (MLS_ORDER - 1));
+    }
+    return sequence;
+  }
+
+  /** Plays the MLS on the voice call stream and blocks until it has been played. */
+  public static boolean play() {
+    final short[] sequence = createSequence();
+    final AudioTrack track;
+    try {
+      track = new AudioTrack(new AudioAttributes.Builder()
+                                 .setUsage(AudioAttributes.USAGE_VOICE_COMMUNICATION)
+                                 .setContentType(AudioAttributes.CONTENT_TYPE_SONIFICATION)
+                                 .build(),
+          new AudioFormat.Builder()
+              .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
+              .setSampleRate(SAMPLE_RATE)
+              .setChannelMask(AudioFormat.CHANNEL_OUT_MONO)
+              .build(),
+          sequence.length * 2, AudioTrack.MODE_STATIC, AudioManager.AUDIO_SESSION_ID_GENERATE);
+    } catch (IllegalArgumentException e) {
+      Log.e(TAG, "Failed to create the player: " + e.getMessage());
+      return false;
+    }
+    try {
+      track.write(sequence, 0, sequence.length);
+      if (track.getState() != AudioTrack.STATE_INITIALIZED) {
+        Log.e(TAG, "Player not initialized");
+        return false;
+      }
+      track.play();
+      Thread.sleep(SEQUENCE_LENGTH * 1000L / SAMPLE_RATE + PLAYOUT_MARGIN_MS);
+      track.stop();
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    } catch (IllegalStateException e) {
+      Log.e(TAG, "Failed to play: " + e.getMessage());
+      return false;
+    } finally {
+      track.release();
+    }
+  }
+
+  /**
+   * Waits up to `timeoutMs` for a running {@link #record} to release the microphone. Returns
+   * false if it still holds it.
+   */
+  public static boolean awaitRecording(long timeoutMs) throws InterruptedException {
+    final long deadlineMs = SystemClock.elapsedRealtime() + timeoutMs;
+    synchronized (recordLock) {
+      while (recording) {
+        final long remainingMs = deadlineMs - SystemClock.elapsedRealtime();
+        if (remainingMs <= 0) {
+          return false;
+        }
+        recordLock.wait(remainingMs);
+      }
+    }
+    return true;
+  }
+
+  /** Records {@link #RECORD_MS} from the microphone, or returns null if it cannot be opened. */
+  @Nullable
+  public static short[] record() {
+    synchronized (recordLock) {
+      recording = true;
+    }
+    try {
+      return recordInternal();
+    } finally {
+      synchronized (recordLock) {
+        recording = false;
+        recordLock.notifyAll();
+      }
+    }
+  }
+
+  @Nullable
+  private static short[] recordInternal() {
+    final short[] capture = new short[SAMPLE_RATE * RECORD_MS / 1000];
+    final int minBufferSize = AudioRecord.getMinBufferSize(
+        SAMPLE_RATE, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT);
+    if (minBufferSize <= 0) {
+      Log.e(TAG, "No recorder for " + SAMPLE_RATE + " Hz: " + minBufferSize);
+      return null;
+    }
+    final AudioRecord recorder;
+    try {
+      // MIC, not VOICE_COMMUNICATION: the echo canceller and noise suppressor would treat the
+      // sequence as noise.
+      recorder = new AudioRecord(MediaRecorder.AudioSource.MIC, SAMPLE_RATE,
+          AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT,
+          Math.max(minBufferSize, capture.length * 2));
+    } catch (IllegalArgumentException | SecurityException e) {
+      Log.e(TAG, "Failed to create the recorder: " + e.getMessage());
+      return null;
+    }
+    try {
+      if (recorder.getState() != AudioRecord.STATE_INITIALIZED) {
+        Log.e(TAG, "Recorder not initialized");
+        return null;
+      }
+      recorder.startRecording();
+      int offset = 0;
+      while (offset < capture.length) {
+        final int count = recorder.read(capture, offset, capture.length - offset);
+        if (count <= 0) {
+          Log.e(TAG, "Recorder read failed: " + count);
+          return null;
+        }
+        offset += count;
+      }
+      recorder.stop();
+      return capture;
+    } catch (IllegalStateException e) {
+      Log.e(TAG, "Failed to record: " + e.getMessage());
+      return null;
+    } finally {
+      recorder.release();
+    }
+  }
+
+  /**
+   * Looks for the MLS in `capture`, which started {@link #LEAD_MS} before the sequence was played.
+   */
+  public static Result measure(short[] capture) {
+    final short[] sequence = createSequence();
+    final int lags = capture.length - sequence.length + 1;
+    if (lags <= 0) {
+      return new Result(false, 0, 0);
+    }
+    double mean = 0;
+    for (short sample : capture) {
+      mean += sample;
+    }
+    mean /= capture.length;
+    final float[] input = new float[capture.length];
+    for (int i = 0; i < capture.length; i++) {
+      input[i] = (float) (capture[i] - mean);
+    }
+    // The sequence is +-1 times the amplitude, so the correlation is a sum of signed samples.
+    final boolean[] positive = new boolean[sequence.length];
+    for (int i = 0; i < sequence.length; i++) {
+      positive[i] = sequence[i] > 0;
+    }
+    final float[] correlation = new float[lags];
+    int peakLag = 0;
+    for (int lag = 0; lag < lags; lag++) {
+      float sum = 0;
+      for (int i = 0; i < positive.length; i++) {
+        sum += positive[i] ? input[lag + i] : -input[lag + i];
+      }
+      correlation[lag] = Math.abs(sum);
+      if (correlation[lag] > correlation[peakLag]) {
+        peakLag = lag;
+      }
+    }
+    final int peakWidth = SAMPLE_RATE * PEAK_WIDTH_MS / 1000;
+    double energy = 0;
+    int count = 0;
+    for (int lag = 0; lag < lags; lag++) {
+      if (Math.abs(lag - peakLag) > peakWidth) {
+        energy += (double) correlation[lag] * correlation[lag];
+        count++;
+      }
+    }
+    final float peak = correlation[peakLag];
+    final double rms = count > 0 ? Math.sqrt(energy / count) : 0;
+    if (peak <= 0 || peak < DETECTION_RATIO * rms) {
+      Log.d(TAG, "Sequence not found, peak " + peak + ", rms " + rms);
+      return new Result(false, 0, 0);
+    }
+    // A capture of `gain` times the sequence correlates to gain * length * amplitude.
+    final float gainDb =
+        (float) (20 * Math.log10(peak / ((double) sequence.length * AMPLITUDE)));
+    final int delayMs = peakLag * 1000 / SAMPLE_RATE - LEAD_MS;
+    return new Result(true, gainDb, delayMs);
+  }
+}
@@ -4,19 +4,25 @@ import static org.appspot.apprtc.PeerConnectionClient.peerConnection;
 
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 import androidx.annotation.Nullable;
 
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.Socket;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import org.appspot.apprtc.util.AudioConfigDelta;
+import org.appspot.apprtc.util.AudioConfigStore;
+import org.appspot.apprtc.util.AudioTuningConfig;
 import org.appspot.apprtc.util.SocketManager;
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -29,6 +35,43 @@ import org.webrtc.SessionDescription;
 public class DirectRTCClient implements AppRTCClient, TCPChannelClient.TCPChannelEvents {
   private static final String TAG = "DirectRTCClient";
   private static final int DEFAULT_PORT = 38888;
+  // Changes the peer's native audio settings during a call. Content:
+  //   {"id":<request>,"d":<AudioConfigDelta>}
+  // The peer answers once the change is in its config file:
+  //   {"id":<request>,"ok":true,"v":<applied config version>,"ms":<receive to commit time>}
+  //   {"id":<request>,"ok":false,"err":<reason>}
+  static final String MSG_AFC_CONFIG = "afc-config";
+  static final String MSG_AFC_CONFIG_ACK = "afc-config-ack";
+  private static final long AFC_CONFIG_ACK_TIMEOUT_MS = 5000;
+  // Sent by the caller before the offer, which then plays the CouplingProbe sequence. The peer
+  // records it and answers with the CouplingProbe.Result as content.
+  static final String MSG_COUPLING_PROBE = "coupling-probe";
+  static final String MSG_COUPLING_PROBE_RESULT = "coupling-probe-result";
+
+  /** Outcome of {@link #sendAfcConfig} and the peer's changes, reported on the main thread. */
+  public interface AfcConfigEvents {
+    /**
+     * The peer has `delta` in its config file as version `version`; this took `applyMs` on the
+     * peer and `roundTripMs` from sending to the acknowledgement.
+     */
+    void onRemoteAfcConfigApplied(
+        AudioConfigDelta delta, long version, long applyMs, long roundTripMs);
+
+    void onRemoteAfcConfigFailed(AudioConfigDelta delta, String reason);
+
+    /** The peer changed the configuration of this device by `delta`. */
+    void onAfcConfigFromPeer(AudioConfigDelta delta);
+  }
+
+  private static class PendingAfcConfig {
+    final AudioConfigDelta delta;
+    final long sentTimeMs;
+
+    PendingAfcConfig(AudioConfigDelta delta, long sentTimeMs) {
+      this.delta = delta;
+      this.sentTimeMs = sentTimeMs;
+    }
+  }
 
   // 增强IP地址匹配模式
   static final Pattern IP_PATTERN = Pattern.compile(
@@ -51,11 +94,97 @@ public class DirectRTCClient implements AppRTCClient, TCPChannelClient.TCPChanne
   // 添加一个变量来跟踪已处理的offer
   private String lastProcessedOffer = null;
 
+  @Nullable private volatile AfcConfigEvents afcConfigEvents;
+  // AFC config requests waiting for their acknowledgement. Only used on the main thread.
+  private final Map<Long, PendingAfcConfig> pendingAfcConfigs = new HashMap<>();
+  private long nextAfcConfigRequestId = 1;
+  private boolean couplingProbeEnabled;
+  private boolean couplingProbeStarted;
+
   public DirectRTCClient(SignalingEvents events) {
     this.events = events;
     this.executor = java.util.concurrent.Executors.newSingleThreadExecutor();
   }
 
+  public void setAfcConfigEvents(@Nullable AfcConfigEvents afcConfigEvents) {
+    this.afcConfigEvents = afcConfigEvents;
+  }
+
+  /**
+   * Makes the caller probe the acoustic coupling with the peer during the delay before the offer.
+   * The result is delivered through {@link CouplingProbe#deliver}.
+   */
+  public void setCouplingProbeEnabled(boolean couplingProbeEnabled) {
+    this.couplingProbeEnabled = couplingProbeEnabled;
+  }
+
+  /** True for messages that only concern a running call and must not start one. */
+  public static boolean isAfcConfigMessage(String msg) {
+    try {
+      String type = new JSONObject(msg).optString("type");
+      return type.equals(MSG_AFC_CONFIG) || type.equals(MSG_AFC_CONFIG_ACK);
+    } catch (JSONException e) {
+      return false;
+    }
+  }
+
+  /** True for the caller's coupling probe, which comes before the offer. */
+  public static boolean isCouplingProbeMessage(String msg) {
+    try {
+      return new JSONObject(msg).optString("type").equals(MSG_COUPLING_PROBE);
+    } catch (JSONException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Records the caller's coupling probe, delivers the result through
+   * {@link CouplingProbe#deliver} and sends it back. Called on the callee before its call exists.
+   */
+  public static void answerCouplingProbe() {
+    new Thread(() -> {
+      final short[] capture = CouplingProbe.record();
+      if (capture == null) {
+        return;
+      }
+      final CouplingProbe.Result result = CouplingProbe.measure(capture);
+      CouplingProbe.deliver(result);
+      try {
+        writeSignalingMessage(MSG_COUPLING_PROBE_RESULT, result.toJson().toString());
+      } catch (JSONException | IOException e) {
+        Log.e(TAG, "Failed to send the coupling probe result: " + e.getMessage());
+      }
+    }, "CouplingProbe").start();
+  }
+
+  /**
+   * Sends `delta` to the peer, which applies it to its native audio settings. The outcome is
+   * reported to the {@link AfcConfigEvents}.
+   */
+  public void sendAfcConfig(final AudioConfigDelta delta) {
+    uiHandler.post(() -> {
+      final long requestId = nextAfcConfigRequestId++;
+      final String content;
+      try {
+        JSONObject json = new JSONObject();
+        json.put("id", requestId);
+        json.put("d", delta.toJson());
+        content = json.toString();
+      } catch (JSONException e) {
+        notifyAfcConfigFailed(delta, "Failed to create AFC config JSON: " + e.getMessage());
+        return;
+      }
+      pendingAfcConfigs.put(requestId, new PendingAfcConfig(delta, SystemClock.elapsedRealtime()));
+      sendControlMessage(MSG_AFC_CONFIG, content);
+      uiHandler.postDelayed(() -> {
+        PendingAfcConfig pending = pendingAfcConfigs.remove(requestId);
+        if (pending != null) {
+          notifyAfcConfigFailed(pending.delta, "No acknowledgement from the peer");
+        }
+      }, AFC_CONFIG_ACK_TIMEOUT_MS);
+    });
+  }
+
   @Override
   public void connectToRoom(RoomConnectionParameters connectionParameters) {
     this.connectionParameters = connectionParameters;
@@ -205,6 +334,11 @@ public class DirectRTCClient implements AppRTCClient, TCPChannelClient.TCPChanne
     // 只有客户端（发起方）自动发起呼叫
     if (!isServer) {
       Log.d(TAG, "[socket]作为客户端（发起方），自动发起呼叫");
+      // The probe fits into the delay below and runs next to it.
+      if (couplingProbeEnabled && !couplingProbeStarted) {
+        couplingProbeStarted = true;
+        startCouplingProbe();
+      }
       // 延迟一点时间，确保连接稳定
       executor.execute(() -> {
         try {
@@ -227,6 +361,21 @@ public class DirectRTCClient implements AppRTCClient, TCPChannelClient.TCPChanne
   }
 
 
+  // Asks the peer to record, then plays the sequence once it should be recording.
+  private void startCouplingProbe() {
+    sendControlMessage(MSG_COUPLING_PROBE, "");
+    new Thread(() -> {
+      try {
+        Thread.sleep(CouplingProbe.LEAD_MS);
+      } catch (InterruptedException e) {
+        return;
+      }
+      if (!CouplingProbe.play()) {
+        Log.w(TAG, "Coupling probe not played");
+      }
+    }, "CouplingProbe").start();
+  }
+
   private void drainPendingIceCandidates() {
     if (peerConnection != null && !pendingIceCandidates.isEmpty()) {
       for (IceCandidate c : pendingIceCandidates) {
@@ -245,6 +394,9 @@ public class DirectRTCClient implements AppRTCClient, TCPChannelClient.TCPChanne
     }
     @Override public void onSetSuccess() {
       Log.d(TAG,"[WebRTC]" + tag + " onSetSuccess");
+      if (tag.startsWith("setRemoteDescription")) {
+        CallSetupTracer.end("set_remote_description");
+      }
       drainPendingIceCandidates();
       //只有setRemoteDescription成功后且只有收到offer时才createAnswer
       if (tag.equals("setRemoteDescription-offer")) {
@@ -261,29 +413,33 @@ public class DirectRTCClient implements AppRTCClient, TCPChannelClient.TCPChanne
   }
 
   public void sendSignalingMessage(String type, String content) {
-    Log.d(TAG, "[Socket] 发送" + type + ": " + content);
-    JSONObject obj = new JSONObject();
     try {
-      obj.put("type", type);
-      obj.put("content", content);
-      DataOutputStream dos = new DataOutputStream(SocketManager.getInstance().getSocket().getOutputStream());
-      //序列化消息
-      byte[] jsonBytes = obj.toString().getBytes(StandardCharsets.UTF_8);
-      dos.writeInt(jsonBytes.length);
-      dos.write(jsonBytes);
-      dos.flush();
+      writeSignalingMessage(type, content);
     } catch (JSONException | IOException e) {
       throw new RuntimeException(e);
     }
   }
 
+  private static void writeSignalingMessage(String type, String content)
+      throws JSONException, IOException {
+    Log.d(TAG, "[Socket] 发送" + type + ": " + content);
+    JSONObject obj = new JSONObject();
+    obj.put("type", type);
+    obj.put("content", content);
+    //序列化消息
+    byte[] jsonBytes = obj.toString().getBytes(StandardCharsets.UTF_8);
+    SocketManager.writeFrame(SocketManager.getInstance().getSocket(), jsonBytes);
+  }
+
   private void createAnswer() {
     MediaConstraints constraints = new MediaConstraints();
     constraints.mandatory.add(new MediaConstraints.KeyValuePair("OfferToReceiveAudio", "true"));
     constraints.mandatory.add(new MediaConstraints.KeyValuePair("OfferToReceiveVideo", "true"));
+    CallSetupTracer.begin("create_answer");
     peerConnection.createAnswer(new SdpObserver() {
       @Override public void onCreateSuccess(SessionDescription sdp) {
         Log.d(TAG,"[WebRTC] Answer创建成功");
+        CallSetupTracer.end("create_answer");
                 /*peerConnection.setLocalDescription(this, sdp);
                 // 发送完整的 SDP 消息
                 //sendSignalingMessage("answer|" + sdp.description);
@@ -294,11 +450,15 @@ public class DirectRTCClient implements AppRTCClient, TCPChannelClient.TCPChanne
                 "a=recvonly", "a=sendrecv");
         SessionDescription modifiedDesc = new SessionDescription(
                 sdp.type, modifiedSdp);
+        CallSetupTracer.begin("set_local_description");
         peerConnection.setLocalDescription(this, modifiedDesc);
         //DirectRTCClient.tcpClient.sendSignalingMessage("answer", modifiedSdp);
         sendSignalingMessage("answer", modifiedSdp);
       }
-      @Override public void onSetSuccess() { Log.d(TAG,"[WebRTC] setLocalDescription成功"); }
+      @Override public void onSetSuccess() {
+        Log.d(TAG,"[WebRTC] setLocalDescription成功");
+        CallSetupTracer.end("set_local_description");
+      }
       @Override public void onCreateFailure(String error) { Log.d(TAG,"[WebRTC] Answer创建失败: " + error); }
       @Override public void onSetFailure(String error) { Log.d(TAG,"[WebRTC] setLocalDescription失败: " + error); }
     }, constraints);
@@ -332,6 +492,7 @@ public class DirectRTCClient implements AppRTCClient, TCPChannelClient.TCPChanne
           uiHandler.post(() -> {
             SessionDescription sdp = new SessionDescription(SessionDescription.Type.OFFER, ref.content);
             Log.d(TAG, "[WebRTC]setRemoteDescription-offer, sdp: [" + ref.content + "]");
+            CallSetupTracer.begin("set_remote_description");
             peerConnection.setRemoteDescription(new SimpleSdpObserver("setRemoteDescription-offer"), sdp);
           });
           break;
@@ -339,9 +500,23 @@ public class DirectRTCClient implements AppRTCClient, TCPChannelClient.TCPChanne
           uiHandler.post(() -> {
             SessionDescription sdp = new SessionDescription(SessionDescription.Type.ANSWER, ref.content);
             Log.d(TAG,"[WebRTC]setRemoteDescription-answer, sdp: [" + ref.content + "]");
+            CallSetupTracer.begin("set_remote_description");
             peerConnection.setRemoteDescription(new SimpleSdpObserver("setRemoteDescription-answer"), sdp);
           });
           break;
+        case MSG_AFC_CONFIG:
+          onRemoteAfcConfig(ref.content);
+          break;
+        case MSG_AFC_CONFIG_ACK:
+          onRemoteAfcConfigAck(ref.content);
+          break;
+        case MSG_COUPLING_PROBE_RESULT:
+          try {
+            CouplingProbe.deliver(CouplingProbe.Result.fromJson(new JSONObject(ref.content)));
+          } catch (JSONException e) {
+            Log.e(TAG, "Invalid coupling probe result: " + e.getMessage());
+          }
+          break;
         case "candidate":
           try {
             JSONObject candidateJson = new JSONObject(ref.content);
@@ -381,6 +556,126 @@ public class DirectRTCClient implements AppRTCClient, TCPChannelClient.TCPChanne
     executor.shutdown();
   }
 
+  // Applies a config change from the peer and acknowledges it once it is in the config file.
+  // Errors are only reported to the peer; they must not end the call.
+  private void onRemoteAfcConfig(String content) {
+    final long receivedTimeMs = SystemClock.elapsedRealtime();
+    final long requestId;
+    final JSONObject json;
+    try {
+      json = new JSONObject(content);
+      requestId = json.getLong("id");
+    } catch (JSONException e) {
+      Log.e(TAG, "Invalid AFC config message: " + e.getMessage());
+      return;
+    }
+    final AudioConfigDelta delta;
+    try {
+      delta = AudioConfigDelta.fromJson(json.getJSONObject("d"));
+    } catch (JSONException e) {
+      Log.w(TAG, "Rejected remote AFC config: " + e.getMessage());
+      sendAfcConfigAck(requestId, 0, 0, "Invalid config: " + e.getMessage());
+      return;
+    }
+    final AudioConfigStore store = AudioConfigStore.getDefault();
+    if (store == null) {
+      sendAfcConfigAck(requestId, 0, 0, "No audio config on the peer");
+      return;
+    }
+    final AudioTuningConfig config = delta.applyTo(store.edit()).apply();
+    Log.i(TAG, "Remote AFC config " + delta + ", now " + config);
+    uiHandler.post(() -> {
+      AfcConfigEvents events = afcConfigEvents;
+      if (events != null) {
+        events.onAfcConfigFromPeer(delta);
+      }
+    });
+    store.flush(() -> {
+      final long applyMs = SystemClock.elapsedRealtime() - receivedTimeMs;
+      if (store.getCommittedVersion() >= config.version) {
+        sendAfcConfigAck(requestId, config.version, applyMs, null);
+      } else {
+        sendAfcConfigAck(requestId, config.version, applyMs, "Failed to write the config file");
+      }
+    });
+  }
+
+  private void sendAfcConfigAck(
+      long requestId, long version, long applyMs, @Nullable String error) {
+    try {
+      JSONObject json = new JSONObject();
+      json.put("id", requestId);
+      json.put("ok", error == null);
+      if (error == null) {
+        json.put("v", version);
+        json.put("ms", applyMs);
+      } else {
+        json.put("err", error);
+      }
+      sendControlMessage(MSG_AFC_CONFIG_ACK, json.toString());
+    } catch (JSONException e) {
+      Log.e(TAG, "Failed to create AFC config ack JSON: " + e.getMessage());
+    }
+  }
+
+  private void onRemoteAfcConfigAck(String content) {
+    final long receivedTimeMs = SystemClock.elapsedRealtime();
+    final JSONObject json;
+    try {
+      json = new JSONObject(content);
+      json.getLong("id");
+    } catch (JSONException e) {
+      Log.e(TAG, "Invalid AFC config ack: " + e.getMessage());
+      return;
+    }
+    uiHandler.post(() -> {
+      final long requestId = json.optLong("id");
+      PendingAfcConfig pending = pendingAfcConfigs.remove(requestId);
+      if (pending == null) {
+        Log.w(TAG, "AFC config ack for unknown or timed out request " + requestId);
+        return;
+      }
+      if (json.optBoolean("ok")) {
+        final long roundTripMs = receivedTimeMs - pending.sentTimeMs;
+        final long version = json.optLong("v");
+        final long applyMs = json.optLong("ms");
+        Log.i(TAG, "Peer applied AFC config " + pending.delta + " as version " + version + " in "
+                + applyMs + " ms, round trip " + roundTripMs + " ms");
+        AfcConfigEvents events = afcConfigEvents;
+        if (events != null) {
+          events.onRemoteAfcConfigApplied(pending.delta, version, applyMs, roundTripMs);
+        }
+      } else {
+        notifyAfcConfigFailed(pending.delta, json.optString("err"));
+      }
+    });
+  }
+
+  // Main thread.
+  private void notifyAfcConfigFailed(AudioConfigDelta delta, String reason) {
+    Log.w(TAG, "AFC config " + delta + " failed: " + reason);
+    AfcConfigEvents events = afcConfigEvents;
+    if (events != null) {
+      events.onRemoteAfcConfigFailed(delta, reason);
+    }
+  }
+
+  // Socket writes block, so they run on the executor like the other messages.
+  private void sendControlMessage(final String type, final String content) {
+    try {
+      executor.execute(() -> {
+        try {
+          sendSignalingMessage(type, content);
+        } catch (RuntimeException e) {
+          Log.e(TAG, "Failed to send " + type + ": " + e.getMessage());
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // disconnect() has shut the executor down.
+      Log.w(TAG, "Channel closed, dropping " + type);
+    }
+  }
+
   // 辅助方法
   private void reportError(final String errorMessage) {
     Log.e(TAG, errorMessage);
@@ -0,0 +1,431 @@
+package org.appspot.apprtc;
+
+import android.os.Environment;
+import android.os.Process;
+import android.util.Log;
+import androidx.annotation.Nullable;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
+import org.appspot.apprtc.CaptureTapMultiplexer.CaptureFrame;
+import org.appspot.apprtc.CaptureTapMultiplexer.FrameConsumer;
+import org.webrtc.AudioTrackSink;
+
+/**
+ * Records the near-end (microphone capture) and far-end (remote audio handed to playout) signals
+ * on one common sample clock, for offline measurement of the acoustic feedback path.
+ *
+ * <p>The capture stream is the master clock: every captured sample gets a monotonically increasing
+ * sample index. Far-end frames are stamped on arrival with the capture sample index that
+ * corresponds to the current time, converted to mono and resampled to the capture rate, and then
+ * placed at that index. Consecutive far-end frames are laid out back to back; the far-end stream is
+ * only re-anchored when it drifts more than {@link #RESYNC_THRESHOLD_MS} from the capture clock,
+ * e.g. after a playout gap. Missing samples on either side are written as silence.
+ *
+ * <p>The output is a stereo WAV recording (left: near-end, right: far-end) in rolling segments,
+ * plus a CSV frame log with the frame counter, sample index and arrival time of every frame.
+ * Note that far-end frames are tapped when they are pulled for playout, so the rendering latency
+ * of the platform audio track shows up as a constant offset between the two channels.
+ *
+ * <p>Both audio callbacks only copy into preallocated ring buffers; all file I/O happens on a
+ * dedicated writer thread. Near-end frames are stamped with their capture time on the audio
+ * thread, so the capture tap queue in between does not shift the alignment.
+ */
+public class DualTrackAudioRecorder implements FrameConsumer, AudioTrackSink {
+  private static final String TAG = "DualTrackAudioRecorder";
+  private static final int RING_BUFFER_CAPACITY_BYTES = 1 << 18;
+  // Frame counter, sample index, arrival time and sample count.
+  private static final int FRAME_HEADER_BYTES = 8 + 8 + 8 + 4;
+  // Frames longer than this (100 ms at 48 kHz) are dropped.
+  private static final int MAX_FRAME_SAMPLES = 4800;
+  // Staging window of the writer in samples per channel; must be a power of two.
+  private static final int STAGING_SAMPLES = 1 << 16;
+  private static final int STAGING_MASK = STAGING_SAMPLES - 1;
+  // Capture samples are held back this long so that late far-end frames can still be placed.
+  private static final int WRITER_HOLDBACK_MS = 100;
+  private static final int RESYNC_THRESHOLD_MS = 20;
+  private static final int OUTPUT_CHUNK_SAMPLES = 4096;
+  private static final long WRITER_IDLE_TIMEOUT_NS = 20_000_000L;
+  private static final long WRITER_JOIN_TIMEOUT_MS = 2000;
+  private static final int WAV_SEGMENT_DURATION_SECONDS = 300;
+
+  private final AudioRingBuffer nearRing = new AudioRingBuffer(RING_BUFFER_CAPACITY_BYTES);
+  private final AudioRingBuffer farRing = new AudioRingBuffer(RING_BUFFER_CAPACITY_BYTES);
+  private volatile boolean isRunning;
+  @Nullable private volatile Thread writerThread;
+
+  // Capture clock, published by the capture tap thread. The two values are not updated
+  // atomically; a torn read is off by at most one frame, which is below the resync threshold.
+  private volatile int nearSampleRate;
+  private volatile long nearClockSamples;
+  private volatile long nearClockNs;
+
+  // Capture tap thread state.
+  private final byte[] nearFrame = new byte[FRAME_HEADER_BYTES + 2 * MAX_FRAME_SAMPLES];
+  private final ByteBuffer nearFrameBuffer =
+      ByteBuffer.wrap(nearFrame).order(ByteOrder.LITTLE_ENDIAN);
+  private long nearFrameCounter;
+  // Tap sequence number of the previous near-end frame, or -1 before the first one.
+  private long nearSequenceNumber = -1;
+
+  // Far-end sink thread state.
+  private final byte[] farFrame = new byte[FRAME_HEADER_BYTES + 2 * MAX_FRAME_SAMPLES];
+  private final ByteBuffer farFrameBuffer =
+      ByteBuffer.wrap(farFrame).order(ByteOrder.LITTLE_ENDIAN);
+  private short[] farMono = new short[MAX_FRAME_SAMPLES];
+  private long farFrameCounter;
+  // Capture sample index of the next far-end sample, or -1 if the far-end is not anchored.
+  private long farNextIndex = -1;
+  // Position of the next output sample in input samples of the current frame; -1 refers to
+  // `farPreviousSample`, the last sample of the previous frame.
+  private double farResamplePosition;
+  private short farPreviousSample;
+
+  // Writer thread state.
+  private final byte[] headerBytes = new byte[FRAME_HEADER_BYTES];
+  private final ByteBuffer headerBuffer =
+      ByteBuffer.wrap(headerBytes).order(ByteOrder.LITTLE_ENDIAN);
+  private final byte[] payloadBytes = new byte[2 * MAX_FRAME_SAMPLES];
+  private final short[] nearStage = new short[STAGING_SAMPLES];
+  private final short[] farStage = new short[STAGING_SAMPLES];
+  private final byte[] outputChunk = new byte[4 * OUTPUT_CHUNK_SAMPLES];
+  private long outputPosition;
+  private long nearStagedEnd;
+  private long farStagedEnd;
+
+  // Counters are written by a single thread each and may be read from any thread.
+  private volatile long droppedNearFrames;
+  private volatile long droppedFarFrames;
+  private volatile long farResyncs;
+  private volatile long lateFarSamples;
+
+  /** Starts the writer thread. Samples are ignored until this has been called. */
+  public boolean start() {
+    Log.d(TAG, "start");
+    if (!Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())) {
+      Log.e(TAG, "Writing to external media is not possible");
+      return false;
+    }
+    final Thread previousThread = writerThread;
+    if (previousThread != null) {
+      if (isRunning) {
+        Log.w(TAG, "Recording has already started");
+        return true;
+      }
+      // A second writer would be a second consumer of the single-consumer ring buffers.
+      if (previousThread.isAlive()) {
+        Log.e(TAG, "The previous writer thread has not exited yet");
+        return false;
+      }
+      writerThread = null;
+    }
+    isRunning = true;
+    Thread thread = new Thread(this::writerLoop, "DualTrackWriter");
+    writerThread = thread;
+    thread.start();
+    return true;
+  }
+
+  /** Stops recording, flushes pending samples and closes the output files. */
+  public void stop() {
+    Log.d(TAG, "stop");
+    isRunning = false;
+    Thread thread = writerThread;
+    if (thread == null) {
+      return;
+    }
+    LockSupport.unpark(thread);
+    try {
+      thread.join(WRITER_JOIN_TIMEOUT_MS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (thread.isAlive()) {
+      // Kept so that start() does not run a second writer while this one still drains the rings.
+      Log.w(TAG, "Writer thread did not exit within " + WRITER_JOIN_TIMEOUT_MS + " ms");
+      return;
+    }
+    writerThread = null;
+    Log.d(TAG, "Recording stopped. Dropped near-end frames: " + droppedNearFrames
+            + ", dropped far-end frames: " + droppedFarFrames + ", far-end resyncs: " + farResyncs
+            + ", late far-end samples: " + lateFarSamples);
+  }
+
+  public long getDroppedNearFrames() {
+    return droppedNearFrames;
+  }
+
+  public long getDroppedFarFrames() {
+    return droppedFarFrames;
+  }
+
+  /** Number of times the far-end stream was re-anchored to the capture clock. */
+  public long getFarResyncs() {
+    return farResyncs;
+  }
+
+  // Called on the capture tap thread with near-end samples.
+  @Override
+  public void onCaptureFrame(CaptureFrame frame) {
+    if (!isRunning) {
+      return;
+    }
+    final int sampleRate = frame.getSampleRate();
+    if (nearSampleRate == 0) {
+      nearSampleRate = sampleRate;
+    } else if (nearSampleRate != sampleRate) {
+      // The recording has a single sample clock; a rate change would break alignment.
+      droppedNearFrames++;
+      return;
+    }
+    final long captureTimeNs = frame.getCaptureTimeNs();
+    final ShortBuffer data = frame.getSamples();
+    final int channels = frame.getChannelCount();
+    final int frameSamples = frame.getFrameCount();
+    long sampleIndex = nearClockSamples;
+    if (nearSequenceNumber >= 0 && frame.getSequenceNumber() > nearSequenceNumber + 1) {
+      // Frames lost in the tap queue; they had the same size as this one in practice.
+      final long lostFrames = frame.getSequenceNumber() - nearSequenceNumber - 1;
+      droppedNearFrames += lostFrames;
+      nearFrameCounter += lostFrames;
+      sampleIndex += lostFrames * frameSamples;
+    }
+    nearSequenceNumber = frame.getSequenceNumber();
+    if (frameSamples <= MAX_FRAME_SAMPLES) {
+      nearFrameBuffer.clear();
+      nearFrameBuffer.putLong(nearFrameCounter).putLong(sampleIndex).putLong(captureTimeNs);
+      nearFrameBuffer.putInt(frameSamples);
+      for (int i = 0; i < frameSamples; ++i) {
+        int sum = 0;
+        for (int c = 0; c < channels; ++c) {
+          sum += data.get(i * channels + c);
+        }
+        nearFrameBuffer.putShort((short) (sum / channels));
+      }
+      if (!nearRing.write(nearFrame, 0, nearFrameBuffer.position())) {
+        droppedNearFrames++;
+      }
+    } else {
+      droppedNearFrames++;
+    }
+    // The clock advances even for dropped frames; the writer fills the gap with silence.
+    nearFrameCounter++;
+    nearClockNs = captureTimeNs;
+    nearClockSamples = sampleIndex + frameSamples;
+    wakeWriter();
+  }
+
+  // Called on the WebRTC audio playout thread with far-end samples of the remote track.
+  @Override
+  public void onData(ByteBuffer audioData, int bitsPerSample, int sampleRate,
+      int numberOfChannels, int numberOfFrames, long absoluteCaptureTimestampMs) {
+    final int nearRate = nearSampleRate;
+    if (!isRunning || nearRate == 0 || bitsPerSample != 16 || numberOfFrames <= 0) {
+      // Far-end samples cannot be placed before the capture clock is running.
+      return;
+    }
+    final long nowNs = System.nanoTime();
+    final long anchorIndex = nearClockSamples + (nowNs - nearClockNs) * nearRate / 1_000_000_000L;
+    if (farNextIndex < 0
+        || Math.abs(anchorIndex - farNextIndex) > (long) nearRate * RESYNC_THRESHOLD_MS / 1000) {
+      if (farNextIndex >= 0) {
+        farResyncs++;
+      }
+      farNextIndex = anchorIndex;
+      farResamplePosition = 0;
+    }
+
+    if (farMono.length < numberOfFrames) {
+      farMono = new short[numberOfFrames];
+    }
+    // The buffer is shared with the other sinks, so its byte order is left alone; the samples are
+    // in native order whatever order the buffer is set to.
+    final boolean swap = audioData.order() != ByteOrder.nativeOrder();
+    final int base = audioData.position();
+    for (int i = 0; i < numberOfFrames; ++i) {
+      int sum = 0;
+      for (int c = 0; c < numberOfChannels; ++c) {
+        final short sample = audioData.getShort(base + 2 * (i * numberOfChannels + c));
+        sum += swap ? Short.reverseBytes(sample) : sample;
+      }
+      farMono[i] = (short) (sum / numberOfChannels);
+    }
+
+    // Linear interpolation to the capture rate; a plain copy when the rates match.
+    final double step = (double) sampleRate / nearRate;
+    farFrameBuffer.clear();
+    farFrameBuffer.putLong(farFrameCounter).putLong(farNextIndex).putLong(nowNs);
+    final int countPosition = farFrameBuffer.position();
+    farFrameBuffer.putInt(0);
+    int outputSamples = 0;
+    double position = farResamplePosition;
+    while (position <= numberOfFrames - 1 && outputSamples < MAX_FRAME_SAMPLES) {
+      final int index = (int) Math.floor(position);
+      final double fraction = position - index;
+      final int s0 = index < 0 ? farPreviousSample : farMono[index];
+      final int s1 = farMono[index + 1 < numberOfFrames ? index + 1 : index];
+      farFrameBuffer.putShort((short) Math.round(s0 + (s1 - s0) * fraction));
+      outputSamples++;
+      position += step;
+    }
+    farResamplePosition = position - numberOfFrames;
+    farPreviousSample = farMono[numberOfFrames - 1];
+    farFrameBuffer.putInt(countPosition, outputSamples);
+
+    if (!farRing.write(farFrame, 0, farFrameBuffer.position())) {
+      droppedFarFrames++;
+    }
+    farFrameCounter++;
+    farNextIndex += outputSamples;
+  }
+
+  private void wakeWriter() {
+    if (nearRing.available() + farRing.available() >= RING_BUFFER_CAPACITY_BYTES / 8) {
+      Thread thread = writerThread;
+      if (thread != null) {
+        LockSupport.unpark(thread);
+      }
+    }
+  }
+
+  private void writerLoop() {
+    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+    while (isRunning && nearSampleRate == 0) {
+      LockSupport.parkNanos(this, WRITER_IDLE_TIMEOUT_NS);
+    }
+    final int sampleRate = nearSampleRate;
+    if (sampleRate == 0) {
+      return;
+    }
+    final String baseName = "recorded_dual_16bits_" + sampleRate + "Hz_"
+        + new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date());
+    final File directory = Environment.getExternalStorageDirectory();
+    final WavSegmentWriter wavWriter =
+        new WavSegmentWriter(directory, baseName, sampleRate, 2, WAV_SEGMENT_DURATION_SECONDS);
+    Writer frameLog = null;
+    try {
+      frameLog = new BufferedWriter(new FileWriter(new File(directory, baseName + "_frames.csv")));
+      frameLog.write("stream,frame,sample_index,samples,arrival_ns\n");
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to open frame log: " + e.getMessage());
+      frameLog = null;
+    }
+    Log.d(TAG, "Recording near-end and far-end audio to " + baseName);
+
+    final long holdbackSamples = (long) sampleRate * WRITER_HOLDBACK_MS / 1000;
+    try {
+      while (true) {
+        final boolean running = isRunning;
+        // Far-end frames first, so that they are staged before the matching capture samples
+        // leave the holdback window.
+        final boolean readFar = drainRing(farRing, false, frameLog, wavWriter);
+        final boolean readNear = drainRing(nearRing, true, frameLog, wavWriter);
+        if (!running) {
+          emit(wavWriter, Math.max(nearStagedEnd, outputPosition));
+          break;
+        }
+        emit(wavWriter, nearStagedEnd - holdbackSamples);
+        if (!readFar && !readNear) {
+          LockSupport.parkNanos(this, WRITER_IDLE_TIMEOUT_NS);
+        }
+      }
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to write dual-track recording: " + e.getMessage());
+    }
+    try {
+      wavWriter.close();
+      if (frameLog != null) {
+        frameLog.close();
+      }
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to close dual-track recording: " + e);
+    }
+  }
+
+  // Moves all complete frames from `ring` into the staging window. Returns true if any frame was
+  // read.
+  private boolean drainRing(AudioRingBuffer ring, boolean near, @Nullable Writer frameLog,
+      WavSegmentWriter wavWriter) throws IOException {
+    boolean readAny = false;
+    // Producers write whole frames in one call, so a non-empty ring always holds a full frame.
+    while (ring.available() >= FRAME_HEADER_BYTES) {
+      ring.read(headerBytes, 0, FRAME_HEADER_BYTES);
+      headerBuffer.clear();
+      final long frame = headerBuffer.getLong();
+      final long sampleIndex = headerBuffer.getLong();
+      final long arrivalNs = headerBuffer.getLong();
+      final int sampleCount = headerBuffer.getInt();
+      ring.read(payloadBytes, 0, 2 * sampleCount);
+      readAny = true;
+      if (frameLog != null) {
+        frameLog.write((near ? "near," : "far,") + frame + "," + sampleIndex + "," + sampleCount
+            + "," + arrivalNs + "\n");
+      }
+      stage(near, sampleIndex, sampleCount, wavWriter);
+    }
+    return readAny;
+  }
+
+  private void stage(boolean near, long sampleIndex, int sampleCount, WavSegmentWriter wavWriter)
+      throws IOException {
+    final short[] stage = near ? nearStage : farStage;
+    long end = sampleIndex + sampleCount;
+    if (!near && sampleIndex > nearStagedEnd + STAGING_SAMPLES / 2) {
+      // Far ahead of the capture clock; placing it would force out unaligned audio.
+      return;
+    }
+    if (end > outputPosition + STAGING_SAMPLES) {
+      // The window is full; write out the oldest samples even if they are still held back.
+      emit(wavWriter, end - STAGING_SAMPLES);
+    }
+    int first = 0;
+    if (sampleIndex < outputPosition) {
+      first = (int) Math.min(sampleCount, outputPosition - sampleIndex);
+      if (!near) {
+        lateFarSamples += first;
+      }
+    }
+    // Samples between the previous frame and this one were never delivered.
+    final long stagedEnd = near ? nearStagedEnd : farStagedEnd;
+    for (long i = Math.max(stagedEnd, outputPosition); i < sampleIndex; ++i) {
+      stage[(int) (i & STAGING_MASK)] = 0;
+    }
+    for (int i = first; i < sampleCount; ++i) {
+      stage[(int) ((sampleIndex + i) & STAGING_MASK)] =
+          (short) ((payloadBytes[2 * i] & 0xFF) | (payloadBytes[2 * i + 1] << 8));
+    }
+    if (near) {
+      nearStagedEnd = Math.max(nearStagedEnd, end);
+    } else {
+      farStagedEnd = Math.max(farStagedEnd, end);
+    }
+  }
+
+  // Writes interleaved near/far samples up to (excluding) `endPosition`.
+  private void emit(WavSegmentWriter wavWriter, long endPosition) throws IOException {
+    while (outputPosition < endPosition) {
+      final int count = (int) Math.min(OUTPUT_CHUNK_SAMPLES, endPosition - outputPosition);
+      for (int i = 0; i < count; ++i) {
+        final long position = outputPosition + i;
+        final int index = (int) (position & STAGING_MASK);
+        final short near = position < nearStagedEnd ? nearStage[index] : 0;
+        final short far = position < farStagedEnd ? farStage[index] : 0;
+        outputChunk[4 * i] = (byte) near;
+        outputChunk[4 * i + 1] = (byte) (near >> 8);
+        outputChunk[4 * i + 2] = (byte) far;
+        outputChunk[4 * i + 3] = (byte) (far >> 8);
+      }
+      wavWriter.write(outputChunk, 0, 4 * count);
+      outputPosition += count;
+    }
+  }
+}
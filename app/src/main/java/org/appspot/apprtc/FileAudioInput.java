@@ -0,0 +1,195 @@
+package org.appspot.apprtc;
+
+import android.media.AudioFormat;
+import android.util.Log;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import org.webrtc.audio.JavaAudioDeviceModule.AudioRecordDataCallback;
+
+/**
+ * Replaces the microphone signal with the samples of a file, so that every run of a call sends
+ * the same audio: regression runs, latency runs and builds can then be compared directly.
+ *
+ * <p>The file is fed in through the audio device module's record data callback, which sees every
+ * recorded buffer before WebRTC does. The recorder keeps running and paces the file in real time;
+ * only its samples are overwritten. Everything downstream, the capture tap included, gets the
+ * file. The file is mixed down to mono and resampled linearly to the recording rate, and either
+ * loops or is followed by silence.
+ *
+ * <p>Supported are WAV files with 16-bit PCM and raw 16-bit little-endian mono PCM at
+ * {@link #RAW_PCM_SAMPLE_RATE}. The file is read into memory when opened, at most
+ * {@link #MAX_FILE_BYTES} of it; the audio thread then neither allocates nor blocks.
+ */
+public class FileAudioInput implements AudioRecordDataCallback {
+  private static final String TAG = "FileAudioInput";
+  /** Sample rate assumed for files without a WAV header. */
+  public static final int RAW_PCM_SAMPLE_RATE = 48000;
+  /** Files are read up to this size, almost six minutes of mono audio at 48 kHz. */
+  public static final int MAX_FILE_BYTES = 32 << 20;
+  private static final int WAVE_FORMAT_PCM = 1;
+  private static final int WAVE_FORMAT_EXTENSIBLE = 0xFFFE;
+
+  private final String path;
+  private final short[] samples;
+  private final int sampleRate;
+  private final boolean loop;
+
+  // Audio thread.
+  private double position;
+  private boolean ended;
+  private boolean formatWarned;
+
+  private FileAudioInput(String path, short[] samples, int sampleRate, boolean loop) {
+    this.path = path;
+    this.samples = samples;
+    this.sampleRate = sampleRate;
+    this.loop = loop;
+  }
+
+  /**
+   * Reads the audio of `path`, a WAV file if it has a RIFF header and raw PCM otherwise.
+   *
+   * @throws IOException if the file cannot be read, has an unsupported format or no samples.
+   */
+  public static FileAudioInput open(String path, boolean loop) throws IOException {
+    final File file = new File(path);
+    if (file.length() > MAX_FILE_BYTES) {
+      Log.w(TAG, "Reading only the first " + MAX_FILE_BYTES + " bytes of " + path);
+    }
+    final byte[] bytes = new byte[(int) Math.min(file.length(), MAX_FILE_BYTES)];
+    try (InputStream input = new FileInputStream(file)) {
+      int offset = 0;
+      while (offset < bytes.length) {
+        final int count = input.read(bytes, offset, bytes.length - offset);
+        if (count < 0) {
+          break;
+        }
+        offset += count;
+      }
+    }
+    final ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    final FileAudioInput input;
+    if (bytes.length >= 12 && buffer.getInt(0) == fourCc("RIFF")
+        && buffer.getInt(8) == fourCc("WAVE")) {
+      input = readWav(path, buffer, loop);
+    } else {
+      input = new FileAudioInput(path,
+          mixDown(buffer, 0, bytes.length / 2, 1), RAW_PCM_SAMPLE_RATE, loop);
+    }
+    if (input.samples.length == 0) {
+      throw new IOException("No audio in " + path);
+    }
+    Log.d(TAG, "Opened " + path + ": " + input.samples.length + " samples at "
+            + input.sampleRate + " Hz" + (loop ? ", looping" : ""));
+    return input;
+  }
+
+  private static FileAudioInput readWav(String path, ByteBuffer buffer, boolean loop)
+      throws IOException {
+    int channels = 0;
+    int sampleRate = 0;
+    int offset = 12;
+    while (offset + 8 <= buffer.limit()) {
+      final int id = buffer.getInt(offset);
+      final int size = buffer.getInt(offset + 4);
+      final int body = offset + 8;
+      if (id == fourCc("fmt ") && size >= 16) {
+        final int format = buffer.getShort(body) & 0xFFFF;
+        channels = buffer.getShort(body + 2);
+        sampleRate = buffer.getInt(body + 4);
+        final int bits = buffer.getShort(body + 14);
+        if ((format != WAVE_FORMAT_PCM && format != WAVE_FORMAT_EXTENSIBLE) || bits != 16
+            || channels <= 0 || sampleRate <= 0) {
+          throw new IOException("Not 16-bit PCM: format " + format + ", " + bits + " bits, "
+              + channels + " channels, " + sampleRate + " Hz");
+        }
+      } else if (id == fourCc("data")) {
+        if (channels == 0) {
+          throw new IOException("No format before the audio in " + path);
+        }
+        // The size of a file cut short by a crash is often wrong; trust the file length.
+        final int frames = (Math.min(buffer.limit(), body + (size & 0x7FFFFFFF)) - body)
+            / (2 * channels);
+        return new FileAudioInput(
+            path, mixDown(buffer, body, frames, channels), sampleRate, loop);
+      }
+      if (size < 0) {
+        break;
+      }
+      offset = body + size + (size & 1);
+    }
+    throw new IOException("No audio in " + path);
+  }
+
+  // Averages the channels of `frames` interleaved frames from `offset` on.
+  private static short[] mixDown(ByteBuffer buffer, int offset, int frames, int channels) {
+    final short[] mono = new short[frames];
+    for (int i = 0; i < mono.length; i++) {
+      int sum = 0;
+      for (int channel = 0; channel < channels; channel++) {
+        sum += buffer.getShort(offset + 2 * (i * channels + channel));
+      }
+      mono[i] = (short) (sum / channels);
+    }
+    return mono;
+  }
+
+  private static int fourCc(String id) {
+    return id.charAt(0) | (id.charAt(1) << 8) | (id.charAt(2) << 16) | (id.charAt(3) << 24);
+  }
+
+  public String getPath() {
+    return path;
+  }
+
+  @Override
+  public void onAudioDataRecorded(
+      int audioFormat, int channelCount, int sampleRate, ByteBuffer audioBuffer) {
+    if (audioFormat != AudioFormat.ENCODING_PCM_16BIT) {
+      if (!formatWarned) {
+        formatWarned = true;
+        Log.e(TAG, "Recording format " + audioFormat + " not supported, keeping the microphone");
+      }
+      return;
+    }
+    // The samples are in native byte order whatever the buffer's order is; absolute puts with
+    // the bytes swapped as needed leave the buffer as it is and need no view.
+    final boolean swap = audioBuffer.order() != ByteOrder.nativeOrder();
+    final int frames = audioBuffer.remaining() / (2 * channelCount);
+    final double step = (double) this.sampleRate / sampleRate;
+    int index = audioBuffer.position();
+    for (int i = 0; i < frames; i++) {
+      final short sample = nextSample(step);
+      final short value = swap ? Short.reverseBytes(sample) : sample;
+      for (int channel = 0; channel < channelCount; channel++) {
+        audioBuffer.putShort(index, value);
+        index += 2;
+      }
+    }
+  }
+
+  // Linear interpolation at `position`, then advances it by `step` file samples.
+  private short nextSample(double step) {
+    if (ended) {
+      return 0;
+    }
+    final int index = (int) position;
+    final int next = index + 1 < samples.length ? index + 1 : (loop ? 0 : index);
+    final double fraction = position - index;
+    final double value = samples[index] + fraction * (samples[next] - samples[index]);
+    position += step;
+    if (position >= samples.length) {
+      if (loop) {
+        position -= samples.length;
+      } else {
+        ended = true;
+        Log.i(TAG, "End of " + path + ", sending silence");
+      }
+    }
+    return (short) Math.round(value);
+  }
+}
@@ -0,0 +1,395 @@
+package org.appspot.apprtc;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Streaming acoustic feedback (howl) detector operating on power spectra.
+ *
+ * <p>For the strongest spectral peaks of every frame the classic feedback detection features are
+ * computed:
+ * <ul>
+ * <li>PAPR, peak-to-average power ratio: howl towers over the rest of the spectrum.
+ * <li>PHPR, peak-to-harmonic power ratio: howl is a pure tone, voiced speech and music have
+ *     harmonics.
+ * <li>PNPR, peak-to-neighbour power ratio: howl is narrower than speech formants.
+ * <li>IMSD, interframe magnitude slope deviation: a building howl grows by a constant number of
+ *     dB per frame, so its level slopes measured over different spans agree.
+ * </ul>
+ * A peak that passes all thresholds for {@link #ONSET_FRAMES} consecutive frames raises a
+ * {@link HowlEvent.Type#ONSET} event; once it has failed them for {@link #OFFSET_FRAMES} frames a
+ * {@link HowlEvent.Type#OFFSET} event follows. Peaks at frequencies that are known to howl in the
+ * current setup ({@link #setKnownFrequencies}) raise the onset after {@link #KNOWN_ONSET_FRAMES}.
+ *
+ * <p>Power values are expected to be normalized so that a full-scale sine has power 1.
+ * {@link #process} does not allocate except for the rare events and must always be called from
+ * the same thread; listeners are called on that thread. This class has no Android dependencies.
+ */
+public class HowlDetector {
+  /** Onset or offset of howling at one frequency. */
+  public static class HowlEvent {
+    public enum Type { ONSET, OFFSET }
+
+    public final Type type;
+    public final float frequencyHz;
+    // Peak level in dBFS; for OFFSET events the maximum level during the episode.
+    public final float levelDb;
+    // Stream time of the event.
+    public final long timestampMs;
+    // Time since the onset; 0 for ONSET events.
+    public final long durationMs;
+
+    public HowlEvent(
+        Type type, float frequencyHz, float levelDb, long timestampMs, long durationMs) {
+      this.type = type;
+      this.frequencyHz = frequencyHz;
+      this.levelDb = levelDb;
+      this.timestampMs = timestampMs;
+      this.durationMs = durationMs;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(Locale.US, "%s %.0f Hz %.1f dBFS at %d ms (%d ms)", type, frequencyHz,
+          levelDb, timestampMs, durationMs);
+    }
+  }
+
+  /** Receives howl events on the thread that calls {@link #process}. */
+  public interface Listener {
+    void onHowlEvent(HowlEvent event);
+  }
+
+  public static final float PAPR_THRESHOLD_DB = 10f;
+  public static final float PHPR_THRESHOLD_DB = 10f;
+  public static final float PNPR_THRESHOLD_DB = 15f;
+  public static final float IMSD_THRESHOLD_DB = 1f;
+  // Peaks below this level are never considered howling.
+  public static final float MIN_LEVEL_DB = -60f;
+  public static final int ONSET_FRAMES = 5;
+  public static final int KNOWN_ONSET_FRAMES = 2;
+  public static final int OFFSET_FRAMES = 20;
+  // Number of frames of level history used for IMSD.
+  private static final int IMSD_FRAMES = 6;
+  private static final int CANDIDATES_PER_FRAME = 3;
+  private static final int MAX_TRACKS = 4;
+  // Bins on each side of a peak that belong to its main lobe and are skipped by PNPR.
+  private static final int MAIN_LOBE_BINS = 2;
+  private static final int NEIGHBOUR_BINS = 4;
+  // A track follows its peak if it moves by at most this many bins.
+  private static final int TRACK_TOLERANCE_BINS = 2;
+  private static final float MIN_POWER = 1e-12f;
+
+  private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+  private final int binCount;
+  // Power history for IMSD, indexed by [frame % IMSD_FRAMES][bin].
+  private final float[][] history;
+  private int frameCount;
+  private final int[] candidateBins = new int[CANDIDATES_PER_FRAME];
+  private final Track[] tracks = new Track[MAX_TRACKS];
+  // Replaced as a whole by setKnownFrequencies().
+  private volatile float[] knownFrequenciesHz = new float[0];
+
+  // Features of the most recent strongest candidate, for diagnostics.
+  private volatile float lastPaprDb;
+  private volatile float lastPhprDb;
+  private volatile float lastPnprDb;
+  private volatile float lastImsdDb;
+  private volatile boolean howling;
+
+  // A spectral peak that is followed across frames.
+  private static class Track {
+    boolean active;
+    boolean howling;
+    int bin;
+    // Whether the peak passed all thresholds in the current frame.
+    boolean hit;
+    // Consecutive frames with / without a hit.
+    int hits;
+    int misses;
+    long onsetMs;
+    float maxLevelDb;
+  }
+
+  /** @param fftSize Transform length of the spectra passed to {@link #process}. */
+  public HowlDetector(int fftSize) {
+    binCount = fftSize / 2 + 1;
+    history = new float[IMSD_FRAMES][binCount];
+    for (int i = 0; i < MAX_TRACKS; ++i) {
+      tracks[i] = new Track();
+    }
+  }
+
+  public void addListener(Listener listener) {
+    listeners.add(listener);
+  }
+
+  public void removeListener(Listener listener) {
+    listeners.remove(listener);
+  }
+
+  /**
+   * Sets the frequencies that howled before in the current setup; howling there is reported
+   * sooner. Safe to call from any thread; an empty array clears them.
+   */
+  public void setKnownFrequencies(float[] frequenciesHz) {
+    knownFrequenciesHz = frequenciesHz.clone();
+  }
+
+  /** Returns true while howling is detected at any frequency. Safe to call from any thread. */
+  public boolean isHowling() {
+    return howling;
+  }
+
+  public float getLastPaprDb() {
+    return lastPaprDb;
+  }
+
+  public float getLastPhprDb() {
+    return lastPhprDb;
+  }
+
+  public float getLastPnprDb() {
+    return lastPnprDb;
+  }
+
+  public float getLastImsdDb() {
+    return lastImsdDb;
+  }
+
+  /**
+   * Analyzes one frame.
+   *
+   * @param power       Normalized power of bins 0 to fftSize/2.
+   * @param sampleRate  Sample rate of the analyzed audio.
+   * @param timestampMs Stream time of the frame, used for the events.
+   */
+  public void process(float[] power, int sampleRate, long timestampMs) {
+    final float[] current = history[frameCount % IMSD_FRAMES];
+    float sum = 0;
+    for (int k = 0; k < binCount; ++k) {
+      current[k] = power[k];
+      sum += power[k];
+    }
+    frameCount++;
+    final float average = Math.max(sum / binCount, MIN_POWER);
+
+    final int candidates = findCandidates(current);
+    for (Track track : tracks) {
+      track.hit = track.active && updateTrack(track, candidates, current, average);
+    }
+    for (int c = 0; c < candidates; ++c) {
+      final int bin = candidateBins[c];
+      if (findTrack(bin) == null && isHowlCandidate(bin, current, average, c == 0)) {
+        startTrack(bin, toDb(current[bin]));
+      }
+    }
+    boolean anyHowling = false;
+    for (Track track : tracks) {
+      if (track.active) {
+        advanceTrack(track, sampleRate, timestampMs, toDb(current[track.bin]));
+        anyHowling |= track.howling;
+      }
+    }
+    howling = anyHowling;
+  }
+
+  // Moves `track` to a nearby candidate peak and returns whether that peak looks like howling.
+  private boolean updateTrack(Track track, int candidates, float[] current, float average) {
+    for (int c = 0; c < candidates; ++c) {
+      final int bin = candidateBins[c];
+      if (Math.abs(bin - track.bin) <= TRACK_TOLERANCE_BINS) {
+        if (!isHowlCandidate(bin, current, average, c == 0)) {
+          return false;
+        }
+        // Only follow peaks that still look like howling, so the track cannot wander off.
+        track.bin = bin;
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // Starts following a new peak if a track is free; otherwise the peak is ignored.
+  private void startTrack(int bin, float levelDb) {
+    for (Track track : tracks) {
+      if (!track.active) {
+        track.active = true;
+        track.howling = false;
+        track.bin = bin;
+        track.hit = true;
+        track.hits = 0;
+        track.misses = 0;
+        track.maxLevelDb = levelDb;
+        return;
+      }
+    }
+  }
+
+  private void advanceTrack(Track track, int sampleRate, long timestampMs, float levelDb) {
+    if (track.hit) {
+      track.hits++;
+      track.misses = 0;
+      track.maxLevelDb = Math.max(track.maxLevelDb, levelDb);
+      if (!track.howling
+          && track.hits >= (isKnown(track.bin, sampleRate) ? KNOWN_ONSET_FRAMES : ONSET_FRAMES)) {
+        track.howling = true;
+        track.onsetMs = timestampMs;
+        notify(new HowlEvent(HowlEvent.Type.ONSET, binToHz(track.bin, sampleRate),
+            track.maxLevelDb, timestampMs, 0));
+      }
+      return;
+    }
+    track.hits = 0;
+    track.misses++;
+    if (!track.howling) {
+      // A candidate that never reached the onset is dropped right away.
+      track.active = false;
+    } else if (track.misses >= OFFSET_FRAMES) {
+      track.active = false;
+      track.howling = false;
+      notify(new HowlEvent(HowlEvent.Type.OFFSET, binToHz(track.bin, sampleRate),
+          track.maxLevelDb, timestampMs, timestampMs - track.onsetMs));
+    }
+  }
+
+  // Whether `bin` is within the track tolerance of a known howl frequency.
+  private boolean isKnown(int bin, int sampleRate) {
+    final float toleranceHz = binToHz(TRACK_TOLERANCE_BINS, sampleRate);
+    final float hz = binToHz(bin, sampleRate);
+    for (float knownHz : knownFrequenciesHz) {
+      if (Math.abs(knownHz - hz) <= toleranceHz) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // Returns the active track following `bin`, or null.
+  private Track findTrack(int bin) {
+    for (Track track : tracks) {
+      if (track.active && Math.abs(bin - track.bin) <= TRACK_TOLERANCE_BINS) {
+        return track;
+      }
+    }
+    return null;
+  }
+
+  // Stores the strongest local maxima in `candidateBins`, strongest first, and returns their
+  // number.
+  private int findCandidates(float[] current) {
+    int count = 0;
+    for (int k = 2; k < binCount - 1; ++k) {
+      final float p = current[k];
+      if (p <= current[k - 1] || p < current[k + 1]) {
+        continue;
+      }
+      // Insertion into the short sorted candidate list.
+      int position = count;
+      while (position > 0 && current[candidateBins[position - 1]] < p) {
+        position--;
+      }
+      if (position >= CANDIDATES_PER_FRAME) {
+        continue;
+      }
+      for (int i = Math.min(count, CANDIDATES_PER_FRAME - 1); i > position; --i) {
+        candidateBins[i] = candidateBins[i - 1];
+      }
+      candidateBins[position] = k;
+      count = Math.min(count + 1, CANDIDATES_PER_FRAME);
+    }
+    return count;
+  }
+
+  private boolean isHowlCandidate(int bin, float[] current, float average, boolean strongest) {
+    final float peak = current[bin];
+    final float levelDb = toDb(peak);
+    final float papr = levelDb - toDb(average);
+    final float phpr = computePhpr(bin, current, peak);
+    final float pnpr = computePnpr(bin, current, peak);
+    final float imsd = computeImsd(bin);
+    if (strongest) {
+      lastPaprDb = papr;
+      lastPhprDb = phpr;
+      lastPnprDb = pnpr;
+      lastImsdDb = imsd;
+    }
+    return levelDb >= MIN_LEVEL_DB && papr >= PAPR_THRESHOLD_DB && phpr >= PHPR_THRESHOLD_DB
+        && pnpr >= PNPR_THRESHOLD_DB && imsd <= IMSD_THRESHOLD_DB;
+  }
+
+  // Minimum ratio of the peak to its 2nd and 3rd harmonic and its subharmonic. Harmonics above
+  // the Nyquist frequency are ignored.
+  private float computePhpr(int bin, float[] current, float peak) {
+    float strongest = MIN_POWER;
+    for (int harmonic = 2; harmonic <= 3; ++harmonic) {
+      final int h = bin * harmonic;
+      if (h + 1 < binCount) {
+        strongest = Math.max(strongest, maxAround(current, h, 1));
+      }
+    }
+    if (bin / 2 > 1) {
+      strongest = Math.max(strongest, maxAround(current, bin / 2, 1));
+    }
+    return toDb(peak) - toDb(strongest);
+  }
+
+  // Minimum ratio of the peak to the bins just outside its main lobe.
+  private float computePnpr(int bin, float[] current, float peak) {
+    float strongest = MIN_POWER;
+    for (int offset = MAIN_LOBE_BINS + 1; offset <= MAIN_LOBE_BINS + NEIGHBOUR_BINS; ++offset) {
+      if (bin - offset >= 0) {
+        strongest = Math.max(strongest, current[bin - offset]);
+      }
+      if (bin + offset < binCount) {
+        strongest = Math.max(strongest, current[bin + offset]);
+      }
+    }
+    return toDb(peak) - toDb(strongest);
+  }
+
+  // Mean absolute deviation between the level slopes measured over 1 .. IMSD_FRAMES - 1 frames
+  // and the slope over the full span, in dB per frame. Small values mean steady growth (or a
+  // steady level). Returns infinity until enough history is available.
+  private float computeImsd(int bin) {
+    if (frameCount < IMSD_FRAMES) {
+      return Float.POSITIVE_INFINITY;
+    }
+    final int newest = (frameCount - 1) % IMSD_FRAMES;
+    final float newestDb = toDb(history[newest][bin]);
+    final int span = IMSD_FRAMES - 1;
+    final float fullSlope =
+        (newestDb - toDb(history[(newest + IMSD_FRAMES - span) % IMSD_FRAMES][bin])) / span;
+    float deviation = 0;
+    for (int m = 1; m < span; ++m) {
+      final float slope =
+          (newestDb - toDb(history[(newest + IMSD_FRAMES - m) % IMSD_FRAMES][bin])) / m;
+      deviation += Math.abs(slope - fullSlope);
+    }
+    return deviation / (span - 1);
+  }
+
+  private static float maxAround(float[] values, int center, int radius) {
+    float max = 0;
+    for (int k = Math.max(0, center - radius); k <= Math.min(values.length - 1, center + radius);
+         ++k) {
+      max = Math.max(max, values[k]);
+    }
+    return max;
+  }
+
+  private float binToHz(int bin, float sampleRate) {
+    return bin * sampleRate / (2f * (binCount - 1));
+  }
+
+  private static float toDb(float power) {
+    return (float) (10 * Math.log10(Math.max(power, MIN_POWER)));
+  }
+
+  private void notify(HowlEvent event) {
+    for (Listener listener : listeners) {
+      listener.onHowlEvent(event);
+    }
+  }
+}
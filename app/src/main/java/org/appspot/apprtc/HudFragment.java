@@ -17,18 +17,19 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ImageButton;
 import android.widget.TextView;
-import org.webrtc.RTCStats;
-import org.webrtc.RTCStatsReport;
+import java.util.Locale;
 
 /**
  * Fragment for HUD statistics display.
  */
 public class HudFragment extends Fragment {
   private TextView statView;
+  private SpectrumView spectrumView;
   private ImageButton toggleDebugButton;
   private boolean displayHud;
   private volatile boolean isRunning;
   private CpuMonitor cpuMonitor;
+  private SpectrumAnalyzer spectrumAnalyzer;
 
   @Override
   public View onCreateView(
@@ -37,14 +38,16 @@ public class HudFragment extends Fragment {
 
     // Create UI controls.
     statView = controlView.findViewById(R.id.hud_stat_call);
+    spectrumView = controlView.findViewById(R.id.hud_spectrum);
     toggleDebugButton = controlView.findViewById(R.id.button_toggle_debug);
 
     toggleDebugButton.setOnClickListener(new View.OnClickListener() {
       @Override
       public void onClick(View view) {
         if (displayHud) {
-          statView.setVisibility(
-              statView.getVisibility() == View.VISIBLE ? View.INVISIBLE : View.VISIBLE);
+          int visibility = statView.getVisibility() == View.VISIBLE ? View.INVISIBLE : View.VISIBLE;
+          statView.setVisibility(visibility);
+          spectrumView.setVisibility(visibility);
         }
       }
     });
@@ -62,6 +65,8 @@ public class HudFragment extends Fragment {
     }
     int visibility = displayHud ? View.VISIBLE : View.INVISIBLE;
     statView.setVisibility(View.INVISIBLE);
+    spectrumView.setVisibility(View.INVISIBLE);
+    spectrumView.setAnalyzer(spectrumAnalyzer);
     toggleDebugButton.setVisibility(visibility);
     isRunning = true;
   }
@@ -76,7 +81,11 @@ public class HudFragment extends Fragment {
     this.cpuMonitor = cpuMonitor;
   }
 
-  public void updateEncoderStatistics(final RTCStatsReport report) {
+  public void setSpectrumAnalyzer(SpectrumAnalyzer spectrumAnalyzer) {
+    this.spectrumAnalyzer = spectrumAnalyzer;
+  }
+
+  public void updateAudioStatistics(final AudioStatsEngine stats) {
     if (!isRunning || !displayHud) {
       return;
     }
@@ -93,10 +102,14 @@ public class HudFragment extends Fragment {
           .append("\n");
     }
 
-    for (RTCStats stat : report.getStatsMap().values()) {
-      sb.append(stat.toString()).append("\n");
+    if (spectrumAnalyzer != null) {
+      sb.append("FFT: ")
+          .append(String.format(Locale.US, "%.1f", spectrumAnalyzer.getAverageProcessingTimeUs()))
+          .append(" us\n");
     }
 
+    sb.append(stats.formatLatest()).append("\n");
+
     statView.setText(sb.toString());
   }
 }
@@ -0,0 +1,367 @@
+package org.appspot.apprtc;
+
+import android.media.AudioAttributes;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.os.Environment;
+import android.util.Log;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ShortBuffer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.appspot.apprtc.CaptureTapMultiplexer.CaptureFrame;
+import org.appspot.apprtc.CaptureTapMultiplexer.FrameConsumer;
+import org.appspot.apprtc.util.RealFft;
+
+/**
+ * Measures the audio latency of a call by playing a short chirp ("marker") every
+ * {@link #PROBE_INTERVAL_MS} and finding it in the capture tap twice: straight from the speaker,
+ * and again after it went through the call and came back out of the speaker. Both arrivals are
+ * found by FFT cross-correlation with the marker in the same captured audio, so the time between
+ * them is exact to the sample and free of the capture latency.
+ *
+ * <p>In a loopback call the marker comes back through this device's own send and receive paths,
+ * which makes the time between the arrivals the round trip through the capture and render sides
+ * of the audio device module, encoder, jitter buffer and decoder; half of it estimates one side,
+ * the mouth-to-ear latency without network. In a call with a peer the marker returns through the
+ * peer's speaker and microphone as well, so the time is the true round trip. Both need the echo
+ * cancellers off or the return is cancelled; such probes count as lost.
+ *
+ * <p>Round trips are collected over the whole call and summarized as percentiles. Frames arrive on
+ * the capture tap thread; {@link #finish} and {@link #writeSummary} may be called from any thread.
+ */
+public class LatencyMeter implements FrameConsumer {
+  private static final String TAG = "LatencyMeter";
+  public static final long PROBE_INTERVAL_MS = 1500;
+  /** Captured audio searched for the two arrivals of a marker. */
+  public static final int WINDOW_MS = 1200;
+  private static final int MARKER_MS = 60;
+  private static final float MARKER_START_HZ = 500f;
+  private static final float MARKER_END_HZ = 3000f;
+  // -12 dBFS, loud enough to survive the codec and the way back.
+  private static final float MARKER_AMPLITUDE = 8192f;
+  // Later peaks than this after the direct arrival are the return, earlier ones room reflections.
+  private static final int MIN_LOOP_MS = 15;
+  // Correlation peak over the RMS of all lags from which an arrival counts as found.
+  private static final float DETECTION_RATIO = 6f;
+  // Share of the strongest peak from which a peak can be the direct arrival.
+  private static final float DIRECT_PEAK_SHARE = 0.3f;
+
+  /** Distribution of the measured latencies. */
+  public static final class Summary {
+    public final int probes;
+    // Probes with both arrivals found.
+    public final int detected;
+    // Round trip percentiles, NaN without detected probes. One-way is estimated as half.
+    public final double p50Ms;
+    public final double p95Ms;
+    public final double p99Ms;
+
+    Summary(int probes, int detected, double p50Ms, double p95Ms, double p99Ms) {
+      this.probes = probes;
+      this.detected = detected;
+      this.p50Ms = p50Ms;
+      this.p95Ms = p95Ms;
+      this.p99Ms = p99Ms;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(Locale.US,
+          "round trip p50 %.1f / p95 %.1f / p99 %.1f ms, one-way ~%.1f ms (%d of %d probes)",
+          p50Ms, p95Ms, p99Ms, p50Ms / 2, detected, probes);
+    }
+  }
+
+  // Describes the audio settings of the call in the summary file.
+  private final String setup;
+  private final ExecutorService player = Executors.newSingleThreadExecutor(runnable -> {
+    final Thread thread = new Thread(runnable, "LatencyMeter");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  // Capture tap thread.
+  private int sampleRate;
+  private short[] marker;
+  private float[] markerSpectrum;
+  private RealFft fft;
+  private float[] window;
+  private float[] correlation;
+  // Samples collected for the running probe, -1 between probes.
+  private int windowFill = -1;
+  private long lastSequenceNumber = -1;
+  private long nextProbeNs;
+
+  // Guarded by `this`.
+  private final List<Float> roundTripsMs = new ArrayList<>();
+  private int probes;
+  private boolean finished;
+
+  public LatencyMeter(String setup) {
+    this.setup = setup;
+  }
+
+  @Override
+  public void onCaptureFrame(CaptureFrame frame) {
+    if (frame.getSampleRate() != sampleRate) {
+      prepare(frame.getSampleRate());
+    }
+    final boolean gap = lastSequenceNumber >= 0
+        && frame.getSequenceNumber() != lastSequenceNumber + 1;
+    lastSequenceNumber = frame.getSequenceNumber();
+    final long nowNs = frame.getCaptureTimeNs();
+    if (windowFill >= 0 && gap) {
+      // The window lost audio, the times in it are wrong.
+      Log.w(TAG, "Frames lost, dropping the probe");
+      windowFill = -1;
+      nextProbeNs = nowNs;
+    }
+    if (windowFill < 0) {
+      synchronized (this) {
+        if (finished || nowNs < nextProbeNs) {
+          return;
+        }
+        probes++;
+      }
+      windowFill = 0;
+      player.execute(this::playMarker);
+    }
+    final ShortBuffer samples = frame.getSamples();
+    final int channels = frame.getChannelCount();
+    final int count = Math.min(frame.getFrameCount(), window.length - windowFill);
+    // The first channel is enough to find the marker.
+    for (int i = 0; i < count; i++) {
+      window[windowFill++] = samples.get(i * channels);
+    }
+    if (windowFill == window.length) {
+      windowFill = -1;
+      nextProbeNs = nowNs + PROBE_INTERVAL_MS * 1_000_000L - WINDOW_MS * 1_000_000L;
+      analyze();
+    }
+  }
+
+  /** Stops probing and returns the distribution of the round trips. */
+  public Summary finish() {
+    final List<Float> sorted;
+    final int probeCount;
+    synchronized (this) {
+      if (!finished) {
+        finished = true;
+        player.shutdown();
+      }
+      sorted = new ArrayList<>(roundTripsMs);
+      probeCount = probes;
+    }
+    Collections.sort(sorted);
+    final Summary summary = new Summary(probeCount, sorted.size(), percentile(sorted, 50),
+        percentile(sorted, 95), percentile(sorted, 99));
+    Log.i(TAG, setup + ": " + summary);
+    return summary;
+  }
+
+  /**
+   * Finishes if needed and writes every round trip and the percentiles as
+   * `latency_<timestamp>.csv` to external storage, each row tagged with the call's setup.
+   */
+  public Summary writeSummary() {
+    final Summary summary = finish();
+    final List<Float> roundTrips;
+    synchronized (this) {
+      roundTrips = new ArrayList<>(roundTripsMs);
+    }
+    final String timestamp = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date());
+    final File file =
+        new File(Environment.getExternalStorageDirectory(), "latency_" + timestamp + ".csv");
+    final String setupColumn = setup.replace(',', ';');
+    try (Writer writer = new FileWriter(file)) {
+      writer.write("setup,sample,round_trip_ms,one_way_ms\n");
+      for (int i = 0; i < roundTrips.size(); i++) {
+        writeRow(writer, setupColumn, Integer.toString(i + 1), roundTrips.get(i));
+      }
+      writeRow(writer, setupColumn, "p50", summary.p50Ms);
+      writeRow(writer, setupColumn, "p95", summary.p95Ms);
+      writeRow(writer, setupColumn, "p99", summary.p99Ms);
+      Log.d(TAG, "Wrote latency summary to " + file);
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to write " + file + ": " + e.getMessage());
+    }
+    return summary;
+  }
+
+  private static void writeRow(Writer writer, String setup, String sample, double roundTripMs)
+      throws IOException {
+    writer.write(String.format(
+        Locale.US, "%s,%s,%.2f,%.2f\n", setup, sample, roundTripMs, roundTripMs / 2));
+  }
+
+  // Nearest rank percentile of `sorted`, NaN if empty.
+  private static double percentile(List<Float> sorted, int percent) {
+    if (sorted.isEmpty()) {
+      return Double.NaN;
+    }
+    final int rank = (int) Math.ceil(percent / 100.0 * sorted.size());
+    return sorted.get(Math.max(0, rank - 1));
+  }
+
+  private void prepare(int sampleRate) {
+    this.sampleRate = sampleRate;
+    marker = createMarker(sampleRate);
+    final int windowLength = sampleRate * WINDOW_MS / 1000;
+    int size = 4;
+    while (size < windowLength + marker.length) {
+      size <<= 1;
+    }
+    fft = new RealFft(size);
+    markerSpectrum = new float[size];
+    for (int i = 0; i < marker.length; i++) {
+      markerSpectrum[i] = marker[i];
+    }
+    fft.forward(markerSpectrum);
+    window = new float[windowLength];
+    correlation = new float[size];
+    windowFill = -1;
+    lastSequenceNumber = -1;
+  }
+
+  // Linear chirp with a Hann envelope, which keeps its correlation peak narrow and its edges quiet.
+  static short[] createMarker(int sampleRate) {
+    final int length = sampleRate * MARKER_MS / 1000;
+    final short[] marker = new short[length];
+    final double duration = (double) length / sampleRate;
+    for (int i = 0; i < length; i++) {
+      final double t = (double) i / sampleRate;
+      final double phase = 2 * Math.PI
+          * (MARKER_START_HZ * t + (MARKER_END_HZ - MARKER_START_HZ) * t * t / (2 * duration));
+      final double envelope = 0.5 - 0.5 * Math.cos(2 * Math.PI * i / (length - 1));
+      marker[i] = (short) Math.round(MARKER_AMPLITUDE * envelope * Math.sin(phase));
+    }
+    return marker;
+  }
+
+  // Player thread.
+  private void playMarker() {
+    final short[] marker = this.marker;
+    final AudioTrack track;
+    try {
+      track = new AudioTrack(new AudioAttributes.Builder()
+                                 .setUsage(AudioAttributes.USAGE_VOICE_COMMUNICATION)
+                                 .setContentType(AudioAttributes.CONTENT_TYPE_SONIFICATION)
+                                 .build(),
+          new AudioFormat.Builder()
+              .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
+              .setSampleRate(sampleRate)
+              .setChannelMask(AudioFormat.CHANNEL_OUT_MONO)
+              .build(),
+          marker.length * 2, AudioTrack.MODE_STATIC, AudioManager.AUDIO_SESSION_ID_GENERATE);
+    } catch (IllegalArgumentException e) {
+      Log.e(TAG, "Failed to create the marker player: " + e.getMessage());
+      return;
+    }
+    try {
+      track.write(marker, 0, marker.length);
+      if (track.getState() != AudioTrack.STATE_INITIALIZED) {
+        Log.e(TAG, "Marker player not initialized");
+        return;
+      }
+      track.play();
+      Thread.sleep(WINDOW_MS / 2);
+      track.stop();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (IllegalStateException e) {
+      Log.e(TAG, "Failed to play the marker: " + e.getMessage());
+    } finally {
+      track.release();
+    }
+  }
+
+  // Finds both arrivals of the marker in `window` and records the time between them.
+  private void analyze() {
+    final float roundTripMs = findRoundTripMs(window);
+    if (Float.isNaN(roundTripMs)) {
+      Log.d(TAG, "Marker or its return not found");
+      return;
+    }
+    Log.d(TAG, "Round trip " + roundTripMs + " ms");
+    synchronized (this) {
+      if (!finished) {
+        roundTripsMs.add(roundTripMs);
+      }
+    }
+  }
+
+  /** Returns the time between the two arrivals of the marker in `input`, or NaN. */
+  float findRoundTripMs(float[] input) {
+    final int lags = input.length - marker.length + 1;
+    final int size = fft.getSize();
+    System.arraycopy(input, 0, correlation, 0, input.length);
+    for (int i = input.length; i < size; i++) {
+      correlation[i] = 0;
+    }
+    fft.forward(correlation);
+    // Multiply by the conjugate marker spectrum; bins 0 and size/2 are real.
+    correlation[0] *= markerSpectrum[0];
+    correlation[1] *= markerSpectrum[1];
+    for (int k = 2; k < size; k += 2) {
+      final float re = correlation[k];
+      final float im = correlation[k + 1];
+      final float mr = markerSpectrum[k];
+      final float mi = markerSpectrum[k + 1];
+      correlation[k] = re * mr + im * mi;
+      correlation[k + 1] = im * mr - re * mi;
+    }
+    fft.inverse(correlation);
+
+    int strongest = 0;
+    double energy = 0;
+    for (int lag = 0; lag < lags; lag++) {
+      correlation[lag] = Math.abs(correlation[lag]);
+      energy += (double) correlation[lag] * correlation[lag];
+      if (correlation[lag] > correlation[strongest]) {
+        strongest = lag;
+      }
+    }
+    final float threshold = (float) (DETECTION_RATIO * Math.sqrt(energy / lags));
+    // The return may be louder than the direct marker, so the direct one is the first strong peak.
+    final float directThreshold =
+        Math.max(threshold, DIRECT_PEAK_SHARE * correlation[strongest]);
+    final int minLoop = sampleRate * MIN_LOOP_MS / 1000;
+    int direct = -1;
+    for (int lag = 0; lag < lags; lag++) {
+      if (correlation[lag] >= directThreshold) {
+        direct = strongestIn(lag, Math.min(lags, lag + minLoop));
+        break;
+      }
+    }
+    if (direct < 0) {
+      return Float.NaN;
+    }
+    final int returned = strongestIn(direct + minLoop, lags);
+    if (returned < 0 || correlation[returned] < threshold) {
+      return Float.NaN;
+    }
+    return (returned - direct) * 1000f / sampleRate;
+  }
+
+  // Lag of the largest correlation in [from, to), -1 if empty.
+  private int strongestIn(int from, int to) {
+    int peak = -1;
+    for (int lag = from; lag < to; lag++) {
+      if (peak < 0 || correlation[lag] > correlation[peak]) {
+        peak = lag;
+      }
+    }
+    return peak;
+  }
+}
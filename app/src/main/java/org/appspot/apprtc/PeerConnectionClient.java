@@ -11,15 +11,17 @@
 package org.appspot.apprtc;
 
 import android.content.Context;
+import android.os.Build;
 import android.os.Environment;
 import android.os.ParcelFileDescriptor;
+import android.os.Process;
 import android.util.Log;
 import androidx.annotation.Nullable;
 import java.io.File;
 import java.io.IOException;
-import java.lang.reflect.Constructor;
-import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
 import java.nio.charset.Charset;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
@@ -37,9 +39,14 @@ import java.util.concurrent.Executors;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import org.appspot.apprtc.AppRTCClient.SignalingParameters;
+import org.appspot.apprtc.util.AudioConfigDelta;
+import org.appspot.apprtc.util.AudioConfigStore;
+import org.appspot.apprtc.util.AudioTuningConfig;
+import org.json.JSONException;
 import org.webrtc.AddIceObserver;
 import org.webrtc.AudioSource;
 import org.webrtc.AudioTrack;
+import org.webrtc.AudioTrackSink;
 import org.webrtc.CameraVideoCapturer;
 import org.webrtc.CandidatePairChangeEvent;
 import org.webrtc.DataChannel;
@@ -56,6 +63,7 @@ import org.webrtc.PeerConnection;
 import org.webrtc.PeerConnection.IceConnectionState;
 import org.webrtc.PeerConnection.PeerConnectionState;
 import org.webrtc.PeerConnectionFactory;
+import org.webrtc.RTCStats;
 import org.webrtc.RTCStatsCollectorCallback;
 import org.webrtc.RTCStatsReport;
 import org.webrtc.RtpParameters;
@@ -64,16 +72,11 @@ import org.webrtc.RtpSender;
 import org.webrtc.RtpTransceiver;
 import org.webrtc.SdpObserver;
 import org.webrtc.SessionDescription;
-import org.webrtc.SoftwareVideoDecoderFactory;
-import org.webrtc.SoftwareVideoEncoderFactory;
 import org.webrtc.SurfaceTextureHelper;
 import org.webrtc.VideoCapturer;
-import org.webrtc.VideoDecoderFactory;
-import org.webrtc.VideoEncoderFactory;
 import org.webrtc.VideoSink;
 import org.webrtc.VideoSource;
 import org.webrtc.VideoTrack;
-import org.webrtc.audio.AudioDeviceModule;
 import org.webrtc.audio.JavaAudioDeviceModule;
 import org.webrtc.audio.JavaAudioDeviceModule.AudioRecordErrorCallback;
 import org.webrtc.audio.JavaAudioDeviceModule.AudioRecordStateCallback;
@@ -100,6 +103,15 @@ public class PeerConnectionClient {
   private static final String VIDEO_CODEC_AV1 = "AV1";
   private static final String AUDIO_CODEC_OPUS = "opus";
   private static final String AUDIO_CODEC_ISAC = "ISAC";
+  private static final String SAVE_INPUT_AUDIO_FORMAT_WAV = "wav";
+  private static final String SAVE_INPUT_AUDIO_FORMAT_FLAC = "flac";
+  // Capture tap queue lengths in 10 ms frames.
+  private static final int ANALYSIS_TAP_QUEUE_FRAMES = 10;
+  /** Highest howl suppression level of the native audio processing. */
+  public static final int MAX_SUPPRESS_LEVEL = AudioTuningConfig.MAX_SUPPRESS_LEVEL;
+  private static final int RECORDER_TAP_QUEUE_FRAMES = 50;
+  // Beyond the recording time, for opening and releasing the probe's recorder.
+  private static final int COUPLING_PROBE_WAIT_MARGIN_MS = 500;
   private static final String VIDEO_CODEC_PARAM_START_BITRATE = "x-google-start-bitrate";
   private static final String VIDEO_FLEXFEC_FIELDTRIAL =
       "WebRTC-FlexFEC-03-Advertised/Enabled/WebRTC-FlexFEC-03/Enabled/";
@@ -115,6 +127,8 @@ public class PeerConnectionClient {
   private static final int HD_VIDEO_HEIGHT = 720;
   private static final int BPS_IN_KBPS = 1000;
   private static final String RTCEVENTLOG_OUTPUT_DIR_NAME = "rtc_event_log";
+  // Stats period while nothing records or adapts to the stats.
+  private static final int STATS_IDLE_PERIOD_MS = 10000;
 
   // Executor thread is started once in private ctor and is used for all
   // peer connection API calls to ensure new peer connection factory is
@@ -123,13 +137,21 @@ public class PeerConnectionClient {
 
   private final PCObserver pcObserver = new PCObserver();
   private final Timer statsTimer = new Timer();
+  // Receive-side audio stats of the call.
+  private final AudioStatsEngine audioStats = new AudioStatsEngine();
+  // Stats period while the stats are recorded or adapted to, 0 while stats are off.
+  private volatile int statsPeriodMs;
+  // Pending stats poll. Executor thread.
+  @Nullable private TimerTask statsTask;
   private final EglBase rootEglBase;
   private final Context appContext;
   private final PeerConnectionParameters peerConnectionParameters;
   private final PeerConnectionEvents events;
+  private final String fieldTrials;
 
   @Nullable
   private PeerConnectionFactory factory;
+  @Nullable private SharedPeerConnectionFactory.AudioHooks audioHooks;
   @Nullable
   public static PeerConnection peerConnection;
   @Nullable
@@ -169,14 +191,59 @@ public class PeerConnectionClient {
   @Nullable
   private AudioTrack localAudioTrack;
   @Nullable
+  private RtpSender localAudioSender;
+  @Nullable
   private DataChannel dataChannel;
   private final boolean dataChannelEnabled;
   // Enable RtcEventLog.
   @Nullable
   private RtcEventLog rtcEventLog;
-  // Implements the WebRtcAudioRecordSamplesReadyCallback interface and writes
+  // Consumes the captured audio from the capture tap and writes
   // recorded audio samples to an output file.
   @Nullable private RecordedAudioToFileController saveRecordedAudioToFile;
+  // Records near-end and far-end audio on a common sample clock.
+  @Nullable private DualTrackAudioRecorder dualTrackAudioRecorder;
+  // Last seconds of captured audio, dumped on howling, audio device errors or on request. Read by
+  // the audio and audio device error threads.
+  @Nullable private volatile BlackBoxRecorder blackBoxRecorder;
+  // Adapts the howl suppression level to the feedback during the call. Read by the stats thread.
+  @Nullable private volatile AdaptiveHowlController adaptiveHowlController;
+  // Alternates audio tuning configurations during the call. Read by the stats thread.
+  @Nullable private volatile ConfigExperiment configExperiment;
+  // Persists the stats of the call. Read by the stats thread.
+  @Nullable private volatile StatsRecorder statsRecorder;
+  // Adapts the maximum bitrate of the sent audio to the network. Read by the stats thread.
+  @Nullable private volatile AudioBitrateController audioBitrateController;
+  @Nullable private RtpReceiver audioReceiver;
+  @Nullable private AudioTrack remoteAudioTrack;
+  // Marks the first remote audio in the call setup trace. Until the first packet has been
+  // decoded, the receiver plays out digital silence. Audio thread.
+  private final AudioTrackSink firstRemoteAudioSink = new AudioTrackSink() {
+    private boolean received;
+
+    @Override
+    public void onData(ByteBuffer audioData, int bitsPerSample, int sampleRate,
+        int numberOfChannels, int numberOfFrames, long absoluteCaptureTimestampMs) {
+      if (received || bitsPerSample != 16) {
+        return;
+      }
+      final ShortBuffer samples =
+          audioData.duplicate().order(ByteOrder.nativeOrder()).asShortBuffer();
+      while (samples.hasRemaining()) {
+        if (samples.get() != 0) {
+          received = true;
+          CallSetupTracer.instant("first_remote_audio");
+          return;
+        }
+      }
+    }
+  };
+  // Fans the captured audio out to the spectrum analyzer, recorders and other consumers.
+  private final CaptureTapMultiplexer captureTap = new CaptureTapMultiplexer();
+  // Live spectrum of the captured audio, e.g. for the HUD.
+  private final SpectrumAnalyzer spectrumAnalyzer = new SpectrumAnalyzer();
+  // Detects acoustic feedback in the spectra of the captured audio.
+  private final HowlDetector howlDetector = new HowlDetector(spectrumAnalyzer.getFftSize());
   private final List<IceCandidate> pendingIceCandidates = new ArrayList<>();
 
   /**
@@ -220,6 +287,26 @@ public class PeerConnectionClient {
     public final boolean noAudioProcessing;
     public final boolean aecDump;
     public final boolean saveInputAudioToFile;
+    public final String saveInputAudioFormat;
+    public final boolean saveInputAudioVadGated;
+    public final int vadHangoverMs;
+    public final int vadPreRollMs;
+    public final boolean saveDualTrackAudio;
+    public final boolean enableBlackBox;
+    public final int blackBoxSeconds;
+    public final boolean adaptiveHowlSuppression;
+    // JSON array of the configuration changes to compare; null or empty for no experiment.
+    @Nullable public final String abExperimentArms;
+    public final int abWindowSeconds;
+    // WAV or raw PCM file sent instead of the microphone; null or empty for the microphone.
+    @Nullable public final String audioFileAsMic;
+    public final boolean audioFileLoop;
+    public final boolean recordStats;
+    public final boolean adaptAudioBitrate;
+    public final int audioMinBitrate;
+    public final int audioMaxBitrate;
+    // Name of an AudioBitrateController.StepPolicy.
+    public final String audioBitratePolicy;
     public final boolean useOpenSLES;
     public final boolean disableBuiltInAEC;
     public final boolean disableBuiltInAGC;
@@ -232,7 +319,13 @@ public class PeerConnectionClient {
         int videoWidth, int videoHeight, int videoFps, int videoMaxBitrate, String videoCodec,
         boolean videoCodecHwAcceleration, boolean videoFlexfecEnabled, int audioStartBitrate,
         String audioCodec, boolean noAudioProcessing, boolean aecDump, boolean saveInputAudioToFile,
-        boolean useOpenSLES, boolean disableBuiltInAEC, boolean disableBuiltInAGC,
+        String saveInputAudioFormat, boolean saveInputAudioVadGated, int vadHangoverMs,
+        int vadPreRollMs, boolean saveDualTrackAudio, boolean enableBlackBox, int blackBoxSeconds,
+        boolean adaptiveHowlSuppression, @Nullable String abExperimentArms, int abWindowSeconds,
+        @Nullable String audioFileAsMic, boolean audioFileLoop, boolean recordStats,
+        boolean adaptAudioBitrate, int audioMinBitrate, int audioMaxBitrate,
+        String audioBitratePolicy, boolean useOpenSLES, boolean disableBuiltInAEC,
+        boolean disableBuiltInAGC,
         boolean disableBuiltInNS, boolean disableWebRtcAGCAndHPF, boolean enableRtcEventLog,
         DataChannelParameters dataChannelParameters) {
       this.videoCallEnabled = videoCallEnabled;
@@ -250,6 +343,23 @@ public class PeerConnectionClient {
       this.noAudioProcessing = noAudioProcessing;
       this.aecDump = aecDump;
       this.saveInputAudioToFile = saveInputAudioToFile;
+      this.saveInputAudioFormat = saveInputAudioFormat;
+      this.saveInputAudioVadGated = saveInputAudioVadGated;
+      this.vadHangoverMs = vadHangoverMs;
+      this.vadPreRollMs = vadPreRollMs;
+      this.saveDualTrackAudio = saveDualTrackAudio;
+      this.enableBlackBox = enableBlackBox;
+      this.blackBoxSeconds = blackBoxSeconds;
+      this.adaptiveHowlSuppression = adaptiveHowlSuppression;
+      this.abExperimentArms = abExperimentArms;
+      this.abWindowSeconds = abWindowSeconds;
+      this.audioFileAsMic = audioFileAsMic;
+      this.audioFileLoop = audioFileLoop;
+      this.recordStats = recordStats;
+      this.adaptAudioBitrate = adaptAudioBitrate;
+      this.audioMinBitrate = audioMinBitrate;
+      this.audioMaxBitrate = audioMaxBitrate;
+      this.audioBitratePolicy = audioBitratePolicy;
       this.useOpenSLES = useOpenSLES;
       this.disableBuiltInAEC = disableBuiltInAEC;
       this.disableBuiltInAGC = disableBuiltInAGC;
@@ -311,9 +421,9 @@ public class PeerConnectionClient {
     void onPeerConnectionClosed();
 
     /**
-     * Callback fired once peer connection statistics is ready.
+     * Callback fired once new audio statistics are ready.
      */
-    void onPeerConnectionStatsReady(final RTCStatsReport report);
+    void onPeerConnectionStatsReady(final AudioStatsEngine stats);
 
     /**
      * Callback fired once peer connection error happened.
@@ -332,18 +442,26 @@ public class PeerConnectionClient {
     this.events = events;
     this.peerConnectionParameters = peerConnectionParameters;
     this.dataChannelEnabled = peerConnectionParameters.dataChannelParameters != null;
+    spectrumAnalyzer.setSpectrumListener(howlDetector::process);
+    howlDetector.addListener(event -> {
+      Log.i(TAG, "Howl " + event);
+      if (event.type == HowlDetector.HowlEvent.Type.ONSET) {
+        triggerBlackBox("howl");
+      }
+    });
 
     Log.d(TAG, "Preferred video codec: " + getSdpVideoCodecName(peerConnectionParameters));
 
-    final String fieldTrials = getFieldTrials(peerConnectionParameters);
-    executor.execute(() -> {
-      Log.d(TAG, "Initialize WebRTC. Field trials: " + fieldTrials);
-      PeerConnectionFactory.initialize(
-          PeerConnectionFactory.InitializationOptions.builder(appContext)
-              .setFieldTrials(fieldTrials)
-              .setEnableInternalTracer(true)
-              .createInitializationOptions());
-    });
+    // WebRTC is initialized with these when the shared factory is acquired.
+    this.fieldTrials = getFieldTrials(peerConnectionParameters);
+  }
+
+  /**
+   * Initializes WebRTC and creates the shared peer connection factory in the background, so that
+   * the next call does not wait for it. Call early, e.g. when the app starts.
+   */
+  public static void prewarmFactory(Context appContext) {
+    executor.execute(() -> SharedPeerConnectionFactory.prewarm(appContext));
   }
 
   /**
@@ -402,12 +520,7 @@ public class PeerConnectionClient {
 
   private void createPeerConnectionFactoryInternal(PeerConnectionFactory.Options options) {
     isError = false;
-
-    if (peerConnectionParameters.tracing) {
-      PeerConnectionFactory.startInternalTracingCapture(
-          Environment.getExternalStorageDirectory().getAbsolutePath() + File.separator
-          + "webrtc-trace.txt");
-    }
+    CallSetupTracer.begin("create_factory");
 
     // Check if ISAC is used by default.
     preferIsac = peerConnectionParameters.audioCodec != null
@@ -421,61 +534,143 @@ public class PeerConnectionClient {
     if (peerConnectionParameters.saveInputAudioToFile) {
       if (!peerConnectionParameters.useOpenSLES) {
         Log.d(TAG, "Enable recording of microphone input audio to file");
-        saveRecordedAudioToFile = new RecordedAudioToFileController(executor);
+        final RecordedAudioToFileController.OutputFormat outputFormat;
+        if (SAVE_INPUT_AUDIO_FORMAT_WAV.equals(peerConnectionParameters.saveInputAudioFormat)) {
+          outputFormat = RecordedAudioToFileController.OutputFormat.WAV_SEGMENTS;
+        } else if (SAVE_INPUT_AUDIO_FORMAT_FLAC.equals(
+                       peerConnectionParameters.saveInputAudioFormat)) {
+          outputFormat = RecordedAudioToFileController.OutputFormat.FLAC;
+        } else {
+          outputFormat = RecordedAudioToFileController.OutputFormat.RAW_PCM;
+        }
+        saveRecordedAudioToFile = new RecordedAudioToFileController(outputFormat);
+        if (peerConnectionParameters.saveInputAudioVadGated) {
+          Log.d(TAG, "Record voice-active input audio only");
+          saveRecordedAudioToFile.setVoiceActivityGating(
+              peerConnectionParameters.vadHangoverMs, peerConnectionParameters.vadPreRollMs);
+        }
       } else {
         // TODO(henrika): ensure that the UI reflects that if OpenSL ES is selected,
         // then the "Save inut audio to file" option shall be grayed out.
         Log.e(TAG, "Recording of input audio is not supported for OpenSL ES");
       }
     }
+    if (peerConnectionParameters.saveDualTrackAudio) {
+      Log.d(TAG, "Enable recording of near-end and far-end audio to file");
+      dualTrackAudioRecorder = new DualTrackAudioRecorder();
+    }
+    if (peerConnectionParameters.enableBlackBox) {
+      Log.d(TAG, "Enable black box of input audio");
+      blackBoxRecorder = new BlackBoxRecorder(peerConnectionParameters.blackBoxSeconds);
+    }
+    if (peerConnectionParameters.recordStats) {
+      Log.d(TAG, "Enable recording of call stats");
+      statsRecorder = new StatsRecorder(Build.MODEL + " " + peerConnectionParameters.audioCodec);
+    }
+    if (peerConnectionParameters.adaptAudioBitrate) {
+      Log.d(TAG, "Enable audio bitrate adaptation");
+      final int maxBitrateBps = peerConnectionParameters.audioMaxBitrate * BPS_IN_KBPS;
+      final int startBitrate = peerConnectionParameters.audioStartBitrate;
+      audioBitrateController = new AudioBitrateController(
+          peerConnectionParameters.audioMinBitrate * BPS_IN_KBPS, maxBitrateBps,
+          startBitrate > 0 ? startBitrate * BPS_IN_KBPS : maxBitrateBps,
+          AudioBitrateController.StepPolicy.fromName(peerConnectionParameters.audioBitratePolicy),
+          bitrateBps -> executor.execute(() -> setAudioMaxBitrateInternal(bitrateBps)));
+    }
+    final AudioConfigStore audioConfigStore = AudioConfigStore.getDefault();
+    final String abExperimentArms = peerConnectionParameters.abExperimentArms;
+    if (abExperimentArms != null && !abExperimentArms.trim().isEmpty()) {
+      configExperiment = createConfigExperiment(abExperimentArms, audioConfigStore);
+    }
+    if (peerConnectionParameters.adaptiveHowlSuppression) {
+      if (configExperiment != null) {
+        Log.w(TAG, "Adaptive howl suppression is off during the A/B experiment");
+      } else if (audioConfigStore != null) {
+        Log.d(TAG, "Enable adaptive howl suppression");
+        adaptiveHowlController = new AdaptiveHowlController(howlDetector, 0, MAX_SUPPRESS_LEVEL,
+            new AdaptiveHowlController.LevelStore() {
+              @Override
+              public int getSuppressLevel() {
+                return (int) audioConfigStore.getConfig().suppressLevel;
+              }
+
+              @Override
+              public void setSuppressLevel(int level) {
+                audioConfigStore.edit().setSuppressLevel(level).apply();
+                // The native side picks the level up from the file; skip the debounce.
+                audioConfigStore.flush();
+              }
+            });
+      } else {
+        Log.e(TAG, "Adaptive howl suppression needs the audio config store");
+      }
+    }
 
-    final AudioDeviceModule adm = createJavaAudioDevice();
+    audioHooks = createAudioHooks();
+    if (audioHooks == null) {
+      return;
+    }
+    SharedPeerConnectionFactory.setAudioHooks(audioHooks);
 
-    // Create peer connection factory.
+    // Reuse the process-wide peer connection factory, pre-warmed when the app started.
     if (options != null) {
       Log.d(TAG, "Factory networkIgnoreMask option: " + options.networkIgnoreMask);
     }
-    final boolean enableH264HighProfile =
-        VIDEO_CODEC_H264_HIGH.equals(peerConnectionParameters.videoCodec);
-    final VideoEncoderFactory encoderFactory;
-    final VideoDecoderFactory decoderFactory;
-
-    /*if (peerConnectionParameters.videoCodecHwAcceleration) {
-      encoderFactory = new DefaultVideoEncoderFactory(
-          rootEglBase.getEglBaseContext(), true *//* enableIntelVp8Encoder *//*, enableH264HighProfile);
-      decoderFactory = new DefaultVideoDecoderFactory(rootEglBase.getEglBaseContext());
-    } else {*/
-      encoderFactory = new SoftwareVideoEncoderFactory();
-      decoderFactory = new SoftwareVideoDecoderFactory();
-    //}
+    try {
+      factory = SharedPeerConnectionFactory.acquire(appContext,
+          new SharedPeerConnectionFactory.Config(fieldTrials,
+              !peerConnectionParameters.disableBuiltInAEC,
+              !peerConnectionParameters.disableBuiltInNS, options));
+    } catch (IllegalStateException e) {
+      reportError("Failed to create peer connection factory: " + e.getMessage());
+      return;
+    }
+
+    if (peerConnectionParameters.tracing) {
+      PeerConnectionFactory.startInternalTracingCapture(
+          Environment.getExternalStorageDirectory().getAbsolutePath() + File.separator
+          + "webrtc-trace.txt");
+    }
+    CallSetupTracer.end("create_factory");
+  }
 
-    // Disable encryption for loopback calls.
-    /*if (peerConnectionParameters.loopback) {
-      options.disableEncryption = true;
-    }*/
-    PeerConnectionFactory.Builder builder;
-    // 旧版本适配（如果 AAR 是 M95-）
+  @Nullable
+  private ConfigExperiment createConfigExperiment(
+      String armsJson, @Nullable AudioConfigStore audioConfigStore) {
+    if (audioConfigStore == null) {
+      Log.e(TAG, "A/B experiment needs the audio config store");
+      return null;
+    }
     try {
-      Class<?> envClass = Class.forName("org.webrtc.Environment");
-      Constructor<?> constructor = envClass.getConstructor();
-      Object environment = constructor.newInstance();
-      Method builderMethod = PeerConnectionFactory.class.getMethod("builder", envClass);
-      builder = (PeerConnectionFactory.Builder) builderMethod.invoke(null, environment);
-    } catch (Exception e) {
-      // 降级到新版本 API（如果反射失败）
-      builder = PeerConnectionFactory.builder();
-    }
-    assert builder != null;
-    factory = builder.setOptions(options)
-                  .setAudioDeviceModule(adm)
-                  .setVideoEncoderFactory(encoderFactory)
-                  .setVideoDecoderFactory(decoderFactory)
-                  .createPeerConnectionFactory();
-    Log.d(TAG, "Peer connection factory created.");
-    adm.release();
+      final List<AudioConfigDelta> arms = ConfigExperiment.parseArms(armsJson);
+      final ConfigExperiment experiment = new ConfigExperiment(arms,
+          peerConnectionParameters.abWindowSeconds * 1000L, howlDetector, audioConfigStore);
+      howlDetector.addListener(experiment);
+      Log.d(TAG, "Enable A/B experiment: " + armsJson);
+      return experiment;
+    } catch (JSONException | IllegalArgumentException e) {
+      Log.e(TAG, "Invalid A/B experiment: " + e.getMessage());
+      return null;
+    }
   }
 
-  AudioDeviceModule createJavaAudioDevice() {
+  // The callbacks of the shared audio device module for this call, or null after reporting an
+  // error.
+  @Nullable
+  private SharedPeerConnectionFactory.AudioHooks createAudioHooks() {
+    FileAudioInput fileAudioInput = null;
+    final String audioFile = peerConnectionParameters.audioFileAsMic;
+    if (audioFile != null && !audioFile.isEmpty()) {
+      try {
+        fileAudioInput = FileAudioInput.open(audioFile, peerConnectionParameters.audioFileLoop);
+        Log.d(TAG, "Sending audio file " + audioFile + " instead of the microphone");
+      } catch (IOException e) {
+        // A run with the microphone would not be comparable; fail rather than fall back.
+        reportError("Failed to open audio file as microphone: " + e.getMessage());
+        return null;
+      }
+    }
+
     // Enable/disable OpenSL ES playback.
     if (!peerConnectionParameters.useOpenSLES) {
       Log.w(TAG, "External OpenSLES ADM not implemented yet.");
@@ -487,6 +682,7 @@ public class PeerConnectionClient {
       @Override
       public void onWebRtcAudioRecordInitError(String errorMessage) {
         Log.e(TAG, "onWebRtcAudioRecordInitError: " + errorMessage);
+        triggerBlackBox("audio_record_init_error");
         reportError(errorMessage);
       }
 
@@ -494,12 +690,14 @@ public class PeerConnectionClient {
       public void onWebRtcAudioRecordStartError(
           JavaAudioDeviceModule.AudioRecordStartErrorCode errorCode, String errorMessage) {
         Log.e(TAG, "onWebRtcAudioRecordStartError: " + errorCode + ". " + errorMessage);
+        triggerBlackBox("audio_record_start_error");
         reportError(errorMessage);
       }
 
       @Override
       public void onWebRtcAudioRecordError(String errorMessage) {
         Log.e(TAG, "onWebRtcAudioRecordError: " + errorMessage);
+        triggerBlackBox("audio_record_error");
         reportError(errorMessage);
       }
     };
@@ -508,6 +706,7 @@ public class PeerConnectionClient {
       @Override
       public void onWebRtcAudioTrackInitError(String errorMessage) {
         Log.e(TAG, "onWebRtcAudioTrackInitError: " + errorMessage);
+        triggerBlackBox("audio_track_init_error");
         reportError(errorMessage);
       }
 
@@ -515,12 +714,14 @@ public class PeerConnectionClient {
       public void onWebRtcAudioTrackStartError(
           JavaAudioDeviceModule.AudioTrackStartErrorCode errorCode, String errorMessage) {
         Log.e(TAG, "onWebRtcAudioTrackStartError: " + errorCode + ". " + errorMessage);
+        triggerBlackBox("audio_track_start_error");
         reportError(errorMessage);
       }
 
       @Override
       public void onWebRtcAudioTrackError(String errorMessage) {
         Log.e(TAG, "onWebRtcAudioTrackError: " + errorMessage);
+        triggerBlackBox("audio_track_error");
         reportError(errorMessage);
       }
     };
@@ -551,15 +752,34 @@ public class PeerConnectionClient {
       }
     };
 
-    return JavaAudioDeviceModule.builder(appContext)
-        .setSamplesReadyCallback(saveRecordedAudioToFile)
-        .setUseHardwareAcousticEchoCanceler(!peerConnectionParameters.disableBuiltInAEC)
-        .setUseHardwareNoiseSuppressor(!peerConnectionParameters.disableBuiltInNS)
-        .setAudioRecordErrorCallback(audioRecordErrorCallback)
-        .setAudioTrackErrorCallback(audioTrackErrorCallback)
-        .setAudioRecordStateCallback(audioRecordStateCallback)
-        .setAudioTrackStateCallback(audioTrackStateCallback)
-        .createAudioDeviceModule();
+    // Every consumer of captured audio gets its own queue and thread behind the single callback.
+    // Analysis wants the latest audio; recorders rather lose whole frames than reorder them.
+    // Only the howl control acts on the call in time; the rest run at normal priority.
+    captureTap.addConsumer("spectrum", spectrumAnalyzer, ANALYSIS_TAP_QUEUE_FRAMES,
+        CaptureTapMultiplexer.OverrunPolicy.DROP_OLDEST, Process.THREAD_PRIORITY_DEFAULT);
+    if (saveRecordedAudioToFile != null) {
+      captureTap.addConsumer("recorder", saveRecordedAudioToFile, RECORDER_TAP_QUEUE_FRAMES,
+          CaptureTapMultiplexer.OverrunPolicy.DROP_NEWEST, Process.THREAD_PRIORITY_DEFAULT);
+    }
+    if (dualTrackAudioRecorder != null) {
+      captureTap.addConsumer("dual-track", dualTrackAudioRecorder, RECORDER_TAP_QUEUE_FRAMES,
+          CaptureTapMultiplexer.OverrunPolicy.DROP_NEWEST, Process.THREAD_PRIORITY_DEFAULT);
+    }
+    if (blackBoxRecorder != null) {
+      captureTap.addConsumer("black-box", blackBoxRecorder, RECORDER_TAP_QUEUE_FRAMES,
+          CaptureTapMultiplexer.OverrunPolicy.DROP_NEWEST, Process.THREAD_PRIORITY_DEFAULT);
+    }
+    if (configExperiment != null) {
+      captureTap.addConsumer("ab-experiment", configExperiment, ANALYSIS_TAP_QUEUE_FRAMES,
+          CaptureTapMultiplexer.OverrunPolicy.DROP_OLDEST, Process.THREAD_PRIORITY_DEFAULT);
+    }
+    if (adaptiveHowlController != null) {
+      captureTap.addConsumer("howl-control", adaptiveHowlController, ANALYSIS_TAP_QUEUE_FRAMES,
+          CaptureTapMultiplexer.OverrunPolicy.DROP_OLDEST, Process.THREAD_PRIORITY_AUDIO);
+    }
+    return new SharedPeerConnectionFactory.AudioHooks(captureTap, fileAudioInput,
+        audioRecordErrorCallback, audioTrackErrorCallback, audioRecordStateCallback,
+        audioTrackStateCallback);
   }
 
   private void createMediaConstraintsInternal() {
@@ -609,6 +829,12 @@ public class PeerConnectionClient {
       throw new Exception("[WebRTC]Peerconnection factory is not created");
     }
     Log.d(TAG, "[WebRTC]Create peer connection.");
+    // On the callee the coupling probe may still be recording; the call's recorder must not
+    // open the microphone at the same time.
+    if (!CouplingProbe.awaitRecording(CouplingProbe.RECORD_MS + COUPLING_PROBE_WAIT_MARGIN_MS)) {
+      Log.w(TAG, "Coupling probe still records, starting the call anyway");
+    }
+    CallSetupTracer.begin("create_peer_connection");
 
     queuedRemoteCandidates = new ArrayList<>();
 
@@ -658,7 +884,20 @@ public class PeerConnectionClient {
         remoteVideoTrack.addSink(remoteSink);
       }
     }
-    peerConnection.addTrack(createAudioTrack(), mediaStreamLabels);
+    localAudioSender = peerConnection.addTrack(createAudioTrack(), mediaStreamLabels);
+    if (audioBitrateController != null) {
+      setAudioMaxBitrateInternal(audioBitrateController.getBitrateBps());
+    }
+    // Like the remote video track, the remote audio track exists as soon as the transceiver
+    // has been created.
+    audioReceiver = getAudioReceiver();
+    remoteAudioTrack = audioReceiver != null ? (AudioTrack) audioReceiver.track() : null;
+    if (remoteAudioTrack != null) {
+      remoteAudioTrack.addSink(firstRemoteAudioSink);
+      if (dualTrackAudioRecorder != null) {
+        remoteAudioTrack.addSink(dualTrackAudioRecorder);
+      }
+    }
     if (isVideoCallEnabled()) {
       findVideoSender();
     }
@@ -681,6 +920,12 @@ public class PeerConnectionClient {
         Log.d(TAG, "Recording input audio to file is activated");
       }
     }
+    if (dualTrackAudioRecorder != null) {
+      if (dualTrackAudioRecorder.start()) {
+        Log.d(TAG, "Recording near-end and far-end audio to file is activated");
+      }
+    }
+    CallSetupTracer.end("create_peer_connection");
     Log.d(TAG, "Peer connection created.");
   }
 
@@ -710,6 +955,10 @@ public class PeerConnectionClient {
     }
     Log.d(TAG, "Closing peer connection.");
     statsTimer.cancel();
+    statsTask = null;
+    audioReceiver = null;
+    audioBitrateController = null;
+    localAudioSender = null;
     if (dataChannel != null) {
       dataChannel.dispose();
       dataChannel = null;
@@ -719,6 +968,13 @@ public class PeerConnectionClient {
       rtcEventLog.stop();
       rtcEventLog = null;
     }
+    if (remoteAudioTrack != null) {
+      remoteAudioTrack.removeSink(firstRemoteAudioSink);
+      if (dualTrackAudioRecorder != null) {
+        remoteAudioTrack.removeSink(dualTrackAudioRecorder);
+      }
+      remoteAudioTrack = null;
+    }
     if (peerConnection != null) {
       peerConnection.dispose();
       peerConnection = null;
@@ -748,23 +1004,92 @@ public class PeerConnectionClient {
       surfaceTextureHelper.dispose();
       surfaceTextureHelper = null;
     }
+    // Stops the consumer threads, so the recorders below get no more frames.
+    captureTap.release();
     if (saveRecordedAudioToFile != null) {
       Log.d(TAG, "Closing audio file for recorded input audio.");
       saveRecordedAudioToFile.stop();
       saveRecordedAudioToFile = null;
     }
+    if (dualTrackAudioRecorder != null) {
+      Log.d(TAG, "Closing near-end and far-end audio recording.");
+      dualTrackAudioRecorder.stop();
+      dualTrackAudioRecorder = null;
+    }
+    if (blackBoxRecorder != null) {
+      blackBoxRecorder.release();
+      blackBoxRecorder = null;
+    }
+    final StatsRecorder recorder = statsRecorder;
+    if (recorder != null) {
+      statsRecorder = null;
+      recorder.close();
+    }
+    final ConfigExperiment experiment = configExperiment;
+    if (experiment != null) {
+      configExperiment = null;
+      howlDetector.removeListener(experiment);
+      experiment.writeSummary();
+    }
+    final AdaptiveHowlController controller = adaptiveHowlController;
+    if (controller != null) {
+      adaptiveHowlController = null;
+      // The adapted level only holds for this call; CallActivity restores the tuning.
+      controller.writeTimeline();
+    }
     localRender = null;
     remoteSinks = null;
-    Log.d(TAG, "Closing peer connection factory.");
+    Log.d(TAG, "Releasing peer connection factory.");
+    if (audioHooks != null) {
+      SharedPeerConnectionFactory.clearAudioHooks(audioHooks);
+      audioHooks = null;
+    }
     if (factory != null) {
-      factory.dispose();
+      // Kept alive for the next call; the internal tracer stays initialized with it.
+      SharedPeerConnectionFactory.release(factory);
       factory = null;
     }
     rootEglBase.release();
     Log.d(TAG, "Closing peer connection done.");
     events.onPeerConnectionClosed();
     PeerConnectionFactory.stopInternalTracingCapture();
-    PeerConnectionFactory.shutdownInternalTracer();
+  }
+
+  /**
+   * Returns the howl detector of the captured audio. Listeners are called on the spectrum
+   * analyzer's capture tap thread and must not block.
+   */
+  public HowlDetector getHowlDetector() {
+    return howlDetector;
+  }
+
+  /**
+   * Saves the black box audio, if enabled, to a file in the background. Returns false if the
+   * black box is disabled.
+   */
+  public boolean dumpBlackBox() {
+    return triggerBlackBox("manual");
+  }
+
+  // May be called from any thread.
+  private boolean triggerBlackBox(String reason) {
+    final BlackBoxRecorder recorder = blackBoxRecorder;
+    if (recorder == null) {
+      return false;
+    }
+    Log.d(TAG, "Black box triggered: " + reason);
+    recorder.trigger(reason);
+    return true;
+  }
+
+  /** Returns the fan-out of the captured audio, e.g. to add a consumer during a call. */
+  public CaptureTapMultiplexer getCaptureTap() {
+    return captureTap;
+  }
+
+  /** Returns the analyzer of the captured audio. Its results can be read from any one thread. */
+  public SpectrumAnalyzer getSpectrumAnalyzer() {
+    return spectrumAnalyzer;
   }
 
   public boolean isHDVideo() {
@@ -775,31 +1100,106 @@ public class PeerConnectionClient {
     if (peerConnection == null || isError) {
       return;
     }
-    peerConnection.getStats(new RTCStatsCollectorCallback() {
+    final RTCStatsCollectorCallback callback = new RTCStatsCollectorCallback() {
       @Override
       public void onStatsDelivered(RTCStatsReport report) {
-        events.onPeerConnectionStatsReady(report);
+        final boolean added = audioStats.onStatsReport(report);
+        final AdaptiveHowlController controller = adaptiveHowlController;
+        if (controller != null) {
+          reportRemoteAudioLevel(report, controller);
+        }
+        final ConfigExperiment experiment = configExperiment;
+        if (experiment != null) {
+          experiment.onStatsReport(report);
+        }
+        final AudioBitrateController bitrateController = audioBitrateController;
+        if (bitrateController != null) {
+          bitrateController.onStatsReport(report);
+        }
+        final StatsRecorder recorder = statsRecorder;
+        if (added && recorder != null) {
+          recorder.append(audioStats);
+        }
+        if (added) {
+          events.onPeerConnectionStatsReady(audioStats);
+        }
       }
-    });
+    };
+    // Only the audio receiver's stats and what they refer to, down to the candidate pair, unless
+    // the bitrate controller needs the peer's receiver reports of the sent audio.
+    if (audioReceiver != null && audioBitrateController == null) {
+      peerConnection.getStats(audioReceiver, callback);
+    } else {
+      peerConnection.getStats(callback);
+    }
+  }
+
+  // Feeds the level of the received audio to the howl controller.
+  private static void reportRemoteAudioLevel(
+      RTCStatsReport report, AdaptiveHowlController controller) {
+    for (RTCStats stats : report.getStatsMap().values()) {
+      if (!"inbound-rtp".equals(stats.getType())
+          || !"audio".equals(stats.getMembers().get("kind"))) {
+        continue;
+      }
+      final Object audioLevel = stats.getMembers().get("audioLevel");
+      if (audioLevel instanceof Number) {
+        controller.onRemoteAudioLevel(((Number) audioLevel).doubleValue());
+        return;
+      }
+    }
   }
 
+  /**
+   * Polls the stats every `periodMs` while they are recorded or the howl controller, bitrate
+   * controller or A/B experiment use them, and every `STATS_IDLE_PERIOD_MS` otherwise.
+   */
   public void enableStatsEvents(boolean enable, int periodMs) {
     if (enable) {
-      try {
-        statsTimer.schedule(new TimerTask() {
-          @Override
-          public void run() {
-            executor.execute(() -> getStats());
-          }
-        }, 0, periodMs);
-      } catch (Exception e) {
-        Log.e(TAG, "Can not schedule statistics timer", e);
-      }
+      statsPeriodMs = periodMs;
+      executor.execute(() -> scheduleStats(0));
     } else {
+      statsPeriodMs = 0;
       statsTimer.cancel();
     }
   }
 
+  private int getStatsPeriodMs() {
+    final boolean fast = statsRecorder != null || adaptiveHowlController != null
+        || audioBitrateController != null || configExperiment != null;
+    return fast ? statsPeriodMs : Math.max(statsPeriodMs, STATS_IDLE_PERIOD_MS);
+  }
+
+  // Replaces the pending poll by one after `delayMs`. Executor thread.
+  private void scheduleStats(long delayMs) {
+    if (statsPeriodMs == 0) {
+      return;
+    }
+    if (statsTask != null) {
+      statsTask.cancel();
+    }
+    statsTask = new TimerTask() {
+      @Override
+      public void run() {
+        final TimerTask task = this;
+        executor.execute(() -> {
+          // A poll may have been queued before its task was replaced.
+          if (statsTask != task) {
+            return;
+          }
+          getStats();
+          scheduleStats(getStatsPeriodMs());
+        });
+      }
+    };
+    try {
+      statsTimer.schedule(statsTask, delayMs);
+    } catch (IllegalStateException e) {
+      // The timer has been cancelled with the call.
+      statsTask = null;
+    }
+  }
+
   public void setAudioEnabled(final boolean enable) {
     executor.execute(() -> {
       enableAudio = enable;
@@ -829,15 +1229,21 @@ public class PeerConnectionClient {
     constraints.optional.add(new MediaConstraints.KeyValuePair("googCpuOveruseDetection", "false"));
 
     assert peerConnection != null;
+    CallSetupTracer.begin("create_offer");
     peerConnection.createOffer(new SdpObserver() {
       @Override public void onCreateSuccess(SessionDescription sdp) {
         Log.d(TAG,"[WebRTC] Offer创建成功");
+        CallSetupTracer.end("create_offer");
+        CallSetupTracer.begin("set_local_description");
         peerConnection.setLocalDescription(this, sdp);
         assert DirectRTCClient.tcpClient != null;
         DirectRTCClient.tcpClient.sendSignalingMessage("offer", sdp.description);
         Log.d(TAG,"[WebRTC]发送offer sdp: [" + sdp.description + "]");
       }
-      @Override public void onSetSuccess() { Log.d(TAG,"[WebRTC] setLocalDescription成功"); }
+      @Override public void onSetSuccess() {
+        Log.d(TAG,"[WebRTC] setLocalDescription成功");
+        CallSetupTracer.end("set_local_description");
+      }
       @Override public void onCreateFailure(String error) { Log.d(TAG,"[WebRTC] Offer创建失败: " + error); }
       @Override public void onSetFailure(String error) { Log.d(TAG,"[WebRTC] setLocalDescription失败: " + error); }
     }, constraints);
@@ -891,7 +1297,9 @@ public class PeerConnectionClient {
       if (isVideoCallEnabled()) {
         sdp = preferCodec(sdp, getSdpVideoCodecName(peerConnectionParameters), false);
       }
-      if (peerConnectionParameters.audioStartBitrate > 0) {
+      // With bitrate adaptation the start bitrate is the controller's and must not cap it.
+      if (peerConnectionParameters.audioStartBitrate > 0
+          && !peerConnectionParameters.adaptAudioBitrate) {
         sdp = setStartBitrate(
             AUDIO_CODEC_OPUS, false, sdp, peerConnectionParameters.audioStartBitrate);
       }
@@ -952,6 +1360,24 @@ public class PeerConnectionClient {
     });
   }
 
+  // Limits the encoder of the sent audio, without renegotiation. Executor thread.
+  private void setAudioMaxBitrateInternal(int maxBitrateBps) {
+    if (peerConnection == null || localAudioSender == null || isError) {
+      return;
+    }
+    final RtpParameters parameters = localAudioSender.getParameters();
+    if (parameters.encodings.size() == 0) {
+      Log.w(TAG, "Audio RtpParameters are not ready.");
+      return;
+    }
+    for (RtpParameters.Encoding encoding : parameters.encodings) {
+      encoding.maxBitrateBps = maxBitrateBps;
+    }
+    if (!localAudioSender.setParameters(parameters)) {
+      Log.e(TAG, "Audio RtpSender.setParameters failed.");
+    }
+  }
+
   /**
    * 获取PeerConnection实例，用于状态检查
    */
@@ -1023,6 +1449,17 @@ public class PeerConnectionClient {
     }
   }
 
+  // Returns the remote AudioTrack, assuming there is only one.
+  private @Nullable RtpReceiver getAudioReceiver() {
+    for (RtpTransceiver transceiver : peerConnection.getTransceivers()) {
+      MediaStreamTrack track = transceiver.getReceiver().track();
+      if (track instanceof AudioTrack) {
+        return transceiver.getReceiver();
+      }
+    }
+    return null;
+  }
+
   // Returns the remote VideoTrack, assuming there is only one.
   private @Nullable VideoTrack getRemoteVideoTrack() {
     for (RtpTransceiver transceiver : peerConnection.getTransceivers()) {
@@ -1282,6 +1719,16 @@ public class PeerConnectionClient {
     @Override
     public void onSignalingChange(PeerConnection.SignalingState newState) {
       Log.d(TAG, "[WebRTC]SignalingState: " + newState);
+      // Both descriptions are set, so the audio sender has its encodings now. The cap set right
+      // after addTrack is dropped while it has none.
+      if (newState == PeerConnection.SignalingState.STABLE && audioBitrateController != null) {
+        executor.execute(() -> {
+          final AudioBitrateController controller = audioBitrateController;
+          if (controller != null) {
+            setAudioMaxBitrateInternal(controller.getBitrateBps());
+          }
+        });
+      }
     }
 
     @Override
@@ -1290,6 +1737,10 @@ public class PeerConnectionClient {
         Log.d(TAG, "[WebRTC]IceConnectionState: " + newState);
         if (newState == IceConnectionState.CONNECTED) {
           Log.d(TAG, "[WebRTC]ICE连接成功建立");
+          CallSetupTracer.end("ice_checking");
+          CallSetupTracer.instant("ice_connected");
+          // The DTLS handshake runs over the connected ICE transport.
+          CallSetupTracer.begin("dtls_handshake");
           events.onIceConnected();
         } else if (newState == IceConnectionState.DISCONNECTED) {
           Log.d(TAG, "[WebRTC]ICE连接断开");
@@ -1299,6 +1750,7 @@ public class PeerConnectionClient {
           reportError("ICE connection failed.");
         } else if (newState == IceConnectionState.CHECKING) {
           Log.d(TAG, "[WebRTC]ICE连接检查中...");
+          CallSetupTracer.begin("ice_checking");
         } else if (newState == IceConnectionState.NEW) {
           Log.d(TAG, "[WebRTC]ICE连接新建");
         }
@@ -1310,6 +1762,8 @@ public class PeerConnectionClient {
       executor.execute(() -> {
         Log.d(TAG, "PeerConnectionState: " + newState);
         if (newState == PeerConnectionState.CONNECTED) {
+          CallSetupTracer.end("dtls_handshake");
+          CallSetupTracer.instant("dtls_connected");
           events.onConnected();
         } else if (newState == PeerConnectionState.DISCONNECTED) {
           events.onDisconnected();
@@ -1322,6 +1776,11 @@ public class PeerConnectionClient {
     @Override
     public void onIceGatheringChange(PeerConnection.IceGatheringState newState) {
       Log.d(TAG, "IceGatheringState: " + newState);
+      if (newState == PeerConnection.IceGatheringState.GATHERING) {
+        CallSetupTracer.begin("ice_gathering");
+      } else if (newState == PeerConnection.IceGatheringState.COMPLETE) {
+        CallSetupTracer.end("ice_gathering");
+      }
     }
 
     @Override
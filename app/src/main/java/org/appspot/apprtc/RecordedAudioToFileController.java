@@ -10,8 +10,8 @@
 
 package org.appspot.apprtc;
 
-import android.media.AudioFormat;
 import android.os.Environment;
+import android.os.Process;
 import android.util.Log;
 import androidx.annotation.Nullable;
 import java.io.File;
@@ -19,63 +19,165 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.concurrent.ExecutorService;
-import org.webrtc.audio.JavaAudioDeviceModule;
-import org.webrtc.audio.JavaAudioDeviceModule.SamplesReadyCallback;
+import java.nio.ShortBuffer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
+import org.appspot.apprtc.CaptureTapMultiplexer.CaptureFrame;
+import org.appspot.apprtc.CaptureTapMultiplexer.FrameConsumer;
+import org.appspot.apprtc.util.FlacEncoder;
 
 /**
- * Implements the AudioRecordSamplesReadyCallback interface and writes
+ * Consumes captured frames from the {@link CaptureTapMultiplexer} and writes
  * recorded raw audio samples to an output file.
+ *
+ * <p>Three output formats are supported: a single headerless .pcm file which is capped at about
+ * 10 minutes, an unbounded sequence of fixed-length, memory-mapped WAV segments for long
+ * captures, and a single losslessly compressed FLAC file which is encoded on the writer thread.
+ *
+ * <p>Optionally only voice-active regions are stored (see {@link VoiceActivityGate}), with a
+ * segment index next to the audio file, which allows leaving recording on for a whole day.
+ *
+ * <p>The tap thread only copies each frame into a preallocated ring buffer. A dedicated
+ * low-priority writer thread drains the ring buffer in large sequential writes, so disk stalls
+ * never reach the capture path or the peer connection executor. Frames that do not fit into the
+ * ring buffer are dropped and counted.
  */
-public class RecordedAudioToFileController implements SamplesReadyCallback {
+public class RecordedAudioToFileController implements FrameConsumer {
   private static final String TAG = "RecordedAudioToFile";
   private static final long MAX_FILE_SIZE_IN_BYTES = 58348800L;
+  // About 2.7 seconds of 48kHz mono audio.
+  private static final int RING_BUFFER_CAPACITY_BYTES = 1 << 18;
+  // The writer is woken up once this many bytes are pending and writes at most this much at once.
+  private static final int WRITE_CHUNK_BYTES = 1 << 15;
+  private static final long WRITER_IDLE_TIMEOUT_NS = 500_000_000L;
+  private static final long WRITER_JOIN_TIMEOUT_MS = 2000;
+  private static final int WAV_SEGMENT_DURATION_SECONDS = 300;
+
+  /** File format of the recording. */
+  public enum OutputFormat {
+    // Single headerless file, recording stops at MAX_FILE_SIZE_IN_BYTES.
+    RAW_PCM,
+    // Rolling WAV files of WAV_SEGMENT_DURATION_SECONDS each, no size limit.
+    WAV_SEGMENTS,
+    // Single FLAC file, about half the size of raw PCM, no size limit.
+    FLAC,
+  }
 
-  private final Object lock = new Object();
-  private final ExecutorService executor;
-  @Nullable private OutputStream rawAudioFileOutputStream;
-  private boolean isRunning;
-  private long fileSizeInBytes;
+  private final OutputFormat outputFormat;
+  private boolean voiceActivityGating;
+  private int vadHangoverMs;
+  private int vadPreRollMs;
 
-  public RecordedAudioToFileController(ExecutorService executor) {
-    Log.d(TAG, "ctor");
-    this.executor = executor;
+  private final AudioRingBuffer ringBuffer = new AudioRingBuffer(RING_BUFFER_CAPACITY_BYTES);
+  // Writer thread state. With voice activity gating, the ring buffer is drained into inputChunk
+  // and the gated audio is passed on in writeChunk, which then also has room for the pre-roll.
+  private final byte[] inputChunk = new byte[WRITE_CHUNK_BYTES];
+  private byte[] writeChunk = inputChunk;
+  @Nullable private VoiceActivityGate voiceActivityGate;
+  @Nullable private String recordingName;
+  private volatile boolean isRunning;
+  @Nullable private volatile Thread writerThread;
+  // Format of the first callback; published by the tap thread, used by the writer thread to
+  // name the output file.
+  private volatile int sampleRate;
+  private volatile int channelCount;
+  // Counters are written by a single thread each and may be read from any thread.
+  private volatile long droppedFrames;
+  private volatile long droppedBytes;
+  private volatile long writtenBytes;
+
+  public RecordedAudioToFileController(OutputFormat outputFormat) {
+    Log.d(TAG, "ctor: " + outputFormat);
+    this.outputFormat = outputFormat;
   }
 
   /**
-   * Should be called on the same executor thread as the one provided at
-   * construction.
+   * Stores only voice-active audio, keeping `hangoverMs` after speech ends and `preRollMs` before
+   * it starts. Must be called before {@link #start}.
    */
+  public void setVoiceActivityGating(int hangoverMs, int preRollMs) {
+    Log.d(TAG, "setVoiceActivityGating: hangover " + hangoverMs + " ms, pre-roll " + preRollMs
+        + " ms");
+    voiceActivityGating = true;
+    vadHangoverMs = hangoverMs;
+    vadPreRollMs = preRollMs;
+  }
+
+  /** Starts the writer thread. Samples are ignored until this has been called. */
   public boolean start() {
     Log.d(TAG, "start");
     if (!isExternalStorageWritable()) {
       Log.e(TAG, "Writing to external media is not possible");
       return false;
     }
-    synchronized (lock) {
-      isRunning = true;
+    final Thread previousThread = writerThread;
+    if (previousThread != null) {
+      if (isRunning) {
+        Log.w(TAG, "Recording has already started");
+        return true;
+      }
+      // A second writer would be a second consumer of the single-consumer ring buffer.
+      if (previousThread.isAlive()) {
+        Log.e(TAG, "The previous writer thread has not exited yet");
+        return false;
+      }
+      writerThread = null;
     }
+    droppedFrames = 0;
+    droppedBytes = 0;
+    writtenBytes = 0;
+    recordingName = null;
+    voiceActivityGate = null;
+    writeChunk = inputChunk;
+    // Taken from the first frame of this recording; the format may have changed since the last.
+    sampleRate = 0;
+    channelCount = 0;
+    isRunning = true;
+    Thread thread = new Thread(this::writerLoop, "AudioFileWriter");
+    writerThread = thread;
+    thread.start();
     return true;
   }
 
-  /**
-   * Should be called on the same executor thread as the one provided at
-   * construction.
-   */
+  /** Stops recording, flushes pending samples to disk and closes the output file. */
   public void stop() {
     Log.d(TAG, "stop");
-    synchronized (lock) {
-      isRunning = false;
-      if (rawAudioFileOutputStream != null) {
-        try {
-          rawAudioFileOutputStream.close();
-        } catch (IOException e) {
-          Log.e(TAG, "Failed to close file with saved input audio: " + e);
-        }
-        rawAudioFileOutputStream = null;
-      }
-      fileSizeInBytes = 0;
+    isRunning = false;
+    Thread thread = writerThread;
+    if (thread == null) {
+      return;
+    }
+    LockSupport.unpark(thread);
+    try {
+      thread.join(WRITER_JOIN_TIMEOUT_MS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
     }
+    if (thread.isAlive()) {
+      // Kept so that start() does not run a second writer while this one still drains the ring.
+      Log.w(TAG, "Writer thread did not exit within " + WRITER_JOIN_TIMEOUT_MS + " ms");
+      return;
+    }
+    writerThread = null;
+    Log.d(TAG, "Recording stopped. Written bytes: " + writtenBytes
+            + ", dropped frames: " + droppedFrames + ", dropped bytes: " + droppedBytes);
+  }
+
+  /** Number of frames dropped because the writer could not keep up. */
+  public long getDroppedFrames() {
+    return droppedFrames;
+  }
+
+  /** Number of bytes dropped because the writer could not keep up. */
+  public long getDroppedBytes() {
+    return droppedBytes;
+  }
+
+  /** Number of PCM bytes written to the output file so far, before any compression. */
+  public long getWrittenBytes() {
+    return writtenBytes;
   }
 
   // Checks if external storage is available for read and write.
@@ -90,54 +192,216 @@ public class RecordedAudioToFileController implements SamplesReadyCallback {
   // Utilizes audio parameters to create a file name which contains sufficient
   // information so that the file can be played using an external file player.
   // Example: /sdcard/recorded_audio_16bits_48000Hz_mono.pcm.
-  private void openRawAudioOutputFile(int sampleRate, int channelCount) {
+  @Nullable
+  private OutputStream openRawAudioOutputFile(int sampleRate, int channelCount) {
     final String fileName = Environment.getExternalStorageDirectory().getPath() + File.separator
-        + "recorded_audio_16bits_" + String.valueOf(sampleRate) + "Hz"
-        + ((channelCount == 1) ? "_mono" : "_stereo") + ".pcm";
+        + getRecordingName() + ".pcm";
     final File outputFile = new File(fileName);
     try {
-      rawAudioFileOutputStream = new FileOutputStream(outputFile);
+      OutputStream outputStream = new FileOutputStream(outputFile);
+      Log.d(TAG, "Opened file for recording: " + fileName);
+      return outputStream;
     } catch (FileNotFoundException e) {
       Log.e(TAG, "Failed to open audio output file: " + e.getMessage());
+      return null;
     }
-    Log.d(TAG, "Opened file for recording: " + fileName);
   }
 
-  // Called when new audio samples are ready.
-  @Override
-  public void onWebRtcAudioRecordSamplesReady(JavaAudioDeviceModule.AudioSamples samples) {
-    // The native audio layer on Android should use 16-bit PCM format.
-    if (samples.getAudioFormat() != AudioFormat.ENCODING_PCM_16BIT) {
-      Log.e(TAG, "Invalid audio format");
-      return;
+  // Returns the file name prefix which contains sufficient information so that the file can be
+  // played using an external file player. Example: recorded_audio_16bits_48000Hz_mono.
+  private static String getBaseFileName(int sampleRate, int channelCount) {
+    return "recorded_audio_16bits_" + String.valueOf(sampleRate) + "Hz"
+        + ((channelCount == 1) ? "_mono" : "_stereo");
+  }
+
+  // Name of the audio file(s) and segment index of the current recording, without extension.
+  // Raw PCM recordings keep their fixed name. Only used on the writer thread.
+  private String getRecordingName() {
+    if (recordingName == null) {
+      recordingName = getBaseFileName(sampleRate, channelCount)
+          + (outputFormat == OutputFormat.RAW_PCM ? "" : "_" + getTimestamp());
+    }
+    return recordingName;
+  }
+
+  // Runs on the writer thread. Drains the ring buffer until recording has stopped and all
+  // pending samples have been consumed.
+  private void writerLoop() {
+    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+    switch (outputFormat) {
+      case WAV_SEGMENTS:
+        writeWavSegments();
+        break;
+      case FLAC:
+        writeFlac();
+        break;
+      default:
+        writeRawPcm();
+    }
+    if (voiceActivityGate != null) {
+      voiceActivityGate.finish();
+    }
+  }
+
+  // Blocks until samples to store are available or recording has stopped. Returns the number of
+  // bytes copied into `writeChunk`, or 0 once recording has stopped and the ring buffer is empty.
+  private int readChunk() {
+    while (true) {
+      final boolean running = isRunning;
+      final int bytesRead = ringBuffer.read(inputChunk, 0, inputChunk.length);
+      if (bytesRead > 0 && voiceActivityGating) {
+        if (voiceActivityGate == null) {
+          voiceActivityGate = new VoiceActivityGate(sampleRate, channelCount, vadHangoverMs,
+              vadPreRollMs, new File(Environment.getExternalStorageDirectory(),
+                  getRecordingName() + "_vad.csv"));
+          writeChunk = new byte[voiceActivityGate.getMaxOutputBytes(inputChunk.length)];
+        }
+        final int gatedBytes = voiceActivityGate.process(inputChunk, bytesRead, writeChunk);
+        if (gatedBytes > 0) {
+          return gatedBytes;
+        }
+        // Nothing to store in this chunk; keep draining.
+        continue;
+      }
+      if (bytesRead > 0 || !running) {
+        return bytesRead;
+      }
+      LockSupport.parkNanos(this, WRITER_IDLE_TIMEOUT_NS);
     }
-    synchronized (lock) {
-      // Abort early if stop() has been called.
-      if (!isRunning) {
-        return;
+  }
+
+  private void writeRawPcm() {
+    OutputStream outputStream = null;
+    boolean fileLimitReached = false;
+    int bytesRead;
+    while ((bytesRead = readChunk()) > 0) {
+      // Open a new file for the first samples only since it allows us to add audio parameters
+      // to the file name.
+      if (outputStream == null && !fileLimitReached) {
+        outputStream = openRawAudioOutputFile(sampleRate, channelCount);
+        if (outputStream == null) {
+          fileLimitReached = true;
+        }
       }
-      // Open a new file for the first callback only since it allows us to add audio parameters to
-      // the file name.
-      if (rawAudioFileOutputStream == null) {
-        openRawAudioOutputFile(samples.getSampleRate(), samples.getChannelCount());
-        fileSizeInBytes = 0;
+      if (outputStream == null) {
+        continue;
+      }
+      try {
+        // Set a limit on max file size. 58348800 bytes corresponds to
+        // approximately 10 minutes of recording in mono at 48kHz.
+        final int bytesToWrite = (int) Math.min(bytesRead, MAX_FILE_SIZE_IN_BYTES - writtenBytes);
+        outputStream.write(writeChunk, 0, bytesToWrite);
+        writtenBytes += bytesToWrite;
+        if (writtenBytes >= MAX_FILE_SIZE_IN_BYTES) {
+          Log.w(TAG, "Max file size reached, discarding further samples");
+          outputStream.close();
+          outputStream = null;
+          fileLimitReached = true;
+        }
+      } catch (IOException e) {
+        Log.e(TAG, "Failed to write audio to file: " + e.getMessage());
+      }
+    }
+    if (outputStream != null) {
+      try {
+        outputStream.close();
+      } catch (IOException e) {
+        Log.e(TAG, "Failed to close file with saved input audio: " + e);
+      }
+    }
+  }
+
+  private void writeWavSegments() {
+    WavSegmentWriter segmentWriter = null;
+    int bytesRead;
+    while ((bytesRead = readChunk()) > 0) {
+      try {
+        if (segmentWriter == null) {
+          // Segments of different recordings must not overwrite each other.
+          segmentWriter = new WavSegmentWriter(Environment.getExternalStorageDirectory(),
+              getRecordingName(), sampleRate, channelCount, WAV_SEGMENT_DURATION_SECONDS);
+        }
+        segmentWriter.write(writeChunk, 0, bytesRead);
+        writtenBytes += bytesRead;
+      } catch (IOException e) {
+        Log.e(TAG, "Failed to write audio to WAV segment: " + e.getMessage());
+      }
+    }
+    if (segmentWriter != null) {
+      try {
+        segmentWriter.close();
+        Log.d(TAG, "Closed WAV recording after " + segmentWriter.getSegmentCount() + " segments");
+      } catch (IOException e) {
+        Log.e(TAG, "Failed to close WAV segment: " + e);
       }
     }
-    // Append the recorded 16-bit audio samples to the open output file.
-    executor.execute(() -> {
-      if (rawAudioFileOutputStream != null) {
+  }
+
+  // Encodes the capture into a single FLAC file. The encoder works on fixed-size blocks, so the
+  // memory use does not grow with the recording length.
+  private void writeFlac() {
+    FlacEncoder encoder = null;
+    boolean openFailed = false;
+    int bytesRead;
+    while ((bytesRead = readChunk()) > 0) {
+      if (encoder == null && !openFailed) {
+        final File outputFile =
+            new File(Environment.getExternalStorageDirectory(), getRecordingName() + ".flac");
         try {
-          // Set a limit on max file size. 58348800 bytes corresponds to
-          // approximately 10 minutes of recording in mono at 48kHz.
-          if (fileSizeInBytes < MAX_FILE_SIZE_IN_BYTES) {
-            // Writes samples.getData().length bytes to output stream.
-            rawAudioFileOutputStream.write(samples.getData());
-            fileSizeInBytes += samples.getData().length;
-          }
+          encoder = new FlacEncoder(outputFile, sampleRate, channelCount);
+          Log.d(TAG, "Opened file for recording: " + outputFile);
         } catch (IOException e) {
-          Log.e(TAG, "Failed to write audio to file: " + e.getMessage());
+          Log.e(TAG, "Failed to open audio output file: " + e.getMessage());
+          openFailed = true;
         }
       }
-    });
+      if (encoder == null) {
+        continue;
+      }
+      try {
+        encoder.write(writeChunk, 0, bytesRead);
+        writtenBytes += bytesRead;
+      } catch (IOException e) {
+        Log.e(TAG, "Failed to write audio to FLAC file: " + e.getMessage());
+      }
+    }
+    if (encoder != null) {
+      try {
+        encoder.close();
+        Log.d(TAG, "Closed FLAC recording: " + writtenBytes + " PCM bytes compressed to "
+                + encoder.getEncodedBytes());
+      } catch (IOException e) {
+        Log.e(TAG, "Failed to close FLAC file: " + e);
+      }
+    }
+  }
+
+  // Distinguishes files of different recordings with the same audio format.
+  private static String getTimestamp() {
+    return new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date());
+  }
+
+  // Called when new audio samples are ready. Runs on the capture tap thread and must not block.
+  @Override
+  public void onCaptureFrame(CaptureFrame frame) {
+    // Abort early if stop() has been called.
+    if (!isRunning) {
+      return;
+    }
+    if (sampleRate == 0) {
+      channelCount = frame.getChannelCount();
+      sampleRate = frame.getSampleRate();
+    }
+    final ShortBuffer samples = frame.getSamples();
+    if (!ringBuffer.write(samples)) {
+      droppedFrames++;
+      droppedBytes += 2 * samples.remaining();
+    }
+    if (ringBuffer.available() >= WRITE_CHUNK_BYTES) {
+      Thread thread = writerThread;
+      if (thread != null) {
+        LockSupport.unpark(thread);
+      }
+    }
   }
 }
@@ -39,10 +39,33 @@ public class SettingsActivity extends Activity implements OnSharedPreferenceChan
 
   private String keyprefStartAudioBitrateType;
   private String keyprefStartAudioBitrateValue;
+  private String keyprefAudioBitrateAdaptation;
+  private String keyprefAudioMinBitrate;
+  private String keyprefAudioMaxBitrate;
+  private String keyprefAudioBitratePolicy;
   private String keyPrefAudioCodec;
   private String keyprefNoAudioProcessing;
   private String keyprefAecDump;
   private String keyprefEnableSaveInputAudioToFile;
+  private String keyprefSaveInputAudioFormat;
+  private String keyprefSaveInputAudioVad;
+  private String keyprefVadHangoverMs;
+  private String keyprefVadPreRollMs;
+  private String keyprefEnableSaveDualTrackAudio;
+  private String keyprefEnableBlackBox;
+  private String keyprefBlackBoxSeconds;
+  private String keyprefAdaptiveHowl;
+  private String keyprefAbExperimentArms;
+  private String keyprefAbWindowSeconds;
+  private String keyprefRouteProfilesEnabled;
+  private String keyprefRouteProfiles;
+  private String keyprefHowlFingerprints;
+  private String keyprefCouplingProbe;
+  private String keyprefLatencyMeasurement;
+  private String keyprefAudioFile;
+  private String keyprefAudioFileLoop;
+  private String keyprefSetupTrace;
+  private String keyprefStatsRecording;
   private String keyprefOpenSLES;
   private String keyprefDisableBuiltInAEC;
   private String keyprefDisableBuiltInAGC;
@@ -81,11 +104,35 @@ public class SettingsActivity extends Activity implements OnSharedPreferenceChan
 
     keyprefStartAudioBitrateType = getString(R.string.pref_startaudiobitrate_key);
     keyprefStartAudioBitrateValue = getString(R.string.pref_startaudiobitratevalue_key);
+    keyprefAudioBitrateAdaptation = getString(R.string.pref_audio_bitrate_adaptation_key);
+    keyprefAudioMinBitrate = getString(R.string.pref_audio_min_bitrate_key);
+    keyprefAudioMaxBitrate = getString(R.string.pref_audio_max_bitrate_key);
+    keyprefAudioBitratePolicy = getString(R.string.pref_audio_bitrate_policy_key);
     keyPrefAudioCodec = getString(R.string.pref_audiocodec_key);
     keyprefNoAudioProcessing = getString(R.string.pref_noaudioprocessing_key);
     keyprefAecDump = getString(R.string.pref_aecdump_key);
     keyprefEnableSaveInputAudioToFile =
         getString(R.string.pref_enable_save_input_audio_to_file_key);
+    keyprefSaveInputAudioFormat = getString(R.string.pref_save_input_audio_format_key);
+    keyprefSaveInputAudioVad = getString(R.string.pref_save_input_audio_vad_key);
+    keyprefVadHangoverMs = getString(R.string.pref_vad_hangover_ms_key);
+    keyprefVadPreRollMs = getString(R.string.pref_vad_pre_roll_ms_key);
+    keyprefEnableSaveDualTrackAudio =
+        getString(R.string.pref_enable_save_dual_track_audio_key);
+    keyprefEnableBlackBox = getString(R.string.pref_enable_black_box_key);
+    keyprefBlackBoxSeconds = getString(R.string.pref_black_box_seconds_key);
+    keyprefAdaptiveHowl = getString(R.string.pref_adaptive_howl_key);
+    keyprefAbExperimentArms = getString(R.string.pref_ab_experiment_arms_key);
+    keyprefAbWindowSeconds = getString(R.string.pref_ab_window_seconds_key);
+    keyprefRouteProfilesEnabled = getString(R.string.pref_route_profiles_enabled_key);
+    keyprefRouteProfiles = getString(R.string.pref_route_profiles_key);
+    keyprefHowlFingerprints = getString(R.string.pref_howl_fingerprints_key);
+    keyprefCouplingProbe = getString(R.string.pref_coupling_probe_key);
+    keyprefLatencyMeasurement = getString(R.string.pref_latency_measurement_key);
+    keyprefAudioFile = getString(R.string.pref_audio_file_key);
+    keyprefAudioFileLoop = getString(R.string.pref_audio_file_loop_key);
+    keyprefSetupTrace = getString(R.string.pref_setup_trace_key);
+    keyprefStatsRecording = getString(R.string.pref_stats_recording_key);
     keyprefOpenSLES = getString(R.string.pref_opensles_key);
     keyprefDisableBuiltInAEC = getString(R.string.pref_disable_built_in_aec_key);
     keyprefDisableBuiltInAGC = getString(R.string.pref_disable_built_in_agc_key);
@@ -137,11 +184,34 @@ public class SettingsActivity extends Activity implements OnSharedPreferenceChan
 
     updateSummary(sharedPreferences, keyprefStartAudioBitrateType);
     updateSummaryBitrate(sharedPreferences, keyprefStartAudioBitrateValue);
+    updateSummaryB(sharedPreferences, keyprefAudioBitrateAdaptation);
+    updateSummaryBitrate(sharedPreferences, keyprefAudioMinBitrate);
+    updateSummaryBitrate(sharedPreferences, keyprefAudioMaxBitrate);
+    updateSummaryList(sharedPreferences, keyprefAudioBitratePolicy);
     setAudioBitrateEnable(sharedPreferences);
     updateSummary(sharedPreferences, keyPrefAudioCodec);
     updateSummaryB(sharedPreferences, keyprefNoAudioProcessing);
     updateSummaryB(sharedPreferences, keyprefAecDump);
     updateSummaryB(sharedPreferences, keyprefEnableSaveInputAudioToFile);
+    updateSummaryList(sharedPreferences, keyprefSaveInputAudioFormat);
+    updateSummaryB(sharedPreferences, keyprefSaveInputAudioVad);
+    updateSummary(sharedPreferences, keyprefVadHangoverMs);
+    updateSummary(sharedPreferences, keyprefVadPreRollMs);
+    updateSummaryB(sharedPreferences, keyprefEnableSaveDualTrackAudio);
+    updateSummaryB(sharedPreferences, keyprefEnableBlackBox);
+    updateSummary(sharedPreferences, keyprefBlackBoxSeconds);
+    updateSummaryB(sharedPreferences, keyprefAdaptiveHowl);
+    updateSummary(sharedPreferences, keyprefAbExperimentArms);
+    updateSummary(sharedPreferences, keyprefAbWindowSeconds);
+    updateSummaryB(sharedPreferences, keyprefRouteProfilesEnabled);
+    updateSummary(sharedPreferences, keyprefRouteProfiles);
+    updateSummaryB(sharedPreferences, keyprefHowlFingerprints);
+    updateSummaryB(sharedPreferences, keyprefCouplingProbe);
+    updateSummaryB(sharedPreferences, keyprefLatencyMeasurement);
+    updateSummary(sharedPreferences, keyprefAudioFile);
+    updateSummaryB(sharedPreferences, keyprefAudioFileLoop);
+    updateSummaryB(sharedPreferences, keyprefSetupTrace);
+    updateSummaryB(sharedPreferences, keyprefStatsRecording);
     updateSummaryB(sharedPreferences, keyprefOpenSLES);
     updateSummaryB(sharedPreferences, keyprefDisableBuiltInAEC);
     updateSummaryB(sharedPreferences, keyprefDisableBuiltInAGC);
@@ -214,10 +284,19 @@ public class SettingsActivity extends Activity implements OnSharedPreferenceChan
         || key.equals(keyprefMaxRetransmitTimeMs)
         || key.equals(keyprefMaxRetransmits)
         || key.equals(keyprefDataProtocol)
-        || key.equals(keyprefDataId)) {
+        || key.equals(keyprefDataId)
+        || key.equals(keyprefVadHangoverMs)
+        || key.equals(keyprefVadPreRollMs)
+        || key.equals(keyprefBlackBoxSeconds)
+        || key.equals(keyprefAbExperimentArms)
+        || key.equals(keyprefAbWindowSeconds)
+        || key.equals(keyprefRouteProfiles)
+        || key.equals(keyprefAudioFile)) {
       updateSummary(sharedPreferences, key);
     } else if (key.equals(keyprefMaxVideoBitrateValue)
-        || key.equals(keyprefStartAudioBitrateValue)) {
+        || key.equals(keyprefStartAudioBitrateValue)
+        || key.equals(keyprefAudioMinBitrate)
+        || key.equals(keyprefAudioMaxBitrate)) {
       updateSummaryBitrate(sharedPreferences, key);
     } else if (key.equals(keyprefVideoCall)
         || key.equals(keyprefScreencapture)
@@ -230,6 +309,18 @@ public class SettingsActivity extends Activity implements OnSharedPreferenceChan
         || key.equals(keyprefNoAudioProcessing)
         || key.equals(keyprefAecDump)
         || key.equals(keyprefEnableSaveInputAudioToFile)
+        || key.equals(keyprefSaveInputAudioVad)
+        || key.equals(keyprefEnableSaveDualTrackAudio)
+        || key.equals(keyprefEnableBlackBox)
+        || key.equals(keyprefAdaptiveHowl)
+        || key.equals(keyprefRouteProfilesEnabled)
+        || key.equals(keyprefHowlFingerprints)
+        || key.equals(keyprefCouplingProbe)
+        || key.equals(keyprefLatencyMeasurement)
+        || key.equals(keyprefAudioFileLoop)
+        || key.equals(keyprefSetupTrace)
+        || key.equals(keyprefStatsRecording)
+        || key.equals(keyprefAudioBitrateAdaptation)
         || key.equals(keyprefOpenSLES)
         || key.equals(keyprefDisableBuiltInAEC)
         || key.equals(keyprefDisableBuiltInAGC)
@@ -241,7 +332,9 @@ public class SettingsActivity extends Activity implements OnSharedPreferenceChan
         || key.equals(keyprefNegotiated)
         || key.equals(keyprefEnabledRtcEventLog)) {
       updateSummaryB(sharedPreferences, key);
-    } else if (key.equals(keyprefSpeakerphone)) {
+    } else if (key.equals(keyprefSpeakerphone)
+        || key.equals(keyprefSaveInputAudioFormat)
+        || key.equals(keyprefAudioBitratePolicy)) {
       updateSummaryList(sharedPreferences, key);
     }
     // clang-format on
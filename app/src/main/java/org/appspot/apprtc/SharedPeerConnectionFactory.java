@@ -0,0 +1,452 @@
+package org.appspot.apprtc;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+import androidx.annotation.Nullable;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.webrtc.PeerConnectionFactory;
+import org.webrtc.SoftwareVideoDecoderFactory;
+import org.webrtc.SoftwareVideoEncoderFactory;
+import org.webrtc.audio.AudioDeviceModule;
+import org.webrtc.audio.JavaAudioDeviceModule;
+import org.webrtc.audio.JavaAudioDeviceModule.AudioRecordDataCallback;
+import org.webrtc.audio.JavaAudioDeviceModule.AudioRecordErrorCallback;
+import org.webrtc.audio.JavaAudioDeviceModule.AudioRecordStateCallback;
+import org.webrtc.audio.JavaAudioDeviceModule.AudioSamples;
+import org.webrtc.audio.JavaAudioDeviceModule.AudioTrackErrorCallback;
+import org.webrtc.audio.JavaAudioDeviceModule.AudioTrackStateCallback;
+import org.webrtc.audio.JavaAudioDeviceModule.SamplesReadyCallback;
+
+/**
+ * Process-wide PeerConnectionFactory, which calls reuse instead of creating and disposing one each.
+ *
+ * <p>Creating a factory loads the native library, looks up the Environment API by reflection,
+ * builds the audio device module and the codec factories and starts the WebRTC threads, all on the
+ * call setup path. {@link #prewarm} does this in the background when the app starts, with the
+ * configuration of the previous call, and {@link #acquire} hands the factory to the next call if
+ * it has the same {@link Config}. A call with another configuration gets a new factory. Both log
+ * the cold creation time and the time the call waited for its factory, per device model.
+ *
+ * <p>The audio device module is part of the factory and shared as well. Its callbacks forward to
+ * the {@link AudioHooks} of the current call, set with {@link #setAudioHooks}.
+ *
+ * <p>All methods but {@link #setAudioHooks} and {@link #clearAudioHooks} must be called on the
+ * peer connection executor thread.
+ */
+public class SharedPeerConnectionFactory {
+  private static final String TAG = "SharedPCFactory";
+  private static final String PREFERENCES_NAME = "shared_peer_connection_factory";
+  private static final String PREFERENCE_LAST_CONFIG = "last_config";
+
+  /** Everything a factory is built with; calls with equal configurations share a factory. */
+  public static final class Config {
+    public final String fieldTrials;
+    public final boolean useHardwareAcousticEchoCanceler;
+    public final boolean useHardwareNoiseSuppressor;
+    public final int networkIgnoreMask;
+    public final boolean disableEncryption;
+    public final boolean disableNetworkMonitor;
+
+    public Config(String fieldTrials, boolean useHardwareAcousticEchoCanceler,
+        boolean useHardwareNoiseSuppressor, @Nullable PeerConnectionFactory.Options options) {
+      this(fieldTrials, useHardwareAcousticEchoCanceler, useHardwareNoiseSuppressor,
+          options != null ? options.networkIgnoreMask : 0,
+          options != null && options.disableEncryption,
+          options != null && options.disableNetworkMonitor);
+    }
+
+    private Config(String fieldTrials, boolean useHardwareAcousticEchoCanceler,
+        boolean useHardwareNoiseSuppressor, int networkIgnoreMask, boolean disableEncryption,
+        boolean disableNetworkMonitor) {
+      this.fieldTrials = fieldTrials;
+      this.useHardwareAcousticEchoCanceler = useHardwareAcousticEchoCanceler;
+      this.useHardwareNoiseSuppressor = useHardwareNoiseSuppressor;
+      this.networkIgnoreMask = networkIgnoreMask;
+      this.disableEncryption = disableEncryption;
+      this.disableNetworkMonitor = disableNetworkMonitor;
+    }
+
+    PeerConnectionFactory.Options toOptions() {
+      final PeerConnectionFactory.Options options = new PeerConnectionFactory.Options();
+      options.networkIgnoreMask = networkIgnoreMask;
+      options.disableEncryption = disableEncryption;
+      options.disableNetworkMonitor = disableNetworkMonitor;
+      return options;
+    }
+
+    JSONObject toJson() throws JSONException {
+      return new JSONObject()
+          .put("trials", fieldTrials)
+          .put("aec", useHardwareAcousticEchoCanceler)
+          .put("ns", useHardwareNoiseSuppressor)
+          .put("ignore", networkIgnoreMask)
+          .put("noencrypt", disableEncryption)
+          .put("nomonitor", disableNetworkMonitor);
+    }
+
+    static Config fromJson(JSONObject json) throws JSONException {
+      return new Config(json.getString("trials"), json.getBoolean("aec"), json.getBoolean("ns"),
+          json.getInt("ignore"), json.getBoolean("noencrypt"), json.getBoolean("nomonitor"));
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Config)) {
+        return false;
+      }
+      final Config config = (Config) other;
+      return fieldTrials.equals(config.fieldTrials)
+          && useHardwareAcousticEchoCanceler == config.useHardwareAcousticEchoCanceler
+          && useHardwareNoiseSuppressor == config.useHardwareNoiseSuppressor
+          && networkIgnoreMask == config.networkIgnoreMask
+          && disableEncryption == config.disableEncryption
+          && disableNetworkMonitor == config.disableNetworkMonitor;
+    }
+
+    @Override
+    public int hashCode() {
+      int hash = fieldTrials.hashCode();
+      hash = 31 * hash + (useHardwareAcousticEchoCanceler ? 1 : 0);
+      hash = 31 * hash + (useHardwareNoiseSuppressor ? 1 : 0);
+      hash = 31 * hash + networkIgnoreMask;
+      hash = 31 * hash + (disableEncryption ? 1 : 0);
+      return 31 * hash + (disableNetworkMonitor ? 1 : 0);
+    }
+  }
+
+  /** The audio callbacks of one call. */
+  public static final class AudioHooks {
+    final SamplesReadyCallback samplesReadyCallback;
+    @Nullable final AudioRecordDataCallback audioRecordDataCallback;
+    final AudioRecordErrorCallback audioRecordErrorCallback;
+    final AudioTrackErrorCallback audioTrackErrorCallback;
+    final AudioRecordStateCallback audioRecordStateCallback;
+    final AudioTrackStateCallback audioTrackStateCallback;
+
+    public AudioHooks(SamplesReadyCallback samplesReadyCallback,
+        @Nullable AudioRecordDataCallback audioRecordDataCallback,
+        AudioRecordErrorCallback audioRecordErrorCallback,
+        AudioTrackErrorCallback audioTrackErrorCallback,
+        AudioRecordStateCallback audioRecordStateCallback,
+        AudioTrackStateCallback audioTrackStateCallback) {
+      this.samplesReadyCallback = samplesReadyCallback;
+      this.audioRecordDataCallback = audioRecordDataCallback;
+      this.audioRecordErrorCallback = audioRecordErrorCallback;
+      this.audioTrackErrorCallback = audioTrackErrorCallback;
+      this.audioRecordStateCallback = audioRecordStateCallback;
+      this.audioTrackStateCallback = audioTrackStateCallback;
+    }
+  }
+
+  // Set from any thread, read on the audio threads.
+  @Nullable private static volatile AudioHooks hooks;
+
+  // Executor thread.
+  @Nullable private static String initializedFieldTrials;
+  private static boolean environmentLookedUp;
+  @Nullable private static Constructor<?> environmentConstructor;
+  @Nullable private static Method builderWithEnvironment;
+  @Nullable private static PeerConnectionFactory factory;
+  @Nullable private static Config factoryConfig;
+  private static int users;
+  // Time the current factory took to create, including the initialization if it was needed.
+  private static long coldCreateMs;
+
+  private SharedPeerConnectionFactory() {}
+
+  /**
+   * Creates the factory for the configuration of the previous call, or only initializes WebRTC if
+   * there was none.
+   */
+  static void prewarm(Context appContext) {
+    if (factory != null) {
+      return;
+    }
+    final long startMs = SystemClock.elapsedRealtime();
+    final Config config = readLastConfig(appContext);
+    if (config == null) {
+      initialize(appContext, "");
+      lookUpEnvironment();
+      Log.i(TAG, "No previous call, initialized WebRTC in "
+              + (SystemClock.elapsedRealtime() - startMs) + " ms on " + Build.MODEL);
+      return;
+    }
+    create(appContext, config);
+    Log.i(TAG, "Pre-warmed factory in " + coldCreateMs + " ms on " + Build.MODEL);
+  }
+
+  /**
+   * Returns the factory for `config`, creating it if the cached one was built differently. Every
+   * call to this must be paired with a {@link #release}.
+   *
+   * @throws IllegalStateException if another call uses a factory with another configuration.
+   */
+  static PeerConnectionFactory acquire(Context appContext, Config config) {
+    final long startMs = SystemClock.elapsedRealtime();
+    final boolean warm = factory != null && config.equals(factoryConfig);
+    if (!warm) {
+      if (users > 0) {
+        throw new IllegalStateException("Factory is in use with another configuration");
+      }
+      create(appContext, config);
+    }
+    users++;
+    writeLastConfig(appContext, config);
+    Log.i(TAG, "Factory ready in " + (SystemClock.elapsedRealtime() - startMs) + " ms, "
+            + (warm ? "warm" : "cold") + "; cold creation took " + coldCreateMs + " ms on "
+            + Build.MODEL);
+    return factory;
+  }
+
+  /** Returns a factory from {@link #acquire}, which stays alive for the next call. */
+  static void release(PeerConnectionFactory released) {
+    if (released != factory || users == 0) {
+      Log.e(TAG, "Releasing a factory that was not acquired");
+      return;
+    }
+    users--;
+  }
+
+  /** Routes the audio callbacks of the shared audio device module to `newHooks`. Any thread. */
+  public static void setAudioHooks(@Nullable AudioHooks newHooks) {
+    hooks = newHooks;
+  }
+
+  /** Removes `oldHooks` unless a newer call has replaced them already. Any thread. */
+  public static void clearAudioHooks(AudioHooks oldHooks) {
+    if (hooks == oldHooks) {
+      hooks = null;
+    }
+  }
+
+  private static void create(Context appContext, Config config) {
+    final long startMs = SystemClock.elapsedRealtime();
+    if (factory != null) {
+      Log.d(TAG, "Configuration changed, disposing the factory");
+      factory.dispose();
+      factory = null;
+      factoryConfig = null;
+    }
+    // Field trials are global and read by the factory; only change them while there is none.
+    initialize(appContext, config.fieldTrials);
+    final AudioDeviceModule adm = createAudioDeviceModule(appContext, config);
+    // Hardware codecs would need an EGL context, which belongs to a call.
+    factory = createBuilder()
+                  .setOptions(config.toOptions())
+                  .setAudioDeviceModule(adm)
+                  .setVideoEncoderFactory(new SoftwareVideoEncoderFactory())
+                  .setVideoDecoderFactory(new SoftwareVideoDecoderFactory())
+                  .createPeerConnectionFactory();
+    adm.release();
+    factoryConfig = config;
+    coldCreateMs = SystemClock.elapsedRealtime() - startMs;
+    Log.d(TAG, "Peer connection factory created in " + coldCreateMs + " ms.");
+  }
+
+  private static void initialize(Context appContext, String fieldTrials) {
+    if (fieldTrials.equals(initializedFieldTrials)) {
+      return;
+    }
+    Log.d(TAG, "Initialize WebRTC. Field trials: " + fieldTrials);
+    PeerConnectionFactory.initialize(PeerConnectionFactory.InitializationOptions.builder(appContext)
+                                         .setFieldTrials(fieldTrials)
+                                         .setEnableInternalTracer(true)
+                                         .createInitializationOptions());
+    initializedFieldTrials = fieldTrials;
+  }
+
+  // Looks up once whether the library has the Environment API (M96 and later).
+  private static void lookUpEnvironment() {
+    if (environmentLookedUp) {
+      return;
+    }
+    environmentLookedUp = true;
+    try {
+      final Class<?> environmentClass = Class.forName("org.webrtc.Environment");
+      environmentConstructor = environmentClass.getConstructor();
+      builderWithEnvironment = PeerConnectionFactory.class.getMethod("builder", environmentClass);
+    } catch (ReflectiveOperationException e) {
+      Log.d(TAG, "No Environment API, using the plain builder");
+    }
+  }
+
+  private static PeerConnectionFactory.Builder createBuilder() {
+    lookUpEnvironment();
+    if (environmentConstructor != null && builderWithEnvironment != null) {
+      try {
+        return (PeerConnectionFactory.Builder) builderWithEnvironment.invoke(
+            null, environmentConstructor.newInstance());
+      } catch (ReflectiveOperationException e) {
+        Log.w(TAG, "Failed to create the Environment: " + e.getMessage());
+      }
+    }
+    return PeerConnectionFactory.builder();
+  }
+
+  private static AudioDeviceModule createAudioDeviceModule(Context appContext, Config config) {
+    final ForwardingAudioCallbacks callbacks = new ForwardingAudioCallbacks();
+    return JavaAudioDeviceModule.builder(appContext)
+        .setSamplesReadyCallback(callbacks)
+        .setAudioRecordDataCallback(callbacks)
+        .setUseHardwareAcousticEchoCanceler(config.useHardwareAcousticEchoCanceler)
+        .setUseHardwareNoiseSuppressor(config.useHardwareNoiseSuppressor)
+        .setAudioRecordErrorCallback(callbacks)
+        .setAudioTrackErrorCallback(callbacks)
+        .setAudioRecordStateCallback(callbacks)
+        .setAudioTrackStateCallback(callbacks)
+        .createAudioDeviceModule();
+  }
+
+  @Nullable
+  private static Config readLastConfig(Context appContext) {
+    final String json = getPreferences(appContext).getString(PREFERENCE_LAST_CONFIG, null);
+    if (json == null) {
+      return null;
+    }
+    try {
+      return Config.fromJson(new JSONObject(json));
+    } catch (JSONException e) {
+      Log.e(TAG, "Invalid last configuration: " + e.getMessage());
+      return null;
+    }
+  }
+
+  private static void writeLastConfig(Context appContext, Config config) {
+    try {
+      getPreferences(appContext)
+          .edit()
+          .putString(PREFERENCE_LAST_CONFIG, config.toJson().toString())
+          .apply();
+    } catch (JSONException e) {
+      Log.e(TAG, "Failed to encode the configuration: " + e.getMessage());
+    }
+  }
+
+  private static SharedPreferences getPreferences(Context appContext) {
+    return appContext.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+  }
+
+  // Passes every callback of the audio device module on to the current hooks, if any.
+  private static class ForwardingAudioCallbacks
+      implements SamplesReadyCallback, AudioRecordDataCallback, AudioRecordErrorCallback,
+                 AudioTrackErrorCallback, AudioRecordStateCallback, AudioTrackStateCallback {
+    @Override
+    public void onWebRtcAudioRecordSamplesReady(AudioSamples samples) {
+      final AudioHooks current = hooks;
+      if (current != null) {
+        current.samplesReadyCallback.onWebRtcAudioRecordSamplesReady(samples);
+      }
+    }
+
+    @Override
+    public void onAudioDataRecorded(
+        int audioFormat, int channelCount, int sampleRate, ByteBuffer audioBuffer) {
+      final AudioHooks current = hooks;
+      if (current != null && current.audioRecordDataCallback != null) {
+        current.audioRecordDataCallback.onAudioDataRecorded(
+            audioFormat, channelCount, sampleRate, audioBuffer);
+      }
+    }
+
+    @Override
+    public void onWebRtcAudioRecordInitError(String errorMessage) {
+      final AudioHooks current = hooks;
+      if (current != null) {
+        current.audioRecordErrorCallback.onWebRtcAudioRecordInitError(errorMessage);
+      } else {
+        Log.e(TAG, "onWebRtcAudioRecordInitError without a call: " + errorMessage);
+      }
+    }
+
+    @Override
+    public void onWebRtcAudioRecordStartError(
+        JavaAudioDeviceModule.AudioRecordStartErrorCode errorCode, String errorMessage) {
+      final AudioHooks current = hooks;
+      if (current != null) {
+        current.audioRecordErrorCallback.onWebRtcAudioRecordStartError(errorCode, errorMessage);
+      } else {
+        Log.e(TAG, "onWebRtcAudioRecordStartError without a call: " + errorMessage);
+      }
+    }
+
+    @Override
+    public void onWebRtcAudioRecordError(String errorMessage) {
+      final AudioHooks current = hooks;
+      if (current != null) {
+        current.audioRecordErrorCallback.onWebRtcAudioRecordError(errorMessage);
+      } else {
+        Log.e(TAG, "onWebRtcAudioRecordError without a call: " + errorMessage);
+      }
+    }
+
+    @Override
+    public void onWebRtcAudioTrackInitError(String errorMessage) {
+      final AudioHooks current = hooks;
+      if (current != null) {
+        current.audioTrackErrorCallback.onWebRtcAudioTrackInitError(errorMessage);
+      } else {
+        Log.e(TAG, "onWebRtcAudioTrackInitError without a call: " + errorMessage);
+      }
+    }
+
+    @Override
+    public void onWebRtcAudioTrackStartError(
+        JavaAudioDeviceModule.AudioTrackStartErrorCode errorCode, String errorMessage) {
+      final AudioHooks current = hooks;
+      if (current != null) {
+        current.audioTrackErrorCallback.onWebRtcAudioTrackStartError(errorCode, errorMessage);
+      } else {
+        Log.e(TAG, "onWebRtcAudioTrackStartError without a call: " + errorMessage);
+      }
+    }
+
+    @Override
+    public void onWebRtcAudioTrackError(String errorMessage) {
+      final AudioHooks current = hooks;
+      if (current != null) {
+        current.audioTrackErrorCallback.onWebRtcAudioTrackError(errorMessage);
+      } else {
+        Log.e(TAG, "onWebRtcAudioTrackError without a call: " + errorMessage);
+      }
+    }
+
+    @Override
+    public void onWebRtcAudioRecordStart() {
+      final AudioHooks current = hooks;
+      if (current != null) {
+        current.audioRecordStateCallback.onWebRtcAudioRecordStart();
+      }
+    }
+
+    @Override
+    public void onWebRtcAudioRecordStop() {
+      final AudioHooks current = hooks;
+      if (current != null) {
+        current.audioRecordStateCallback.onWebRtcAudioRecordStop();
+      }
+    }
+
+    @Override
+    public void onWebRtcAudioTrackStart() {
+      final AudioHooks current = hooks;
+      if (current != null) {
+        current.audioTrackStateCallback.onWebRtcAudioTrackStart();
+      }
+    }
+
+    @Override
+    public void onWebRtcAudioTrackStop() {
+      final AudioHooks current = hooks;
+      if (current != null) {
+        current.audioTrackStateCallback.onWebRtcAudioTrackStop();
+      }
+    }
+  }
+}
@@ -0,0 +1,254 @@
+package org.appspot.apprtc;
+
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import androidx.annotation.Nullable;
+import org.appspot.apprtc.CaptureTapMultiplexer.CaptureFrame;
+import org.appspot.apprtc.CaptureTapMultiplexer.FrameConsumer;
+import org.appspot.apprtc.util.RealFft;
+
+/**
+ * Streaming spectrum analyzer on the capture tap.
+ *
+ * <p>Captured samples are downmixed to mono and collected in a sliding window; every
+ * {@code fftSize / 2} samples a Hann-windowed {@link RealFft} is computed. The power spectrum is
+ * reduced to a fixed number of logarithmically spaced bands (maximum per band, so narrow tonal
+ * peaks stay visible) in dBFS, where a full-scale sine reads 0 dB.
+ *
+ * <p>Runs on its own capture tap thread and never blocks or allocates there, except for
+ * recomputing the band layout when the sample rate changes. Results are handed to a single reader
+ * thread (e.g. the UI thread drawing the HUD) through a lock-free triple buffer.
+ */
+public class SpectrumAnalyzer implements FrameConsumer {
+  /** Receives every power spectrum on the capture tap thread; must not block. */
+  public interface SpectrumListener {
+    /**
+     * @param power       Power of bins 0 to fftSize/2, normalized so that a full-scale sine has
+     *                    power 1. Only valid during the call.
+     * @param sampleRate  Sample rate of the analyzed audio.
+     * @param timestampMs Stream time of the end of the analyzed window.
+     */
+    void onSpectrum(float[] power, int sampleRate, long timestampMs);
+  }
+
+  public static final int DEFAULT_FFT_SIZE = 1024;
+  public static final int DEFAULT_BAND_COUNT = 64;
+  // Lower edge of the first band.
+  private static final float MIN_FREQUENCY_HZ = 60f;
+  // Reported for bands without energy instead of -infinity.
+  public static final float MIN_LEVEL_DB = -120f;
+
+  private static final int DIRTY = 4;
+  private static final int INDEX_MASK = 3;
+
+  private final int fftSize;
+  private final int hopSize;
+  private final int bandCount;
+  private final RealFft fft;
+  private final float[] window;
+  private final float[] history;
+  private final float[] fftBuffer;
+  private final float[] power;
+  // First FFT bin of every band; band b covers bins [bandStartBin[b], bandStartBin[b + 1]).
+  private final int[] bandStartBin;
+  private final float[][] bandBuffers;
+  private final float powerNormalization;
+  private int sampleRate;
+  private int historyPosition;
+  private int samplesSinceLastFft;
+  private long analyzedSamples;
+  @Nullable private volatile SpectrumListener spectrumListener;
+  // Index of the buffer owned by the tap thread.
+  private int backIndex = 0;
+  // Index of the middle buffer, plus DIRTY if it holds a spectrum the reader has not seen.
+  private final AtomicInteger middleState = new AtomicInteger(1);
+  // Index of the buffer owned by the reader.
+  private int frontIndex = 2;
+
+  private volatile int publishedSampleRate;
+  private volatile float peakFrequencyHz;
+  private volatile float peakLevelDb = MIN_LEVEL_DB;
+  private volatile long spectrumCount;
+  private volatile long processingTimeNs;
+
+  public SpectrumAnalyzer() {
+    this(DEFAULT_FFT_SIZE, DEFAULT_BAND_COUNT);
+  }
+
+  /**
+   * @param fftSize   Transform length; a power of two. The hop size is half of it.
+   * @param bandCount Number of bands of the published spectrum.
+   */
+  public SpectrumAnalyzer(int fftSize, int bandCount) {
+    if (bandCount <= 0 || bandCount > fftSize / 2) {
+      throw new IllegalArgumentException("Invalid band count: " + bandCount);
+    }
+    this.fftSize = fftSize;
+    this.hopSize = fftSize / 2;
+    this.bandCount = bandCount;
+    fft = new RealFft(fftSize);
+    window = new float[fftSize];
+    float windowSum = 0;
+    for (int i = 0; i < fftSize; ++i) {
+      window[i] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * i / fftSize));
+      windowSum += window[i];
+    }
+    // A full-scale sine has a peak bin magnitude of windowSum / 2.
+    powerNormalization = 4f / (windowSum * windowSum);
+    history = new float[fftSize];
+    fftBuffer = new float[fftSize];
+    power = new float[fftSize / 2 + 1];
+    bandStartBin = new int[bandCount + 1];
+    bandBuffers = new float[3][bandCount];
+    for (float[] buffer : bandBuffers) {
+      Arrays.fill(buffer, MIN_LEVEL_DB);
+    }
+  }
+
+  /** Sets the listener for the full-resolution power spectra, or null to remove it. */
+  public void setSpectrumListener(@Nullable SpectrumListener listener) {
+    spectrumListener = listener;
+  }
+
+  public int getFftSize() {
+    return fftSize;
+  }
+
+  public int getBandCount() {
+    return bandCount;
+  }
+
+  /** Sample rate of the latest spectrum, or 0 if no audio has been analyzed yet. */
+  public int getSampleRate() {
+    return publishedSampleRate;
+  }
+
+  /** Center frequency of `band` at `sampleRate`, on the same logarithmic scale as the bands. */
+  public float getBandCenterFrequencyHz(int band, int sampleRate) {
+    final float nyquist = sampleRate / 2f;
+    return (float) (MIN_FREQUENCY_HZ
+        * Math.pow(nyquist / MIN_FREQUENCY_HZ, (band + 0.5) / bandCount));
+  }
+
+  /** Frequency of the strongest FFT bin of the latest spectrum. */
+  public float getPeakFrequencyHz() {
+    return peakFrequencyHz;
+  }
+
+  /** Level of the strongest FFT bin of the latest spectrum in dBFS. */
+  public float getPeakLevelDb() {
+    return peakLevelDb;
+  }
+
+  /** Average processing time per transform, including windowing and band reduction. */
+  public float getAverageProcessingTimeUs() {
+    final long count = spectrumCount;
+    return count == 0 ? 0 : processingTimeNs / 1000f / count;
+  }
+
+  /**
+   * Copies the latest band levels in dBFS into `destination`, which must hold at least
+   * {@link #getBandCount()} values. Returns true if a new spectrum has been published since the
+   * previous call. Must always be called from the same thread.
+   */
+  public boolean readSpectrum(float[] destination) {
+    boolean updated = false;
+    if ((middleState.get() & DIRTY) != 0) {
+      frontIndex = middleState.getAndSet(frontIndex) & INDEX_MASK;
+      updated = true;
+    }
+    System.arraycopy(bandBuffers[frontIndex], 0, destination, 0, bandCount);
+    return updated;
+  }
+
+  @Override
+  public void onCaptureFrame(CaptureFrame frame) {
+    if (frame.getSampleRate() != sampleRate) {
+      setSampleRate(frame.getSampleRate());
+    }
+    final ShortBuffer samples = frame.getSamples();
+    final int channels = frame.getChannelCount();
+    final int frames = frame.getFrameCount();
+    final float scale = 1f / (32768f * channels);
+    for (int i = 0; i < frames; ++i) {
+      int sum = 0;
+      for (int c = 0; c < channels; ++c) {
+        sum += samples.get(i * channels + c);
+      }
+      history[historyPosition] = sum * scale;
+      analyzedSamples++;
+      historyPosition = (historyPosition + 1) & (fftSize - 1);
+      if (++samplesSinceLastFft == hopSize) {
+        samplesSinceLastFft = 0;
+        analyze();
+      }
+    }
+  }
+
+  private void setSampleRate(int sampleRate) {
+    this.sampleRate = sampleRate;
+    final float binWidthHz = (float) sampleRate / fftSize;
+    final float nyquist = sampleRate / 2f;
+    final int lastBin = fftSize / 2;
+    bandStartBin[0] = Math.max(1, Math.round(MIN_FREQUENCY_HZ / binWidthHz));
+    for (int b = 1; b <= bandCount; ++b) {
+      final double edgeHz =
+          MIN_FREQUENCY_HZ * Math.pow(nyquist / MIN_FREQUENCY_HZ, (double) b / bandCount);
+      // Every band covers at least one bin, so low bands are wider than the log scale suggests.
+      bandStartBin[b] = Math.min(lastBin + 1,
+          Math.max(bandStartBin[b - 1] + 1, (int) Math.round(edgeHz / binWidthHz)));
+    }
+    bandStartBin[bandCount] = lastBin + 1;
+    historyPosition = 0;
+    samplesSinceLastFft = 0;
+    Arrays.fill(history, 0f);
+  }
+
+  private void analyze() {
+    final long startNs = System.nanoTime();
+    // Oldest sample first.
+    for (int i = 0; i < fftSize; ++i) {
+      fftBuffer[i] = history[(historyPosition + i) & (fftSize - 1)] * window[i];
+    }
+    fft.forward(fftBuffer);
+    fft.powerSpectrum(fftBuffer, power);
+    for (int k = 0; k < power.length; ++k) {
+      power[k] *= powerNormalization;
+    }
+
+    int peakBin = 1;
+    final float[] bands = bandBuffers[backIndex];
+    for (int b = 0; b < bandCount; ++b) {
+      float bandPower = 0;
+      final int end = Math.min(bandStartBin[b + 1], power.length);
+      for (int k = Math.min(bandStartBin[b], end - 1); k < end; ++k) {
+        if (power[k] > bandPower) {
+          bandPower = power[k];
+        }
+        if (power[k] > power[peakBin]) {
+          peakBin = k;
+        }
+      }
+      bands[b] = toDb(bandPower);
+    }
+    peakFrequencyHz = (float) peakBin * sampleRate / fftSize;
+    peakLevelDb = toDb(power[peakBin]);
+    publishedSampleRate = sampleRate;
+    backIndex = middleState.getAndSet(backIndex | DIRTY) & INDEX_MASK;
+    processingTimeNs += System.nanoTime() - startNs;
+    spectrumCount++;
+
+    final SpectrumListener listener = spectrumListener;
+    if (listener != null) {
+      listener.onSpectrum(power, sampleRate, analyzedSamples * 1000 / sampleRate);
+    }
+  }
+
+  private static float toDb(float normalizedPower) {
+    if (normalizedPower <= 1e-12f) {
+      return MIN_LEVEL_DB;
+    }
+    return Math.max(MIN_LEVEL_DB, (float) (10 * Math.log10(normalizedPower)));
+  }
+}
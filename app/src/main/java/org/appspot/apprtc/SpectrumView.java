@@ -0,0 +1,84 @@
+package org.appspot.apprtc;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.util.AttributeSet;
+import android.view.View;
+import androidx.annotation.Nullable;
+import java.util.Locale;
+
+/**
+ * Draws the band levels of a {@link SpectrumAnalyzer} as a bar graph together with the current
+ * peak frequency. Redraws itself at a fixed rate while attached and visible.
+ */
+public class SpectrumView extends View {
+  private static final long REFRESH_INTERVAL_MS = 66;
+  // Levels are drawn from MIN_DISPLAY_DB (empty bar) to 0 dBFS (full height).
+  private static final float MIN_DISPLAY_DB = -90f;
+
+  private final Paint barPaint = new Paint();
+  private final Paint textPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+  private final Runnable refreshRunnable = new Runnable() {
+    @Override
+    public void run() {
+      invalidate();
+      postDelayed(this, REFRESH_INTERVAL_MS);
+    }
+  };
+  @Nullable private SpectrumAnalyzer analyzer;
+  private float[] levels = new float[0];
+
+  public SpectrumView(Context context) {
+    this(context, null);
+  }
+
+  public SpectrumView(Context context, @Nullable AttributeSet attrs) {
+    super(context, attrs);
+    barPaint.setColor(Color.argb(0xC0, 0x00, 0xFF, 0x00));
+    textPaint.setColor(Color.argb(0xC0, 0x00, 0xFF, 0x00));
+    textPaint.setTextSize(12 * getResources().getDisplayMetrics().scaledDensity);
+  }
+
+  /** Sets the analyzer to display, or null to clear the view. Must be called on the UI thread. */
+  public void setAnalyzer(@Nullable SpectrumAnalyzer analyzer) {
+    this.analyzer = analyzer;
+    levels = new float[analyzer == null ? 0 : analyzer.getBandCount()];
+    invalidate();
+  }
+
+  @Override
+  protected void onAttachedToWindow() {
+    super.onAttachedToWindow();
+    post(refreshRunnable);
+  }
+
+  @Override
+  protected void onDetachedFromWindow() {
+    removeCallbacks(refreshRunnable);
+    super.onDetachedFromWindow();
+  }
+
+  @Override
+  protected void onDraw(Canvas canvas) {
+    super.onDraw(canvas);
+    final SpectrumAnalyzer analyzer = this.analyzer;
+    if (analyzer == null || getVisibility() != VISIBLE || analyzer.getSampleRate() == 0) {
+      return;
+    }
+    analyzer.readSpectrum(levels);
+    final float width = getWidth();
+    final float height = getHeight();
+    final float barWidth = width / levels.length;
+    for (int band = 0; band < levels.length; ++band) {
+      final float fraction =
+          Math.max(0f, Math.min(1f, (levels[band] - MIN_DISPLAY_DB) / -MIN_DISPLAY_DB));
+      canvas.drawRect(band * barWidth, height * (1f - fraction), (band + 1) * barWidth - 1,
+          height, barPaint);
+    }
+    canvas.drawText(String.format(Locale.US, "Peak: %.0f Hz %.1f dBFS",
+                        analyzer.getPeakFrequencyHz(), analyzer.getPeakLevelDb()),
+        0, textPaint.getTextSize(), textPaint);
+  }
+}
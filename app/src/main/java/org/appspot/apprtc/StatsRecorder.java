@@ -0,0 +1,122 @@
+package org.appspot.apprtc;
+
+import android.os.Environment;
+import android.os.Process;
+import android.util.Log;
+import androidx.annotation.Nullable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import org.appspot.apprtc.util.StatsRecordWriter;
+
+/**
+ * Persists the audio and transport statistics of a call, one row per stats interval, to
+ * `call_stats/call_stats_<timestamp>.bin` in external storage.
+ *
+ * <p>The file is in the columnar block format of {@link StatsRecordWriter}; the audio-analyzer's
+ * StatsCsvExporter turns a directory of recordings into one CSV. The caller only copies the
+ * latest row of the {@link AudioStatsEngine}; opening the file and writing the blocks, one per
+ * 64 rows, run on a background thread. Blocks are complete on disk as soon as they are written,
+ * so a crash loses at most the rows of the last block.
+ */
+public class StatsRecorder {
+  private static final String TAG = "StatsRecorder";
+  private static final String DIRECTORY = "call_stats";
+  private static final String[] COLUMNS = {"rtt_ms", "jitter_ms", "jitter_buffer_delay_ms",
+      "loss_rate", "packets_lost", "packets_received", "concealed_share", "level_dbfs"};
+
+  private final ExecutorService writerExecutor = Executors.newSingleThreadExecutor(runnable -> {
+    final Thread thread = new Thread(runnable, "StatsRecorder");
+    thread.setDaemon(true);
+    return thread;
+  });
+  // Only used on the writer thread; null if the file could not be opened or writing failed.
+  @Nullable private StatsRecordWriter writer;
+  @Nullable private File file;
+
+  /** Starts a recording labelled `label`, e.g. with the device and codec of the call. */
+  public StatsRecorder(String label) {
+    final long startTimeMs = System.currentTimeMillis();
+    writerExecutor.execute(() -> {
+      Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+      final File directory = new File(Environment.getExternalStorageDirectory(), DIRECTORY);
+      if (!directory.isDirectory() && !directory.mkdirs()) {
+        Log.e(TAG, "Failed to create " + directory);
+        return;
+      }
+      final String timestamp =
+          new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date(startTimeMs));
+      file = new File(directory, "call_stats_" + timestamp + ".bin");
+      try {
+        writer = new StatsRecordWriter(new FileOutputStream(file), startTimeMs, label, COLUMNS);
+        Log.d(TAG, "Recording stats to " + file);
+      } catch (IOException e) {
+        Log.e(TAG, "Failed to open " + file + ": " + e.getMessage());
+      }
+    });
+  }
+
+  /** Records the latest interval of `stats`. Does not block. */
+  public void append(AudioStatsEngine stats) {
+    final float[] row = new float[COLUMNS.length];
+    synchronized (stats) {
+      final int i = stats.size() - 1;
+      if (i < 0) {
+        return;
+      }
+      row[0] = stats.getRoundTripTimeMs(i);
+      row[1] = stats.getJitterMs(i);
+      row[2] = stats.getJitterBufferDelayMs(i);
+      row[3] = stats.getLossRate(i);
+      row[4] = stats.getPacketsLost(i);
+      row[5] = stats.getPacketsReceived(i);
+      row[6] = stats.getConcealedShare(i);
+      row[7] = stats.getLevelDbfs(i);
+    }
+    final long timeMs = System.currentTimeMillis();
+    try {
+      writerExecutor.execute(() -> {
+        if (writer == null) {
+          return;
+        }
+        try {
+          writer.append(timeMs, row);
+        } catch (IOException e) {
+          Log.e(TAG, "Failed to write " + file + ": " + e.getMessage());
+          closeWriter();
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      Log.w(TAG, "Stats row after close dropped");
+    }
+  }
+
+  /** Writes the remaining rows and closes the file in the background. */
+  public void close() {
+    try {
+      writerExecutor.execute(this::closeWriter);
+    } catch (RejectedExecutionException e) {
+      return;
+    }
+    writerExecutor.shutdown();
+  }
+
+  private void closeWriter() {
+    if (writer == null) {
+      return;
+    }
+    try {
+      writer.close();
+      Log.d(TAG, "Closed " + file + ", " + file.length() + " bytes");
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to close " + file + ": " + e.getMessage());
+    }
+    writer = null;
+  }
+}
@@ -16,7 +16,6 @@ import android.util.Log;
 
 import java.io.BufferedReader;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
@@ -36,6 +35,7 @@ import java.util.Timer;
 import java.util.TimerTask;
 
 import org.appspot.apprtc.util.LogviewHelper;
+import org.appspot.apprtc.util.SocketManager;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.webrtc.ThreadUtils;
@@ -156,6 +156,7 @@ public class TCPChannelClient {
         Log.w(TAG, "开始监听端口: " + port);
         
         Socket socket = serverSocket.accept();
+        CallSetupTracer.start("tcp_accepted");
         Log.w(TAG, "收到连接: " + socket.getInetAddress().getHostAddress());
         
         synchronized (this) {
@@ -259,7 +260,9 @@ public class TCPChannelClient {
       try {
         Thread.sleep(100); // 稍微延迟，让服务器先启动
         clientSocket = new Socket();
+        CallSetupTracer.begin("tcp_connect");
         clientSocket.connect(new InetSocketAddress(ip, port), SOCKET_TIMEOUT);
+        CallSetupTracer.end("tcp_connect");
         Log.d(TAG, "连接成功: " + ip + ":" + port);
         
         synchronized (this) {
@@ -370,12 +373,9 @@ public class TCPChannelClient {
     try {
       obj.put("type", type);
       obj.put("content", content);
-      DataOutputStream dos = new DataOutputStream(activeSocket.getOutputStream());
       //序列化消息
       byte[] jsonBytes = obj.toString().getBytes(StandardCharsets.UTF_8);
-      dos.writeInt(jsonBytes.length);
-      dos.write(jsonBytes);
-      dos.flush();
+      SocketManager.writeFrame(activeSocket, jsonBytes);
     } catch (JSONException | IOException e) {
       throw new RuntimeException(e);
     }
@@ -0,0 +1,133 @@
+package org.appspot.apprtc;
+
+import org.appspot.apprtc.util.RealFft;
+
+/**
+ * Lightweight frame-level voice activity detector.
+ *
+ * <p>Each 10 ms frame is classified from two features:
+ * <ul>
+ * <li>Energy relative to a tracked noise floor. The floor follows quiet frames quickly and rises
+ *     only slowly during loud ones, so stationary room noise (fans, hum, air conditioning) ends
+ *     up below the threshold after a few seconds.
+ * <li>Spectral flatness (geometric over arithmetic mean of the power spectrum) in the speech
+ *     band. Voiced speech has formants and harmonics and is far less flat than broadband noise
+ *     such as wind, rustling or handling noise.
+ * </ul>
+ * A frame is active if it is loud enough and not noise-like. Smoothing over time (hangover,
+ * pre-roll) is left to the caller.
+ *
+ * <p>{@link #process} does not allocate and must always be called from the same thread. This
+ * class has no Android dependencies.
+ */
+public class VoiceActivityDetector {
+  /** Frame length expected by {@link #process}. */
+  public static final int FRAME_DURATION_MS = 10;
+  // Frames quieter than this are never active, whatever the noise floor.
+  private static final float MIN_SPEECH_LEVEL_DB = -65f;
+  // Required distance between frame energy and noise floor.
+  private static final float ENERGY_MARGIN_DB = 9f;
+  // Frames at least this flat are treated as noise.
+  private static final float MAX_SPEECH_FLATNESS = 0.45f;
+  private static final float SPEECH_BAND_LOW_HZ = 200f;
+  private static final float SPEECH_BAND_HIGH_HZ = 4000f;
+  // Noise floor tracking per frame: fast attack towards quieter frames, slow release.
+  private static final float FLOOR_FALL_FACTOR = 0.2f;
+  private static final float FLOOR_RISE_DB_PER_FRAME = 0.02f;
+  private static final double MIN_POWER = 1e-12;
+
+  private final int frameSize;
+  private final RealFft fft;
+  private final float[] window;
+  private final float[] fftBuffer;
+  private final float[] power;
+  private final int bandStartBin;
+  private final int bandEndBin;
+  // Starts at the first frame's energy; if that is speech, the next pause pulls it down.
+  private float noiseFloorDb = Float.NaN;
+  private float lastEnergyDb;
+  private float lastFlatness;
+
+  /** Creates a detector for frames of {@link #FRAME_DURATION_MS} at `sampleRate`. */
+  public VoiceActivityDetector(int sampleRate) {
+    frameSize = sampleRate * FRAME_DURATION_MS / 1000;
+    int fftSize = 64;
+    while (fftSize < frameSize) {
+      fftSize <<= 1;
+    }
+    fft = new RealFft(fftSize);
+    window = new float[frameSize];
+    for (int i = 0; i < frameSize; ++i) {
+      window[i] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * i / frameSize));
+    }
+    fftBuffer = new float[fftSize];
+    power = new float[fftSize / 2 + 1];
+    bandStartBin = Math.max(1, Math.round(SPEECH_BAND_LOW_HZ * fftSize / sampleRate));
+    bandEndBin = Math.max(bandStartBin + 1,
+        Math.min(fftSize / 2, Math.round(SPEECH_BAND_HIGH_HZ * fftSize / sampleRate)));
+  }
+
+  /** Number of samples in a frame passed to {@link #process}. */
+  public int getFrameSize() {
+    return frameSize;
+  }
+
+  /**
+   * Classifies one frame of {@link #getFrameSize} mono samples in [-1, 1). Returns true if the
+   * frame likely contains speech.
+   */
+  public boolean process(float[] frame) {
+    double sumSquares = 0;
+    for (int i = 0; i < frameSize; ++i) {
+      sumSquares += frame[i] * frame[i];
+      fftBuffer[i] = frame[i] * window[i];
+    }
+    for (int i = frameSize; i < fftBuffer.length; ++i) {
+      fftBuffer[i] = 0f;
+    }
+    // Full-scale sine reads about -3 dB.
+    final float energyDb =
+        (float) (10 * Math.log10(Math.max(sumSquares / frameSize, MIN_POWER)));
+
+    fft.forward(fftBuffer);
+    fft.powerSpectrum(fftBuffer, power);
+    double logSum = 0;
+    double sum = 0;
+    for (int k = bandStartBin; k < bandEndBin; ++k) {
+      final double p = Math.max(power[k], MIN_POWER);
+      logSum += Math.log(p);
+      sum += p;
+    }
+    final int bins = bandEndBin - bandStartBin;
+    final float flatness = (float) (Math.exp(logSum / bins) / (sum / bins));
+
+    if (Float.isNaN(noiseFloorDb)) {
+      noiseFloorDb = energyDb;
+    }
+    final boolean active = energyDb > MIN_SPEECH_LEVEL_DB
+        && energyDb > noiseFloorDb + ENERGY_MARGIN_DB && flatness < MAX_SPEECH_FLATNESS;
+    if (energyDb < noiseFloorDb) {
+      noiseFloorDb += FLOOR_FALL_FACTOR * (energyDb - noiseFloorDb);
+    } else {
+      noiseFloorDb = Math.min(energyDb, noiseFloorDb + FLOOR_RISE_DB_PER_FRAME);
+    }
+    lastEnergyDb = energyDb;
+    lastFlatness = flatness;
+    return active;
+  }
+
+  /** Tracked noise floor in dBFS. */
+  public float getNoiseFloorDb() {
+    return noiseFloorDb;
+  }
+
+  /** Energy of the last frame in dBFS. */
+  public float getLastEnergyDb() {
+    return lastEnergyDb;
+  }
+
+  /** Spectral flatness of the last frame, from 0 (tonal) to 1 (white noise). */
+  public float getLastFlatness() {
+    return lastFlatness;
+  }
+}
@@ -0,0 +1,197 @@
+package org.appspot.apprtc;
+
+import android.util.Log;
+import androidx.annotation.Nullable;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+
+/**
+ * Passes through only the voice-active regions of a 16-bit PCM stream.
+ *
+ * <p>The stream is cut into {@link VoiceActivityDetector#FRAME_DURATION_MS} frames and classified
+ * by a {@link VoiceActivityDetector}. A segment starts after {@link #ONSET_FRAMES} consecutive
+ * active frames, which rejects isolated false detections in noise. It includes up to `preRollMs`
+ * of the audio before that, so that word onsets are kept, and ends once no frame has been active
+ * for `hangoverMs`.
+ *
+ * <p>Every finished segment is appended to a CSV index with its first and end sample offset in
+ * the original (ungated) stream and its start offset in the gated output, so the timeline can be
+ * rebuilt. Offsets count samples per channel from the first sample passed to {@link #process}.
+ *
+ * <p>Not thread-safe; meant to be driven by a recorder's writer thread.
+ */
+public class VoiceActivityGate {
+  private static final String TAG = "VoiceActivityGate";
+  private static final String INDEX_HEADER = "segment,start_sample,end_sample,output_start_sample";
+  /** Consecutive active frames that start a segment. */
+  public static final int ONSET_FRAMES = 3;
+
+  private final VoiceActivityDetector detector;
+  private final int channelCount;
+  private final int frameSamples;
+  private final int frameBytes;
+  private final int hangoverFrames;
+  private final File indexFile;
+  private final float[] mono;
+  // Partial frame carried over between process() calls.
+  private final byte[] frame;
+  private int frameFill;
+  // Ring of the most recent inactive frames.
+  private final byte[] preRoll;
+  private final int preRollFrames;
+  private int preRollStart;
+  private int preRollCount;
+
+  private boolean active;
+  private int consecutiveActiveFrames;
+  private int framesSinceActive;
+  private long frameIndex;
+  private long segmentStartSample;
+  private long segmentOutputStartSample;
+  private long outputSamples;
+  private int segmentCount;
+  @Nullable private Writer indexWriter;
+
+  public VoiceActivityGate(int sampleRate, int channelCount, int hangoverMs, int preRollMs,
+      File indexFile) {
+    this.detector = new VoiceActivityDetector(sampleRate);
+    this.channelCount = channelCount;
+    this.indexFile = indexFile;
+    frameSamples = detector.getFrameSize();
+    frameBytes = frameSamples * channelCount * 2;
+    hangoverFrames = Math.max(1, hangoverMs / VoiceActivityDetector.FRAME_DURATION_MS);
+    mono = new float[frameSamples];
+    frame = new byte[frameBytes];
+    // The frames confirming an onset are kept in the pre-roll as well.
+    preRollFrames = Math.max(ONSET_FRAMES - 1,
+        preRollMs / VoiceActivityDetector.FRAME_DURATION_MS + ONSET_FRAMES - 1);
+    preRoll = new byte[preRollFrames * frameBytes];
+    Log.d(TAG, "Hangover: " + hangoverFrames + " frames, pre-roll: " + preRollFrames + " frames");
+  }
+
+  /**
+   * Upper bound of the bytes {@link #process} writes for `inputBytes` of input: the input, a
+   * carried over partial frame and the pre-roll.
+   */
+  public int getMaxOutputBytes(int inputBytes) {
+    return inputBytes + frameBytes + preRoll.length;
+  }
+
+  /**
+   * Consumes `length` bytes of interleaved 16-bit little-endian PCM and copies the audio to keep
+   * into `output`. Returns the number of bytes written to `output`.
+   */
+  public int process(byte[] input, int length, byte[] output) {
+    int outputBytes = 0;
+    int position = 0;
+    while (position < length) {
+      final int bytes = Math.min(length - position, frameBytes - frameFill);
+      System.arraycopy(input, position, frame, frameFill, bytes);
+      position += bytes;
+      frameFill += bytes;
+      if (frameFill == frameBytes) {
+        outputBytes = processFrame(output, outputBytes);
+        frameFill = 0;
+      }
+    }
+    return outputBytes;
+  }
+
+  /** Ends an open segment and closes the index. A trailing partial frame is dropped. */
+  public void finish() {
+    if (active) {
+      endSegment();
+    }
+    if (indexWriter != null) {
+      try {
+        indexWriter.close();
+      } catch (IOException e) {
+        Log.e(TAG, "Failed to close segment index: " + e);
+      }
+      indexWriter = null;
+    }
+    Log.d(TAG, "Kept " + outputSamples + " of " + frameIndex * frameSamples + " samples in "
+        + segmentCount + " segments");
+  }
+
+  /** Number of finished or open segments so far. */
+  public int getSegmentCount() {
+    return segmentCount + (active ? 1 : 0);
+  }
+
+  private int processFrame(byte[] output, int outputBytes) {
+    for (int i = 0; i < frameSamples; ++i) {
+      int sum = 0;
+      for (int c = 0; c < channelCount; ++c) {
+        final int offset = 2 * (i * channelCount + c);
+        sum += (short) ((frame[offset] & 0xFF) | (frame[offset + 1] << 8));
+      }
+      mono[i] = sum / (32768f * channelCount);
+    }
+    final boolean speech = detector.process(mono);
+    consecutiveActiveFrames = speech ? consecutiveActiveFrames + 1 : 0;
+
+    if (!active && consecutiveActiveFrames >= ONSET_FRAMES) {
+      active = true;
+      segmentStartSample = (frameIndex - preRollCount) * frameSamples;
+      segmentOutputStartSample = outputSamples;
+      // Flush the pre-roll, oldest frame first.
+      for (int i = 0; i < preRollCount; ++i) {
+        final int slot = (preRollStart + i) % preRollFrames;
+        System.arraycopy(preRoll, slot * frameBytes, output, outputBytes, frameBytes);
+        outputBytes += frameBytes;
+      }
+      outputSamples += (long) preRollCount * frameSamples;
+      preRollStart = 0;
+      preRollCount = 0;
+    }
+
+    if (active) {
+      System.arraycopy(frame, 0, output, outputBytes, frameBytes);
+      outputBytes += frameBytes;
+      outputSamples += frameSamples;
+      framesSinceActive = speech ? 0 : framesSinceActive + 1;
+      frameIndex++;
+      if (framesSinceActive >= hangoverFrames) {
+        endSegment();
+      }
+    } else {
+      if (preRollFrames > 0) {
+        // Overwrites the oldest frame once the ring is full.
+        final int slot = (preRollStart + preRollCount) % preRollFrames;
+        System.arraycopy(frame, 0, preRoll, slot * frameBytes, frameBytes);
+        if (preRollCount < preRollFrames) {
+          preRollCount++;
+        } else {
+          preRollStart = (preRollStart + 1) % preRollFrames;
+        }
+      }
+      frameIndex++;
+    }
+    return outputBytes;
+  }
+
+  private void endSegment() {
+    active = false;
+    framesSinceActive = 0;
+    final long endSample = frameIndex * frameSamples;
+    try {
+      if (indexWriter == null) {
+        indexWriter = new BufferedWriter(new FileWriter(indexFile));
+        indexWriter.write(INDEX_HEADER + "\n");
+        Log.d(TAG, "Opened segment index: " + indexFile);
+      }
+      indexWriter.write(String.format(Locale.US, "%d,%d,%d,%d\n", segmentCount,
+          segmentStartSample, endSample, segmentOutputStartSample));
+      // Keeps the index usable if the app dies during a long recording.
+      indexWriter.flush();
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to write segment index: " + e);
+    }
+    segmentCount++;
+  }
+}
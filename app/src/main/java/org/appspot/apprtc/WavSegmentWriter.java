@@ -0,0 +1,143 @@
+package org.appspot.apprtc;
+
+import android.util.Log;
+import androidx.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+
+/**
+ * Writes 16-bit PCM audio into a sequence of fixed-length WAV files.
+ *
+ * <p>Each segment is memory mapped through a {@link FileChannel}, so appending samples is a plain
+ * memory copy without a system call per write. When a segment is full its header is patched
+ * with the final sizes and the next segment is opened on the following write; samples that
+ * straddle the boundary are split between the two files so no audio is lost on rotation.
+ *
+ * <p>Not thread-safe; all calls must be made from the same thread.
+ */
+class WavSegmentWriter {
+  private static final String TAG = "WavSegmentWriter";
+  static final int WAV_HEADER_SIZE = 44;
+  private static final int BYTES_PER_SAMPLE = 2;
+
+  private final File directory;
+  private final String baseName;
+  private final int sampleRate;
+  private final int channelCount;
+  private final int segmentDataBytes;
+  @Nullable private RandomAccessFile segmentFile;
+  @Nullable private FileChannel segmentChannel;
+  @Nullable private MappedByteBuffer segmentBuffer;
+  private int segmentCount;
+
+  /**
+   * @param directory              Directory in which the segments are created.
+   * @param baseName               File name prefix; a segment index and ".wav" are appended.
+   * @param segmentDurationSeconds Length of each segment.
+   */
+  public WavSegmentWriter(File directory, String baseName, int sampleRate, int channelCount,
+      int segmentDurationSeconds) {
+    if (sampleRate <= 0 || channelCount <= 0 || segmentDurationSeconds <= 0) {
+      throw new IllegalArgumentException("Invalid WAV segment parameters");
+    }
+    this.directory = directory;
+    this.baseName = baseName;
+    this.sampleRate = sampleRate;
+    this.channelCount = channelCount;
+    final long dataBytes =
+        (long) sampleRate * channelCount * BYTES_PER_SAMPLE * segmentDurationSeconds;
+    if (dataBytes > Integer.MAX_VALUE - WAV_HEADER_SIZE) {
+      throw new IllegalArgumentException("WAV segment too long: " + segmentDurationSeconds + "s");
+    }
+    this.segmentDataBytes = (int) dataBytes;
+  }
+
+  /** Number of segments opened so far, including the current one. */
+  public int getSegmentCount() {
+    return segmentCount;
+  }
+
+  /** Appends interleaved 16-bit little-endian samples, rotating segments as needed. */
+  public void write(byte[] data, int offset, int length) throws IOException {
+    while (length > 0) {
+      if (segmentBuffer == null) {
+        openSegment();
+      }
+      final int bytesToCopy = Math.min(length, segmentBuffer.remaining());
+      segmentBuffer.put(data, offset, bytesToCopy);
+      offset += bytesToCopy;
+      length -= bytesToCopy;
+      if (!segmentBuffer.hasRemaining()) {
+        closeSegment();
+      }
+    }
+  }
+
+  /** Finalizes the current segment, if any. */
+  public void close() throws IOException {
+    closeSegment();
+  }
+
+  private void openSegment() throws IOException {
+    final File file = new File(directory,
+        baseName + String.format(Locale.US, "_%04d", segmentCount) + ".wav");
+    segmentFile = new RandomAccessFile(file, "rw");
+    segmentChannel = segmentFile.getChannel();
+    segmentBuffer =
+        segmentChannel.map(FileChannel.MapMode.READ_WRITE, 0, WAV_HEADER_SIZE + segmentDataBytes);
+    segmentBuffer.order(ByteOrder.LITTLE_ENDIAN);
+    // Sizes are patched when the segment is closed.
+    putHeader(segmentBuffer, sampleRate, channelCount, 0);
+    segmentCount++;
+    Log.d(TAG, "Opened WAV segment: " + file.getPath());
+  }
+
+  private void closeSegment() throws IOException {
+    if (segmentBuffer == null) {
+      return;
+    }
+    final int dataBytes = segmentBuffer.position() - WAV_HEADER_SIZE;
+    segmentBuffer.putInt(4, 36 + dataBytes);
+    segmentBuffer.putInt(40, dataBytes);
+    segmentBuffer.force();
+    segmentBuffer = null;
+    try {
+      // The mapping reserved a full segment; trim a partially filled last segment.
+      if (dataBytes < segmentDataBytes) {
+        segmentChannel.truncate(WAV_HEADER_SIZE + dataBytes);
+      }
+    } finally {
+      segmentChannel.close();
+      segmentFile.close();
+      segmentChannel = null;
+      segmentFile = null;
+    }
+  }
+
+  /**
+   * Writes a canonical 44-byte PCM WAV header at the current position of `buffer`, which must be
+   * in little-endian order.
+   */
+  static void putHeader(ByteBuffer buffer, int sampleRate, int channelCount, int dataBytes) {
+    final int blockAlign = channelCount * BYTES_PER_SAMPLE;
+    buffer.put((byte) 'R').put((byte) 'I').put((byte) 'F').put((byte) 'F');
+    buffer.putInt(36 + dataBytes);
+    buffer.put((byte) 'W').put((byte) 'A').put((byte) 'V').put((byte) 'E');
+    buffer.put((byte) 'f').put((byte) 'm').put((byte) 't').put((byte) ' ');
+    buffer.putInt(16);
+    buffer.putShort((short) 1); // PCM
+    buffer.putShort((short) channelCount);
+    buffer.putInt(sampleRate);
+    buffer.putInt(sampleRate * blockAlign);
+    buffer.putShort((short) blockAlign);
+    buffer.putShort((short) (BYTES_PER_SAMPLE * 8));
+    buffer.put((byte) 'd').put((byte) 'a').put((byte) 't').put((byte) 'a');
+    buffer.putInt(dataBytes);
+  }
+}
@@ -0,0 +1,339 @@
+package org.appspot.apprtc.util;
+
+import android.content.Context;
+import android.util.Log;
+import androidx.annotation.Nullable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Persistent index of the frequencies that howled in a given acoustic setup, so the next call in
+ * the same setup can be prepared for them before they howl again.
+ *
+ * <p>Entries are keyed by a string built with {@link #key} from the device model, the audio route
+ * and the network, which stands in for the room. Every frequency carries a weight that grows by one
+ * per howl onset and halves every {@link #HALF_LIFE_MS}; weights below {@link #MIN_WEIGHT} are
+ * dropped, as are the weakest frequencies beyond {@link #MAX_FREQUENCIES} per entry and the least
+ * recently used entries beyond {@link #MAX_ENTRIES}.
+ *
+ * <p>The index is read and written on a background thread. {@link #lookup} never waits for the
+ * read: until it is done, every setup is unknown. All methods may be called from any thread.
+ */
+public class AcousticFingerprintCache {
+  private static final String TAG = "AcousticFingerprintCache";
+  private static final String FILE_NAME = "acoustic_fingerprints.json";
+  public static final long HALF_LIFE_MS = 14L * 24 * 60 * 60 * 1000;
+  public static final float MIN_WEIGHT = 0.1f;
+  // Weight from which a frequency is reported by lookup(): two recent onsets, not a single one.
+  public static final float SEED_WEIGHT = 1.5f;
+  public static final int MAX_FREQUENCIES = 8;
+  public static final int MAX_ENTRIES = 32;
+  // Onsets closer than this are the same frequency.
+  private static final float MERGE_HZ = 40f;
+
+  /** Frequencies known to howl in a setup, strongest first. */
+  public static final class Fingerprint {
+    public final float[] frequenciesHz;
+    // Highest suppression level any of the frequencies howled at, -1 if unknown.
+    public final int maxHowlLevel;
+
+    Fingerprint(float[] frequenciesHz, int maxHowlLevel) {
+      this.frequenciesHz = frequenciesHz;
+      this.maxHowlLevel = maxHowlLevel;
+    }
+  }
+
+  private static final class Frequency {
+    float hz;
+    float weight;
+    // Time `weight` was last decayed to.
+    long updatedMs;
+    int maxLevel;
+  }
+
+  private static final class Entry {
+    long lastUsedMs;
+    final List<Frequency> frequencies = new ArrayList<>();
+  }
+
+  @Nullable private static AcousticFingerprintCache instance;
+
+  private final File file;
+  private final File tempFile;
+  private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+    final Thread thread = new Thread(runnable, "AcousticFingerprintCache");
+    thread.setDaemon(true);
+    return thread;
+  });
+  // Guarded by `this`.
+  private final Map<String, Entry> entries = new HashMap<>();
+  private boolean loaded;
+  private boolean dirty;
+
+  /** Returns the app's cache, reading it in the background on first use. */
+  public static synchronized AcousticFingerprintCache getInstance(Context context) {
+    if (instance == null) {
+      instance = new AcousticFingerprintCache(new File(context.getFilesDir(), FILE_NAME));
+    }
+    return instance;
+  }
+
+  AcousticFingerprintCache(File file) {
+    this.file = file;
+    this.tempFile = new File(file.getPath() + ".tmp");
+    executor.execute(this::load);
+  }
+
+  /** Builds the key of a setup; `network` may be null if unknown. */
+  public static String key(String deviceModel, String route, @Nullable String network) {
+    return deviceModel + "|" + route + "|" + (network != null ? network : "unknown");
+  }
+
+  /**
+   * Returns the frequencies that howled in the setup `key` often and recently enough, or null if
+   * there are none or the index has not been read yet.
+   */
+  @Nullable
+  public synchronized Fingerprint lookup(String key) {
+    if (!loaded) {
+      Log.d(TAG, "Index not read yet, no fingerprint for " + key);
+      return null;
+    }
+    final Entry entry = entries.get(key);
+    if (entry == null) {
+      return null;
+    }
+    final long nowMs = System.currentTimeMillis();
+    decay(entry, nowMs);
+    entry.lastUsedMs = nowMs;
+    dirty = true;
+    final List<Frequency> seeds = new ArrayList<>();
+    int maxLevel = -1;
+    for (Frequency frequency : entry.frequencies) {
+      if (frequency.weight >= SEED_WEIGHT) {
+        seeds.add(frequency);
+        maxLevel = Math.max(maxLevel, frequency.maxLevel);
+      }
+    }
+    if (seeds.isEmpty()) {
+      return null;
+    }
+    final float[] frequenciesHz = new float[seeds.size()];
+    for (int i = 0; i < frequenciesHz.length; i++) {
+      frequenciesHz[i] = seeds.get(i).hz;
+    }
+    return new Fingerprint(frequenciesHz, maxLevel);
+  }
+
+  /**
+   * Records a howl onset at `hz` in the setup `key`, at suppression level `level` or -1 if
+   * unknown. Onsets before the index has been read are merged into it once it is.
+   */
+  public synchronized void recordHowl(String key, float hz, int level) {
+    final long nowMs = System.currentTimeMillis();
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      entry = new Entry();
+      entries.put(key, entry);
+    }
+    entry.lastUsedMs = nowMs;
+    decay(entry, nowMs);
+    Frequency match = findFrequency(entry, hz);
+    if (match == null) {
+      match = new Frequency();
+      match.hz = hz;
+      match.maxLevel = -1;
+      entry.frequencies.add(match);
+    } else {
+      // Follow slow drifts of the frequency, weighted by the evidence for the old one.
+      match.hz = (match.hz * match.weight + hz) / (match.weight + 1);
+    }
+    match.weight += 1;
+    match.updatedMs = nowMs;
+    match.maxLevel = Math.max(match.maxLevel, level);
+    sortAndTrim(entry);
+    dirty = true;
+  }
+
+  /** Writes the index in the background if it changed. */
+  public void save() {
+    executor.execute(this::write);
+  }
+
+  @Nullable
+  private static Frequency findFrequency(Entry entry, float hz) {
+    for (Frequency frequency : entry.frequencies) {
+      if (Math.abs(frequency.hz - hz) <= MERGE_HZ) {
+        return frequency;
+      }
+    }
+    return null;
+  }
+
+  // Called with `this` held.
+  private static void decay(Entry entry, long nowMs) {
+    for (Iterator<Frequency> it = entry.frequencies.iterator(); it.hasNext();) {
+      final Frequency frequency = it.next();
+      final long elapsedMs = Math.max(0, nowMs - frequency.updatedMs);
+      frequency.weight *= (float) Math.pow(0.5, (double) elapsedMs / HALF_LIFE_MS);
+      frequency.updatedMs = nowMs;
+      if (frequency.weight < MIN_WEIGHT) {
+        it.remove();
+      }
+    }
+  }
+
+  // Called with `this` held.
+  private static void sortAndTrim(Entry entry) {
+    Collections.sort(entry.frequencies, (a, b) -> Float.compare(b.weight, a.weight));
+    while (entry.frequencies.size() > MAX_FREQUENCIES) {
+      entry.frequencies.remove(entry.frequencies.size() - 1);
+    }
+  }
+
+  // Called with `this` held.
+  private void evict() {
+    final long nowMs = System.currentTimeMillis();
+    for (Iterator<Entry> it = entries.values().iterator(); it.hasNext();) {
+      final Entry entry = it.next();
+      decay(entry, nowMs);
+      if (entry.frequencies.isEmpty()) {
+        it.remove();
+      }
+    }
+    while (entries.size() > MAX_ENTRIES) {
+      String oldestKey = null;
+      long oldestMs = Long.MAX_VALUE;
+      for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+        if (entry.getValue().lastUsedMs < oldestMs) {
+          oldestMs = entry.getValue().lastUsedMs;
+          oldestKey = entry.getKey();
+        }
+      }
+      entries.remove(oldestKey);
+    }
+  }
+
+  // Executor thread.
+  private void load() {
+    final Map<String, Entry> read = new HashMap<>();
+    if (file.exists()) {
+      try (FileInputStream input = new FileInputStream(file)) {
+        final byte[] bytes = new byte[(int) file.length()];
+        int offset = 0;
+        while (offset < bytes.length) {
+          final int count = input.read(bytes, offset, bytes.length - offset);
+          if (count < 0) {
+            break;
+          }
+          offset += count;
+        }
+        parse(new String(bytes, 0, offset, StandardCharsets.UTF_8), read);
+      } catch (IOException | JSONException e) {
+        Log.e(TAG, "Failed to read " + file + ", starting empty: " + e.getMessage());
+        read.clear();
+      }
+    }
+    synchronized (this) {
+      // Merges onsets recorded while reading; the file has no newer data on those frequencies.
+      for (Map.Entry<String, Entry> entry : read.entrySet()) {
+        final Entry recorded = entries.get(entry.getKey());
+        if (recorded == null) {
+          entries.put(entry.getKey(), entry.getValue());
+          continue;
+        }
+        for (Frequency frequency : entry.getValue().frequencies) {
+          if (findFrequency(recorded, frequency.hz) == null) {
+            recorded.frequencies.add(frequency);
+          }
+        }
+        sortAndTrim(recorded);
+      }
+      loaded = true;
+    }
+    Log.d(TAG, "Read " + read.size() + " fingerprints");
+  }
+
+  // Executor thread.
+  private void write() {
+    final String json;
+    synchronized (this) {
+      if (!dirty || !loaded) {
+        return;
+      }
+      evict();
+      try {
+        json = toJson().toString();
+      } catch (JSONException e) {
+        Log.e(TAG, "Failed to encode fingerprints: " + e.getMessage());
+        return;
+      }
+      dirty = false;
+    }
+    try {
+      try (FileOutputStream output = new FileOutputStream(tempFile)) {
+        output.write(json.getBytes(StandardCharsets.UTF_8));
+        output.getFD().sync();
+      }
+      if (!tempFile.renameTo(file)) {
+        throw new IOException("Failed to rename " + tempFile + " to " + file);
+      }
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to write fingerprints: " + e.getMessage());
+      tempFile.delete();
+    }
+  }
+
+  private static void parse(String text, Map<String, Entry> into) throws JSONException {
+    final JSONObject json = new JSONObject(text);
+    for (Iterator<String> keys = json.keys(); keys.hasNext();) {
+      final String key = keys.next();
+      final JSONObject entryJson = json.getJSONObject(key);
+      final Entry entry = new Entry();
+      entry.lastUsedMs = entryJson.getLong("used");
+      final JSONArray frequencies = entryJson.getJSONArray("f");
+      for (int i = 0; i < frequencies.length(); i++) {
+        final JSONObject frequencyJson = frequencies.getJSONObject(i);
+        final Frequency frequency = new Frequency();
+        frequency.hz = (float) frequencyJson.getDouble("hz");
+        frequency.weight = (float) frequencyJson.getDouble("w");
+        frequency.updatedMs = frequencyJson.getLong("t");
+        frequency.maxLevel = frequencyJson.getInt("l");
+        entry.frequencies.add(frequency);
+      }
+      into.put(key, entry);
+    }
+  }
+
+  // Called with `this` held.
+  private JSONObject toJson() throws JSONException {
+    final JSONObject json = new JSONObject();
+    for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+      final JSONArray frequencies = new JSONArray();
+      for (Frequency frequency : entry.getValue().frequencies) {
+        frequencies.put(new JSONObject()
+                            .put("hz", frequency.hz)
+                            .put("w", frequency.weight)
+                            .put("t", frequency.updatedMs)
+                            .put("l", frequency.maxLevel));
+      }
+      json.put(entry.getKey(),
+          new JSONObject().put("used", entry.getValue().lastUsedMs).put("f", frequencies));
+    }
+    return json;
+  }
+}
@@ -0,0 +1,168 @@
+package org.appspot.apprtc.util;
+
+import androidx.annotation.Nullable;
+import java.util.Locale;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A partial change of the {@link AudioTuningConfig} settings, as sent to the remote peer. Only
+ * the settings that are set are changed; the JSON form uses short keys to keep signaling messages
+ * small, e.g. {"sl":3,"tl":9}. The levels are whole numbers within the limits of
+ * {@link AudioTuningConfig}.
+ */
+public final class AudioConfigDelta {
+  private static final String KEY_SUPPRESS_LEVEL = "sl";
+  private static final String KEY_TARGET_LEVEL_DBFS = "tl";
+  private static final String KEY_COMPRESSION_GAIN_DB = "cg";
+  private static final String KEY_LIMITER_ENABLED = "lim";
+  private static final String KEY_AGC_ENABLED = "agc";
+  private static final AudioConfigDelta NO_CHANGE =
+      new AudioConfigDelta(null, null, null, null, null);
+
+  @Nullable public final Float suppressLevel;
+  @Nullable public final Float targetLevelDbfs;
+  @Nullable public final Float compressionGainDb;
+  @Nullable public final Boolean limiterEnabled;
+  @Nullable public final Boolean agcEnabled;
+
+  public AudioConfigDelta(@Nullable Float suppressLevel, @Nullable Float targetLevelDbfs,
+      @Nullable Float compressionGainDb, @Nullable Boolean limiterEnabled,
+      @Nullable Boolean agcEnabled) {
+    this.suppressLevel = suppressLevel;
+    this.targetLevelDbfs = targetLevelDbfs;
+    this.compressionGainDb = compressionGainDb;
+    this.limiterEnabled = limiterEnabled;
+    this.agcEnabled = agcEnabled;
+  }
+
+  public boolean isEmpty() {
+    return suppressLevel == null && targetLevelDbfs == null && compressionGainDb == null
+        && limiterEnabled == null && agcEnabled == null;
+  }
+
+  /** Applies the set values to `editor`, which still has to be applied. */
+  public AudioConfigStore.Editor applyTo(AudioConfigStore.Editor editor) {
+    if (suppressLevel != null) {
+      editor.setSuppressLevel(suppressLevel);
+    }
+    if (targetLevelDbfs != null) {
+      editor.setTargetLevelDbfs(targetLevelDbfs);
+    }
+    if (compressionGainDb != null) {
+      editor.setCompressionGainDb(compressionGainDb);
+    }
+    if (limiterEnabled != null) {
+      editor.setLimiterEnabled(limiterEnabled);
+    }
+    if (agcEnabled != null) {
+      editor.setAgcEnabled(agcEnabled);
+    }
+    return editor;
+  }
+
+  /**
+   * Returns the values the settings set here have in `config`, or in `pending` where that sets
+   * them, i.e. the delta that undoes this one once `pending` and this one are applied to `config`.
+   */
+  public AudioConfigDelta valuesIn(AudioTuningConfig config, @Nullable AudioConfigDelta pending) {
+    final AudioConfigDelta p = pending != null ? pending : NO_CHANGE;
+    return new AudioConfigDelta(
+        suppressLevel == null ? null : pick(p.suppressLevel, config.suppressLevel),
+        targetLevelDbfs == null ? null : pick(p.targetLevelDbfs, config.targetLevelDbfs),
+        compressionGainDb == null ? null : pick(p.compressionGainDb, config.compressionGainDb),
+        limiterEnabled == null ? null : pick(p.limiterEnabled, config.limiterEnabled),
+        agcEnabled == null ? null : pick(p.agcEnabled, config.agcEnabled));
+  }
+
+  /**
+   * Returns `undo`, as made by {@link #valuesIn}, without the settings that no longer have the
+   * value of this delta in `config`, i.e. that something else changed after it was applied.
+   */
+  public AudioConfigDelta undoIn(AudioTuningConfig config, AudioConfigDelta undo) {
+    return new AudioConfigDelta(
+        config.suppressLevel == unbox(suppressLevel) ? undo.suppressLevel : null,
+        config.targetLevelDbfs == unbox(targetLevelDbfs) ? undo.targetLevelDbfs : null,
+        config.compressionGainDb == unbox(compressionGainDb) ? undo.compressionGainDb : null,
+        limiterEnabled != null && config.limiterEnabled == limiterEnabled
+            ? undo.limiterEnabled : null,
+        agcEnabled != null && config.agcEnabled == agcEnabled ? undo.agcEnabled : null);
+  }
+
+  private static <T> T pick(@Nullable T pending, T current) {
+    return pending != null ? pending : current;
+  }
+
+  // NaN, which equals no value, for an unset level.
+  private static float unbox(@Nullable Float value) {
+    return value != null ? value : Float.NaN;
+  }
+
+  public JSONObject toJson() throws JSONException {
+    final JSONObject json = new JSONObject();
+    if (suppressLevel != null) {
+      json.put(KEY_SUPPRESS_LEVEL, (double) suppressLevel);
+    }
+    if (targetLevelDbfs != null) {
+      json.put(KEY_TARGET_LEVEL_DBFS, (double) targetLevelDbfs);
+    }
+    if (compressionGainDb != null) {
+      json.put(KEY_COMPRESSION_GAIN_DB, (double) compressionGainDb);
+    }
+    if (limiterEnabled != null) {
+      json.put(KEY_LIMITER_ENABLED, limiterEnabled);
+    }
+    if (agcEnabled != null) {
+      json.put(KEY_AGC_ENABLED, agcEnabled);
+    }
+    return json;
+  }
+
+  /**
+   * Parses the JSON form. Throws a JSONException if a level is not a whole number within its
+   * limits, e.g. from a peer with other limits; nothing of such a delta may be applied.
+   */
+  public static AudioConfigDelta fromJson(JSONObject json) throws JSONException {
+    return new AudioConfigDelta(
+        optLevel(json, KEY_SUPPRESS_LEVEL, 0, AudioTuningConfig.MAX_SUPPRESS_LEVEL),
+        optLevel(json, KEY_TARGET_LEVEL_DBFS, 0, AudioTuningConfig.MAX_TARGET_LEVEL_DBFS),
+        optLevel(json, KEY_COMPRESSION_GAIN_DB, 0, AudioTuningConfig.MAX_COMPRESSION_GAIN_DB),
+        json.has(KEY_LIMITER_ENABLED) ? json.getBoolean(KEY_LIMITER_ENABLED) : null,
+        json.has(KEY_AGC_ENABLED) ? json.getBoolean(KEY_AGC_ENABLED) : null);
+  }
+
+  @Nullable
+  private static Float optLevel(JSONObject json, String key, int min, int max)
+      throws JSONException {
+    if (!json.has(key)) {
+      return null;
+    }
+    final double value = json.getDouble(key);
+    if (value != Math.rint(value) || value < min || value > max) {
+      throw new JSONException(key + " must be a whole number in [" + min + ", " + max + "]: "
+          + json.get(key));
+    }
+    return (float) value;
+  }
+
+  @Override
+  public String toString() {
+    final StringBuilder builder = new StringBuilder();
+    if (suppressLevel != null) {
+      builder.append(String.format(Locale.US, "suppress %.0f ", suppressLevel));
+    }
+    if (targetLevelDbfs != null) {
+      builder.append(String.format(Locale.US, "target %.0f dBFS ", targetLevelDbfs));
+    }
+    if (compressionGainDb != null) {
+      builder.append(String.format(Locale.US, "gain %.0f dB ", compressionGainDb));
+    }
+    if (limiterEnabled != null) {
+      builder.append("limiter ").append(limiterEnabled ? "on " : "off ");
+    }
+    if (agcEnabled != null) {
+      builder.append("AGC ").append(agcEnabled ? "on " : "off ");
+    }
+    return builder.length() == 0 ? "no change" : builder.toString().trim();
+  }
+}
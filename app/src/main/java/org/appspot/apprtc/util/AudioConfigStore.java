@@ -0,0 +1,283 @@
+package org.appspot.apprtc.util;
+
+import android.util.Log;
+import androidx.annotation.Nullable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the native audio tuning settings ({@link AudioTuningConfig}) and commits them to the ini
+ * file the native audio processing reads.
+ *
+ * <p>Changes made with {@link #edit} take effect in memory immediately. File writes run on a
+ * background thread and are debounced, so a burst of changes (typing in a field, moving through a
+ * spinner) costs a single write of the latest snapshot. A write is skipped if the file already
+ * holds the same settings. Every commit goes to a temporary file that is synced and then renamed
+ * over the ini file, so a reader sees either the old or the new file, never a partial one.
+ *
+ * <p>All methods may be called from any thread; listeners are called on the store's thread.
+ */
+public class AudioConfigStore {
+  private static final String TAG = "AudioConfigStore";
+  private static final long COMMIT_DELAY_MS = 300;
+  private static final String FILE_COMMENT = "INI Configuration File";
+
+  /** Receives every snapshot written to the file. */
+  public interface Listener {
+    void onConfigCommitted(AudioTuningConfig config);
+  }
+
+  /**
+   * Collects changes to the current snapshot; {@link #apply} publishes them. Like
+   * SharedPreferences.Editor, an editor is meant to be used once, right away.
+   */
+  public final class Editor {
+    private String logFolderPath;
+    private float suppressLevel;
+    private float targetLevelDbfs;
+    private float compressionGainDb;
+    private boolean limiterEnabled;
+    private boolean agcEnabled;
+
+    private Editor(AudioTuningConfig base) {
+      logFolderPath = base.logFolderPath;
+      suppressLevel = base.suppressLevel;
+      targetLevelDbfs = base.targetLevelDbfs;
+      compressionGainDb = base.compressionGainDb;
+      limiterEnabled = base.limiterEnabled;
+      agcEnabled = base.agcEnabled;
+    }
+
+    public Editor setLogFolderPath(String logFolderPath) {
+      this.logFolderPath = logFolderPath;
+      return this;
+    }
+
+    public Editor setSuppressLevel(float suppressLevel) {
+      this.suppressLevel = suppressLevel;
+      return this;
+    }
+
+    public Editor setTargetLevelDbfs(float targetLevelDbfs) {
+      this.targetLevelDbfs = targetLevelDbfs;
+      return this;
+    }
+
+    public Editor setCompressionGainDb(float compressionGainDb) {
+      this.compressionGainDb = compressionGainDb;
+      return this;
+    }
+
+    public Editor setLimiterEnabled(boolean limiterEnabled) {
+      this.limiterEnabled = limiterEnabled;
+      return this;
+    }
+
+    public Editor setAgcEnabled(boolean agcEnabled) {
+      this.agcEnabled = agcEnabled;
+      return this;
+    }
+
+    /** Sets all tuning settings, but not the log folder, to those of `config`. */
+    public Editor setTuning(AudioTuningConfig config) {
+      suppressLevel = config.suppressLevel;
+      targetLevelDbfs = config.targetLevelDbfs;
+      compressionGainDb = config.compressionGainDb;
+      limiterEnabled = config.limiterEnabled;
+      agcEnabled = config.agcEnabled;
+      return this;
+    }
+
+    /**
+     * Publishes the changes as a new snapshot and schedules a write. Returns the current snapshot,
+     * which is unchanged if no setting changed.
+     */
+    public AudioTuningConfig apply() {
+      synchronized (lock) {
+        final AudioTuningConfig candidate = new AudioTuningConfig(current.version + 1,
+            logFolderPath, suppressLevel, targetLevelDbfs, compressionGainDb, limiterEnabled,
+            agcEnabled);
+        // The first apply always commits: the file may still hold the settings of an earlier run.
+        if (current.version == 0 || !candidate.hasSameValues(current)) {
+          current = candidate;
+          scheduleCommit(COMMIT_DELAY_MS);
+        }
+        return current;
+      }
+    }
+  }
+
+  // Store of the app's native config file, for components without access to its owner.
+  @Nullable private static volatile AudioConfigStore defaultStore;
+
+  private final File file;
+  private final File tempFile;
+  private final ScheduledExecutorService executor =
+      Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "AudioConfigStore");
+        thread.setDaemon(true);
+        return thread;
+      });
+  private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+  private final Object lock = new Object();
+  // Guarded by `lock`.
+  private AudioTuningConfig current = AudioTuningConfig.createDefault();
+  @Nullable private ScheduledFuture<?> pendingCommit;
+  // Only used on the executor thread. Settings in the file, or null if unknown.
+  @Nullable private AudioTuningConfig committed;
+  private volatile long committedVersion;
+  private boolean closed;
+
+  /**
+   * Creates a store for `file`. The current file contents, if any, are read in the background
+   * and only serve to skip redundant writes; the initial snapshot holds the defaults.
+   */
+  public AudioConfigStore(File file) {
+    this.file = file;
+    this.tempFile = new File(file.getPath() + ".tmp");
+    executor.execute(this::readCommitted);
+  }
+
+  /** Makes `store` the one returned by {@link #getDefault}; null clears it. */
+  public static void setDefault(@Nullable AudioConfigStore store) {
+    defaultStore = store;
+  }
+
+  /** Returns the store of the app's native config file, or null if there is none right now. */
+  @Nullable
+  public static AudioConfigStore getDefault() {
+    return defaultStore;
+  }
+
+  public void addListener(Listener listener) {
+    listeners.add(listener);
+  }
+
+  public void removeListener(Listener listener) {
+    listeners.remove(listener);
+  }
+
+  /** Returns the latest snapshot, including changes not written yet. */
+  public AudioTuningConfig getConfig() {
+    synchronized (lock) {
+      return current;
+    }
+  }
+
+  /**
+   * Returns the version of the latest snapshot known to be in the file. Snapshots that needed no
+   * write because the file already had their settings count as written.
+   */
+  public long getCommittedVersion() {
+    return committedVersion;
+  }
+
+  /** Starts a change of the latest snapshot. */
+  public Editor edit() {
+    synchronized (lock) {
+      return new Editor(current);
+    }
+  }
+
+  /** Writes pending changes right away, e.g. before a call starts. Does not block. */
+  public void flush() {
+    synchronized (lock) {
+      scheduleCommit(0);
+    }
+  }
+
+  /**
+   * Like {@link #flush()}, then runs `onFlushed` on the store's thread once the file holds the
+   * latest snapshot, or the write failed.
+   */
+  public void flush(Runnable onFlushed) {
+    synchronized (lock) {
+      scheduleCommit(0);
+      if (!executor.isShutdown()) {
+        // Zero delay tasks run in submission order, so this follows the commit.
+        executor.execute(onFlushed);
+      }
+    }
+  }
+
+  /** Writes pending changes and stops the background thread. The store can not be used later. */
+  public void close() {
+    synchronized (lock) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      scheduleCommit(0);
+    }
+    // Already scheduled tasks, including the final commit, still run.
+    executor.shutdown();
+  }
+
+  // Called with `lock` held.
+  private void scheduleCommit(long delayMs) {
+    if (executor.isShutdown()) {
+      Log.w(TAG, "Store closed, change is not written");
+      return;
+    }
+    if (pendingCommit != null) {
+      // Restarts the debounce interval; a commit already running writes the older snapshot and
+      // the new one follows.
+      pendingCommit.cancel(false);
+    }
+    pendingCommit = executor.schedule(this::commit, delayMs, TimeUnit.MILLISECONDS);
+  }
+
+  // Executor thread.
+  private void readCommitted() {
+    if (!file.exists()) {
+      return;
+    }
+    final Properties properties = new Properties();
+    try (FileInputStream input = new FileInputStream(file)) {
+      properties.load(input);
+      committed = AudioTuningConfig.fromProperties(properties, 0);
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to read " + file + ": " + e.getMessage());
+    }
+  }
+
+  // Executor thread.
+  private void commit() {
+    final AudioTuningConfig config = getConfig();
+    if (committed != null && committed.hasSameValues(config)) {
+      committed = config;
+      committedVersion = config.version;
+      return;
+    }
+    try {
+      try (FileOutputStream output = new FileOutputStream(tempFile)) {
+        config.toProperties().store(output, FILE_COMMENT);
+        output.getFD().sync();
+      }
+      if (!tempFile.renameTo(file)) {
+        throw new IOException("Failed to rename " + tempFile + " to " + file);
+      }
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to write audio config: " + e.getMessage());
+      tempFile.delete();
+      // Unknown state of the file; the next commit writes unconditionally.
+      committed = null;
+      return;
+    }
+    committed = config;
+    committedVersion = config.version;
+    Log.d(TAG, "Committed " + config);
+    for (Listener listener : listeners) {
+      listener.onConfigCommitted(config);
+    }
+  }
+}
@@ -0,0 +1,103 @@
+package org.appspot.apprtc.util;
+
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * Immutable snapshot of the feedback suppression and AGC settings read by the native audio
+ * processing. Every change made through {@link AudioConfigStore} produces a new snapshot with a
+ * higher version.
+ *
+ * <p>The property keys and the float formatting of the values are what the native reader of the
+ * ini file expects and must not change.
+ */
+public final class AudioTuningConfig {
+  public static final String KEY_LOG_FOLDER_PATH = "log_folder_path";
+  public static final String KEY_SUPPRESS_LEVEL = "suppress_level";
+  public static final String KEY_TARGET_LEVEL_DBFS = "target_level_dbfs";
+  public static final String KEY_COMPRESSION_GAIN_DB = "compression_gain_db";
+  public static final String KEY_ENABLE_LIMITER = "enable_limiter";
+  public static final String KEY_ENABLE_AGC = "enable_agc";
+  /** Highest howl suppression level of the native audio processing. */
+  public static final int MAX_SUPPRESS_LEVEL = 6;
+  /** Limits of the WebRTC AGC; the target level is in dB below full scale. */
+  public static final int MAX_TARGET_LEVEL_DBFS = 31;
+  public static final int MAX_COMPRESSION_GAIN_DB = 90;
+
+  public final long version;
+  public final String logFolderPath;
+  // 0 disables howl suppression.
+  public final float suppressLevel;
+  public final float targetLevelDbfs;
+  public final float compressionGainDb;
+  public final boolean limiterEnabled;
+  public final boolean agcEnabled;
+
+  AudioTuningConfig(long version, String logFolderPath, float suppressLevel,
+      float targetLevelDbfs, float compressionGainDb, boolean limiterEnabled, boolean agcEnabled) {
+    this.version = version;
+    this.logFolderPath = logFolderPath;
+    this.suppressLevel = suppressLevel;
+    this.targetLevelDbfs = targetLevelDbfs;
+    this.compressionGainDb = compressionGainDb;
+    this.limiterEnabled = limiterEnabled;
+    this.agcEnabled = agcEnabled;
+  }
+
+  /** Defaults of the native audio processing. */
+  static AudioTuningConfig createDefault() {
+    return new AudioTuningConfig(0, "", 0f, 5f, 20f, true, false);
+  }
+
+  /** True if both snapshots have the same settings, whatever their versions. */
+  public boolean hasSameValues(AudioTuningConfig other) {
+    return logFolderPath.equals(other.logFolderPath) && suppressLevel == other.suppressLevel
+        && targetLevelDbfs == other.targetLevelDbfs
+        && compressionGainDb == other.compressionGainDb && limiterEnabled == other.limiterEnabled
+        && agcEnabled == other.agcEnabled;
+  }
+
+  Properties toProperties() {
+    final Properties properties = new Properties();
+    properties.setProperty(KEY_LOG_FOLDER_PATH, logFolderPath);
+    properties.setProperty(KEY_SUPPRESS_LEVEL, String.valueOf(suppressLevel));
+    properties.setProperty(KEY_TARGET_LEVEL_DBFS, String.valueOf(targetLevelDbfs));
+    properties.setProperty(KEY_COMPRESSION_GAIN_DB, String.valueOf(compressionGainDb));
+    // The native side reads flags as floats.
+    properties.setProperty(KEY_ENABLE_LIMITER, String.valueOf(limiterEnabled ? 1f : 0f));
+    properties.setProperty(KEY_ENABLE_AGC, String.valueOf(agcEnabled ? 1f : 0f));
+    return properties;
+  }
+
+  /** Reads the settings present in `properties`; missing or malformed ones keep their defaults. */
+  static AudioTuningConfig fromProperties(Properties properties, long version) {
+    final AudioTuningConfig defaults = createDefault();
+    return new AudioTuningConfig(version,
+        properties.getProperty(KEY_LOG_FOLDER_PATH, defaults.logFolderPath),
+        parseFloat(properties, KEY_SUPPRESS_LEVEL, defaults.suppressLevel),
+        parseFloat(properties, KEY_TARGET_LEVEL_DBFS, defaults.targetLevelDbfs),
+        parseFloat(properties, KEY_COMPRESSION_GAIN_DB, defaults.compressionGainDb),
+        parseFloat(properties, KEY_ENABLE_LIMITER, 1f) != 0f,
+        parseFloat(properties, KEY_ENABLE_AGC, 0f) != 0f);
+  }
+
+  private static float parseFloat(Properties properties, String key, float defaultValue) {
+    final String value = properties.getProperty(key);
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      return Float.parseFloat(value);
+    } catch (NumberFormatException e) {
+      return defaultValue;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return String.format(Locale.US,
+        "v%d suppress %.0f, AGC %s target %.0f dBFS gain %.0f dB, limiter %s", version,
+        suppressLevel, agcEnabled ? "on" : "off", targetLevelDbfs, compressionGainDb,
+        limiterEnabled ? "on" : "off");
+  }
+}
@@ -0,0 +1,396 @@
+package org.appspot.apprtc.util;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Streaming FLAC decoder.
+ *
+ * <p>Decodes everything {@link FlacEncoder} writes as well as files from other encoders: fixed
+ * and variable block sizes, all subframe types including wasted bits, both Rice coding methods
+ * with escaped partitions and all stereo decorrelation modes, for up to 32 bits per sample.
+ * Header CRC-8 and frame CRC-16 are verified; metadata other than STREAMINFO is skipped.
+ *
+ * <p>Not thread-safe. {@link #readFrame} does not allocate.
+ */
+public final class FlacDecoder implements Closeable {
+  private static final int INPUT_BUFFER_SIZE = 1 << 16;
+
+  private final InputStream input;
+  private final byte[] buffer = new byte[INPUT_BUFFER_SIZE];
+  private int bufferPosition;
+  private int bufferLimit;
+  private long bitCache;
+  private int cacheBits;
+  private int crc8;
+  private int crc16;
+
+  private int sampleRate;
+  private int channelCount;
+  private int bitsPerSample;
+  private int maxBlockSize;
+  private long totalSamples;
+  private final byte[] md5 = new byte[16];
+  private final int[] lpcCoefficients = new int[32];
+
+  /** Reads the stream header and metadata blocks from `input`. */
+  public FlacDecoder(InputStream input) throws IOException {
+    this.input = input;
+    if (readBits(32) != FlacFormat.STREAM_MARKER) {
+      throw new IOException("Not a FLAC stream");
+    }
+    boolean hasStreamInfo = false;
+    boolean last;
+    do {
+      last = readBits(1) == 1;
+      final int type = readBits(7);
+      final int length = readBits(24);
+      if (type == FlacFormat.METADATA_TYPE_STREAMINFO && length == FlacFormat.STREAMINFO_SIZE) {
+        readBits(16);
+        maxBlockSize = readBits(16);
+        readBits(24);
+        readBits(24);
+        sampleRate = readBits(20);
+        channelCount = readBits(3) + 1;
+        bitsPerSample = readBits(5) + 1;
+        totalSamples = ((long) readBits(4) << 32) | (readBits(32) & 0xFFFFFFFFL);
+        for (int i = 0; i < md5.length; ++i) {
+          md5[i] = (byte) readBits(8);
+        }
+        hasStreamInfo = true;
+      } else {
+        for (int i = 0; i < length; ++i) {
+          readBits(8);
+        }
+      }
+    } while (!last);
+    if (!hasStreamInfo) {
+      throw new IOException("FLAC stream without STREAMINFO");
+    }
+  }
+
+  public int getSampleRate() {
+    return sampleRate;
+  }
+
+  public int getChannelCount() {
+    return channelCount;
+  }
+
+  public int getBitsPerSample() {
+    return bitsPerSample;
+  }
+
+  /** Upper bound of the samples per channel returned by {@link #readFrame}. */
+  public int getMaxBlockSize() {
+    return maxBlockSize;
+  }
+
+  /** Samples per channel in the stream, or 0 if unknown. */
+  public long getTotalSamples() {
+    return totalSamples;
+  }
+
+  /** MD5 of the decoded samples as stored in STREAMINFO; all zero if unknown. */
+  public byte[] getMd5() {
+    return md5.clone();
+  }
+
+  /**
+   * Decodes the next frame into `channels[c][0, n)` and returns n, or -1 at the end of the
+   * stream. Each array must hold at least {@link #getMaxBlockSize} samples.
+   */
+  public int readFrame(int[][] channels) throws IOException {
+    crc8 = 0;
+    crc16 = 0;
+    final int first = nextByte();
+    if (first < 0) {
+      return -1;
+    }
+    if (first != FlacFormat.FRAME_SYNC >> 6 || readBits(6) != (FlacFormat.FRAME_SYNC & 0x3F)
+        || readBits(1) != 0) {
+      throw new IOException("Lost frame sync");
+    }
+    // Blocking strategy; the frame or sample number is not needed for sequential decoding.
+    readBits(1);
+    final int blockSizeCode = readBits(4);
+    final int sampleRateCode = readBits(4);
+    final int channelAssignment = readBits(4);
+    final int sampleSizeCode = readBits(3);
+    if (readBits(1) != 0 || blockSizeCode == 0 || sampleRateCode == 15
+        || channelAssignment > FlacFormat.CHANNELS_MID_SIDE
+        || FlacFormat.SAMPLE_SIZES[sampleSizeCode] < 0) {
+      throw new IOException("Invalid frame header");
+    }
+    skipUtf8();
+    int blockSize = FlacFormat.blockSize(blockSizeCode);
+    if (blockSizeCode == 6) {
+      blockSize = readBits(8) + 1;
+    } else if (blockSizeCode == 7) {
+      blockSize = readBits(16) + 1;
+    }
+    if (sampleRateCode == 12) {
+      readBits(8);
+    } else if (sampleRateCode >= 13) {
+      readBits(16);
+    }
+    final int headerCrc = crc8;
+    if (readBits(8) != headerCrc) {
+      throw new IOException("Frame header CRC mismatch");
+    }
+
+    final int bps = sampleSizeCode == 0 ? bitsPerSample : FlacFormat.SAMPLE_SIZES[sampleSizeCode];
+    final int frameChannels =
+        channelAssignment < FlacFormat.CHANNELS_LEFT_SIDE ? channelAssignment + 1 : 2;
+    if (frameChannels > channels.length) {
+      throw new IOException("Frame has " + frameChannels + " channels");
+    }
+    for (int c = 0; c < frameChannels; ++c) {
+      if (blockSize > channels[c].length) {
+        throw new IOException("Block size " + blockSize + " exceeds the output buffer");
+      }
+      // The side channel has one extra bit.
+      final boolean isSide = (channelAssignment == FlacFormat.CHANNELS_LEFT_SIDE && c == 1)
+          || (channelAssignment == FlacFormat.CHANNELS_RIGHT_SIDE && c == 0)
+          || (channelAssignment == FlacFormat.CHANNELS_MID_SIDE && c == 1);
+      readSubframe(channels[c], blockSize, isSide ? bps + 1 : bps);
+    }
+
+    if (channelAssignment >= FlacFormat.CHANNELS_LEFT_SIDE) {
+      restoreStereo(channels[0], channels[1], blockSize, channelAssignment);
+    }
+
+    // Frames end byte aligned; any bits left in the cache are padding.
+    cacheBits = 0;
+    final int frameCrc = crc16;
+    if (readBits(16) != frameCrc) {
+      throw new IOException("Frame CRC mismatch");
+    }
+    return blockSize;
+  }
+
+  @Override
+  public void close() throws IOException {
+    input.close();
+  }
+
+  private void readSubframe(int[] x, int n, int bps) throws IOException {
+    if (readBits(1) != 0) {
+      throw new IOException("Invalid subframe header");
+    }
+    final int type = readBits(6);
+    int wastedBits = 0;
+    if (readBits(1) == 1) {
+      wastedBits = readUnary() + 1;
+      bps -= wastedBits;
+    }
+    if (bps > 32 || bps < 1) {
+      throw new IOException("Unsupported sample size: " + bps);
+    }
+
+    if (type == FlacFormat.SUBFRAME_CONSTANT) {
+      final int value = readSigned(bps);
+      for (int i = 0; i < n; ++i) {
+        x[i] = value;
+      }
+    } else if (type == FlacFormat.SUBFRAME_VERBATIM) {
+      for (int i = 0; i < n; ++i) {
+        x[i] = readSigned(bps);
+      }
+    } else if (type >= FlacFormat.SUBFRAME_FIXED && type <= FlacFormat.SUBFRAME_FIXED + 4) {
+      final int order = type - FlacFormat.SUBFRAME_FIXED;
+      for (int i = 0; i < order; ++i) {
+        x[i] = readSigned(bps);
+      }
+      readResidual(x, n, order);
+      restoreFixed(x, n, order);
+    } else if (type >= FlacFormat.SUBFRAME_LPC) {
+      final int order = (type & 0x1F) + 1;
+      for (int i = 0; i < order; ++i) {
+        x[i] = readSigned(bps);
+      }
+      final int precision = readBits(4) + 1;
+      final int shift = readSigned(5);
+      if (precision == 16 || shift < 0) {
+        throw new IOException("Invalid LPC parameters");
+      }
+      for (int i = 0; i < order; ++i) {
+        lpcCoefficients[i] = readSigned(precision);
+      }
+      readResidual(x, n, order);
+      for (int i = order; i < n; ++i) {
+        long sum = 0;
+        for (int j = 0; j < order; ++j) {
+          sum += (long) lpcCoefficients[j] * x[i - 1 - j];
+        }
+        x[i] += (int) (sum >> shift);
+      }
+    } else {
+      throw new IOException("Reserved subframe type " + type);
+    }
+
+    if (wastedBits > 0) {
+      for (int i = 0; i < n; ++i) {
+        x[i] <<= wastedBits;
+      }
+    }
+  }
+
+  private void readResidual(int[] x, int n, int predictorOrder) throws IOException {
+    final int method = readBits(2);
+    if (method > 1) {
+      throw new IOException("Reserved residual coding method");
+    }
+    final int parameterBits = method == 0 ? 4 : 5;
+    final int escape = (1 << parameterBits) - 1;
+    final int partitionOrder = readBits(4);
+    final int partitionSize = n >> partitionOrder;
+    if (partitionSize << partitionOrder != n || partitionSize < predictorOrder) {
+      throw new IOException("Invalid residual partition order");
+    }
+    int i = predictorOrder;
+    for (int partition = 0; partition < 1 << partitionOrder; ++partition) {
+      final int end = (partition + 1) * partitionSize;
+      final int parameter = readBits(parameterBits);
+      if (parameter == escape) {
+        final int bits = readBits(5);
+        for (; i < end; ++i) {
+          x[i] = readSigned(bits);
+        }
+        continue;
+      }
+      for (; i < end; ++i) {
+        final int folded = (readUnary() << parameter) | readBits(parameter);
+        x[i] = (folded >>> 1) ^ -(folded & 1);
+      }
+    }
+  }
+
+  private static void restoreFixed(int[] x, int n, int order) {
+    switch (order) {
+      case 0:
+        break;
+      case 1:
+        for (int i = 1; i < n; ++i) {
+          x[i] += x[i - 1];
+        }
+        break;
+      case 2:
+        for (int i = 2; i < n; ++i) {
+          x[i] += 2 * x[i - 1] - x[i - 2];
+        }
+        break;
+      case 3:
+        for (int i = 3; i < n; ++i) {
+          x[i] += 3 * x[i - 1] - 3 * x[i - 2] + x[i - 3];
+        }
+        break;
+      default:
+        for (int i = 4; i < n; ++i) {
+          x[i] += 4 * x[i - 1] - 6 * x[i - 2] + 4 * x[i - 3] - x[i - 4];
+        }
+    }
+  }
+
+  private static void restoreStereo(
+      int[] channel0, int[] channel1, int n, int channelAssignment) {
+    switch (channelAssignment) {
+      case FlacFormat.CHANNELS_LEFT_SIDE:
+        for (int i = 0; i < n; ++i) {
+          channel1[i] = channel0[i] - channel1[i];
+        }
+        break;
+      case FlacFormat.CHANNELS_RIGHT_SIDE:
+        for (int i = 0; i < n; ++i) {
+          channel0[i] += channel1[i];
+        }
+        break;
+      default:
+        for (int i = 0; i < n; ++i) {
+          final int side = channel1[i];
+          final int mid = (channel0[i] << 1) | (side & 1);
+          channel0[i] = (mid + side) >> 1;
+          channel1[i] = (mid - side) >> 1;
+        }
+    }
+  }
+
+  private void skipUtf8() throws IOException {
+    final int first = readBits(8);
+    // The number of leading one bits is the total byte count.
+    int continuationBytes = 0;
+    if ((first & 0x80) != 0) {
+      while (continuationBytes < 6 && (first & (0x40 >> continuationBytes)) != 0) {
+        continuationBytes++;
+      }
+    }
+    for (int i = 0; i < continuationBytes; ++i) {
+      readBits(8);
+    }
+  }
+
+  // Returns the next input byte and updates the checksums, or -1 at the end of the stream.
+  private int nextByte() throws IOException {
+    if (bufferPosition == bufferLimit) {
+      bufferLimit = input.read(buffer);
+      bufferPosition = 0;
+      if (bufferLimit <= 0) {
+        bufferLimit = 0;
+        return -1;
+      }
+    }
+    final int value = buffer[bufferPosition++] & 0xFF;
+    crc8 = FlacFormat.crc8(crc8, value);
+    crc16 = FlacFormat.crc16(crc16, value);
+    return value;
+  }
+
+  // Reads `bits` (0-32) bits as an unsigned value.
+  private int readBits(int bits) throws IOException {
+    while (cacheBits < bits) {
+      final int value = nextByte();
+      if (value < 0) {
+        throw new EOFException("Truncated FLAC stream");
+      }
+      bitCache = (bitCache << 8) | value;
+      cacheBits += 8;
+    }
+    cacheBits -= bits;
+    return (int) ((bitCache >>> cacheBits) & ((1L << bits) - 1));
+  }
+
+  private int readSigned(int bits) throws IOException {
+    if (bits == 0) {
+      return 0;
+    }
+    final int shift = 32 - bits;
+    return (readBits(bits) << shift) >> shift;
+  }
+
+  // Counts zero bits up to and including the terminating one bit.
+  private int readUnary() throws IOException {
+    int zeros = 0;
+    while (true) {
+      if (cacheBits == 0) {
+        final int value = nextByte();
+        if (value < 0) {
+          throw new EOFException("Truncated FLAC stream");
+        }
+        bitCache = (bitCache << 8) | value;
+        cacheBits = 8;
+      }
+      final long bits = bitCache & ((1L << cacheBits) - 1);
+      if (bits == 0) {
+        zeros += cacheBits;
+        cacheBits = 0;
+        continue;
+      }
+      final int leadingZeros = Long.numberOfLeadingZeros(bits) - (64 - cacheBits);
+      zeros += leadingZeros;
+      cacheBits -= leadingZeros + 1;
+      return zeros;
+    }
+  }
+}
@@ -0,0 +1,729 @@
+package org.appspot.apprtc.util;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Streaming lossless encoder from 16-bit PCM to a FLAC file.
+ *
+ * <p>The encoder writes a subset of FLAC that every decoder understands: fixed blocks of
+ * {@link #BLOCK_SIZE} samples, each channel coded as a constant, verbatim, fixed-polynomial
+ * (order 0-4) or LPC (order 1-8) subframe with partitioned Rice coded residuals, and
+ * left/side, right/side or mid/side decorrelation for stereo. For every block the cheapest
+ * candidate is picked, so typical speech captures shrink to about half their size and digital
+ * silence costs a few bytes per block.
+ *
+ * <p>Memory use is bounded by one block: all buffers are allocated in the constructor and
+ * {@link #write} never allocates. The STREAMINFO block is written up front with an unknown length
+ * and is completed (sample count, frame sizes and MD5 of the input) by {@link #close}, so the
+ * file of an interrupted recording still decodes.
+ *
+ * <p>Not thread-safe; meant to be driven by a single writer thread.
+ */
+public final class FlacEncoder implements Closeable {
+  /** Samples per channel in each frame, about 85 ms at 48 kHz. */
+  public static final int BLOCK_SIZE = 4096;
+  private static final int BITS_PER_SAMPLE = 16;
+  private static final int MAX_FIXED_ORDER = 4;
+  private static final int MAX_LPC_ORDER = 8;
+  private static final int LPC_PRECISION = 12;
+  private static final int MAX_LPC_SHIFT = 15;
+  private static final int MAX_PARTITION_ORDER = 8;
+  // Rice parameters above this need the 5-bit parameter coding method.
+  private static final int MAX_RICE_PARAMETER = 14;
+  private static final int MAX_RICE2_PARAMETER = 30;
+  // Residuals must fit into a signed 32-bit value after folding.
+  private static final long MAX_RESIDUAL = 1L << 30;
+  // Shorter blocks (only the last one can be) are not worth predicting.
+  private static final int MIN_PREDICTION_BLOCK_SIZE = 32;
+  private static final int OUTPUT_BUFFER_SIZE = 1 << 16;
+
+  /** Residual of one predictor and the Rice coding chosen for it. */
+  private static final class ResidualCoding {
+    final int[] residual = new int[BLOCK_SIZE];
+    final int[] parameters = new int[1 << MAX_PARTITION_ORDER];
+    int partitionOrder;
+    boolean rice2;
+  }
+
+  private final File file;
+  private final FileOutputStream fileStream;
+  private final OutputStream output;
+  private final int sampleRate;
+  private final int channelCount;
+  private final MessageDigest md5;
+
+  // Input samples of the current block per channel, plus mid and side for stereo.
+  private final int[][] samples;
+  private final int[] mid = new int[BLOCK_SIZE];
+  private final int[] side = new int[BLOCK_SIZE];
+  private int blockFill;
+  private int channel;
+  // Low byte of a sample split between two write() calls, or -1.
+  private int pendingByte = -1;
+  private final byte[] md5Buffer;
+
+  private final ResidualCoding fixedCoding = new ResidualCoding();
+  private final ResidualCoding lpcCoding = new ResidualCoding();
+  private final long[] partitionSums = new long[2 << MAX_PARTITION_ORDER];
+  private final double[] window = new double[BLOCK_SIZE];
+  private int windowLength;
+  private final double[] windowed = new double[BLOCK_SIZE];
+  private final double[] autocorrelation = new double[MAX_LPC_ORDER + 1];
+  private final double[] lpc = new double[MAX_LPC_ORDER];
+  private final double[][] lpcByOrder = new double[MAX_LPC_ORDER][MAX_LPC_ORDER];
+  private final double[] lpcError = new double[MAX_LPC_ORDER];
+  private final int[] qlp = new int[MAX_LPC_ORDER];
+  private int qlpShift;
+  private long fixedOrderSum;
+
+  // Bit writer state for the frame being encoded.
+  private final byte[] frame;
+  private int framePosition;
+  private long bitBuffer;
+  private int bitBufferCount;
+
+  private int frameNumber;
+  private long totalSamples;
+  private long encodedBytes;
+  private int minFrameSize = Integer.MAX_VALUE;
+  private int maxFrameSize;
+  private boolean closed;
+
+  /**
+   * Creates `file` and writes the stream header. Samples passed to {@link #write} are 16-bit
+   * little-endian and interleaved if `channelCount` is greater than one.
+   */
+  public FlacEncoder(File file, int sampleRate, int channelCount) throws IOException {
+    if (sampleRate <= 0 || sampleRate >= (1 << 20) || channelCount < 1 || channelCount > 8) {
+      throw new IllegalArgumentException(
+          "Unsupported format: " + sampleRate + " Hz, " + channelCount + " channels");
+    }
+    try {
+      md5 = MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    this.file = file;
+    this.sampleRate = sampleRate;
+    this.channelCount = channelCount;
+    samples = new int[channelCount][BLOCK_SIZE];
+    md5Buffer = new byte[BLOCK_SIZE * channelCount * 2];
+    // A frame is never larger than its verbatim encoding (17-bit side channel) plus headers.
+    frame = new byte[BLOCK_SIZE * channelCount * 3 + 64];
+
+    fileStream = new FileOutputStream(file);
+    output = new BufferedOutputStream(fileStream, OUTPUT_BUFFER_SIZE);
+    final ByteBuffer header = ByteBuffer.allocate(8 + FlacFormat.STREAMINFO_SIZE);
+    header.putInt(FlacFormat.STREAM_MARKER);
+    // Last metadata block flag, block type and block length.
+    header.putInt((1 << 31) | (FlacFormat.METADATA_TYPE_STREAMINFO << 24)
+        | FlacFormat.STREAMINFO_SIZE);
+    putStreamInfo(header);
+    try {
+      output.write(header.array());
+    } catch (IOException e) {
+      fileStream.close();
+      throw e;
+    }
+    encodedBytes = header.capacity();
+  }
+
+  /** Appends `length` bytes of PCM. Samples may be split across calls. */
+  public void write(byte[] data, int offset, int length) throws IOException {
+    if (closed) {
+      throw new IOException("Encoder is closed");
+    }
+    int i = offset;
+    final int end = offset + length;
+    if (pendingByte >= 0 && i < end) {
+      addSample((short) (pendingByte | (data[i++] << 8)));
+      pendingByte = -1;
+    }
+    for (; i + 1 < end; i += 2) {
+      addSample((short) ((data[i] & 0xFF) | (data[i + 1] << 8)));
+    }
+    if (i < end) {
+      pendingByte = data[i] & 0xFF;
+    }
+  }
+
+  /** Number of samples per channel encoded so far. */
+  public long getSampleCount() {
+    return totalSamples;
+  }
+
+  /** Size of the FLAC file written so far, including buffered bytes. */
+  public long getEncodedBytes() {
+    return encodedBytes;
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  /** Encodes the last partial block, completes STREAMINFO and closes the file. */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      // A trailing incomplete multi-channel sample frame is dropped.
+      if (blockFill > 0) {
+        encodeBlock(blockFill);
+      }
+      output.flush();
+      final ByteBuffer streamInfo = ByteBuffer.allocate(FlacFormat.STREAMINFO_SIZE);
+      putStreamInfo(streamInfo);
+      streamInfo.flip();
+      final FileChannel channel = fileStream.getChannel();
+      channel.write(streamInfo, 8);
+    } finally {
+      output.close();
+    }
+  }
+
+  private void putStreamInfo(ByteBuffer buffer) {
+    final boolean complete = closed;
+    buffer.putShort((short) BLOCK_SIZE);
+    buffer.putShort((short) BLOCK_SIZE);
+    putInt24(buffer, complete && maxFrameSize > 0 ? minFrameSize : 0);
+    putInt24(buffer, complete ? maxFrameSize : 0);
+    // 20 bits sample rate, 3 bits channels - 1, 5 bits bits per sample - 1, 36 bits samples.
+    buffer.putLong(((long) sampleRate << 44) | ((long) (channelCount - 1) << 41)
+        | ((long) (BITS_PER_SAMPLE - 1) << 36) | (complete ? totalSamples : 0));
+    if (complete) {
+      buffer.put(md5.digest());
+    } else {
+      // All zero means unknown.
+      buffer.put(new byte[16]);
+    }
+  }
+
+  private static void putInt24(ByteBuffer buffer, int value) {
+    buffer.put((byte) (value >>> 16)).put((byte) (value >>> 8)).put((byte) value);
+  }
+
+  private void addSample(int sample) throws IOException {
+    samples[channel][blockFill] = sample;
+    if (++channel == channelCount) {
+      channel = 0;
+      if (++blockFill == BLOCK_SIZE) {
+        encodeBlock(BLOCK_SIZE);
+        blockFill = 0;
+      }
+    }
+  }
+
+  private void encodeBlock(int n) throws IOException {
+    // STREAMINFO holds the MD5 of the interleaved little-endian samples.
+    int position = 0;
+    for (int i = 0; i < n; ++i) {
+      for (int c = 0; c < channelCount; ++c) {
+        final int sample = samples[c][i];
+        md5Buffer[position++] = (byte) sample;
+        md5Buffer[position++] = (byte) (sample >> 8);
+      }
+    }
+    md5.update(md5Buffer, 0, position);
+
+    final int channelAssignment = chooseChannelAssignment(n);
+    framePosition = 0;
+    bitBufferCount = 0;
+    writeFrameHeader(n, channelAssignment);
+    switch (channelAssignment) {
+      case FlacFormat.CHANNELS_LEFT_SIDE:
+        writeSubframe(samples[0], n, BITS_PER_SAMPLE);
+        writeSubframe(side, n, BITS_PER_SAMPLE + 1);
+        break;
+      case FlacFormat.CHANNELS_RIGHT_SIDE:
+        writeSubframe(side, n, BITS_PER_SAMPLE + 1);
+        writeSubframe(samples[1], n, BITS_PER_SAMPLE);
+        break;
+      case FlacFormat.CHANNELS_MID_SIDE:
+        writeSubframe(mid, n, BITS_PER_SAMPLE);
+        writeSubframe(side, n, BITS_PER_SAMPLE + 1);
+        break;
+      default:
+        for (int c = 0; c < channelCount; ++c) {
+          writeSubframe(samples[c], n, BITS_PER_SAMPLE);
+        }
+    }
+    alignToByte();
+    int crc = 0;
+    for (int i = 0; i < framePosition; ++i) {
+      crc = FlacFormat.crc16(crc, frame[i] & 0xFF);
+    }
+    writeBits(crc, 16);
+
+    output.write(frame, 0, framePosition);
+    encodedBytes += framePosition;
+    minFrameSize = Math.min(minFrameSize, framePosition);
+    maxFrameSize = Math.max(maxFrameSize, framePosition);
+    totalSamples += n;
+    frameNumber++;
+  }
+
+  // Picks the stereo decorrelation with the smallest estimated residual.
+  private int chooseChannelAssignment(int n) {
+    if (channelCount != 2 || n < MIN_PREDICTION_BLOCK_SIZE) {
+      return channelCount - 1;
+    }
+    final int[] left = samples[0];
+    final int[] right = samples[1];
+    for (int i = 0; i < n; ++i) {
+      mid[i] = (left[i] + right[i]) >> 1;
+      side[i] = left[i] - right[i];
+    }
+    estimateFixedOrder(left, n);
+    final long leftCost = fixedOrderSum;
+    estimateFixedOrder(right, n);
+    final long rightCost = fixedOrderSum;
+    estimateFixedOrder(mid, n);
+    final long midCost = fixedOrderSum;
+    estimateFixedOrder(side, n);
+    final long sideCost = fixedOrderSum;
+
+    int assignment = channelCount - 1;
+    long best = leftCost + rightCost;
+    if (leftCost + sideCost < best) {
+      assignment = FlacFormat.CHANNELS_LEFT_SIDE;
+      best = leftCost + sideCost;
+    }
+    if (rightCost + sideCost < best) {
+      assignment = FlacFormat.CHANNELS_RIGHT_SIDE;
+      best = rightCost + sideCost;
+    }
+    if (midCost + sideCost < best) {
+      assignment = FlacFormat.CHANNELS_MID_SIDE;
+    }
+    return assignment;
+  }
+
+  private void writeFrameHeader(int n, int channelAssignment) {
+    final int blockSizeCode = FlacFormat.blockSizeCode(n);
+    writeBits(FlacFormat.FRAME_SYNC, 14);
+    // Reserved bit and fixed block size strategy.
+    writeBits(0, 2);
+    writeBits(blockSizeCode, 4);
+    writeBits(FlacFormat.sampleRateCode(sampleRate), 4);
+    writeBits(channelAssignment, 4);
+    // 16 bits per sample and a reserved bit.
+    writeBits(4, 3);
+    writeBits(0, 1);
+    writeUtf8(frameNumber);
+    if (blockSizeCode == 6) {
+      writeBits(n - 1, 8);
+    } else if (blockSizeCode == 7) {
+      writeBits(n - 1, 16);
+    }
+    int crc = 0;
+    for (int i = 0; i < framePosition; ++i) {
+      crc = FlacFormat.crc8(crc, frame[i] & 0xFF);
+    }
+    writeBits(crc, 8);
+  }
+
+  // Frame numbers are coded like UTF-8 code points.
+  private void writeUtf8(int value) {
+    if (value < 0x80) {
+      writeBits(value, 8);
+      return;
+    }
+    // A sequence with m continuation bytes holds 5 * m + 6 bits.
+    int continuationBytes = 1;
+    while (continuationBytes < 5 && value >= 1 << (5 * continuationBytes + 6)) {
+      continuationBytes++;
+    }
+    final int leadingOnes = 0xFF00 >> (continuationBytes + 1);
+    writeBits((leadingOnes & 0xFF) | (value >>> (6 * continuationBytes)), 8);
+    for (int i = continuationBytes - 1; i >= 0; --i) {
+      writeBits(0x80 | ((value >>> (6 * i)) & 0x3F), 8);
+    }
+  }
+
+  private void writeSubframe(int[] x, int n, int bps) {
+    boolean constant = true;
+    for (int i = 1; i < n && constant; ++i) {
+      constant = x[i] == x[0];
+    }
+    if (constant) {
+      writeBits(FlacFormat.SUBFRAME_CONSTANT << 1, 8);
+      writeBits(x[0], bps);
+      return;
+    }
+
+    int bestBits = n * bps;
+    int type = FlacFormat.SUBFRAME_VERBATIM;
+    int fixedOrder = 0;
+    int lpcOrder = 0;
+    if (n >= MIN_PREDICTION_BLOCK_SIZE) {
+      fixedOrder = estimateFixedOrder(x, n);
+      computeFixedResidual(x, n, fixedOrder, fixedCoding.residual);
+      final int fixedBits = fixedOrder * bps + chooseResidualCoding(fixedCoding, n, fixedOrder);
+      if (fixedBits < bestBits) {
+        bestBits = fixedBits;
+        type = FlacFormat.SUBFRAME_FIXED;
+      }
+      lpcOrder = computeLpc(x, n);
+      if (lpcOrder > 0) {
+        final int lpcBits = lpcOrder * (bps + LPC_PRECISION) + 4 + 5
+            + chooseResidualCoding(lpcCoding, n, lpcOrder);
+        if (lpcBits < bestBits) {
+          type = FlacFormat.SUBFRAME_LPC;
+        }
+      }
+    }
+
+    if (type == FlacFormat.SUBFRAME_FIXED) {
+      writeBits((FlacFormat.SUBFRAME_FIXED | fixedOrder) << 1, 8);
+      for (int i = 0; i < fixedOrder; ++i) {
+        writeBits(x[i], bps);
+      }
+      writeResidual(fixedCoding, n, fixedOrder);
+    } else if (type == FlacFormat.SUBFRAME_LPC) {
+      writeBits((FlacFormat.SUBFRAME_LPC | (lpcOrder - 1)) << 1, 8);
+      for (int i = 0; i < lpcOrder; ++i) {
+        writeBits(x[i], bps);
+      }
+      writeBits(LPC_PRECISION - 1, 4);
+      writeBits(qlpShift, 5);
+      for (int i = 0; i < lpcOrder; ++i) {
+        writeBits(qlp[i], LPC_PRECISION);
+      }
+      writeResidual(lpcCoding, n, lpcOrder);
+    } else {
+      writeBits(FlacFormat.SUBFRAME_VERBATIM << 1, 8);
+      for (int i = 0; i < n; ++i) {
+        writeBits(x[i], bps);
+      }
+    }
+  }
+
+  // Returns the fixed predictor order with the smallest sum of absolute residuals and stores
+  // that sum in `fixedOrderSum`. Requires n > MAX_FIXED_ORDER.
+  private int estimateFixedOrder(int[] x, int n) {
+    long sum0 = 0;
+    long sum1 = 0;
+    long sum2 = 0;
+    long sum3 = 0;
+    long sum4 = 0;
+    int last0 = x[3];
+    int last1 = x[3] - x[2];
+    int last2 = last1 - (x[2] - x[1]);
+    int last3 = last2 - (x[2] - 2 * x[1] + x[0]);
+    for (int i = MAX_FIXED_ORDER; i < n; ++i) {
+      final int error0 = x[i];
+      final int error1 = error0 - last0;
+      final int error2 = error1 - last1;
+      final int error3 = error2 - last2;
+      final int error4 = error3 - last3;
+      sum0 += Math.abs(error0);
+      sum1 += Math.abs(error1);
+      sum2 += Math.abs(error2);
+      sum3 += Math.abs(error3);
+      sum4 += Math.abs(error4);
+      last0 = error0;
+      last1 = error1;
+      last2 = error2;
+      last3 = error3;
+    }
+    int order = 0;
+    long best = sum0;
+    if (sum1 < best) {
+      order = 1;
+      best = sum1;
+    }
+    if (sum2 < best) {
+      order = 2;
+      best = sum2;
+    }
+    if (sum3 < best) {
+      order = 3;
+      best = sum3;
+    }
+    if (sum4 < best) {
+      order = 4;
+      best = sum4;
+    }
+    fixedOrderSum = best;
+    return order;
+  }
+
+  private static void computeFixedResidual(int[] x, int n, int order, int[] residual) {
+    switch (order) {
+      case 0:
+        System.arraycopy(x, 0, residual, 0, n);
+        break;
+      case 1:
+        for (int i = 1; i < n; ++i) {
+          residual[i] = x[i] - x[i - 1];
+        }
+        break;
+      case 2:
+        for (int i = 2; i < n; ++i) {
+          residual[i] = x[i] - 2 * x[i - 1] + x[i - 2];
+        }
+        break;
+      case 3:
+        for (int i = 3; i < n; ++i) {
+          residual[i] = x[i] - 3 * x[i - 1] + 3 * x[i - 2] - x[i - 3];
+        }
+        break;
+      default:
+        for (int i = 4; i < n; ++i) {
+          residual[i] = x[i] - 4 * x[i - 1] + 6 * x[i - 2] - 4 * x[i - 3] + x[i - 4];
+        }
+    }
+  }
+
+  // Computes quantized LPC coefficients of the estimated best order and their residual. Returns
+  // the order, or 0 if LPC is not usable for this block.
+  private int computeLpc(int[] x, int n) {
+    if (windowLength != n) {
+      // Tukey window with 50% taper.
+      final int taper = n / 4;
+      for (int i = 0; i < n; ++i) {
+        window[i] = 1;
+      }
+      for (int i = 0; i < taper; ++i) {
+        final double w = 0.5 - 0.5 * Math.cos(Math.PI * i / taper);
+        window[i] = w;
+        window[n - 1 - i] = w;
+      }
+      windowLength = n;
+    }
+    for (int i = 0; i < n; ++i) {
+      windowed[i] = x[i] * window[i];
+    }
+    for (int lag = 0; lag <= MAX_LPC_ORDER; ++lag) {
+      double sum = 0;
+      for (int i = lag; i < n; ++i) {
+        sum += windowed[i] * windowed[i - lag];
+      }
+      autocorrelation[lag] = sum;
+    }
+    if (autocorrelation[0] <= 0) {
+      return 0;
+    }
+
+    // Levinson-Durbin recursion; prediction is sum(lpc[j] * x[i - 1 - j]).
+    double error = autocorrelation[0];
+    int maxOrder = 0;
+    for (int i = 0; i < MAX_LPC_ORDER; ++i) {
+      double acc = autocorrelation[i + 1];
+      for (int j = 0; j < i; ++j) {
+        acc -= lpc[j] * autocorrelation[i - j];
+      }
+      final double reflection = acc / error;
+      for (int j = 0; j < i / 2; ++j) {
+        final double tmp = lpc[j];
+        lpc[j] = tmp - reflection * lpc[i - 1 - j];
+        lpc[i - 1 - j] -= reflection * tmp;
+      }
+      if ((i & 1) != 0) {
+        lpc[i / 2] -= reflection * lpc[i / 2];
+      }
+      lpc[i] = reflection;
+      error *= 1 - reflection * reflection;
+      System.arraycopy(lpc, 0, lpcByOrder[i], 0, i + 1);
+      lpcError[i] = error;
+      maxOrder = i + 1;
+      if (!(error > 0)) {
+        break;
+      }
+    }
+
+    // Estimates the frame size of every order from its prediction error.
+    int order = 0;
+    double bestBits = Double.MAX_VALUE;
+    for (int i = 0; i < maxOrder; ++i) {
+      final double bitsPerResidual = lpcError[i] > 0
+          ? Math.max(0, 0.5 * Math.log(0.5 * lpcError[i] / n) / Math.log(2))
+          : 0;
+      final double bits = bitsPerResidual * (n - i - 1) + (i + 1) * LPC_PRECISION;
+      if (bits < bestBits) {
+        bestBits = bits;
+        order = i + 1;
+      }
+    }
+    if (order == 0 || !quantizeLpc(lpcByOrder[order - 1], order)) {
+      return 0;
+    }
+
+    final int[] residual = lpcCoding.residual;
+    for (int i = order; i < n; ++i) {
+      long sum = 0;
+      for (int j = 0; j < order; ++j) {
+        sum += (long) qlp[j] * x[i - 1 - j];
+      }
+      final long value = x[i] - (sum >> qlpShift);
+      if (value >= MAX_RESIDUAL || value <= -MAX_RESIDUAL) {
+        return 0;
+      }
+      residual[i] = (int) value;
+    }
+    return order;
+  }
+
+  // Quantizes `coefficients` to LPC_PRECISION bits into `qlp` and `qlpShift`, feeding the
+  // rounding error forward. Returns false if the coefficients are out of range.
+  private boolean quantizeLpc(double[] coefficients, int order) {
+    double maxCoefficient = 0;
+    for (int i = 0; i < order; ++i) {
+      maxCoefficient = Math.max(maxCoefficient, Math.abs(coefficients[i]));
+    }
+    if (!(maxCoefficient > 0) || Double.isInfinite(maxCoefficient)) {
+      return false;
+    }
+    // Scale so that the largest coefficient uses all precision bits.
+    final int shift = LPC_PRECISION - (Math.getExponent(maxCoefficient) + 1) - 1;
+    if (shift < 0) {
+      return false;
+    }
+    qlpShift = Math.min(shift, MAX_LPC_SHIFT);
+    final int maxValue = (1 << (LPC_PRECISION - 1)) - 1;
+    final double scale = 1 << qlpShift;
+    double error = 0;
+    for (int i = 0; i < order; ++i) {
+      error += coefficients[i] * scale;
+      final int value = (int) Math.max(-maxValue - 1, Math.min(maxValue, Math.round(error)));
+      qlp[i] = value;
+      error -= value;
+    }
+    return true;
+  }
+
+  // Picks the partition order and Rice parameters for residual[order, n). Returns the size of
+  // the coded residual in bits; the estimate is an upper bound of what writeResidual() emits.
+  private int chooseResidualCoding(ResidualCoding coding, int n, int predictorOrder) {
+    int maxPartitionOrder = 0;
+    while (maxPartitionOrder < MAX_PARTITION_ORDER
+        && (n & ((2 << maxPartitionOrder) - 1)) == 0
+        && (n >> (maxPartitionOrder + 1)) > predictorOrder) {
+      maxPartitionOrder++;
+    }
+
+    // partitionSums[(1 << p) + j] is the sum of folded residuals in partition j of order p.
+    final int[] residual = coding.residual;
+    final int partitionSize = n >> maxPartitionOrder;
+    final int finest = 1 << maxPartitionOrder;
+    int i = predictorOrder;
+    for (int partition = 0; partition < finest; ++partition) {
+      final int end = (partition + 1) * partitionSize;
+      long sum = 0;
+      for (; i < end; ++i) {
+        final int r = residual[i];
+        sum += (r << 1) ^ (r >> 31);
+      }
+      partitionSums[finest + partition] = sum;
+    }
+    for (int p = maxPartitionOrder - 1; p >= 0; --p) {
+      for (int j = 0; j < 1 << p; ++j) {
+        partitionSums[(1 << p) + j] =
+            partitionSums[(2 << p) + 2 * j] + partitionSums[(2 << p) + 2 * j + 1];
+      }
+    }
+
+    long bestBits = Long.MAX_VALUE;
+    for (int p = 0; p <= maxPartitionOrder; ++p) {
+      long bits = 0;
+      boolean rice2 = false;
+      for (int j = 0; j < 1 << p; ++j) {
+        final int count = (n >> p) - (j == 0 ? predictorOrder : 0);
+        final long sum = partitionSums[(1 << p) + j];
+        final int parameter = riceParameter(count, sum);
+        rice2 |= parameter > MAX_RICE_PARAMETER;
+        bits += riceBits(count, sum, parameter);
+      }
+      bits += (long) (rice2 ? 5 : 4) << p;
+      if (bits < bestBits) {
+        bestBits = bits;
+        coding.partitionOrder = p;
+        coding.rice2 = rice2;
+      }
+    }
+    final int p = coding.partitionOrder;
+    for (int j = 0; j < 1 << p; ++j) {
+      final int count = (n >> p) - (j == 0 ? predictorOrder : 0);
+      coding.parameters[j] = riceParameter(count, partitionSums[(1 << p) + j]);
+    }
+    // Coding method and partition order.
+    return (int) Math.min(Integer.MAX_VALUE, bestBits + 6);
+  }
+
+  private static int riceParameter(int count, long sum) {
+    final long mean = sum / count;
+    final int estimate = mean == 0 ? 0 : 63 - Long.numberOfLeadingZeros(mean);
+    int best = 0;
+    long bestBits = Long.MAX_VALUE;
+    for (int k = Math.max(0, estimate - 1);
+         k <= Math.min(MAX_RICE2_PARAMETER, estimate + 1); ++k) {
+      final long bits = riceBits(count, sum, k);
+      if (bits < bestBits) {
+        bestBits = bits;
+        best = k;
+      }
+    }
+    return best;
+  }
+
+  // Upper bound of the Rice code size, since sum(u >> k) <= sum(u) >> k.
+  private static long riceBits(int count, long sum, int parameter) {
+    return (long) count * (parameter + 1) + (sum >> parameter);
+  }
+
+  private void writeResidual(ResidualCoding coding, int n, int predictorOrder) {
+    final int partitionOrder = coding.partitionOrder;
+    final int parameterBits = coding.rice2 ? 5 : 4;
+    writeBits(coding.rice2 ? 1 : 0, 2);
+    writeBits(partitionOrder, 4);
+    final int[] residual = coding.residual;
+    final int partitionSize = n >> partitionOrder;
+    int i = predictorOrder;
+    for (int partition = 0; partition < 1 << partitionOrder; ++partition) {
+      final int parameter = coding.parameters[partition];
+      final int mask = (1 << parameter) - 1;
+      writeBits(parameter, parameterBits);
+      final int end = (partition + 1) * partitionSize;
+      for (; i < end; ++i) {
+        final int r = residual[i];
+        final int folded = (r << 1) ^ (r >> 31);
+        int quotient = folded >>> parameter;
+        while (quotient >= 32) {
+          writeBits(0, 32);
+          quotient -= 32;
+        }
+        writeBits(0, quotient);
+        // Stop bit of the unary quotient followed by the remainder.
+        writeBits((1 << parameter) | (folded & mask), parameter + 1);
+      }
+    }
+  }
+
+  // Appends the low `bits` (at most 32) bits of `value` to the frame.
+  private void writeBits(int value, int bits) {
+    bitBuffer = (bitBuffer << bits) | (value & ((1L << bits) - 1));
+    bitBufferCount += bits;
+    while (bitBufferCount >= 8) {
+      bitBufferCount -= 8;
+      frame[framePosition++] = (byte) (bitBuffer >>> bitBufferCount);
+    }
+  }
+
+  private void alignToByte() {
+    if (bitBufferCount > 0) {
+      writeBits(0, 8 - bitBufferCount);
+    }
+  }
+}
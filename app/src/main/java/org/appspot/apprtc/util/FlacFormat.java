@@ -0,0 +1,100 @@
+package org.appspot.apprtc.util;
+
+/** Bitstream constants and checksums shared by {@link FlacEncoder} and {@link FlacDecoder}. */
+final class FlacFormat {
+  // "fLaC" at the start of every stream.
+  static final int STREAM_MARKER = 0x664C6143;
+  // 14-bit frame sync code.
+  static final int FRAME_SYNC = 0x3FFE;
+  static final int METADATA_TYPE_STREAMINFO = 0;
+  static final int STREAMINFO_SIZE = 34;
+
+  // Channel assignments for stereo decorrelation; 0-7 mean 1-8 independent channels.
+  static final int CHANNELS_LEFT_SIDE = 8;
+  static final int CHANNELS_RIGHT_SIDE = 9;
+  static final int CHANNELS_MID_SIDE = 10;
+
+  // Subframe types (6 bits).
+  static final int SUBFRAME_CONSTANT = 0;
+  static final int SUBFRAME_VERBATIM = 1;
+  static final int SUBFRAME_FIXED = 8;
+  static final int SUBFRAME_LPC = 32;
+
+  // Sample rates of the frame header codes 0-11; code 0 refers to STREAMINFO.
+  static final int[] SAMPLE_RATES = {
+      0, 88200, 176400, 192000, 8000, 16000, 22050, 24000, 32000, 44100, 48000, 96000};
+  // Sample sizes of the frame header codes 0-7; code 0 refers to STREAMINFO, -1 is reserved.
+  static final int[] SAMPLE_SIZES = {0, 8, 12, -1, 16, 20, 24, 32};
+
+  static final int[] CRC8_TABLE = new int[256];
+  static final int[] CRC16_TABLE = new int[256];
+
+  static {
+    for (int i = 0; i < 256; ++i) {
+      // CRC-8 with polynomial x^8 + x^2 + x + 1, CRC-16 with x^16 + x^15 + x^2 + 1.
+      int crc8 = i;
+      int crc16 = i << 8;
+      for (int bit = 0; bit < 8; ++bit) {
+        crc8 = (crc8 & 0x80) != 0 ? (crc8 << 1) ^ 0x07 : crc8 << 1;
+        crc16 = (crc16 & 0x8000) != 0 ? (crc16 << 1) ^ 0x8005 : crc16 << 1;
+      }
+      CRC8_TABLE[i] = crc8 & 0xFF;
+      CRC16_TABLE[i] = crc16 & 0xFFFF;
+    }
+  }
+
+  private FlacFormat() {}
+
+  static int crc8(int crc, int value) {
+    return CRC8_TABLE[crc ^ value];
+  }
+
+  static int crc16(int crc, int value) {
+    return ((crc << 8) ^ CRC16_TABLE[(crc >>> 8) ^ value]) & 0xFFFF;
+  }
+
+  /** Returns the frame header code for `sampleRate`, or 0 to refer to STREAMINFO. */
+  static int sampleRateCode(int sampleRate) {
+    for (int code = 1; code < SAMPLE_RATES.length; ++code) {
+      if (SAMPLE_RATES[code] == sampleRate) {
+        return code;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Returns the frame header code for `blockSize`. Codes 6 and 7 mean that the block size minus
+   * one follows the frame number as an 8 or 16-bit value.
+   */
+  static int blockSizeCode(int blockSize) {
+    if (blockSize == 192) {
+      return 1;
+    }
+    for (int code = 2; code <= 5; ++code) {
+      if (blockSize == 576 << (code - 2)) {
+        return code;
+      }
+    }
+    for (int code = 8; code <= 15; ++code) {
+      if (blockSize == 256 << (code - 8)) {
+        return code;
+      }
+    }
+    return blockSize <= 256 ? 6 : 7;
+  }
+
+  /** Returns the block size of header code 1-5 and 8-15, or -1 for the other codes. */
+  static int blockSize(int code) {
+    if (code == 1) {
+      return 192;
+    }
+    if (code >= 2 && code <= 5) {
+      return 576 << (code - 2);
+    }
+    if (code >= 8) {
+      return 256 << (code - 8);
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,176 @@
+package org.appspot.apprtc.util;
+
+/**
+ * In-place FFT of real-valued input with precomputed tables.
+ *
+ * <p>A real sequence of length n is transformed with a complex FFT of length n/2 followed by a
+ * split step, which halves the work compared to a complex transform with zero imaginary parts.
+ * All tables are built in the constructor; {@link #forward} neither allocates nor calls into
+ * {@link Math}. The tables are immutable, so one instance can be shared between threads as long
+ * as each thread transforms its own data array.
+ *
+ * <p>Output layout of {@link #forward}: {@code data[0]} holds the DC bin, {@code data[1]} the
+ * Nyquist bin (both real), and {@code data[2k], data[2k + 1]} the real and imaginary part of bin
+ * k for {@code 1 <= k < n/2}.
+ */
+public final class RealFft {
+  private final int size;
+  private final int halfSize;
+  // Bit reversal permutation of the half-size complex FFT.
+  private final int[] bitReverse;
+  // exp(-2*pi*i*k/halfSize) for k < halfSize/2.
+  private final float[] cosTable;
+  private final float[] sinTable;
+  // exp(-2*pi*i*k/size) for k < halfSize/2, used by the split step.
+  private final float[] splitCos;
+  private final float[] splitSin;
+
+  /** Creates a transform of `size` real samples; `size` must be a power of two >= 4. */
+  public RealFft(int size) {
+    if (size < 4 || Integer.bitCount(size) != 1) {
+      throw new IllegalArgumentException("FFT size must be a power of two >= 4: " + size);
+    }
+    this.size = size;
+    this.halfSize = size / 2;
+    bitReverse = new int[halfSize];
+    final int bits = Integer.numberOfTrailingZeros(halfSize);
+    for (int i = 0; i < halfSize; ++i) {
+      bitReverse[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+    }
+    cosTable = new float[halfSize / 2];
+    sinTable = new float[halfSize / 2];
+    splitCos = new float[halfSize / 2];
+    splitSin = new float[halfSize / 2];
+    for (int k = 0; k < halfSize / 2; ++k) {
+      cosTable[k] = (float) Math.cos(2 * Math.PI * k / halfSize);
+      sinTable[k] = (float) -Math.sin(2 * Math.PI * k / halfSize);
+      splitCos[k] = (float) Math.cos(2 * Math.PI * k / size);
+      splitSin[k] = (float) -Math.sin(2 * Math.PI * k / size);
+    }
+  }
+
+  public int getSize() {
+    return size;
+  }
+
+  /** Transforms `size` real samples in `data` in place; see the class comment for the layout. */
+  public void forward(float[] data) {
+    // Treat even/odd samples as the real/imaginary parts of a half-size complex sequence.
+    complexForward(data);
+
+    final float r0 = data[0];
+    final float i0 = data[1];
+    data[0] = r0 + i0;
+    data[1] = r0 - i0;
+    // The middle bin only needs conjugation.
+    data[halfSize + 1] = -data[halfSize + 1];
+    for (int k = 1; k < halfSize / 2; ++k) {
+      final int j = halfSize - k;
+      final float ar = data[2 * k];
+      final float ai = data[2 * k + 1];
+      final float br = data[2 * j];
+      final float bi = data[2 * j + 1];
+      // Spectra of the even (e) and odd (o) samples.
+      final float er = 0.5f * (ar + br);
+      final float ei = 0.5f * (ai - bi);
+      final float or = 0.5f * (ai + bi);
+      final float oi = -0.5f * (ar - br);
+      final float wr = splitCos[k];
+      final float wi = splitSin[k];
+      final float tr = wr * or - wi * oi;
+      final float ti = wr * oi + wi * or;
+      data[2 * k] = er + tr;
+      data[2 * k + 1] = ei + ti;
+      data[2 * j] = er - tr;
+      data[2 * j + 1] = ti - ei;
+    }
+  }
+
+  /**
+   * Transforms a spectrum in the layout of {@link #forward} back to `size` real samples in place,
+   * scaled so that {@code inverse(forward(x))} is x.
+   */
+  public void inverse(float[] data) {
+    final float dc = data[0];
+    final float nyquist = data[1];
+    data[0] = 0.5f * (dc + nyquist);
+    data[1] = 0.5f * (dc - nyquist);
+    data[halfSize + 1] = -data[halfSize + 1];
+    for (int k = 1; k < halfSize / 2; ++k) {
+      final int j = halfSize - k;
+      final float xr = data[2 * k];
+      final float xi = data[2 * k + 1];
+      final float yr = data[2 * j];
+      final float yi = data[2 * j + 1];
+      // Undo the split step: spectra of the even (e) and odd (o) samples.
+      final float er = 0.5f * (xr + yr);
+      final float ei = 0.5f * (xi - yi);
+      final float tr = 0.5f * (xr - yr);
+      final float ti = 0.5f * (xi + yi);
+      final float wr = splitCos[k];
+      final float wi = splitSin[k];
+      final float or = tr * wr + ti * wi;
+      final float oi = ti * wr - tr * wi;
+      data[2 * k] = er - oi;
+      data[2 * k + 1] = ei + or;
+      data[2 * j] = er + oi;
+      data[2 * j + 1] = or - ei;
+    }
+    // Inverse complex FFT as the conjugate of the forward FFT of the conjugate.
+    for (int i = 1; i < size; i += 2) {
+      data[i] = -data[i];
+    }
+    complexForward(data);
+    final float scale = 1f / halfSize;
+    for (int i = 0; i < size; i += 2) {
+      data[i] *= scale;
+      data[i + 1] *= -scale;
+    }
+  }
+
+  /**
+   * Computes |X[k]|^2 for the {@code size/2 + 1} bins of a spectrum produced by {@link #forward}.
+   */
+  public void powerSpectrum(float[] spectrum, float[] power) {
+    power[0] = spectrum[0] * spectrum[0];
+    power[halfSize] = spectrum[1] * spectrum[1];
+    for (int k = 1; k < halfSize; ++k) {
+      final float re = spectrum[2 * k];
+      final float im = spectrum[2 * k + 1];
+      power[k] = re * re + im * im;
+    }
+  }
+
+  // Iterative radix-2 decimation-in-time FFT of `halfSize` interleaved complex values.
+  private void complexForward(float[] data) {
+    for (int i = 0; i < halfSize; ++i) {
+      final int j = bitReverse[i];
+      if (j > i) {
+        float tmp = data[2 * i];
+        data[2 * i] = data[2 * j];
+        data[2 * j] = tmp;
+        tmp = data[2 * i + 1];
+        data[2 * i + 1] = data[2 * j + 1];
+        data[2 * j + 1] = tmp;
+      }
+    }
+    for (int length = 2; length <= halfSize; length <<= 1) {
+      final int half = length >> 1;
+      final int tableStep = halfSize / length;
+      for (int start = 0; start < halfSize; start += length) {
+        for (int k = 0; k < half; ++k) {
+          final float wr = cosTable[k * tableStep];
+          final float wi = sinTable[k * tableStep];
+          final int a = 2 * (start + k);
+          final int b = 2 * (start + k + half);
+          final float xr = data[b] * wr - data[b + 1] * wi;
+          final float xi = data[b] * wi + data[b + 1] * wr;
+          data[b] = data[a] - xr;
+          data[b + 1] = data[a + 1] - xi;
+          data[a] += xr;
+          data[a + 1] += xi;
+        }
+      }
+    }
+  }
+}
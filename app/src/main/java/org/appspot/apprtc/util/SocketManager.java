@@ -1,5 +1,7 @@
 package org.appspot.apprtc.util;
 
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.net.Socket;
 
 public class SocketManager {
@@ -22,4 +24,18 @@ public class SocketManager {
     public Socket getSocket() {
         return socket;
     }
+
+    /**
+     * Writes `payload` to `socket` as one signaling frame: its length as an int, then the bytes.
+     * Every writer of a socket must use this, so that frames of concurrent writers never
+     * interleave.
+     */
+    public static void writeFrame(Socket socket, byte[] payload) throws IOException {
+        synchronized (socket) {
+            DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+            dos.writeInt(payload.length);
+            dos.write(payload);
+            dos.flush();
+        }
+    }
 }
\ No newline at end of file
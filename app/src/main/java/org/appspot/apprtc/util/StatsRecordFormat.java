@@ -0,0 +1,50 @@
+package org.appspot.apprtc.util;
+
+/**
+ * Layout of call stats recordings, shared by {@link StatsRecordWriter} and
+ * {@link StatsRecordReader}. All numbers are little-endian.
+ *
+ * <pre>
+ * header  int32   MAGIC
+ *         uint16  VERSION
+ *         uint16  number of value columns C
+ *         uint16  rows per block R
+ *         uint16  0
+ *         int64   start time, ms since the epoch
+ *         uint16  label length, then the label in UTF-8
+ *         C times uint8 name length, then the column name in UTF-8
+ * block   uint16  rows used, up to R
+ *         uint16  0
+ *         R times int32 row time, ms after the start time
+ *         C times R times float32, the values column by column
+ * </pre>
+ *
+ * <p>Every block has the same size, unused rows are zero. The blocks follow the header without a
+ * count; an incomplete block at the end of a file, left by a crash, is ignored.
+ */
+final class StatsRecordFormat {
+  // "CST1" as written.
+  static final int MAGIC = 0x31545343;
+  static final int VERSION = 1;
+  static final int DEFAULT_ROWS_PER_BLOCK = 64;
+  static final int MAX_NAME_BYTES = 255;
+  static final int MAX_LABEL_BYTES = 0xFFFF;
+  // Fixed part of the header, up to and including the label length.
+  static final int HEADER_FIXED_SIZE = 22;
+  static final int BLOCK_HEADER_SIZE = 4;
+
+  private StatsRecordFormat() {}
+
+  static int blockSize(int columns, int rowsPerBlock) {
+    return BLOCK_HEADER_SIZE + rowsPerBlock * 4 * (1 + columns);
+  }
+
+  // Offset of the value of `column` in `row` from the start of a block.
+  static int valueOffset(int column, int row, int rowsPerBlock) {
+    return BLOCK_HEADER_SIZE + rowsPerBlock * 4 * (1 + column) + row * 4;
+  }
+
+  static int timeOffset(int row) {
+    return BLOCK_HEADER_SIZE + row * 4;
+  }
+}
@@ -0,0 +1,193 @@
+package org.appspot.apprtc.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads a call stats recording written by {@link StatsRecordWriter} into column arrays. The whole
+ * file is read with one bulk read and decoded without per-row objects, so scanning many recordings
+ * is bound by the disk. Plain Java, also used by the audio-analyzer's StatsCsvExporter.
+ */
+public final class StatsRecordReader {
+  private final String label;
+  private final long startTimeMs;
+  private final String[] columnNames;
+  private final int rows;
+  // Row times relative to startTimeMs, and the values indexed by column and row.
+  private final int[] timesMs;
+  private final float[][] values;
+
+  private StatsRecordReader(String label, long startTimeMs, String[] columnNames, int rows,
+      int[] timesMs, float[][] values) {
+    this.label = label;
+    this.startTimeMs = startTimeMs;
+    this.columnNames = columnNames;
+    this.rows = rows;
+    this.timesMs = timesMs;
+    this.values = values;
+  }
+
+  public static StatsRecordReader open(File file) throws IOException {
+    final long length = file.length();
+    if (length > Integer.MAX_VALUE) {
+      throw new IOException(file + " is too large");
+    }
+    final byte[] data = new byte[(int) length];
+    try (InputStream input = new FileInputStream(file)) {
+      int read = 0;
+      while (read < data.length) {
+        final int n = input.read(data, read, data.length - read);
+        if (n < 0) {
+          break;
+        }
+        read += n;
+      }
+      return parse(read == data.length ? data : Arrays.copyOf(data, read));
+    }
+  }
+
+  public static StatsRecordReader parse(byte[] data) throws IOException {
+    final ByteBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+    if (data.length < StatsRecordFormat.HEADER_FIXED_SIZE
+        || buffer.getInt() != StatsRecordFormat.MAGIC) {
+      throw new IOException("Not a stats recording");
+    }
+    final int version = buffer.getShort() & 0xFFFF;
+    if (version != StatsRecordFormat.VERSION) {
+      throw new IOException("Unsupported version " + version);
+    }
+    final int columns = buffer.getShort() & 0xFFFF;
+    final int rowsPerBlock = buffer.getShort() & 0xFFFF;
+    buffer.getShort();
+    final long startTimeMs = buffer.getLong();
+    if (columns == 0 || rowsPerBlock == 0) {
+      throw new IOException("Invalid header");
+    }
+    try {
+      final String label = readString(buffer, buffer.getShort() & 0xFFFF);
+      final String[] columnNames = new String[columns];
+      for (int i = 0; i < columns; ++i) {
+        columnNames[i] = readString(buffer, buffer.get() & 0xFF);
+      }
+
+      final int blockSize = StatsRecordFormat.blockSize(columns, rowsPerBlock);
+      final int blocks = buffer.remaining() / blockSize;
+      final int[] timesMs = new int[blocks * rowsPerBlock];
+      final float[][] values = new float[columns][blocks * rowsPerBlock];
+      int rows = 0;
+      for (int block = 0; block < blocks; ++block) {
+        final int base = buffer.position() + block * blockSize;
+        final int used = Math.min(buffer.getShort(base) & 0xFFFF, rowsPerBlock);
+        for (int row = 0; row < used; ++row) {
+          timesMs[rows + row] = buffer.getInt(base + StatsRecordFormat.timeOffset(row));
+        }
+        for (int column = 0; column < columns; ++column) {
+          final int offset = base + StatsRecordFormat.valueOffset(column, 0, rowsPerBlock);
+          for (int row = 0; row < used; ++row) {
+            values[column][rows + row] = buffer.getFloat(offset + row * 4);
+          }
+        }
+        rows += used;
+      }
+      return new StatsRecordReader(label, startTimeMs, columnNames, rows, timesMs, values);
+    } catch (RuntimeException e) {
+      throw new IOException("Truncated header", e);
+    }
+  }
+
+  private static String readString(ByteBuffer buffer, int length) {
+    final String value =
+        new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+    buffer.position(buffer.position() + length);
+    return value;
+  }
+
+  public String getLabel() {
+    return label;
+  }
+
+  /** Returns the start of the recording in ms since the epoch. */
+  public long getStartTimeMs() {
+    return startTimeMs;
+  }
+
+  public int getColumnCount() {
+    return columnNames.length;
+  }
+
+  public String getColumnName(int column) {
+    return columnNames[column];
+  }
+
+  /** Returns the index of the column `name`, or -1 if the recording does not have it. */
+  public int findColumn(String name) {
+    for (int i = 0; i < columnNames.length; ++i) {
+      if (columnNames[i].equals(name)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  public int getRowCount() {
+    return rows;
+  }
+
+  /** Returns the time of `row` in ms after {@link #getStartTimeMs()}. */
+  public int getTimeMs(int row) {
+    checkRow(row);
+    return timesMs[row];
+  }
+
+  public float getValue(int row, int column) {
+    checkRow(row);
+    return values[column][row];
+  }
+
+  /** Returns a copy of all values of `column`. */
+  public float[] getColumn(int column) {
+    return Arrays.copyOf(values[column], rows);
+  }
+
+  private void checkRow(int row) {
+    if (row < 0 || row >= rows) {
+      throw new IndexOutOfBoundsException("Row " + row + ", rows " + rows);
+    }
+  }
+
+  /** Writes a header line with "time_ms" and the column names, then one line per row. */
+  public void writeCsv(Writer writer) throws IOException {
+    final StringBuilder sb = new StringBuilder("time_ms");
+    for (String name : columnNames) {
+      sb.append(',').append(name);
+    }
+    sb.append('\n');
+    appendCsvRows(sb, "");
+    writer.write(sb.toString());
+  }
+
+  /**
+   * Appends one CSV line per row, starting with `prefix`, then the time in ms since the epoch and
+   * the values in column order. NaN values are left empty.
+   */
+  public void appendCsvRows(StringBuilder sb, String prefix) {
+    for (int row = 0; row < rows; ++row) {
+      sb.append(prefix).append(startTimeMs + timesMs[row]);
+      for (int column = 0; column < columnNames.length; ++column) {
+        sb.append(',');
+        final float value = values[column][row];
+        if (!Float.isNaN(value)) {
+          sb.append(value);
+        }
+      }
+      sb.append('\n');
+    }
+  }
+}
@@ -0,0 +1,113 @@
+package org.appspot.apprtc.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Writes rows of float values in the columnar block format of {@link StatsRecordFormat}. Rows are
+ * collected in memory and written one full block at a time; {@link #close} writes the last,
+ * partly used block. Not thread safe.
+ */
+public final class StatsRecordWriter implements Closeable {
+  private final OutputStream output;
+  private final int columns;
+  private final int rowsPerBlock;
+  private final long startTimeMs;
+  private final ByteBuffer block;
+  private int rows;
+  private boolean closed;
+
+  /** Writes the header to `output` with the default block size. */
+  public StatsRecordWriter(OutputStream output, long startTimeMs, String label,
+      String[] columnNames) throws IOException {
+    this(output, startTimeMs, label, columnNames, StatsRecordFormat.DEFAULT_ROWS_PER_BLOCK);
+  }
+
+  public StatsRecordWriter(OutputStream output, long startTimeMs, String label,
+      String[] columnNames, int rowsPerBlock) throws IOException {
+    if (columnNames.length == 0 || columnNames.length > 0xFFFF || rowsPerBlock <= 0
+        || rowsPerBlock > 0xFFFF) {
+      throw new IllegalArgumentException(
+          columnNames.length + " columns, " + rowsPerBlock + " rows per block");
+    }
+    this.output = output;
+    this.columns = columnNames.length;
+    this.rowsPerBlock = rowsPerBlock;
+    this.startTimeMs = startTimeMs;
+    this.block = ByteBuffer.allocate(StatsRecordFormat.blockSize(columns, rowsPerBlock))
+                     .order(ByteOrder.LITTLE_ENDIAN);
+
+    byte[] labelBytes = label.getBytes(StandardCharsets.UTF_8);
+    if (labelBytes.length > StatsRecordFormat.MAX_LABEL_BYTES) {
+      labelBytes = Arrays.copyOf(labelBytes, StatsRecordFormat.MAX_LABEL_BYTES);
+    }
+    final byte[][] nameBytes = new byte[columns][];
+    int size = StatsRecordFormat.HEADER_FIXED_SIZE + labelBytes.length;
+    for (int i = 0; i < columns; ++i) {
+      nameBytes[i] = columnNames[i].getBytes(StandardCharsets.UTF_8);
+      if (nameBytes[i].length > StatsRecordFormat.MAX_NAME_BYTES) {
+        throw new IllegalArgumentException("Column name too long: " + columnNames[i]);
+      }
+      size += 1 + nameBytes[i].length;
+    }
+    final ByteBuffer header = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    header.putInt(StatsRecordFormat.MAGIC)
+        .putShort((short) StatsRecordFormat.VERSION)
+        .putShort((short) columns)
+        .putShort((short) rowsPerBlock)
+        .putShort((short) 0)
+        .putLong(startTimeMs)
+        .putShort((short) labelBytes.length)
+        .put(labelBytes);
+    for (byte[] name : nameBytes) {
+      header.put((byte) name.length).put(name);
+    }
+    output.write(header.array());
+  }
+
+  /** Adds a row at `timeMs` since the epoch, with one value per column. */
+  public void append(long timeMs, float[] values) throws IOException {
+    if (closed) {
+      throw new IOException("Writer is closed");
+    }
+    if (values.length != columns) {
+      throw new IllegalArgumentException(values.length + " values for " + columns + " columns");
+    }
+    block.putInt(StatsRecordFormat.timeOffset(rows), (int) (timeMs - startTimeMs));
+    for (int column = 0; column < columns; ++column) {
+      block.putFloat(StatsRecordFormat.valueOffset(column, rows, rowsPerBlock), values[column]);
+    }
+    ++rows;
+    if (rows == rowsPerBlock) {
+      writeBlock();
+    }
+  }
+
+  private void writeBlock() throws IOException {
+    block.putShort(0, (short) rows);
+    output.write(block.array());
+    Arrays.fill(block.array(), (byte) 0);
+    rows = 0;
+  }
+
+  /** Writes the rows of the last block and closes the output. */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      if (rows > 0) {
+        writeBlock();
+      }
+    } finally {
+      output.close();
+    }
+  }
+}
@@ -0,0 +1,175 @@
+package org.appspot.apprtc.analyzer;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.appspot.apprtc.HowlDetector;
+import org.appspot.apprtc.util.RealFft;
+
+/**
+ * Analyzes one capture file in a single streaming pass.
+ *
+ * <p>The signal is processed with the same STFT as the app's spectrum analyzer (1024-point Hann
+ * window, 50% overlap, power normalized to a full-scale sine) and fed into the app's
+ * {@link HowlDetector}, so offline results match what the device would have detected. Level
+ * statistics are computed on the mono downmix.
+ */
+class AudioFileAnalyzer {
+  private static final int FFT_SIZE = 1024;
+  private static final int HOP_SIZE = FFT_SIZE / 2;
+  private static final int READ_BLOCK_FRAMES = 8192;
+  // A 10 ms frame is silent if its RMS level is below this.
+  private static final double SILENCE_THRESHOLD_DB = -60;
+  private static final int PEAK_FREQUENCY_COUNT = 5;
+  // Peaks of the long-term spectrum must be separated by at least this many bins.
+  private static final int PEAK_SEPARATION_BINS = 3;
+  private static final double MIN_POWER = 1e-20;
+
+  private final RealFft fft = new RealFft(FFT_SIZE);
+  private final float[] window = new float[FFT_SIZE];
+  private final float powerNormalization;
+  private final float[] history = new float[FFT_SIZE];
+  private final float[] fftBuffer = new float[FFT_SIZE];
+  private final float[] power = new float[FFT_SIZE / 2 + 1];
+  private final double[] averagePower = new double[FFT_SIZE / 2 + 1];
+  private final float[] block = new float[READ_BLOCK_FRAMES];
+
+  AudioFileAnalyzer() {
+    float windowSum = 0;
+    for (int i = 0; i < FFT_SIZE; ++i) {
+      window[i] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * i / FFT_SIZE));
+      windowSum += window[i];
+    }
+    powerNormalization = 4f / (windowSum * windowSum);
+  }
+
+  /** Analyzes `path`. Errors are reported in the returned report rather than thrown. */
+  FileReport analyze(Path path) {
+    final FileReport report = new FileReport(path.toString());
+    try (PcmReader reader = PcmReader.open(path)) {
+      analyze(reader, report);
+    } catch (IOException | RuntimeException e) {
+      report.error = e.toString();
+    }
+    return report;
+  }
+
+  private void analyze(PcmReader reader, FileReport report) throws IOException {
+    final int sampleRate = reader.getSampleRate();
+    report.sampleRate = sampleRate;
+    report.channelCount = reader.getChannelCount();
+
+    final HowlDetector howlDetector = new HowlDetector(FFT_SIZE);
+    // Onsets without a matching offset yet; several frequencies can howl at the same time.
+    final List<HowlDetector.HowlEvent> openOnsets = new ArrayList<>();
+    howlDetector.addListener(event -> {
+      if (event.type == HowlDetector.HowlEvent.Type.ONSET) {
+        openOnsets.add(event);
+        return;
+      }
+      report.howlEpisodes.add(new FileReport.HowlEpisode(event.frequencyHz, event.levelDb,
+          event.timestampMs - event.durationMs, event.durationMs));
+      for (int i = 0; i < openOnsets.size(); ++i) {
+        if (openOnsets.get(i).timestampMs == event.timestampMs - event.durationMs) {
+          openOnsets.remove(i);
+          break;
+        }
+      }
+    });
+
+    Arrays.fill(history, 0f);
+    Arrays.fill(averagePower, 0);
+    final int silenceFrameSize = Math.max(1, sampleRate / 100);
+    long frames = 0;
+    long spectra = 0;
+    double sumSquares = 0;
+    float peak = 0;
+    double frameSumSquares = 0;
+    int frameFill = 0;
+    long silentFrames = 0;
+    long levelFrames = 0;
+    int historyPosition = 0;
+    int sinceLastFft = 0;
+
+    int count;
+    while ((count = reader.read(block)) > 0) {
+      for (int i = 0; i < count; ++i) {
+        final float x = block[i];
+        final float square = x * x;
+        sumSquares += square;
+        peak = Math.max(peak, Math.abs(x));
+        frameSumSquares += square;
+        if (++frameFill == silenceFrameSize) {
+          if (toDb(frameSumSquares / silenceFrameSize) < SILENCE_THRESHOLD_DB) {
+            silentFrames++;
+          }
+          levelFrames++;
+          frameSumSquares = 0;
+          frameFill = 0;
+        }
+
+        history[historyPosition] = x;
+        historyPosition = (historyPosition + 1) & (FFT_SIZE - 1);
+        frames++;
+        if (++sinceLastFft == HOP_SIZE) {
+          sinceLastFft = 0;
+          for (int k = 0; k < FFT_SIZE; ++k) {
+            fftBuffer[k] = history[(historyPosition + k) & (FFT_SIZE - 1)] * window[k];
+          }
+          fft.forward(fftBuffer);
+          fft.powerSpectrum(fftBuffer, power);
+          for (int k = 0; k < power.length; ++k) {
+            power[k] *= powerNormalization;
+            averagePower[k] += power[k];
+          }
+          spectra++;
+          howlDetector.process(power, sampleRate, frames * 1000 / sampleRate);
+        }
+      }
+    }
+
+    final long endMs = frames * 1000 / Math.max(1, sampleRate);
+    for (HowlDetector.HowlEvent onset : openOnsets) {
+      // Howling until the end of the recording.
+      report.howlEpisodes.add(new FileReport.HowlEpisode(
+          onset.frequencyHz, onset.levelDb, onset.timestampMs, endMs - onset.timestampMs));
+    }
+    report.durationSeconds = (double) frames / sampleRate;
+    report.rmsDb = frames == 0 ? toDb(0) : toDb(sumSquares / frames);
+    report.peakDb = toDb((double) peak * peak);
+    report.clippedSamples = reader.getClippedSamples();
+    report.silenceRatio = levelFrames == 0 ? 0 : (double) silentFrames / levelFrames;
+    if (spectra > 0) {
+      findPeakFrequencies(sampleRate, report);
+    }
+  }
+
+  // Picks the strongest local maxima of the long-term average spectrum, skipping DC.
+  private void findPeakFrequencies(int sampleRate, FileReport report) {
+    final boolean[] taken = new boolean[averagePower.length];
+    for (int n = 0; n < PEAK_FREQUENCY_COUNT; ++n) {
+      int best = -1;
+      for (int k = 2; k < averagePower.length - 1; ++k) {
+        if (!taken[k] && averagePower[k] >= averagePower[k - 1]
+            && averagePower[k] >= averagePower[k + 1]
+            && (best < 0 || averagePower[k] > averagePower[best])) {
+          best = k;
+        }
+      }
+      if (best < 0 || averagePower[best] <= MIN_POWER) {
+        return;
+      }
+      for (int k = Math.max(0, best - PEAK_SEPARATION_BINS);
+           k <= Math.min(taken.length - 1, best + PEAK_SEPARATION_BINS); ++k) {
+        taken[k] = true;
+      }
+      report.peakFrequenciesHz.add((float) best * sampleRate / FFT_SIZE);
+    }
+  }
+
+  private static double toDb(double power) {
+    return 10 * Math.log10(Math.max(power, MIN_POWER));
+  }
+}
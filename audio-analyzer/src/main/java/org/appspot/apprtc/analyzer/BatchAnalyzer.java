@@ -0,0 +1,163 @@
+package org.appspot.apprtc.analyzer;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Command line entry point: analyzes every capture in a directory tree and writes one JSON or CSV
+ * report.
+ *
+ * <pre>
+ * BatchAnalyzer [--format json|csv] [--output FILE] [--threads N] DIRECTORY
+ * </pre>
+ *
+ * <p>Recognized captures are the app's recorded_*.pcm files, 16-bit PCM .wav files and .flac
+ * files. Files are distributed over the cores with a fork/join pool; each worker reuses one
+ * {@link AudioFileAnalyzer} and streams the file (through a memory mapping for PCM and WAV), so
+ * memory use does not depend on the corpus size.
+ */
+public class BatchAnalyzer {
+  private static final String USAGE =
+      "Usage: BatchAnalyzer [--format json|csv] [--output FILE] [--threads N] DIRECTORY";
+
+  // Reuses one analyzer (and its buffers) per worker thread.
+  private static final ThreadLocal<AudioFileAnalyzer> ANALYZER =
+      ThreadLocal.withInitial(AudioFileAnalyzer::new);
+
+  /** Analyzes files[from, to), splitting the range until a single file is left. */
+  private static class AnalyzeTask extends RecursiveTask<List<FileReport>> {
+    private static final long serialVersionUID = 1L;
+
+    private final List<Path> files;
+    private final int from;
+    private final int to;
+
+    AnalyzeTask(List<Path> files, int from, int to) {
+      this.files = files;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected List<FileReport> compute() {
+      if (to - from == 1) {
+        return Collections.singletonList(ANALYZER.get().analyze(files.get(from)));
+      }
+      final int middle = (from + to) >>> 1;
+      final AnalyzeTask left = new AnalyzeTask(files, from, middle);
+      left.fork();
+      final List<FileReport> right = new AnalyzeTask(files, middle, to).compute();
+      final List<FileReport> reports = new ArrayList<>(left.join());
+      reports.addAll(right);
+      return reports;
+    }
+  }
+
+  public static void main(String[] args) {
+    String format = "json";
+    Path output = null;
+    int threads = Runtime.getRuntime().availableProcessors();
+    Path directory = null;
+    try {
+      for (int i = 0; i < args.length; ++i) {
+        switch (args[i]) {
+          case "--format":
+            format = args[++i];
+            break;
+          case "--output":
+            output = Paths.get(args[++i]);
+            break;
+          case "--threads":
+            threads = Integer.parseInt(args[++i]);
+            break;
+          default:
+            if (args[i].startsWith("--") || directory != null) {
+              throw new IllegalArgumentException("Unexpected argument: " + args[i]);
+            }
+            directory = Paths.get(args[i]);
+        }
+      }
+      if (directory == null || threads <= 0
+          || !(format.equals("json") || format.equals("csv"))) {
+        throw new IllegalArgumentException(USAGE);
+      }
+    } catch (RuntimeException e) {
+      System.err.println(e.getMessage() != null ? e.getMessage() : USAGE);
+      System.exit(2);
+      return;
+    }
+
+    try {
+      final long startNs = System.nanoTime();
+      final List<Path> files = findCaptures(directory);
+      final List<FileReport> reports = analyze(files, threads);
+      final String report = format.equals("json") ? toJson(reports) : toCsv(reports);
+      if (output == null) {
+        System.out.print(report);
+      } else {
+        try (Writer writer = Files.newBufferedWriter(output, StandardCharsets.UTF_8)) {
+          writer.write(report);
+        }
+      }
+      System.err.printf("Analyzed %d files in %.1f s%n", files.size(),
+          (System.nanoTime() - startNs) / 1e9);
+    } catch (IOException e) {
+      System.err.println("Analysis failed: " + e);
+      System.exit(1);
+    }
+  }
+
+  static List<Path> findCaptures(Path directory) throws IOException {
+    try (Stream<Path> paths = Files.walk(directory)) {
+      return paths.filter(Files::isRegularFile)
+          .filter(path -> {
+            final String name = path.getFileName().toString();
+            return (name.startsWith("recorded_") && name.endsWith(".pcm"))
+                || name.endsWith(".wav") || name.endsWith(".flac");
+          })
+          .sorted()
+          .collect(Collectors.toList());
+    }
+  }
+
+  static List<FileReport> analyze(List<Path> files, int threads) {
+    if (files.isEmpty()) {
+      return Collections.emptyList();
+    }
+    final ForkJoinPool pool = new ForkJoinPool(threads);
+    try {
+      return pool.invoke(new AnalyzeTask(files, 0, files.size()));
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  static String toJson(List<FileReport> reports) {
+    final StringBuilder sb = new StringBuilder("[\n");
+    for (int i = 0; i < reports.size(); ++i) {
+      sb.append("  ");
+      reports.get(i).appendJson(sb);
+      sb.append(i + 1 < reports.size() ? ",\n" : "\n");
+    }
+    return sb.append("]\n").toString();
+  }
+
+  static String toCsv(List<FileReport> reports) {
+    final StringBuilder sb = new StringBuilder(FileReport.CSV_HEADER).append('\n');
+    for (FileReport report : reports) {
+      report.appendCsv(sb);
+    }
+    return sb.toString();
+  }
+}
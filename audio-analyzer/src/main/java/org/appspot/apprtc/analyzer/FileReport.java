@@ -0,0 +1,123 @@
+package org.appspot.apprtc.analyzer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/** Analysis results of one capture file. */
+class FileReport {
+  /** A howl episode from onset to offset (or to the end of the file). */
+  static class HowlEpisode {
+    final float frequencyHz;
+    final float levelDb;
+    final long startMs;
+    final long durationMs;
+
+    HowlEpisode(float frequencyHz, float levelDb, long startMs, long durationMs) {
+      this.frequencyHz = frequencyHz;
+      this.levelDb = levelDb;
+      this.startMs = startMs;
+      this.durationMs = durationMs;
+    }
+  }
+
+  static final String CSV_HEADER = "file,sample_rate,channels,duration_s,rms_dbfs,peak_dbfs,"
+      + "clipped_samples,silence_ratio,peak_frequencies_hz,howl_episode_count,howl_total_s,"
+      + "howl_episodes,error";
+
+  final String file;
+  int sampleRate;
+  int channelCount;
+  double durationSeconds;
+  double rmsDb;
+  double peakDb;
+  long clippedSamples;
+  double silenceRatio;
+  // Strongest peaks of the long-term average spectrum, strongest first.
+  final List<Float> peakFrequenciesHz = new ArrayList<>();
+  final List<HowlEpisode> howlEpisodes = new ArrayList<>();
+  // Set if the file could not be analyzed.
+  String error;
+
+  FileReport(String file) {
+    this.file = file;
+  }
+
+  double getHowlSeconds() {
+    long totalMs = 0;
+    for (HowlEpisode episode : howlEpisodes) {
+      totalMs += episode.durationMs;
+    }
+    return totalMs / 1000.0;
+  }
+
+  void appendJson(StringBuilder sb) {
+    sb.append("{\"file\":").append(quote(file));
+    if (error != null) {
+      sb.append(",\"error\":").append(quote(error)).append('}');
+      return;
+    }
+    sb.append(String.format(Locale.US,
+        ",\"sample_rate\":%d,\"channels\":%d,\"duration_s\":%.3f,\"rms_dbfs\":%.2f,"
+            + "\"peak_dbfs\":%.2f,\"clipped_samples\":%d,\"silence_ratio\":%.4f",
+        sampleRate, channelCount, durationSeconds, rmsDb, peakDb, clippedSamples, silenceRatio));
+    sb.append(",\"peak_frequencies_hz\":[");
+    for (int i = 0; i < peakFrequenciesHz.size(); ++i) {
+      sb.append(i > 0 ? "," : "")
+          .append(String.format(Locale.US, "%.1f", peakFrequenciesHz.get(i)));
+    }
+    sb.append("],\"howl_episodes\":[");
+    for (int i = 0; i < howlEpisodes.size(); ++i) {
+      final HowlEpisode episode = howlEpisodes.get(i);
+      sb.append(i > 0 ? "," : "")
+          .append(String.format(Locale.US,
+              "{\"frequency_hz\":%.1f,\"level_dbfs\":%.1f,\"start_ms\":%d,\"duration_ms\":%d}",
+              episode.frequencyHz, episode.levelDb, episode.startMs, episode.durationMs));
+    }
+    sb.append("]}");
+  }
+
+  void appendCsv(StringBuilder sb) {
+    sb.append(csvField(file)).append(',');
+    if (error != null) {
+      sb.append(",,,,,,,,,,,").append(csvField(error)).append('\n');
+      return;
+    }
+    final StringBuilder frequencies = new StringBuilder();
+    for (Float frequency : peakFrequenciesHz) {
+      frequencies.append(frequencies.length() > 0 ? ";" : "")
+          .append(String.format(Locale.US, "%.1f", frequency));
+    }
+    final StringBuilder episodes = new StringBuilder();
+    for (HowlEpisode episode : howlEpisodes) {
+      episodes.append(episodes.length() > 0 ? ";" : "")
+          .append(String.format(Locale.US, "%.0fHz@%dms+%dms", episode.frequencyHz,
+              episode.startMs, episode.durationMs));
+    }
+    sb.append(String.format(Locale.US, "%d,%d,%.3f,%.2f,%.2f,%d,%.4f,%s,%d,%.3f,%s,\n",
+        sampleRate, channelCount, durationSeconds, rmsDb, peakDb, clippedSamples, silenceRatio,
+        frequencies, howlEpisodes.size(), getHowlSeconds(), episodes));
+  }
+
+  private static String quote(String value) {
+    final StringBuilder sb = new StringBuilder("\"");
+    for (int i = 0; i < value.length(); ++i) {
+      final char c = value.charAt(i);
+      if (c == '"' || c == '\\') {
+        sb.append('\\').append(c);
+      } else if (c < 0x20) {
+        sb.append(String.format(Locale.US, "\\u%04x", (int) c));
+      } else {
+        sb.append(c);
+      }
+    }
+    return sb.append('"').toString();
+  }
+
+  private static String csvField(String value) {
+    if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+      return value;
+    }
+    return "\"" + value.replace("\"", "\"\"") + "\"";
+  }
+}
@@ -0,0 +1,219 @@
+package org.appspot.apprtc.analyzer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.appspot.apprtc.util.FlacDecoder;
+import org.appspot.apprtc.util.FlacEncoder;
+
+/**
+ * Measures throughput and compression of the app's FLAC encoder.
+ *
+ * <pre>
+ * FlacBenchmark [--repeat N] [FILE...]
+ * </pre>
+ *
+ * <p>Without arguments a set of synthetic 48 kHz signals is used; capture files are benchmarked
+ * as their 16-bit mono downmix. Input is fed in the 32 KiB chunks the recorder's writer thread
+ * uses, every encoded file is decoded again and compared sample by sample, and speeds are
+ * reported as multiples of real time (best of N runs after a warm-up run).
+ */
+public class FlacBenchmark {
+  private static final String USAGE = "Usage: FlacBenchmark [--repeat N] [FILE...]";
+  private static final int SAMPLE_RATE = 48000;
+  private static final int SYNTHETIC_SECONDS = 60;
+  // Same as RecordedAudioToFileController.WRITE_CHUNK_BYTES.
+  private static final int WRITE_CHUNK_BYTES = 1 << 15;
+
+  /** Interleaved 16-bit little-endian PCM and its format. */
+  private static class Input {
+    final String name;
+    final byte[] pcm;
+    final int sampleRate;
+    final int channelCount;
+
+    Input(String name, byte[] pcm, int sampleRate, int channelCount) {
+      this.name = name;
+      this.pcm = pcm;
+      this.sampleRate = sampleRate;
+      this.channelCount = channelCount;
+    }
+
+    double getDurationSeconds() {
+      return pcm.length / (2.0 * channelCount * sampleRate);
+    }
+  }
+
+  public static void main(String[] args) {
+    int repeat = 5;
+    final List<Path> files = new ArrayList<>();
+    try {
+      for (int i = 0; i < args.length; ++i) {
+        if (args[i].equals("--repeat")) {
+          repeat = Integer.parseInt(args[++i]);
+        } else if (args[i].startsWith("--")) {
+          throw new IllegalArgumentException("Unexpected argument: " + args[i]);
+        } else {
+          files.add(Paths.get(args[i]));
+        }
+      }
+      if (repeat <= 0) {
+        throw new IllegalArgumentException(USAGE);
+      }
+    } catch (RuntimeException e) {
+      System.err.println(e.getMessage() != null ? e.getMessage() : USAGE);
+      System.exit(2);
+      return;
+    }
+
+    try {
+      final List<Input> inputs = new ArrayList<>();
+      if (files.isEmpty()) {
+        inputs.addAll(createSyntheticInputs());
+      }
+      for (Path file : files) {
+        inputs.add(readDownmix(file));
+      }
+      System.out.printf("%-28s %9s %7s %12s %12s%n",
+          "input", "seconds", "ratio", "encode x RT", "decode x RT");
+      boolean allExact = true;
+      for (Input input : inputs) {
+        allExact &= run(input, repeat);
+      }
+      if (!allExact) {
+        System.exit(1);
+      }
+    } catch (IOException e) {
+      System.err.println("Benchmark failed: " + e);
+      System.exit(1);
+    }
+  }
+
+  // Prints one result line. Returns false if the decoded samples differ from the input.
+  private static boolean run(Input input, int repeat) throws IOException {
+    final File file = File.createTempFile("flac_benchmark", ".flac");
+    try {
+      long bestEncodeNs = Long.MAX_VALUE;
+      long bestDecodeNs = Long.MAX_VALUE;
+      boolean exact = true;
+      // The first run warms up the JIT and is not counted.
+      for (int run = 0; run <= repeat; ++run) {
+        long startNs = System.nanoTime();
+        try (FlacEncoder encoder = new FlacEncoder(file, input.sampleRate, input.channelCount)) {
+          for (int offset = 0; offset < input.pcm.length; offset += WRITE_CHUNK_BYTES) {
+            encoder.write(input.pcm, offset,
+                Math.min(WRITE_CHUNK_BYTES, input.pcm.length - offset));
+          }
+        }
+        final long encodeNs = System.nanoTime() - startNs;
+
+        startNs = System.nanoTime();
+        exact &= decodesTo(file, input);
+        final long decodeNs = System.nanoTime() - startNs;
+        if (run > 0) {
+          bestEncodeNs = Math.min(bestEncodeNs, encodeNs);
+          bestDecodeNs = Math.min(bestDecodeNs, decodeNs);
+        }
+      }
+      final double seconds = input.getDurationSeconds();
+      System.out.printf("%-28s %9.1f %7.3f %12.0f %12.0f%s%n", input.name, seconds,
+          (double) file.length() / input.pcm.length, seconds * 1e9 / bestEncodeNs,
+          seconds * 1e9 / bestDecodeNs, exact ? "" : "  MISMATCH");
+      return exact;
+    } finally {
+      file.delete();
+    }
+  }
+
+  private static boolean decodesTo(File file, Input input) throws IOException {
+    try (FlacDecoder decoder = new FlacDecoder(new FileInputStream(file))) {
+      final int channelCount = decoder.getChannelCount();
+      if (channelCount != input.channelCount) {
+        return false;
+      }
+      final byte[] pcm = input.pcm;
+      final int[][] frame = new int[channelCount][decoder.getMaxBlockSize()];
+      int position = 0;
+      int length;
+      while ((length = decoder.readFrame(frame)) > 0) {
+        for (int i = 0; i < length; ++i) {
+          for (int c = 0; c < channelCount; ++c) {
+            if (position + 1 >= pcm.length
+                || frame[c][i] != (short) ((pcm[position] & 0xFF) | (pcm[position + 1] << 8))) {
+              return false;
+            }
+            position += 2;
+          }
+        }
+      }
+      return position == pcm.length;
+    }
+  }
+
+  private static Input readDownmix(Path path) throws IOException {
+    try (PcmReader reader = PcmReader.open(path)) {
+      final float[] block = new float[8192];
+      byte[] pcm = new byte[1 << 20];
+      int size = 0;
+      int count;
+      while ((count = reader.read(block)) > 0) {
+        if (size + 2 * count > pcm.length) {
+          pcm = Arrays.copyOf(pcm, Math.max(pcm.length * 2, size + 2 * count));
+        }
+        for (int i = 0; i < count; ++i) {
+          final int sample = Math.max(-32768, Math.min(32767, Math.round(block[i] * 32768f)));
+          pcm[size++] = (byte) sample;
+          pcm[size++] = (byte) (sample >> 8);
+        }
+      }
+      return new Input(path.getFileName().toString(), Arrays.copyOf(pcm, size),
+          reader.getSampleRate(), 1);
+    }
+  }
+
+  private static List<Input> createSyntheticInputs() {
+    final int frames = SAMPLE_RATE * SYNTHETIC_SECONDS;
+    final List<Input> inputs = new ArrayList<>();
+    inputs.add(synthesize("speech-like mono", frames, 1, 1));
+    inputs.add(synthesize("speech-like stereo", frames, 2, 2));
+    inputs.add(synthesize("speech with pauses mono", frames, 1, 3));
+    inputs.add(synthesize("white noise mono", frames, 1, 4));
+    return inputs;
+  }
+
+  // Low-pass filtered noise with a syllable-rate envelope; `kind` 3 adds pauses of digital
+  // silence and 4 is white noise, the worst case for compression.
+  private static Input synthesize(String name, int frames, int channelCount, int kind) {
+    final Random random = new Random(kind);
+    final byte[] pcm = new byte[frames * channelCount * 2];
+    double lowPass = 0;
+    double smooth = 0;
+    int position = 0;
+    for (int i = 0; i < frames; ++i) {
+      lowPass = 0.97 * lowPass + random.nextGaussian() * 900;
+      smooth = 0.5 * smooth + 0.5 * lowPass;
+      final double envelope = 0.5 + 0.5 * Math.sin(2 * Math.PI * 3 * i / SAMPLE_RATE);
+      final boolean pause = kind == 3 && (i / SAMPLE_RATE) % 3 == 2;
+      for (int c = 0; c < channelCount; ++c) {
+        double value = kind == 4 ? random.nextGaussian() * 8000 : smooth * envelope;
+        if (pause) {
+          value = 0;
+        }
+        // The second channel is an attenuated copy plus some independent noise.
+        if (c == 1) {
+          value = 0.8 * value + random.nextGaussian() * 30;
+        }
+        final int sample = (int) Math.max(-32768, Math.min(32767, Math.round(value)));
+        pcm[position++] = (byte) sample;
+        pcm[position++] = (byte) (sample >> 8);
+      }
+    }
+    return new Input(name, pcm, SAMPLE_RATE, channelCount);
+  }
+}
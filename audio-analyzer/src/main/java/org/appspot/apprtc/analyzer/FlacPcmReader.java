@@ -0,0 +1,79 @@
+package org.appspot.apprtc.analyzer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.appspot.apprtc.util.FlacDecoder;
+
+/** Streams the samples of a FLAC file, e.g. a capture saved in the app's FLAC format. */
+class FlacPcmReader implements PcmReader {
+  private final FlacDecoder decoder;
+  private final int[][] frame;
+  private final int maxValue;
+  private final int minValue;
+  private final float scale;
+  private int frameLength;
+  private int framePosition;
+  private int clippedSamples;
+
+  FlacPcmReader(Path path) throws IOException {
+    decoder = new FlacDecoder(Files.newInputStream(path));
+    final int channelCount = decoder.getChannelCount();
+    final int bitsPerSample = decoder.getBitsPerSample();
+    if (decoder.getMaxBlockSize() <= 0 || bitsPerSample > 24) {
+      decoder.close();
+      throw new IOException("Unsupported FLAC format: " + bitsPerSample + " bits per sample");
+    }
+    frame = new int[channelCount][decoder.getMaxBlockSize()];
+    maxValue = (1 << (bitsPerSample - 1)) - 1;
+    minValue = -maxValue - 1;
+    scale = 1f / ((float) (maxValue + 1) * channelCount);
+  }
+
+  @Override
+  public int getSampleRate() {
+    return decoder.getSampleRate();
+  }
+
+  @Override
+  public int getChannelCount() {
+    return frame.length;
+  }
+
+  @Override
+  public int getClippedSamples() {
+    return clippedSamples;
+  }
+
+  @Override
+  public int read(float[] destination) throws IOException {
+    int count = 0;
+    while (count < destination.length) {
+      if (framePosition == frameLength) {
+        frameLength = decoder.readFrame(frame);
+        framePosition = 0;
+        if (frameLength < 0) {
+          frameLength = 0;
+          break;
+        }
+      }
+      for (; framePosition < frameLength && count < destination.length; ++framePosition) {
+        int sum = 0;
+        for (int[] channel : frame) {
+          final int sample = channel[framePosition];
+          if (sample == maxValue || sample == minValue) {
+            clippedSamples++;
+          }
+          sum += sample;
+        }
+        destination[count++] = sum * scale;
+      }
+    }
+    return count;
+  }
+
+  @Override
+  public void close() throws IOException {
+    decoder.close();
+  }
+}
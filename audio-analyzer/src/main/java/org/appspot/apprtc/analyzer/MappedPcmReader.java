@@ -0,0 +1,171 @@
+package org.appspot.apprtc.analyzer;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Streams 16-bit PCM samples from a capture file through a memory mapping.
+ *
+ * <p>Two layouts are supported: the headerless .pcm files written by the app, whose sample rate
+ * and channel count are encoded in the file name (e.g. recorded_audio_16bits_48000Hz_mono.pcm),
+ * and canonical PCM WAV files. The file is mapped in windows of {@link #MAP_WINDOW_BYTES}, so
+ * arbitrarily large captures are read without copying them onto the Java heap.
+ */
+class MappedPcmReader implements PcmReader {
+  private static final long MAP_WINDOW_BYTES = 64L << 20;
+  private static final Pattern PCM_FILE_NAME =
+      Pattern.compile(".*_16bits_(\\d+)Hz_(mono|stereo).*\\.pcm");
+
+  private final FileChannel channel;
+  private final int sampleRate;
+  private final int channelCount;
+  private final long dataStart;
+  private final long dataEnd;
+  private long windowStart;
+  private MappedByteBuffer window;
+  private int clippedSamples;
+
+  MappedPcmReader(Path path) throws IOException {
+    channel = FileChannel.open(path, StandardOpenOption.READ);
+    try {
+      final String name = path.getFileName().toString();
+      if (name.endsWith(".wav")) {
+        final MappedByteBuffer header =
+            channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), 4096));
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        final long[] dataChunk = new long[2];
+        final int[] format = parseWavHeader(header, dataChunk);
+        sampleRate = format[0];
+        channelCount = format[1];
+        dataStart = dataChunk[0];
+        dataEnd = Math.min(channel.size(), dataChunk[0] + dataChunk[1]);
+      } else {
+        final Matcher matcher = PCM_FILE_NAME.matcher(name);
+        if (!matcher.matches()) {
+          throw new IOException("Cannot derive the audio format from the file name: " + name);
+        }
+        sampleRate = Integer.parseInt(matcher.group(1));
+        channelCount = matcher.group(2).equals("mono") ? 1 : 2;
+        dataStart = 0;
+        dataEnd = channel.size();
+      }
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+    windowStart = dataStart;
+  }
+
+  @Override
+  public int getSampleRate() {
+    return sampleRate;
+  }
+
+  @Override
+  public int getChannelCount() {
+    return channelCount;
+  }
+
+  /** Total number of frames (samples per channel) in the file. */
+  long getFrameCount() {
+    return (dataEnd - dataStart) / (2L * channelCount);
+  }
+
+  @Override
+  public int getClippedSamples() {
+    return clippedSamples;
+  }
+
+  @Override
+  public int read(float[] destination) throws IOException {
+    final int frameBytes = 2 * channelCount;
+    if (window == null || window.remaining() < frameBytes) {
+      if (!mapNextWindow(frameBytes)) {
+        return 0;
+      }
+    }
+    final int frames = Math.min(destination.length, window.remaining() / frameBytes);
+    final float scale = 1f / (32768f * channelCount);
+    for (int i = 0; i < frames; ++i) {
+      int sum = 0;
+      for (int c = 0; c < channelCount; ++c) {
+        final short sample = window.getShort();
+        if (sample == Short.MAX_VALUE || sample == Short.MIN_VALUE) {
+          clippedSamples++;
+        }
+        sum += sample;
+      }
+      destination[i] = sum * scale;
+    }
+    return frames;
+  }
+
+  @Override
+  public void close() throws IOException {
+    window = null;
+    channel.close();
+  }
+
+  private boolean mapNextWindow(int frameBytes) throws IOException {
+    if (window != null) {
+      windowStart += window.position();
+    }
+    final long remaining = dataEnd - windowStart;
+    if (remaining < frameBytes) {
+      return false;
+    }
+    // Windows always hold whole frames.
+    final long size = Math.min(remaining, MAP_WINDOW_BYTES - MAP_WINDOW_BYTES % frameBytes);
+    window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, size);
+    window.order(ByteOrder.LITTLE_ENDIAN);
+    return true;
+  }
+
+  // Returns {sampleRate, channelCount} and stores the offset and size of the data chunk in
+  // `dataChunk`.
+  private static int[] parseWavHeader(MappedByteBuffer header, long[] dataChunk)
+      throws IOException {
+    if (header.remaining() < 12 || !chunkId(header, 0).equals("RIFF")
+        || !chunkId(header, 8).equals("WAVE")) {
+      throw new IOException("Not a RIFF/WAVE file");
+    }
+    int[] format = null;
+    int position = 12;
+    while (position + 8 <= header.limit()) {
+      final String id = chunkId(header, position);
+      final long size = header.getInt(position + 4) & 0xFFFFFFFFL;
+      if (id.equals("fmt ")) {
+        final int audioFormat = header.getShort(position + 8);
+        final int bitsPerSample = header.getShort(position + 22);
+        if (audioFormat != 1 || bitsPerSample != 16) {
+          throw new IOException("Only 16-bit PCM WAV files are supported");
+        }
+        format = new int[] {header.getInt(position + 12), header.getShort(position + 10)};
+      } else if (id.equals("data")) {
+        if (format == null) {
+          throw new IOException("WAV data chunk before fmt chunk");
+        }
+        dataChunk[0] = position + 8;
+        dataChunk[1] = size;
+        return format;
+      }
+      position += 8 + (int) size + (int) (size & 1);
+    }
+    throw new IOException("No WAV data chunk found");
+  }
+
+  private static String chunkId(MappedByteBuffer buffer, int position) {
+    final byte[] id = new byte[4];
+    for (int i = 0; i < 4; ++i) {
+      id[i] = buffer.get(position + i);
+    }
+    return new String(id, StandardCharsets.US_ASCII);
+  }
+}
@@ -0,0 +1,31 @@
+package org.appspot.apprtc.analyzer;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/** Sequential reader of the mono downmix of a capture file. */
+interface PcmReader extends AutoCloseable {
+  /** Opens `path` with the reader matching its file name extension. */
+  static PcmReader open(Path path) throws IOException {
+    if (path.getFileName().toString().endsWith(".flac")) {
+      return new FlacPcmReader(path);
+    }
+    return new MappedPcmReader(path);
+  }
+
+  int getSampleRate();
+
+  int getChannelCount();
+
+  /** Number of samples at either end of the sample range read so far. */
+  int getClippedSamples();
+
+  /**
+   * Reads up to `destination.length` frames, downmixed to mono and scaled to [-1, 1). Returns the
+   * number of frames read, or 0 at the end of the file.
+   */
+  int read(float[] destination) throws IOException;
+
+  @Override
+  void close() throws IOException;
+}
@@ -0,0 +1,181 @@
+package org.appspot.apprtc.analyzer;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.appspot.apprtc.util.StatsRecordReader;
+
+/**
+ * Exports the app's call stats recordings to one CSV.
+ *
+ * <pre>
+ * StatsCsvExporter [--output FILE] [--threads N] DIRECTORY|FILE...
+ * </pre>
+ *
+ * <p>Directories are searched for call_stats_*.bin files. Each line starts with the file name and
+ * the recording's label, followed by the time in ms since the epoch and the recorded columns. The
+ * columns are those of the first recording; recordings with other columns are skipped with a note
+ * on stderr. Files are decoded in parallel and written in sorted order.
+ */
+public class StatsCsvExporter {
+  private static final String USAGE =
+      "Usage: StatsCsvExporter [--output FILE] [--threads N] DIRECTORY|FILE...";
+  private static final int IN_FLIGHT_PER_THREAD = 4;
+
+  /** The CSV lines of one recording, or why it was skipped. */
+  private static class Result {
+    final Path file;
+    final String[] columns;
+    final String lines;
+    final int rows;
+    final String error;
+
+    Result(Path file, String[] columns, String lines, int rows, String error) {
+      this.file = file;
+      this.columns = columns;
+      this.lines = lines;
+      this.rows = rows;
+      this.error = error;
+    }
+  }
+
+  public static void main(String[] args) {
+    Path output = null;
+    int threads = Runtime.getRuntime().availableProcessors();
+    final List<Path> inputs = new ArrayList<>();
+    try {
+      for (int i = 0; i < args.length; ++i) {
+        switch (args[i]) {
+          case "--output":
+            output = Paths.get(args[++i]);
+            break;
+          case "--threads":
+            threads = Integer.parseInt(args[++i]);
+            break;
+          default:
+            if (args[i].startsWith("--")) {
+              throw new IllegalArgumentException("Unexpected argument: " + args[i]);
+            }
+            inputs.add(Paths.get(args[i]));
+        }
+      }
+      if (inputs.isEmpty() || threads <= 0) {
+        throw new IllegalArgumentException(USAGE);
+      }
+    } catch (RuntimeException e) {
+      System.err.println(e.getMessage() != null ? e.getMessage() : USAGE);
+      System.exit(2);
+      return;
+    }
+
+    try {
+      final long startNs = System.nanoTime();
+      final List<Path> files = new ArrayList<>();
+      for (Path input : inputs) {
+        files.addAll(Files.isDirectory(input) ? findRecordings(input) : Arrays.asList(input));
+      }
+      final int rows;
+      if (output == null) {
+        final Writer writer = new OutputStreamWriter(System.out, StandardCharsets.UTF_8);
+        rows = export(files, threads, writer);
+        writer.flush();
+      } else {
+        try (Writer writer = Files.newBufferedWriter(output, StandardCharsets.UTF_8)) {
+          rows = export(files, threads, writer);
+        }
+      }
+      System.err.printf("Exported %d rows of %d files in %.1f s%n", rows, files.size(),
+          (System.nanoTime() - startNs) / 1e9);
+    } catch (IOException e) {
+      System.err.println("Export failed: " + e);
+      System.exit(1);
+    }
+  }
+
+  static List<Path> findRecordings(Path directory) throws IOException {
+    try (Stream<Path> paths = Files.walk(directory)) {
+      return paths.filter(Files::isRegularFile)
+          .filter(path -> {
+            final String name = path.getFileName().toString();
+            return name.startsWith("call_stats_") && name.endsWith(".bin");
+          })
+          .sorted()
+          .collect(Collectors.toList());
+    }
+  }
+
+  // Writes the header and the rows of `files` and returns the number of rows. At most
+  // IN_FLIGHT_PER_THREAD files per thread are decoded ahead of the writer, which bounds the memory.
+  static int export(List<Path> files, int threads, Writer writer) throws IOException {
+    final ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      final ArrayDeque<Future<Result>> pending = new ArrayDeque<>();
+      int submitted = 0;
+      String[] columns = null;
+      int rows = 0;
+      while (submitted < files.size() || !pending.isEmpty()) {
+        while (submitted < files.size() && pending.size() < threads * IN_FLIGHT_PER_THREAD) {
+          final Path file = files.get(submitted++);
+          pending.add(executor.submit(() -> read(file)));
+        }
+        final Result result = pending.remove().get();
+        if (result.error != null) {
+          System.err.println(result.file + ": " + result.error);
+          continue;
+        }
+        if (columns == null) {
+          columns = result.columns;
+          writer.write("file,label,time_ms," + String.join(",", columns) + "\n");
+        } else if (!Arrays.equals(columns, result.columns)) {
+          System.err.println(result.file + ": other columns, skipped");
+          continue;
+        }
+        writer.write(result.lines);
+        rows += result.rows;
+      }
+      return rows;
+    } catch (InterruptedException | ExecutionException e) {
+      throw new IOException(e);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static Result read(Path file) {
+    final StatsRecordReader reader;
+    try {
+      reader = StatsRecordReader.open(file.toFile());
+    } catch (IOException e) {
+      return new Result(file, null, null, 0, e.getMessage());
+    }
+    final String[] columns = new String[reader.getColumnCount()];
+    for (int i = 0; i < columns.length; ++i) {
+      columns[i] = reader.getColumnName(i);
+    }
+    final StringBuilder sb = new StringBuilder(reader.getRowCount() * 16 * (columns.length + 3));
+    reader.appendCsvRows(
+        sb, csvField(file.getFileName().toString()) + ',' + csvField(reader.getLabel()) + ',');
+    return new Result(file, columns, sb.toString(), reader.getRowCount(), null);
+  }
+
+  private static String csvField(String value) {
+    if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+      return value;
+    }
+    return '"' + value.replace("\"", "\"\"") + '"';
+  }
+}